@@ -106,6 +106,38 @@ extern "C" {
   PSTART(); memset(D,C,L); PEND(ENV); \
 } while(0)
 
+/* Sequentially consistent atomic operations on naturally aligned 32- and
+ * 64-bit values.  Loads and stores are at least as strong as
+ * acquire/release.
+ */
+#if defined(_MSC_VER)
+#define ATOMIC_CAS32(P,E,V) (InterlockedCompareExchange((volatile LONG*)(P),(LONG)(V),(LONG)(E)) == (LONG)(E))
+#define ATOMIC_CAS64(P,E,V) (InterlockedCompareExchange64((volatile LONGLONG*)(P),(V),(E)) == (E))
+#define ATOMIC_ADD32(P,D) InterlockedExchangeAdd((volatile LONG*)(P),(LONG)(D))
+#define ATOMIC_ADD64(P,D) InterlockedExchangeAdd64((volatile LONGLONG*)(P),(D))
+#define ATOMIC_XCHG32(P,V) InterlockedExchange((volatile LONG*)(P),(LONG)(V))
+#define ATOMIC_XCHG64(P,V) InterlockedExchange64((volatile LONGLONG*)(P),(V))
+#define ATOMIC_LOAD32(P) InterlockedCompareExchange((volatile LONG*)(P),0,0)
+#define ATOMIC_LOAD64(P) InterlockedCompareExchange64((volatile LONGLONG*)(P),0,0)
+#define ATOMIC_STORE32(P,V) ((void)InterlockedExchange((volatile LONG*)(P),(LONG)(V)))
+#define ATOMIC_STORE64(P,V) ((void)InterlockedExchange64((volatile LONGLONG*)(P),(V)))
+#define ATOMIC_FENCE(KIND) MemoryBarrier()
+#else
+#define ATOMIC_CAS32(P,E,V) __atomic_compare_exchange_n((jint*)(P),&(E),(V),0,__ATOMIC_SEQ_CST,__ATOMIC_SEQ_CST)
+#define ATOMIC_CAS64(P,E,V) __atomic_compare_exchange_n((jlong*)(P),&(E),(V),0,__ATOMIC_SEQ_CST,__ATOMIC_SEQ_CST)
+#define ATOMIC_ADD32(P,D) __atomic_fetch_add((jint*)(P),(D),__ATOMIC_SEQ_CST)
+#define ATOMIC_ADD64(P,D) __atomic_fetch_add((jlong*)(P),(D),__ATOMIC_SEQ_CST)
+#define ATOMIC_XCHG32(P,V) __atomic_exchange_n((jint*)(P),(V),__ATOMIC_SEQ_CST)
+#define ATOMIC_XCHG64(P,V) __atomic_exchange_n((jlong*)(P),(V),__ATOMIC_SEQ_CST)
+#define ATOMIC_LOAD32(P) __atomic_load_n((jint*)(P),__ATOMIC_ACQUIRE)
+#define ATOMIC_LOAD64(P) __atomic_load_n((jlong*)(P),__ATOMIC_ACQUIRE)
+#define ATOMIC_STORE32(P,V) __atomic_store_n((jint*)(P),(V),__ATOMIC_RELEASE)
+#define ATOMIC_STORE64(P,V) __atomic_store_n((jlong*)(P),(V),__ATOMIC_RELEASE)
+#define ATOMIC_FENCE(KIND) __atomic_thread_fence((KIND) == com_sun_jna_Native_FENCE_ACQUIRE ? __ATOMIC_ACQUIRE \
+                                                 : (KIND) == com_sun_jna_Native_FENCE_RELEASE ? __ATOMIC_RELEASE \
+                                                 : __ATOMIC_SEQ_CST)
+#endif
+
 #define MASK_CC          com_sun_jna_Function_MASK_CC
 #define THROW_LAST_ERROR com_sun_jna_Function_THROW_LAST_ERROR
 
@@ -144,6 +176,7 @@ static jclass classAttachOptions;
 static jclass classNativeMapped;
 static jclass classIntegerType;
 static jclass classPointerType;
+static jclass classCallDescriptor;
 static jclass class_ffi_callback;
 
 static jmethodID MID_Class_getComponentType;
@@ -214,6 +247,7 @@ static jfieldID FID_Structure_memory;
 static jfieldID FID_Structure_typeInfo;
 static jfieldID FID_IntegerType_value;
 static jfieldID FID_PointerType_pointer;
+static jfieldID FID_CallDescriptor_peer;
 
 jstring fileEncoding;
 
@@ -412,6 +446,77 @@ ffi_error(JNIEnv* env, const char* op, ffi_status status) {
   }
 }
 
+/* Release primitive arrays obtained by get_critical_arrays, in reverse
+   order of acquisition.  Input-only arrays are released with JNI_ABORT.
+ */
+static void
+release_critical_arrays(JNIEnv* env, jobject* arrays, void** elems,
+                        jint* modes, int count)
+{
+  int i;
+  for (i=count-1;i >= 0;i--) {
+    (*env)->ReleasePrimitiveArrayCritical(env, arrays[i], elems[i],
+                                          modes ? modes[i] : JNI_ABORT);
+  }
+}
+
+/* Output-only arrays are passed zeroed native memory, which is copied
+   into the whole array on release unless the release is aborted.  This
+   avoids copying the original array contents to native memory, while
+   elements the native function does not write read back as zero rather
+   than as stale heap contents.
+ */
+static void*
+get_output_array(JNIEnv* env, jarray array, size_t size)
+{
+  jsize len = (*env)->GetArrayLength(env, array);
+  return calloc(len > 0 ? len : 1, size);
+}
+
+#define OUTPUT_ARRAY(Type,jtype) \
+static void JNICALL \
+release_output_##jtype##_array(JNIEnv* env, jarray array, void* elems, jint mode) { \
+  if (mode != JNI_ABORT) { \
+    (*env)->Set##Type##ArrayRegion(env, (jtype##Array)array, 0, \
+                                   (*env)->GetArrayLength(env, array), \
+                                   (jtype *)elems); \
+  } \
+  free(elems); \
+}
+OUTPUT_ARRAY(Boolean,jboolean)
+OUTPUT_ARRAY(Byte,jbyte)
+OUTPUT_ARRAY(Char,jchar)
+OUTPUT_ARRAY(Short,jshort)
+OUTPUT_ARRAY(Int,jint)
+OUTPUT_ARRAY(Long,jlong)
+OUTPUT_ARRAY(Float,jfloat)
+OUTPUT_ARRAY(Double,jdouble)
+#undef OUTPUT_ARRAY
+
+/* Pin primitive arrays for direct access by the native function, storing
+   the address of each array's elements in the corresponding slot.  No
+   other JNI calls may be made until the arrays are released.  Returns
+   JNI_FALSE, with no arrays held, if any array can not be pinned.
+ */
+static jboolean
+get_critical_arrays(JNIEnv* env, jobject* arrays, void** elems, void*** slots,
+                    int count)
+{
+  int i;
+  // Make sure thread storage exists, so that recording the last error
+  // after the call requires no JNI calls
+  JNA_get_last_error(env);
+  for (i=0;i < count;i++) {
+    elems[i] = (*env)->GetPrimitiveArrayCritical(env, arrays[i], NULL);
+    if (elems[i] == NULL) {
+      release_critical_arrays(env, arrays, elems, NULL, i);
+      return JNI_FALSE;
+    }
+    *slots[i] = elems[i];
+  }
+  return JNI_TRUE;
+}
+
 /* invoke the real native function */
 static void
 dispatch(JNIEnv *env, void* func, jint flags, jobjectArray args,
@@ -644,6 +749,358 @@ dispatch(JNIEnv *env, void* func, jint flags, jobjectArray args,
   }
 }
 
+/* Call interface prepared once for a given method signature */
+typedef struct _call_info {
+  ffi_cif cif;
+  ffi_type** arg_types;
+  int* flags;
+  /* CVT_FLAG_IN and CVT_FLAG_OUT for each argument */
+  int* directions;
+  jint call_flags;
+} call_info;
+
+/* Perform a call through a prepared call interface with fully converted
+   arguments.  Returns the type of exception to be thrown, if any, with
+   its message in msg (which must be at least MSG_SIZE bytes).
+ */
+static const char*
+call_prepared(JNIEnv *env, call_info* info, void* func, void* presult,
+              void** arg_values, char* msg)
+{
+  const char* volatile throw_type = NULL;
+
+  PSTART();
+  if ((info->call_flags & THROW_LAST_ERROR) != 0) {
+    SET_LAST_ERROR(0);
+  }
+  ffi_call(&info->cif, FFI_FN(func), presult, arg_values);
+  {
+    int err = GET_LAST_ERROR();
+    JNA_set_last_error(env, err);
+    if ((info->call_flags & THROW_LAST_ERROR) && err) {
+      char emsg[MSG_SIZE];
+      snprintf(msg, MSG_SIZE, "[%d] %s", err, STR_ERROR(err, emsg, sizeof(emsg)));
+      throw_type = ELastError;
+    }
+  }
+
+  PROTECTED_END(do { throw_type=EError;snprintf(msg, MSG_SIZE, "Invalid memory access");} while(0));
+
+  return throw_type;
+}
+
+/* invoke the real native function using a previously prepared call
+   interface; arguments must already be in the form described by the
+   per-argument conversion flags, so no per-call type lookup or
+   ffi_prep_cif is required.
+ */
+static void
+dispatch_prepared(JNIEnv *env, void* func, jobject call, jobjectArray args,
+                  void *presult)
+{
+  int i, nargs;
+  jvalue* c_args;
+  struct _array_elements {
+    jobject array;
+    void *elems;
+    release_t release;
+    jint mode;
+  } *array_elements;
+  volatile int array_count = 0;
+  jobject* volatile critical_arrays;
+  void** volatile critical_elems;
+  void*** volatile critical_slots;
+  jint* volatile critical_modes;
+  volatile int critical_count = 0;
+  void** arg_values;
+  char msg[MSG_SIZE];
+  call_info* info = (call_info*)
+    L2A((*env)->GetLongField(env, call, FID_CallDescriptor_peer));
+  const char* volatile throw_type = NULL;
+  const char* volatile throw_msg = NULL;
+
+  if (info == NULL) {
+    throwByName(env, EIllegalState, "Call descriptor has been disposed");
+    return;
+  }
+
+  nargs = (*env)->GetArrayLength(env, args);
+  if (nargs != (int)info->cif.nargs) {
+    snprintf(msg, sizeof(msg), "Expected %d arguments, got %d",
+             (int)info->cif.nargs, nargs);
+    throwByName(env, EIllegalArgument, msg);
+    return;
+  }
+
+  c_args = (jvalue*)alloca(nargs * sizeof(jvalue));
+  array_elements = (struct _array_elements*)
+    alloca(nargs * sizeof(struct _array_elements));
+  critical_arrays = (jobject*)alloca(nargs * sizeof(jobject));
+  critical_elems = (void**)alloca(nargs * sizeof(void*));
+  critical_slots = (void***)alloca(nargs * sizeof(void**));
+  critical_modes = (jint*)alloca(nargs * sizeof(jint));
+  arg_values = (void**)alloca(nargs * sizeof(void*));
+
+  for (i = 0; i < nargs; i++) {
+    jobject arg = (*env)->GetObjectArrayElement(env, args, i);
+    arg_values[i] = &c_args[i];
+
+    switch(info->flags[i]) {
+    case CVT_DEFAULT:
+      switch(info->arg_types[i]->type) {
+      case FFI_TYPE_SINT8:
+        c_args[i].b = (*env)->GetByteField(env, arg, FID_Byte_value);
+        break;
+      case FFI_TYPE_SINT16:
+        c_args[i].s = (*env)->GetShortField(env, arg, FID_Short_value);
+        break;
+      case FFI_TYPE_UINT16:
+        c_args[i].c = (*env)->GetCharField(env, arg, FID_Character_value);
+        break;
+      case FFI_TYPE_UINT32:
+        c_args[i].i = (*env)->GetCharField(env, arg, FID_Character_value);
+        break;
+      case FFI_TYPE_SINT32:
+        c_args[i].i = (*env)->GetIntField(env, arg, FID_Integer_value);
+        break;
+      case FFI_TYPE_SINT64:
+        c_args[i].j = (*env)->GetLongField(env, arg, FID_Long_value);
+        break;
+      case FFI_TYPE_FLOAT:
+        c_args[i].f = (*env)->GetFloatField(env, arg, FID_Float_value);
+        break;
+      case FFI_TYPE_DOUBLE:
+        c_args[i].d = (*env)->GetDoubleField(env, arg, FID_Double_value);
+        break;
+      default:
+        snprintf(msg, sizeof(msg), "Unsupported type at argument %d", i);
+        throw_type = EIllegalArgument;
+        throw_msg = msg;
+        goto cleanup;
+      }
+      break;
+    case CVT_POINTER:
+      c_args[i].l = getNativeAddress(env, arg);
+      break;
+    case CVT_STRUCTURE_BYVAL:
+      c_args[i].l = getStructureAddress(env, arg);
+      arg_values[i] = c_args[i].l;
+      break;
+#ifndef NO_NIO_BUFFERS
+    case CVT_BUFFER:
+      c_args[i].l = arg ? getDirectBufferAddress(env, arg) : NULL;
+      if (arg != NULL && c_args[i].l == NULL) {
+        c_args[i].l =
+          getBufferArray(env, arg, &array_elements[array_count].array,
+                         &array_elements[array_count].elems,
+                         (void**)&array_elements[array_count].release);
+        if (c_args[i].l == NULL) {
+          throw_type = EIllegalArgument;
+          throw_msg = "Buffer arguments must be direct or have a primitive backing array";
+          goto cleanup;
+        }
+        array_elements[array_count++].mode = 0;
+      }
+      break;
+#endif /* NO_NIO_BUFFERS */
+    case CVT_ARRAY_BOOLEAN:
+    case CVT_ARRAY_BYTE:
+    case CVT_ARRAY_CHAR:
+    case CVT_ARRAY_SHORT:
+    case CVT_ARRAY_INT:
+    case CVT_ARRAY_LONG:
+    case CVT_ARRAY_FLOAT:
+    case CVT_ARRAY_DOUBLE:
+      if (arg == NULL) {
+        c_args[i].l = NULL;
+      }
+      else {
+        void *ptr = NULL;
+        release_t release = NULL;
+        if (info->directions[i] & CVT_FLAG_OUT) {
+#define GET_OUTPUT(TYPE,jtype) do {ptr=get_output_array(env,arg,sizeof(jtype)); release=release_output_##jtype##_array; }while(0)
+          switch(info->flags[i]) {
+          case CVT_ARRAY_BOOLEAN: GET_OUTPUT(Boolean,jboolean); break;
+          case CVT_ARRAY_BYTE: GET_OUTPUT(Byte,jbyte); break;
+          case CVT_ARRAY_CHAR: GET_OUTPUT(Char,jchar); break;
+          case CVT_ARRAY_SHORT: GET_OUTPUT(Short,jshort); break;
+          case CVT_ARRAY_INT: GET_OUTPUT(Int,jint); break;
+          case CVT_ARRAY_LONG: GET_OUTPUT(Long,jlong); break;
+          case CVT_ARRAY_FLOAT: GET_OUTPUT(Float,jfloat); break;
+          case CVT_ARRAY_DOUBLE: GET_OUTPUT(Double,jdouble); break;
+          }
+        }
+        else {
+          switch(info->flags[i]) {
+          case CVT_ARRAY_BOOLEAN: GET_ELEMS(Boolean); break;
+          case CVT_ARRAY_BYTE: GET_ELEMS(Byte); break;
+          case CVT_ARRAY_CHAR: GET_ELEMS(Char); break;
+          case CVT_ARRAY_SHORT: GET_ELEMS(Short); break;
+          case CVT_ARRAY_INT: GET_ELEMS(Int); break;
+          case CVT_ARRAY_LONG: GET_ELEMS(Long); break;
+          case CVT_ARRAY_FLOAT: GET_ELEMS(Float); break;
+          case CVT_ARRAY_DOUBLE: GET_ELEMS(Double); break;
+          }
+        }
+        if (!ptr) {
+          throw_type = EOutOfMemory;
+          throw_msg = "Could not obtain memory for primitive buffer";
+          goto cleanup;
+        }
+        c_args[i].l = ptr;
+        array_elements[array_count].array = arg;
+        array_elements[array_count].elems = ptr;
+        array_elements[array_count].mode =
+          (info->directions[i] & CVT_FLAG_IN) ? JNI_ABORT : 0;
+        array_elements[array_count++].release = release;
+      }
+      break;
+    case CVT_ARRAY_CRITICAL:
+      // Pinned only once all other arguments are converted
+      c_args[i].l = NULL;
+      if (arg != NULL) {
+        critical_arrays[critical_count] = arg;
+        critical_modes[critical_count] =
+          (info->directions[i] & CVT_FLAG_IN) ? JNI_ABORT : 0;
+        critical_slots[critical_count++] = (void **)&c_args[i].l;
+      }
+      break;
+    default:
+      snprintf(msg, sizeof(msg), "Unsupported conversion (%d) at argument %d",
+               info->flags[i], i);
+      throw_type = EIllegalArgument;
+      throw_msg = msg;
+      goto cleanup;
+    }
+  }
+
+  if (critical_count > 0
+      && !get_critical_arrays(env, critical_arrays, critical_elems,
+                              critical_slots, critical_count)) {
+    throw_type = EOutOfMemory;
+    throw_msg = "Could not obtain critical access to primitive array";
+    goto cleanup;
+  }
+
+  throw_type = call_prepared(env, info, func, presult, arg_values, msg);
+  throw_msg = msg;
+
+  if (critical_count > 0) {
+    release_critical_arrays(env, critical_arrays, critical_elems,
+                            critical_modes, critical_count);
+  }
+
+ cleanup:
+
+  // Release array elements
+  for (i=0;i < array_count;i++) {
+    array_elements[i].release(env, array_elements[i].array,
+                              array_elements[i].elems,
+                              array_elements[i].mode);
+  }
+
+  // Must raise any exception *after* all other JNI operations
+  if (throw_type) {
+    throwByName(env, throw_type, throw_msg);
+  }
+}
+
+/* Set a native argument from its packed representation, as produced by
+   Function.CallDescriptor.pack.  Returns zero if the type is not
+   supported.
+ */
+static int
+unpack_value(ffi_type* type, jlong value, jvalue* arg)
+{
+  switch(type->type) {
+  case FFI_TYPE_SINT8: arg->b = (jbyte)value; break;
+  case FFI_TYPE_SINT16: arg->s = (jshort)value; break;
+  case FFI_TYPE_UINT16: arg->c = (jchar)value; break;
+  case FFI_TYPE_UINT32:
+  case FFI_TYPE_SINT32: arg->i = (jint)value; break;
+  case FFI_TYPE_SINT64: arg->j = value; break;
+  case FFI_TYPE_POINTER: arg->l = L2A(value); break;
+  case FFI_TYPE_FLOAT: {
+    jint bits = (jint)value;
+    memcpy(&arg->f, &bits, sizeof(arg->f));
+    break;
+  }
+  case FFI_TYPE_DOUBLE:
+    memcpy(&arg->d, &value, sizeof(arg->d));
+    break;
+  default:
+    return 0;
+  }
+  return 1;
+}
+
+/* Invoke a native function through a prepared call interface, with
+   primitive arguments packed in order into a long array and pointer
+   arguments in order in an object array.  Float values are passed as
+   their raw int bits, double values as their raw long bits.
+ */
+static void
+dispatch_packed(JNIEnv *env, void* func, jobject call, jlongArray prims,
+                jobjectArray refs, void *presult)
+{
+  int i, nargs, nprims, nrefs, p = 0, r = 0;
+  jvalue* c_args;
+  jlong* values;
+  void** arg_values;
+  char msg[MSG_SIZE];
+  call_info* info = (call_info*)
+    L2A((*env)->GetLongField(env, call, FID_CallDescriptor_peer));
+  const char* throw_type = NULL;
+
+  if (info == NULL) {
+    throwByName(env, EIllegalState, "Call descriptor has been disposed");
+    return;
+  }
+
+  nargs = (int)info->cif.nargs;
+  nprims = prims ? (*env)->GetArrayLength(env, prims) : 0;
+  nrefs = refs ? (*env)->GetArrayLength(env, refs) : 0;
+  if (nprims + nrefs != nargs) {
+    snprintf(msg, sizeof(msg), "Expected %d arguments, got %d",
+             nargs, nprims + nrefs);
+    throwByName(env, EIllegalArgument, msg);
+    return;
+  }
+
+  c_args = (jvalue*)alloca(nargs * sizeof(jvalue));
+  arg_values = (void**)alloca(nargs * sizeof(void*));
+  values = (jlong*)alloca(nprims * sizeof(jlong));
+  if (nprims > 0) {
+    (*env)->GetLongArrayRegion(env, prims, 0, nprims, values);
+  }
+
+  for (i = 0; i < nargs; i++) {
+    arg_values[i] = &c_args[i];
+    if (info->flags[i] == CVT_POINTER && r < nrefs) {
+      jobject arg = (*env)->GetObjectArrayElement(env, refs, r++);
+      c_args[i].l = getNativeAddress(env, arg);
+    }
+    else if (info->flags[i] == CVT_DEFAULT && p < nprims) {
+      if (!unpack_value(info->arg_types[i], values[p++], &c_args[i])) {
+        snprintf(msg, sizeof(msg), "Unsupported type at argument %d", i);
+        throwByName(env, EIllegalArgument, msg);
+        return;
+      }
+    }
+    else {
+      snprintf(msg, sizeof(msg), "Argument %d can not be passed packed (conversion %d)",
+               i, info->flags[i]);
+      throwByName(env, EIllegalArgument, msg);
+      return;
+    }
+  }
+
+  throw_type = call_prepared(env, info, func, presult, arg_values, msg);
+  if (throw_type) {
+    throwByName(env, throw_type, msg);
+  }
+}
+
 /** Copy characters from the Java character array into native memory. */
 static void
 getChars(JNIEnv* env, wchar_t* volatile dst, jcharArray chars, volatile jint off, volatile jint len) {
@@ -1669,6 +2126,8 @@ typedef struct _method_data {
   ffi_type** arg_types;
   ffi_type** closure_arg_types;
   int*    flags;
+  /* CVT_FLAG_IN and CVT_FLAG_OUT for each argument */
+  int*    directions;
   int     rflag;
   jclass  closure_rclass;
   jobject* to_native;
@@ -1690,6 +2149,11 @@ dispatch_direct(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
   void** volatile objects = NULL;
   release_t* volatile release = NULL;
   void** volatile elems = NULL;
+  jobject* volatile critical_arrays = NULL;
+  void** volatile critical_elems = NULL;
+  void*** volatile critical_slots = NULL;
+  jint* volatile critical_modes = NULL;
+  volatile int critical_count = 0;
   unsigned i;
   void* oldresp = resp;
   const char* volatile throw_type = NULL;
@@ -1702,6 +2166,10 @@ dispatch_direct(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
     release = alloca(data->cif.nargs * sizeof(release_t));
     memset(release, 0, data->cif.nargs * sizeof(release_t));
     elems = alloca(data->cif.nargs * sizeof(void*));
+    critical_arrays = alloca(data->cif.nargs * sizeof(jobject));
+    critical_elems = alloca(data->cif.nargs * sizeof(void*));
+    critical_slots = alloca(data->cif.nargs * sizeof(void**));
+    critical_modes = alloca(data->cif.nargs * sizeof(jint));
     for (i=0;i < data->cif.nargs;i++) {
       if (data->flags[i] == CVT_DEFAULT) {
         continue;
@@ -1756,7 +2224,9 @@ dispatch_direct(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
         break;
       case CVT_STRUCTURE:
         objects[i] = *(void **)args[i];
-        writeStructure(env, *(void **)args[i]);
+        if (!(data->directions[i] & CVT_FLAG_OUT)) {
+          writeStructure(env, *(void **)args[i]);
+        }
         *(void **)args[i] = getStructureAddress(env, *(void **)args[i]);
         break;
       case CVT_STRUCTURE_BYVAL:
@@ -1796,18 +2266,31 @@ dispatch_direct(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
         }
         break;
 #endif /* NO_NIO_BUFFERS */
-#define ARRAY(Type)                             \
+#define ARRAY(Type,jtype)                       \
  do { \
    objects[i] = *(void **)args[i];                                      \
-   release[i] = (void *)(*env)->Release##Type##ArrayElements;           \
-   elems[i] = *(void **)args[i] = (*env)->Get##Type##ArrayElements(env, objects[i], NULL); } while(0)
-      case CVT_ARRAY_BYTE: ARRAY(Byte); break;
-      case CVT_ARRAY_SHORT: ARRAY(Short); break;
-      case CVT_ARRAY_CHAR: ARRAY(Char); break;
-      case CVT_ARRAY_INT: ARRAY(Int); break;
-      case CVT_ARRAY_LONG: ARRAY(Long); break;
-      case CVT_ARRAY_FLOAT: ARRAY(Float); break;
-      case CVT_ARRAY_DOUBLE: ARRAY(Double); break;
+   if (data->directions[i] & CVT_FLAG_OUT) {                            \
+     release[i] = release_output_##jtype##_array;                       \
+     elems[i] = *(void **)args[i] = get_output_array(env, objects[i], sizeof(jtype)); \
+   }                                                                    \
+   else {                                                               \
+     release[i] = (void *)(*env)->Release##Type##ArrayElements;         \
+     elems[i] = *(void **)args[i] = (*env)->Get##Type##ArrayElements(env, objects[i], NULL); \
+   } } while(0)
+      case CVT_ARRAY_BYTE: ARRAY(Byte,jbyte); break;
+      case CVT_ARRAY_SHORT: ARRAY(Short,jshort); break;
+      case CVT_ARRAY_CHAR: ARRAY(Char,jchar); break;
+      case CVT_ARRAY_INT: ARRAY(Int,jint); break;
+      case CVT_ARRAY_LONG: ARRAY(Long,jlong); break;
+      case CVT_ARRAY_FLOAT: ARRAY(Float,jfloat); break;
+      case CVT_ARRAY_DOUBLE: ARRAY(Double,jdouble); break;
+      case CVT_ARRAY_CRITICAL:
+        // Pinned only once all other arguments are converted
+        critical_arrays[critical_count] = *(jobject *)args[i];
+        critical_modes[critical_count] =
+          (data->directions[i] & CVT_FLAG_IN) ? JNI_ABORT : 0;
+        critical_slots[critical_count++] = (void **)args[i];
+        break;
       default:
         break;
       }
@@ -1832,6 +2315,14 @@ dispatch_direct(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
     resp = alloca(data->cif.rtype->size);
   }
 
+  if (critical_count > 0
+      && !get_critical_arrays(env, critical_arrays, critical_elems,
+                              critical_slots, critical_count)) {
+    throw_type = EOutOfMemory;
+    throw_msg = "Could not obtain critical access to primitive array";
+    goto cleanup;
+  }
+
   {
     PSTART();
     if (data->throw_last_error) {
@@ -1851,6 +2342,11 @@ dispatch_direct(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
     PROTECTED_END(do { throw_type=EError;throw_msg="Invalid memory access"; } while(0));
   }
 
+  if (critical_count > 0) {
+    release_critical_arrays(env, critical_arrays, critical_elems,
+                            critical_modes, critical_count);
+  }
+
   switch(data->rflag) {
   case CVT_TYPE_MAPPER:
   case CVT_TYPE_MAPPER_STRING:
@@ -1897,7 +2393,8 @@ dispatch_direct(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
     for (i=0;i < data->cif.nargs;i++) {
       switch(data->flags[i]) {
       case CVT_STRUCTURE:
-        if (objects[i] && !(*env)->ExceptionCheck(env)) {
+        if (objects[i] && !(data->directions[i] & CVT_FLAG_IN)
+            && !(*env)->ExceptionCheck(env)) {
           (*env)->CallVoidMethod(env, objects[i], MID_Structure_read);
         }
         break;
@@ -1919,7 +2416,8 @@ dispatch_direct(ffi_cif* cif, void* volatile resp, void** argp, void *cdata) {
       case CVT_ARRAY_FLOAT:
       case CVT_ARRAY_DOUBLE:
         if (*(void **)args[i] && release[i] != NULL) {
-          release[i](env, objects[i], elems[i], 0);
+          release[i](env, objects[i], elems[i],
+                     (data->directions[i] & CVT_FLAG_IN) ? JNI_ABORT : 0);
         }
         break;
       }
@@ -1984,8 +2482,8 @@ closure_handler(ffi_cif* cif, void* resp, void** argp, void *cdata)
  * Signature: (JI[Ljava/lang/Object;)J;
  */
 JNIEXPORT jlong JNICALL
-Java_com_sun_jna_Native_invokePointer(JNIEnv *env, jclass UNUSED(cls),
-                                      jlong fp, jint callconv, jobjectArray arr)
+Java_com_sun_jna_Native_invokePointer__JI_3Ljava_lang_Object_2(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jint callconv, jobjectArray arr)
 {
     jvalue result;
     dispatch(env, L2A(fp), callconv, arr, &ffi_type_pointer, &result);
@@ -1999,8 +2497,8 @@ Java_com_sun_jna_Native_invokePointer(JNIEnv *env, jclass UNUSED(cls),
  * Signature: (JI[Ljava/lang/Object;)Ljava/lang/Object;
  */
 JNIEXPORT jobject JNICALL
-Java_com_sun_jna_Native_invokeObject(JNIEnv *env, jclass UNUSED(cls),
-                                     jlong fp, jint callconv, jobjectArray arr)
+Java_com_sun_jna_Native_invokeObject__JI_3Ljava_lang_Object_2(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jint callconv, jobjectArray arr)
 {
     jvalue result;
     dispatch(env, L2A(fp), callconv, arr, &ffi_type_pointer, &result);
@@ -2014,9 +2512,9 @@ Java_com_sun_jna_Native_invokeObject(JNIEnv *env, jclass UNUSED(cls),
  * Signature: (JI[Ljava/lang/Object;Lcom/sun/jna/Structure)LStructure;
  */
 JNIEXPORT void JNICALL
-Java_com_sun_jna_Native_invokeStructure(JNIEnv *env, jclass UNUSED(cls),
-                                        jlong fp, jint callconv, jobjectArray arr,
-                                        jlong memory, jlong type_info)
+Java_com_sun_jna_Native_invokeStructure__JI_3Ljava_lang_Object_2JJ(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jint callconv, jobjectArray arr,
+    jlong memory, jlong type_info)
 {
   ffi_type* rtype = (ffi_type*)L2A(type_info);
   if (!rtype) {
@@ -2033,8 +2531,8 @@ Java_com_sun_jna_Native_invokeStructure(JNIEnv *env, jclass UNUSED(cls),
  * Signature: (JI[Ljava/lang/Object;)D
  */
 JNIEXPORT jdouble JNICALL
-Java_com_sun_jna_Native_invokeDouble(JNIEnv *env, jclass UNUSED(cls),
-                                     jlong fp, jint callconv, jobjectArray arr)
+Java_com_sun_jna_Native_invokeDouble__JI_3Ljava_lang_Object_2(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jint callconv, jobjectArray arr)
 {
     jvalue result;
     dispatch(env, L2A(fp), callconv, arr, &ffi_type_double, &result);
@@ -2047,8 +2545,8 @@ Java_com_sun_jna_Native_invokeDouble(JNIEnv *env, jclass UNUSED(cls),
  * Signature: (JI[Ljava/lang/Object;)F
  */
 JNIEXPORT jfloat JNICALL
-Java_com_sun_jna_Native_invokeFloat(JNIEnv *env, jclass UNUSED(cls),
-                                    jlong fp, jint callconv, jobjectArray arr)
+Java_com_sun_jna_Native_invokeFloat__JI_3Ljava_lang_Object_2(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jint callconv, jobjectArray arr)
 {
     jvalue result;
     dispatch(env, L2A(fp), callconv, arr, &ffi_type_float, &result);
@@ -2061,8 +2559,8 @@ Java_com_sun_jna_Native_invokeFloat(JNIEnv *env, jclass UNUSED(cls),
  * Signature: (JI[Ljava/lang/Object;)I
  */
 JNIEXPORT jint JNICALL
-Java_com_sun_jna_Native_invokeInt(JNIEnv *env, jclass UNUSED(cls),
-                                  jlong fp, jint callconv, jobjectArray arr)
+Java_com_sun_jna_Native_invokeInt__JI_3Ljava_lang_Object_2(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jint callconv, jobjectArray arr)
 {
     ffi_arg result;
     dispatch(env, L2A(fp), callconv, arr, &ffi_type_sint32, &result);
@@ -2075,8 +2573,8 @@ Java_com_sun_jna_Native_invokeInt(JNIEnv *env, jclass UNUSED(cls),
  * Signature: (JI[Ljava/lang/Object;)J
  */
 JNIEXPORT jlong JNICALL
-Java_com_sun_jna_Native_invokeLong(JNIEnv *env, jclass UNUSED(cls),
-                                   jlong fp, jint callconv, jobjectArray arr)
+Java_com_sun_jna_Native_invokeLong__JI_3Ljava_lang_Object_2(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jint callconv, jobjectArray arr)
 {
     jvalue result;
     dispatch(env, L2A(fp), callconv, arr, &ffi_type_sint64, &result);
@@ -2089,62 +2587,404 @@ Java_com_sun_jna_Native_invokeLong(JNIEnv *env, jclass UNUSED(cls),
  * Signature: (JI[Ljava/lang/Object;)V
  */
 JNIEXPORT void JNICALL
-Java_com_sun_jna_Native_invokeVoid(JNIEnv *env, jclass UNUSED(cls),
-                                   jlong fp, jint callconv, jobjectArray arr)
+Java_com_sun_jna_Native_invokeVoid__JI_3Ljava_lang_Object_2(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jint callconv, jobjectArray arr)
 {
     jvalue result;
     dispatch(env, L2A(fp), callconv, arr, &ffi_type_void, &result);
 }
 
+/*
+ * Class:     Native
+ * Method:    invokePointer
+ * Signature: (JLcom/sun/jna/Function$CallDescriptor;[Ljava/lang/Object;)J
+ */
 JNIEXPORT jlong JNICALL
-Java_com_sun_jna_Native_createNativeCallback(JNIEnv *env,
-                                             jclass UNUSED(cls),
-                                             jobject obj,
-                                             jobject method,
-                                             jobjectArray arg_types,
-                                             jclass return_type,
-                                             jint call_conv,
-                                             jint options,
-                                             jstring encoding) {
-  callback* cb =
-    create_callback(env, obj, method, arg_types, return_type,
-                    call_conv, options, encoding);
-
-  return A2L(cb);
+Java_com_sun_jna_Native_invokePointer__JLcom_sun_jna_Function_00024CallDescriptor_2_3Ljava_lang_Object_2(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jobject call, jobjectArray arr)
+{
+    jvalue result;
+    dispatch_prepared(env, L2A(fp), call, arr, &result);
+    return A2L(result.l);
 }
 
+/*
+ * Class:     Native
+ * Method:    invokeStructure
+ * Signature: (JLcom/sun/jna/Function$CallDescriptor;[Ljava/lang/Object;J)V
+ */
 JNIEXPORT void JNICALL
-Java_com_sun_jna_Native_freeNativeCallback(JNIEnv *env,
-                                           jclass UNUSED(cls),
-                                           jlong ptr) {
-  free_callback(env, (callback*)L2A(ptr));
+Java_com_sun_jna_Native_invokeStructure__JLcom_sun_jna_Function_00024CallDescriptor_2_3Ljava_lang_Object_2J(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jobject call, jobjectArray arr,
+    jlong memory)
+{
+    dispatch_prepared(env, L2A(fp), call, arr, L2A(memory));
 }
 
 /*
  * Class:     Native
- * Method:    open
- * Signature: (Ljava/lang/String;I)J
+ * Method:    invokeDouble
+ * Signature: (JLcom/sun/jna/Function$CallDescriptor;[Ljava/lang/Object;)D
  */
-JNIEXPORT jlong JNICALL
-Java_com_sun_jna_Native_open(JNIEnv *env, jclass UNUSED(cls), jstring lib, jint flags){
-    /* dlopen on Unix allows NULL to mean "current process" */
-    const STRTYPE libname = NULL;
-    void *handle = NULL;
-
-    if (flags == -1) {
-      flags = DEFAULT_LOAD_OPTS;
-    }
+JNIEXPORT jdouble JNICALL
+Java_com_sun_jna_Native_invokeDouble__JLcom_sun_jna_Function_00024CallDescriptor_2_3Ljava_lang_Object_2(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jobject call, jobjectArray arr)
+{
+    jvalue result;
+    dispatch_prepared(env, L2A(fp), call, arr, &result);
+    return result.d;
+}
 
-    if (lib != NULL) {
-      if ((libname = NAME2CSTR(env, lib)) == NULL) {
-        return A2L(NULL);
-      }
-    }
+/*
+ * Class:     Native
+ * Method:    invokeFloat
+ * Signature: (JLcom/sun/jna/Function$CallDescriptor;[Ljava/lang/Object;)F
+ */
+JNIEXPORT jfloat JNICALL
+Java_com_sun_jna_Native_invokeFloat__JLcom_sun_jna_Function_00024CallDescriptor_2_3Ljava_lang_Object_2(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jobject call, jobjectArray arr)
+{
+    jvalue result;
+    dispatch_prepared(env, L2A(fp), call, arr, &result);
+    return result.f;
+}
 
-    handle = (void *)LOAD_LIBRARY(libname, flags);
-#if defined(_WIN32)
-    /** Reattempt lookup using the short name version */
-    if (!handle) {
+/*
+ * Class:     Native
+ * Method:    invokeInt
+ * Signature: (JLcom/sun/jna/Function$CallDescriptor;[Ljava/lang/Object;)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_sun_jna_Native_invokeInt__JLcom_sun_jna_Function_00024CallDescriptor_2_3Ljava_lang_Object_2(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jobject call, jobjectArray arr)
+{
+    ffi_arg result;
+    dispatch_prepared(env, L2A(fp), call, arr, &result);
+    return (jint)result;
+}
+
+/*
+ * Class:     Native
+ * Method:    invokeLong
+ * Signature: (JLcom/sun/jna/Function$CallDescriptor;[Ljava/lang/Object;)J
+ */
+JNIEXPORT jlong JNICALL
+Java_com_sun_jna_Native_invokeLong__JLcom_sun_jna_Function_00024CallDescriptor_2_3Ljava_lang_Object_2(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jobject call, jobjectArray arr)
+{
+    jvalue result;
+    dispatch_prepared(env, L2A(fp), call, arr, &result);
+    return result.j;
+}
+
+/*
+ * Class:     Native
+ * Method:    invokeVoid
+ * Signature: (JLcom/sun/jna/Function$CallDescriptor;[Ljava/lang/Object;)V
+ */
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_invokeVoid__JLcom_sun_jna_Function_00024CallDescriptor_2_3Ljava_lang_Object_2(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jobject call, jobjectArray arr)
+{
+    jvalue result;
+    dispatch_prepared(env, L2A(fp), call, arr, &result);
+}
+
+/*
+ * Class:     Native
+ * Method:    invokePointer
+ * Signature: (JLcom/sun/jna/Function$CallDescriptor;[J[Ljava/lang/Object;)J
+ */
+JNIEXPORT jlong JNICALL
+Java_com_sun_jna_Native_invokePointer__JLcom_sun_jna_Function_00024CallDescriptor_2_3J_3Ljava_lang_Object_2(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jobject call, jlongArray prims, jobjectArray refs)
+{
+    jvalue result;
+    dispatch_packed(env, L2A(fp), call, prims, refs, &result);
+    return A2L(result.l);
+}
+
+/*
+ * Class:     Native
+ * Method:    invokeDouble
+ * Signature: (JLcom/sun/jna/Function$CallDescriptor;[J[Ljava/lang/Object;)D
+ */
+JNIEXPORT jdouble JNICALL
+Java_com_sun_jna_Native_invokeDouble__JLcom_sun_jna_Function_00024CallDescriptor_2_3J_3Ljava_lang_Object_2(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jobject call, jlongArray prims, jobjectArray refs)
+{
+    jvalue result;
+    dispatch_packed(env, L2A(fp), call, prims, refs, &result);
+    return result.d;
+}
+
+/*
+ * Class:     Native
+ * Method:    invokeFloat
+ * Signature: (JLcom/sun/jna/Function$CallDescriptor;[J[Ljava/lang/Object;)F
+ */
+JNIEXPORT jfloat JNICALL
+Java_com_sun_jna_Native_invokeFloat__JLcom_sun_jna_Function_00024CallDescriptor_2_3J_3Ljava_lang_Object_2(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jobject call, jlongArray prims, jobjectArray refs)
+{
+    jvalue result;
+    dispatch_packed(env, L2A(fp), call, prims, refs, &result);
+    return result.f;
+}
+
+/*
+ * Class:     Native
+ * Method:    invokeInt
+ * Signature: (JLcom/sun/jna/Function$CallDescriptor;[J[Ljava/lang/Object;)I
+ */
+JNIEXPORT jint JNICALL
+Java_com_sun_jna_Native_invokeInt__JLcom_sun_jna_Function_00024CallDescriptor_2_3J_3Ljava_lang_Object_2(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jobject call, jlongArray prims, jobjectArray refs)
+{
+    ffi_arg result;
+    dispatch_packed(env, L2A(fp), call, prims, refs, &result);
+    return (jint)result;
+}
+
+/*
+ * Class:     Native
+ * Method:    invokeLong
+ * Signature: (JLcom/sun/jna/Function$CallDescriptor;[J[Ljava/lang/Object;)J
+ */
+JNIEXPORT jlong JNICALL
+Java_com_sun_jna_Native_invokeLong__JLcom_sun_jna_Function_00024CallDescriptor_2_3J_3Ljava_lang_Object_2(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jobject call, jlongArray prims, jobjectArray refs)
+{
+    jvalue result;
+    dispatch_packed(env, L2A(fp), call, prims, refs, &result);
+    return result.j;
+}
+
+/*
+ * Class:     Native
+ * Method:    invokeVoid
+ * Signature: (JLcom/sun/jna/Function$CallDescriptor;[J[Ljava/lang/Object;)V
+ */
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_invokeVoid__JLcom_sun_jna_Function_00024CallDescriptor_2_3J_3Ljava_lang_Object_2(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jobject call, jlongArray prims, jobjectArray refs)
+{
+    jvalue result;
+    dispatch_packed(env, L2A(fp), call, prims, refs, &result);
+}
+
+/*
+ * Class:     Native
+ * Method:    invokeBatch
+ * Signature: ([J[J[J[J[I)V
+ */
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_invokeBatch(JNIEnv *env, jclass UNUSED(cls),
+    jlongArray fps, jlongArray calls, jlongArray args,
+    jlongArray results, jintArray errors)
+{
+  jint count = (*env)->GetArrayLength(env, fps);
+  jint nvalues = (*env)->GetArrayLength(env, args);
+  jlong *fpv, *callv, *argv, *resultv;
+  jint *errv;
+  jvalue c_args[MAX_NARGS];
+  void* arg_values[MAX_NARGS];
+  char msg[MSG_SIZE];
+  const char* volatile throw_type = NULL;
+  volatile jint e;
+  volatile jint err = 0;
+  jint pos = 0;
+
+  fpv = (jlong*)calloc(count * 3 + nvalues, sizeof(jlong));
+  errv = (jint*)calloc(count, sizeof(jint));
+  if (!fpv || !errv) {
+    free(fpv);
+    free(errv);
+    throwByName(env, EOutOfMemory, "Can't allocate batch buffers");
+    return;
+  }
+  callv = fpv + count;
+  resultv = callv + count;
+  argv = resultv + count;
+  (*env)->GetLongArrayRegion(env, fps, 0, count, fpv);
+  (*env)->GetLongArrayRegion(env, calls, 0, count, callv);
+  (*env)->GetLongArrayRegion(env, args, 0, nvalues, argv);
+
+  for (e=0;e < count && !throw_type;e++) {
+    call_info* info = (call_info*)L2A(callv[e]);
+    int i, nargs = (int)info->cif.nargs;
+    union { ffi_arg i; jvalue v; } result;
+
+    if (pos + nargs > nvalues) {
+      snprintf(msg, sizeof(msg), "Missing arguments for batch entry %d", (int)e);
+      throw_type = EIllegalArgument;
+      break;
+    }
+    for (i=0;i < nargs;i++) {
+      arg_values[i] = &c_args[i];
+      if (!unpack_value(info->arg_types[i], argv[pos++], &c_args[i])) {
+        snprintf(msg, sizeof(msg), "Unsupported type at argument %d of batch entry %d", i, (int)e);
+        throw_type = EIllegalArgument;
+        break;
+      }
+    }
+    if (throw_type) {
+      break;
+    }
+
+    {
+      PSTART();
+      SET_LAST_ERROR(0);
+      ffi_call(&info->cif, FFI_FN(L2A(fpv[e])), &result, arg_values);
+      err = errv[e] = GET_LAST_ERROR();
+      PROTECTED_END(do { throw_type=EError;snprintf(msg, sizeof(msg), "Invalid memory access at batch entry %d", (int)e);} while(0));
+    }
+
+    switch(info->cif.rtype->type) {
+    case FFI_TYPE_VOID: resultv[e] = 0; break;
+    case FFI_TYPE_SINT64:
+    case FFI_TYPE_UINT64: resultv[e] = result.v.j; break;
+    case FFI_TYPE_POINTER: resultv[e] = A2L(result.v.l); break;
+    case FFI_TYPE_FLOAT: {
+      jint bits;
+      memcpy(&bits, &result.v.f, sizeof(bits));
+      resultv[e] = bits;
+      break;
+    }
+    case FFI_TYPE_DOUBLE: memcpy(&resultv[e], &result.v.d, sizeof(jlong)); break;
+    default: resultv[e] = (jint)result.i; break;
+    }
+  }
+
+  JNA_set_last_error(env, err);
+  (*env)->SetLongArrayRegion(env, results, 0, count, resultv);
+  (*env)->SetIntArrayRegion(env, errors, 0, count, errv);
+  free(fpv);
+  free(errv);
+  if (throw_type) {
+    throwByName(env, throw_type, msg);
+  }
+}
+
+/*
+ * Class:     Native
+ * Method:    invokeVectorized
+ * Signature: (JLcom/sun/jna/Function$CallDescriptor;[J[IJII)V
+ */
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_invokeVectorized(JNIEnv *env, jclass UNUSED(cls),
+    jlong fp, jobject call, jlongArray args, jintArray strides,
+    jlong result, jint result_size, jint count)
+{
+  call_info* info = (call_info*)
+    L2A((*env)->GetLongField(env, call, FID_CallDescriptor_peer));
+  jlong addrs[MAX_NARGS];
+  jint steps[MAX_NARGS];
+  void* arg_values[MAX_NARGS];
+  char* volatile rp = (char*)L2A(result);
+  const char* volatile throw_type = NULL;
+  int i, nargs;
+  volatile jint n;
+  union { ffi_arg i; jvalue v; } rvalue;
+
+  if (info == NULL) {
+    throwByName(env, EIllegalState, "Call descriptor has been disposed");
+    return;
+  }
+  nargs = (int)info->cif.nargs;
+  if ((*env)->GetArrayLength(env, args) != nargs
+      || (*env)->GetArrayLength(env, strides) != nargs) {
+    throwByName(env, EIllegalArgument, "Wrong number of argument arrays");
+    return;
+  }
+  (*env)->GetLongArrayRegion(env, args, 0, nargs, addrs);
+  (*env)->GetIntArrayRegion(env, strides, 0, nargs, steps);
+
+  {
+    PSTART();
+    for (n=0;n < count;n++) {
+      for (i=0;i < nargs;i++) {
+        arg_values[i] = (char*)L2A(addrs[i]) + (jlong)n * steps[i];
+      }
+      ffi_call(&info->cif, FFI_FN(L2A(fp)), &rvalue, arg_values);
+      if (rp != NULL) {
+        switch(info->cif.rtype->type) {
+        case FFI_TYPE_FLOAT:
+        case FFI_TYPE_DOUBLE:
+        case FFI_TYPE_SINT64:
+        case FFI_TYPE_UINT64:
+        case FFI_TYPE_POINTER:
+          memcpy(rp, &rvalue.v, result_size);
+          break;
+        default:
+          // Small integer results are widened to ffi_arg
+          switch(result_size) {
+          case 1: *(jbyte*)rp = (jbyte)rvalue.i; break;
+          case 2: *(jshort*)rp = (jshort)rvalue.i; break;
+          default: *(jint*)rp = (jint)rvalue.i; break;
+          }
+          break;
+        }
+        rp += result_size;
+      }
+    }
+    PROTECTED_END(do { throw_type=EError; } while(0));
+  }
+  JNA_set_last_error(env, GET_LAST_ERROR());
+  if (throw_type) {
+    throwByName(env, throw_type, "Invalid memory access");
+  }
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_sun_jna_Native_createNativeCallback(JNIEnv *env,
+                                             jclass UNUSED(cls),
+                                             jobject obj,
+                                             jobject method,
+                                             jobjectArray arg_types,
+                                             jclass return_type,
+                                             jint call_conv,
+                                             jint options,
+                                             jstring encoding) {
+  callback* cb =
+    create_callback(env, obj, method, arg_types, return_type,
+                    call_conv, options, encoding);
+
+  return A2L(cb);
+}
+
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_freeNativeCallback(JNIEnv *env,
+                                           jclass UNUSED(cls),
+                                           jlong ptr) {
+  free_callback(env, (callback*)L2A(ptr));
+}
+
+/*
+ * Class:     Native
+ * Method:    open
+ * Signature: (Ljava/lang/String;I)J
+ */
+JNIEXPORT jlong JNICALL
+Java_com_sun_jna_Native_open(JNIEnv *env, jclass UNUSED(cls), jstring lib, jint flags){
+    /* dlopen on Unix allows NULL to mean "current process" */
+    const STRTYPE libname = NULL;
+    void *handle = NULL;
+
+    if (flags == -1) {
+      flags = DEFAULT_LOAD_OPTS;
+    }
+
+    if (lib != NULL) {
+      if ((libname = NAME2CSTR(env, lib)) == NULL) {
+        return A2L(NULL);
+      }
+    }
+
+    handle = (void *)LOAD_LIBRARY(libname, flags);
+#if defined(_WIN32)
+    /** Reattempt lookup using the short name version */
+    if (!handle) {
       const STRTYPE short_libname = NULL;
       if ((short_libname = w32_short_name(env, lib)) != NULL) {
         free((void *)libname);
@@ -2566,6 +3406,236 @@ JNIEXPORT void JNICALL Java_com_sun_jna_Native_setMemory
   MEMSET(env, L2A(addr), (int)value, (size_t)count);
 }
 
+/*
+ * Class:     Native
+ * Method:    fillMemory
+ * Signature: (JJ[B)V
+ */
+JNIEXPORT void JNICALL Java_com_sun_jna_Native_fillMemory
+(JNIEnv *env, jclass UNUSED(cls), jlong addr, jlong count, jbyteArray pattern)
+{
+  char* dst = (char*)L2A(addr);
+  jsize len = (*env)->GetArrayLength(env, pattern);
+  jbyte* bytes;
+  volatile size_t filled;
+
+  if (count <= 0 || len <= 0) {
+    return;
+  }
+  bytes = (*env)->GetByteArrayElements(env, pattern, NULL);
+  if (bytes == NULL) {
+    return;
+  }
+  filled = (size_t)count < (size_t)len ? (size_t)count : (size_t)len;
+  PSTART();
+  memcpy(dst, bytes, filled);
+  // Double the filled region until complete; each copy is a whole
+  // number of patterns except possibly the last
+  while (filled < (size_t)count) {
+    size_t n = (size_t)count - filled < filled ? (size_t)count - filled : filled;
+    memcpy(dst + filled, dst, n);
+    filled += n;
+  }
+  PEND(env);
+  (*env)->ReleaseByteArrayElements(env, pattern, bytes, JNI_ABORT);
+}
+
+/*
+ * Class:     Native
+ * Method:    copyMemory
+ * Signature: (JJJ)V
+ */
+JNIEXPORT void JNICALL Java_com_sun_jna_Native_copyMemory
+(JNIEnv *UNUSED_ENV(env), jclass UNUSED(cls), jlong src, jlong dst, jlong count)
+{
+  MEMCPY(env, L2A(dst), L2A(src), (size_t)count);
+}
+
+/*
+ * Class:     Native
+ * Method:    moveMemory
+ * Signature: (JJJ)V
+ */
+JNIEXPORT void JNICALL Java_com_sun_jna_Native_moveMemory
+(JNIEnv *UNUSED_ENV(env), jclass UNUSED(cls), jlong src, jlong dst, jlong count)
+{
+  PSTART();
+  memmove(L2A(dst), L2A(src), (size_t)count);
+  PEND(env);
+}
+
+/*
+ * Class:     Native
+ * Method:    compareMemory
+ * Signature: (JJJ)I
+ */
+JNIEXPORT jint JNICALL Java_com_sun_jna_Native_compareMemory
+(JNIEnv *UNUSED_ENV(env), jclass UNUSED(cls), jlong addr1, jlong addr2, jlong count)
+{
+  volatile int result = 0;
+  PSTART();
+  result = memcmp(L2A(addr1), L2A(addr2), (size_t)count);
+  PEND(env);
+  return result < 0 ? -1 : result > 0 ? 1 : 0;
+}
+
+/*
+ * Class:     Native
+ * Method:    compareAndSetInt
+ * Signature: (JII)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_sun_jna_Native_compareAndSetInt
+(JNIEnv *UNUSED_ENV(env), jclass UNUSED(cls), jlong addr, jint expect, jint value)
+{
+  volatile jboolean result = JNI_FALSE;
+  PSTART();
+  result = ATOMIC_CAS32(L2A(addr), expect, value) ? JNI_TRUE : JNI_FALSE;
+  PEND(env);
+  return result;
+}
+
+/*
+ * Class:     Native
+ * Method:    compareAndSetLong
+ * Signature: (JJJ)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_sun_jna_Native_compareAndSetLong
+(JNIEnv *UNUSED_ENV(env), jclass UNUSED(cls), jlong addr, jlong expect, jlong value)
+{
+  volatile jboolean result = JNI_FALSE;
+  PSTART();
+  result = ATOMIC_CAS64(L2A(addr), expect, value) ? JNI_TRUE : JNI_FALSE;
+  PEND(env);
+  return result;
+}
+
+/*
+ * Class:     Native
+ * Method:    getAndAddInt
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_com_sun_jna_Native_getAndAddInt
+(JNIEnv *UNUSED_ENV(env), jclass UNUSED(cls), jlong addr, jint delta)
+{
+  volatile jint result = 0;
+  PSTART();
+  result = ATOMIC_ADD32(L2A(addr), delta);
+  PEND(env);
+  return result;
+}
+
+/*
+ * Class:     Native
+ * Method:    getAndAddLong
+ * Signature: (JJ)J
+ */
+JNIEXPORT jlong JNICALL Java_com_sun_jna_Native_getAndAddLong
+(JNIEnv *UNUSED_ENV(env), jclass UNUSED(cls), jlong addr, jlong delta)
+{
+  volatile jlong result = 0;
+  PSTART();
+  result = ATOMIC_ADD64(L2A(addr), delta);
+  PEND(env);
+  return result;
+}
+
+/*
+ * Class:     Native
+ * Method:    getAndSetInt
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_com_sun_jna_Native_getAndSetInt
+(JNIEnv *UNUSED_ENV(env), jclass UNUSED(cls), jlong addr, jint value)
+{
+  volatile jint result = 0;
+  PSTART();
+  result = ATOMIC_XCHG32(L2A(addr), value);
+  PEND(env);
+  return result;
+}
+
+/*
+ * Class:     Native
+ * Method:    getAndSetLong
+ * Signature: (JJ)J
+ */
+JNIEXPORT jlong JNICALL Java_com_sun_jna_Native_getAndSetLong
+(JNIEnv *UNUSED_ENV(env), jclass UNUSED(cls), jlong addr, jlong value)
+{
+  volatile jlong result = 0;
+  PSTART();
+  result = ATOMIC_XCHG64(L2A(addr), value);
+  PEND(env);
+  return result;
+}
+
+/*
+ * Class:     Native
+ * Method:    getIntAcquire
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_com_sun_jna_Native_getIntAcquire
+(JNIEnv *UNUSED_ENV(env), jclass UNUSED(cls), jlong addr)
+{
+  volatile jint result = 0;
+  PSTART();
+  result = ATOMIC_LOAD32(L2A(addr));
+  PEND(env);
+  return result;
+}
+
+/*
+ * Class:     Native
+ * Method:    getLongAcquire
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_com_sun_jna_Native_getLongAcquire
+(JNIEnv *UNUSED_ENV(env), jclass UNUSED(cls), jlong addr)
+{
+  volatile jlong result = 0;
+  PSTART();
+  result = ATOMIC_LOAD64(L2A(addr));
+  PEND(env);
+  return result;
+}
+
+/*
+ * Class:     Native
+ * Method:    setIntRelease
+ * Signature: (JI)V
+ */
+JNIEXPORT void JNICALL Java_com_sun_jna_Native_setIntRelease
+(JNIEnv *UNUSED_ENV(env), jclass UNUSED(cls), jlong addr, jint value)
+{
+  PSTART();
+  ATOMIC_STORE32(L2A(addr), value);
+  PEND(env);
+}
+
+/*
+ * Class:     Native
+ * Method:    setLongRelease
+ * Signature: (JJ)V
+ */
+JNIEXPORT void JNICALL Java_com_sun_jna_Native_setLongRelease
+(JNIEnv *UNUSED_ENV(env), jclass UNUSED(cls), jlong addr, jlong value)
+{
+  PSTART();
+  ATOMIC_STORE64(L2A(addr), value);
+  PEND(env);
+}
+
+/*
+ * Class:     Native
+ * Method:    fence
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_com_sun_jna_Native_fence
+(JNIEnv *UNUSED(env), jclass UNUSED(cls), jint kind)
+{
+  ATOMIC_FENCE(kind);
+}
+
 /*
  * Class:     Native
  * Method:    _setByte
@@ -2880,6 +3950,14 @@ Java_com_sun_jna_Native_initIDs(JNIEnv *env, jclass cls) {
     throwByName(env, EUnsatisfiedLink,
                 "Can't obtain constructor for class com.sun.jna.WString");
   }
+  else if (!LOAD_CREF(env, CallDescriptor, "com/sun/jna/Function$CallDescriptor")) {
+    throwByName(env, EUnsatisfiedLink,
+                "Can't obtain class com.sun.jna.Function.CallDescriptor");
+  }
+  else if (!LOAD_FID(env, FID_CallDescriptor_peer, classCallDescriptor, "peer", "J")) {
+    throwByName(env, EUnsatisfiedLink,
+                "Can't obtain peer field ID for class com.sun.jna.Function.CallDescriptor");
+  }
   else if (!LOAD_CREF(env, _ffi_callback, "com/sun/jna/Native$ffi_callback")) {
     throwByName(env, EUnsatisfiedLink,
                 "Can't obtain class com.sun.jna.Native$ffi_callback");
@@ -3089,7 +4167,7 @@ Java_com_sun_jna_Native__1getDirectBufferPointer(JNIEnv *env, jclass UNUSED(clas
 }
 
 JNIEXPORT void JNICALL
-Java_com_sun_jna_Native_setProtected(JNIEnv *UNUSED(env), jclass UNUSED(classp), jboolean protect_access) {
+Java_com_sun_jna_Native__1setProtected(JNIEnv *UNUSED(env), jclass UNUSED(classp), jboolean protect_access) {
 #ifdef HAVE_PROTECTION
   _protect = protect_access;
 #else
@@ -3191,7 +4269,7 @@ JNI_OnUnload(JavaVM *vm, void *UNUSED(reserved)) {
     &classPointer, &classNative, &classWString,
     &classStructure, &classStructureByValue,
     &classCallbackReference, &classAttachOptions, &classNativeMapped,
-    &classIntegerType, &classPointerType,
+    &classIntegerType, &classPointerType, &classCallDescriptor,
   };
   unsigned i;
   JNIEnv* env;
@@ -3254,6 +4332,7 @@ Java_com_sun_jna_Native_unregister(JNIEnv *env, jclass UNUSED(ncls), jclass cls,
     free(md->arg_types);
     free(md->closure_arg_types);
     free(md->flags);
+    free(md->directions);
     free((void *)md->encoding);
     free(md);
   }
@@ -3317,6 +4396,7 @@ Java_com_sun_jna_Native_registerMethod(JNIEnv *env, jclass UNUSED(ncls),
   data->closure_arg_types[1] = &ffi_type_pointer;
   data->closure_rclass = NULL;
   data->flags = cvts ? malloc(sizeof(jint)*argc) : NULL;
+  data->directions = cvts ? malloc(sizeof(jint)*argc) : NULL;
   data->rflag = rconversion;
   data->to_native = NULL;
   data->from_native = from_native ? (*env)->NewWeakGlobalRef(env, from_native) : NULL;
@@ -3326,7 +4406,8 @@ Java_com_sun_jna_Native_registerMethod(JNIEnv *env, jclass UNUSED(ncls),
     data->closure_arg_types[i+2] = (ffi_type*)L2A(closure_types[i]);
     data->arg_types[i] = (ffi_type*)L2A(types[i]);
     if (cvts) {
-      data->flags[i] = cvts[i];
+      data->flags[i] = cvts[i] & ~(CVT_FLAG_IN|CVT_FLAG_OUT);
+      data->directions[i] = cvts[i] & (CVT_FLAG_IN|CVT_FLAG_OUT);
       // Type mappers only apply to non-primitive arguments
       if (cvts[i] == CVT_TYPE_MAPPER
           || cvts[i] == CVT_TYPE_MAPPER_STRING
@@ -3370,6 +4451,7 @@ Java_com_sun_jna_Native_registerMethod(JNIEnv *env, jclass UNUSED(ncls),
   if (status != FFI_OK) {
     free(data->arg_types);
     free(data->flags);
+    free(data->directions);
     free(data);
     data = NULL;
   }
@@ -3396,6 +4478,95 @@ Java_com_sun_jna_Native_ffi_1prep_1cif(JNIEnv *env, jclass UNUSED(cls), jint abi
   return A2L(cif);
 }
 
+JNIEXPORT jlong JNICALL
+Java_com_sun_jna_Native_prepareCall(JNIEnv *env, jclass UNUSED(cls),
+                                    jint flags, jlong return_type,
+                                    jlongArray atypes, jintArray conversions)
+{
+  int nargs = (*env)->GetArrayLength(env, atypes);
+  callconv_t callconv = flags & MASK_CC;
+  int abi = callconv == CALLCONV_C ? FFI_DEFAULT_ABI : (int)callconv;
+  call_info* info;
+  ffi_status status;
+  jlong* types;
+  jint* cvts;
+  int i;
+
+  if (nargs > MAX_NARGS) {
+    char msg[MSG_SIZE];
+    snprintf(msg, sizeof(msg), "Too many arguments (max %ld)", MAX_NARGS);
+    throwByName(env, EUnsupportedOperation, msg);
+    return 0;
+  }
+#if defined(_WIN32)
+  if (callconv == CALLCONV_STDCALL) {
+#if defined(_WIN64) || defined(_WIN32_WCE)
+    // Ignore requests for stdcall on win64/wince
+    abi = FFI_DEFAULT_ABI;
+#else
+    abi = FFI_STDCALL;
+#endif
+  }
+#endif
+  if (!(abi > FFI_FIRST_ABI && abi < FFI_LAST_ABI)) {
+    char msg[MSG_SIZE];
+    snprintf(msg, sizeof(msg), "Unrecognized calling convention: %d", abi);
+    throwByName(env, EIllegalArgument, msg);
+    return 0;
+  }
+
+  info = malloc(sizeof(call_info));
+  if (info == NULL) {
+    throwByName(env, EOutOfMemory, "Can't allocate call information");
+    return 0;
+  }
+  info->arg_types = malloc(sizeof(ffi_type*) * (nargs > 0 ? nargs : 1));
+  info->flags = malloc(sizeof(int) * (nargs > 0 ? nargs : 1));
+  info->directions = malloc(sizeof(int) * (nargs > 0 ? nargs : 1));
+  info->call_flags = flags;
+  if (info->arg_types == NULL || info->flags == NULL || info->directions == NULL) {
+    free(info->arg_types);
+    free(info->flags);
+    free(info->directions);
+    free(info);
+    throwByName(env, EOutOfMemory, "Can't allocate call information");
+    return 0;
+  }
+
+  types = (*env)->GetLongArrayElements(env, atypes, NULL);
+  cvts = (*env)->GetIntArrayElements(env, conversions, NULL);
+  for (i=0;i < nargs;i++) {
+    info->arg_types[i] = (ffi_type*)L2A(types[i]);
+    info->flags[i] = cvts[i] & ~(CVT_FLAG_IN|CVT_FLAG_OUT);
+    info->directions[i] = cvts[i] & (CVT_FLAG_IN|CVT_FLAG_OUT);
+  }
+  (*env)->ReleaseLongArrayElements(env, atypes, types, JNI_ABORT);
+  (*env)->ReleaseIntArrayElements(env, conversions, cvts, JNI_ABORT);
+
+  status = ffi_prep_cif(&info->cif, abi, nargs, (ffi_type*)L2A(return_type),
+                        info->arg_types);
+  if (ffi_error(env, "Native call setup", status)) {
+    free(info->arg_types);
+    free(info->flags);
+    free(info->directions);
+    free(info);
+    return 0;
+  }
+  return A2L(info);
+}
+
+JNIEXPORT void JNICALL
+Java_com_sun_jna_Native_freeCall(JNIEnv *UNUSED(env), jclass UNUSED(cls), jlong call)
+{
+  call_info* info = (call_info*)L2A(call);
+  if (info) {
+    free(info->arg_types);
+    free(info->flags);
+    free(info->directions);
+    free(info);
+  }
+}
+
 JNIEXPORT jlong JNICALL
 Java_com_sun_jna_Native_ffi_1prep_1closure(JNIEnv *env, jclass UNUSED(cls), jlong cif, jobject obj)
 {
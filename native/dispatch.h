@@ -101,6 +101,9 @@ enum {
   CVT_TYPE_MAPPER = com_sun_jna_Native_CVT_TYPE_MAPPER,
   CVT_TYPE_MAPPER_STRING = com_sun_jna_Native_CVT_TYPE_MAPPER_STRING,
   CVT_TYPE_MAPPER_WSTRING = com_sun_jna_Native_CVT_TYPE_MAPPER_WSTRING,
+  CVT_ARRAY_CRITICAL = com_sun_jna_Native_CVT_ARRAY_CRITICAL,
+  CVT_FLAG_IN = com_sun_jna_Native_CVT_FLAG_IN,
+  CVT_FLAG_OUT = com_sun_jna_Native_CVT_FLAG_OUT,
 };
 
 /* callback behavior flags */
@@ -126,7 +126,10 @@ static void _exc_handler(int sig) {
   }
 }
 
+// Clear any error left by an earlier protected access, in case protection
+// has since been disabled
 #define PROTECTED_START() \
+  _error = 0; \
   if (PROTECT) { \
     _old_segv_handler = signal(SIGSEGV, _exc_handler); \
     _old_bus_handler = signal(SIGBUS, _exc_handler); \
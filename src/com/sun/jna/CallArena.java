@@ -0,0 +1,149 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+/** Per-thread scratch memory for temporary native copies of function
+ * arguments, such as strings and string arrays.  Memory is handed out by
+ * bumping an offset into a single block, and reclaimed all at once when the
+ * call which allocated it returns, avoiding a separate {@link Memory}
+ * allocation per temporary.
+ * <p>
+ * Scratch memory is only valid for the duration of the native call; native
+ * code must not retain pointers to it.  Requests which do not fit in the
+ * remaining space, or which are made while allocation is suspended for a
+ * {@link Retained} argument, return <code>null</code>, and callers fall
+ * back to allocating {@link Memory}.  Set the system property
+ * <code>jna.arena.size</code> to the size of each thread's arena in bytes,
+ * or to zero to disable it.
+ */
+final class CallArena {
+
+    /** Size of each thread's arena, in bytes. */
+    static final int SIZE = Integer.getInteger("jna.arena.size", 16384).intValue();
+
+    private static final ThreadLocal ARENAS = new ThreadLocal() {
+        protected Object initialValue() {
+            return new CallArena(SIZE);
+        }
+    };
+
+    private final int size;
+    /** Allocated on first use. */
+    private Memory block;
+    private long offset;
+    /** Number of calls in progress on this thread. */
+    private int depth;
+    /** Whether allocation is suspended. */
+    private boolean suspended;
+
+    CallArena(int size) {
+        this.size = size;
+    }
+
+    /** Returns the current thread's arena, or <code>null</code> if arenas
+     * are disabled.
+     */
+    static CallArena get() {
+        return SIZE > 0 ? (CallArena)ARENAS.get() : null;
+    }
+
+    /** Start a call scope, returning a mark to be passed to {@link #exit}
+     * when the call completes.  Scopes nest, e.g. for native calls made
+     * from callbacks.
+     */
+    long enter() {
+        ++depth;
+        return offset;
+    }
+
+    /** Release all memory allocated since the given mark. */
+    void exit(long mark) {
+        --depth;
+        offset = mark;
+    }
+
+    /** Returns the current allocation offset. */
+    long mark() {
+        return offset;
+    }
+
+    /** Release memory allocated since the given mark, within the current
+     * call scope.
+     */
+    void reset(long mark) {
+        offset = mark;
+    }
+
+    /** Suspend allocation while converting an argument whose native copy
+     * may outlive the call, returning the previous state to be passed to
+     * {@link #resume}.
+     */
+    boolean suspend() {
+        boolean wasSuspended = suspended;
+        suspended = true;
+        return wasSuspended;
+    }
+
+    /** Restore the allocation state returned by {@link #suspend}. */
+    void resume(boolean wasSuspended) {
+        suspended = wasSuspended;
+    }
+
+    /** Returns scratch memory of the given size, aligned for any
+     * primitive type, or <code>null</code> if there is no call in progress,
+     * allocation is suspended or insufficient space remains.
+     */
+    Pointer allocate(long bytes) {
+        long aligned = (bytes + 7) & ~7L;
+        if (depth == 0 || suspended || bytes <= 0 || offset + aligned > size) {
+            return null;
+        }
+        // The block is freed along with all other memory by
+        // Memory.disposeAll()
+        if (block == null || !block.valid()) {
+            block = new Memory(size);
+        }
+        Pointer p = new Pointer(block.peer + offset);
+        offset += aligned;
+        return p;
+    }
+
+    /** Returns whether the given pointer refers to this arena's memory. */
+    boolean contains(Pointer p) {
+        return p != null && block != null
+            && p.peer >= block.peer && p.peer < block.peer + size;
+    }
+
+    /** Returns a NUL-terminated copy of the given string in scratch
+     * memory, or <code>null</code> if it does not fit.
+     * @param encoding string encoding, or {@link NativeString#WIDE_STRING}
+     */
+    Pointer allocateString(String s, String encoding) {
+        if (encoding == NativeString.WIDE_STRING) {
+            Pointer p = allocate((long)(s.length() + 1) * Native.WCHAR_SIZE);
+            if (p != null) {
+                p.setWideString(0, s);
+            }
+            return p;
+        }
+        // Avoid encoding strings which can not possibly fit
+        if (s.length() > size - offset) {
+            return null;
+        }
+        byte[] data = Native.getBytes(s, encoding);
+        Pointer p = allocate(data.length + 1);
+        if (p != null) {
+            p.write(0, data, 0, data.length);
+            p.setByte(data.length, (byte)0);
+        }
+        return p;
+    }
+}
@@ -142,6 +142,7 @@ class CallbackReference extends WeakReference {
     }
     
     Pointer cbstruct;
+    private Cleaner.Cleanable cleanable;
     Pointer trampoline;
     // Keep a reference to the proxy to avoid premature GC of it
     CallbackProxy proxy;
@@ -194,6 +195,7 @@ class CallbackReference extends WeakReference {
                                                     encoding);
             cbstruct = peer != 0 ? new Pointer(peer) : null;
             allocatedMemory.put(this, new WeakReference(this));
+            registerCleanup();
         }
         else {
             if (callback instanceof CallbackProxy) {
@@ -241,6 +243,16 @@ class CallbackReference extends WeakReference {
                                                     callingConvention, flags,
                                                     encoding);
             cbstruct = peer != 0 ? new Pointer(peer) : null;
+            registerCleanup();
+        }
+    }
+
+    /** Arrange for native resources to be freed when this reference is
+     * no longer used.
+     */
+    private void registerCleanup() {
+        if (cbstruct != null) {
+            cleanable = Cleaner.getCleaner().register(this, new CallbackReferenceDisposer(cbstruct));
         }
     }
     
@@ -349,16 +361,10 @@ class CallbackReference extends WeakReference {
         return trampoline;
     }
     
-    /** Free native resources associated with this callback when GC'd. */
-    protected void finalize() {
-        dispose();
-    }
-    
     /** Free native resources associated with this callback. */
     protected synchronized void dispose() {
         if (cbstruct != null) {
-            Native.freeNativeCallback(cbstruct.peer);
-            cbstruct.peer = 0;
+            cleanable.clean();
             cbstruct = null;
             allocatedMemory.remove(this);
         }
@@ -366,8 +372,26 @@ class CallbackReference extends WeakReference {
 
     /** Dispose of all memory allocated for callbacks. */
     static void disposeAll() {
-        for (Iterator i=allocatedMemory.keySet().iterator();i.hasNext();) {
-            ((Memory)i.next()).dispose();
+        Set refs;
+        synchronized(allocatedMemory) {
+            refs = new HashSet(allocatedMemory.keySet());
+        }
+        for (Iterator i=refs.iterator();i.hasNext();) {
+            ((CallbackReference)i.next()).dispose();
+        }
+    }
+
+    /** Frees a callback's native resources once its
+     * {@link CallbackReference} is unreachable.
+     */
+    private static class CallbackReferenceDisposer implements Runnable {
+        private final Pointer cbstruct;
+        CallbackReferenceDisposer(Pointer cbstruct) {
+            this.cbstruct = cbstruct;
+        }
+        public void run() {
+            Native.freeNativeCallback(cbstruct.peer);
+            cbstruct.peer = 0;
         }
     }
 
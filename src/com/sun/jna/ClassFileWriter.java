@@ -0,0 +1,381 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Minimal writer for version 49 (Java 5) class files, sufficient for the
+ * simple, straight-line classes JNA generates at runtime.  Version 49 class
+ * files are verified by type inference, so no stack map frames need to be
+ * computed.
+ */
+final class ClassFileWriter {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int LLOAD = 0x16;
+    static final int FLOAD = 0x17;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int ISTORE = 0x36;
+    static final int LSTORE = 0x37;
+    static final int FSTORE = 0x38;
+    static final int DSTORE = 0x39;
+    static final int ASTORE = 0x3a;
+    static final int LASTORE = 0x50;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int INEG = 0x74;
+    static final int I2L = 0x85;
+    static final int I2C = 0x92;
+    static final int IRETURN = 0xac;
+    static final int LRETURN = 0xad;
+    static final int FRETURN = 0xae;
+    static final int DRETURN = 0xaf;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int NEWARRAY = 0xbc;
+    static final int ANEWARRAY = 0xbd;
+    static final int CHECKCAST = 0xc0;
+
+    private static final int CONSTANT_Utf8 = 1;
+    private static final int CONSTANT_Integer = 3;
+    private static final int CONSTANT_Class = 7;
+    private static final int CONSTANT_String = 8;
+    private static final int CONSTANT_Fieldref = 9;
+    private static final int CONSTANT_Methodref = 10;
+    private static final int CONSTANT_NameAndType = 12;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map constants = new HashMap();
+    private int poolCount = 1;
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final List methods = new ArrayList();
+
+    /** Create a writer for a public final class.
+     * @param name class name
+     * @param superName super class name
+     * @param interfaceNames names of implemented interfaces
+     */
+    ClassFileWriter(String name, String superName, String[] interfaceNames) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        interfaces = new int[interfaceNames.length];
+        for (int i=0;i < interfaceNames.length;i++) {
+            interfaces[i] = classRef(interfaceNames[i]);
+        }
+    }
+
+    /** Returns the internal (slash-separated) form of the class name. */
+    static String internalName(Class cls) {
+        return cls.getName().replace('.', '/');
+    }
+
+    /** Returns the JVM method descriptor for the given types. */
+    static String methodDescriptor(Class[] params, Class returnType) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i=0;i < params.length;i++) {
+            sb.append(Native.getSignature(params[i]));
+        }
+        sb.append(")");
+        sb.append(Native.getSignature(returnType));
+        return sb.toString();
+    }
+
+    private int constant(String key, int tag, int a, int b, boolean pair) {
+        Integer index = (Integer)constants.get(key);
+        if (index != null) {
+            return index.intValue();
+        }
+        try {
+            poolOut.writeByte(tag);
+            if (pair) {
+                poolOut.writeShort(a);
+                poolOut.writeShort(b);
+            }
+            else if (tag == CONSTANT_Integer) {
+                poolOut.writeInt(a);
+            }
+            else {
+                poolOut.writeShort(a);
+            }
+        }
+        catch(IOException e) {
+            throw new Error("Unexpected I/O error: " + e);
+        }
+        int idx = poolCount++;
+        constants.put(key, new Integer(idx));
+        return idx;
+    }
+
+    int utf8(String s) {
+        String key = "U" + s;
+        Integer index = (Integer)constants.get(key);
+        if (index != null) {
+            return index.intValue();
+        }
+        try {
+            poolOut.writeByte(CONSTANT_Utf8);
+            poolOut.writeUTF(s);
+        }
+        catch(IOException e) {
+            throw new Error("Unexpected I/O error: " + e);
+        }
+        int idx = poolCount++;
+        constants.put(key, new Integer(idx));
+        return idx;
+    }
+
+    /** Returns a class constant; array classes are named by descriptor. */
+    int classRef(String name) {
+        name = name.replace('.', '/');
+        return constant("C" + name, CONSTANT_Class, utf8(name), 0, false);
+    }
+
+    int string(String s) {
+        return constant("S" + s, CONSTANT_String, utf8(s), 0, false);
+    }
+
+    int integer(int value) {
+        return constant("I" + value, CONSTANT_Integer, value, 0, false);
+    }
+
+    private int nameAndType(String name, String desc) {
+        return constant("N" + name + ":" + desc, CONSTANT_NameAndType,
+                        utf8(name), utf8(desc), true);
+    }
+
+    int methodRef(String owner, String name, String desc) {
+        return constant("M" + owner + "." + name + desc, CONSTANT_Methodref,
+                        classRef(owner), nameAndType(name, desc), true);
+    }
+
+    int fieldRef(String owner, String name, String desc) {
+        return constant("F" + owner + "." + name + ":" + desc, CONSTANT_Fieldref,
+                        classRef(owner), nameAndType(name, desc), true);
+    }
+
+    /** Start a new method.  The returned {@link Code} must be completed
+     * with {@link Code#end}.
+     */
+    Code method(int access, String name, String desc) {
+        Code code = new Code(access, utf8(name), utf8(desc));
+        methods.add(code);
+        return code;
+    }
+
+    /** Returns the complete class file. */
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            int codeAttr = utf8("Code");
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            poolOut.flush();
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC|ACC_FINAL|ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int i=0;i < interfaces.length;i++) {
+                out.writeShort(interfaces[i]);
+            }
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (int i=0;i < methods.size();i++) {
+                ((Code)methods.get(i)).write(out, codeAttr);
+            }
+            out.writeShort(0); // attributes
+            out.flush();
+        }
+        catch(IOException e) {
+            throw new Error("Unexpected I/O error: " + e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Bytecode for a single method. */
+    final class Code {
+        private final int access;
+        private final int name;
+        private final int desc;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private int maxStack = -1;
+        private int maxLocals;
+
+        private Code(int access, int name, int desc) {
+            this.access = access;
+            this.name = name;
+            this.desc = desc;
+        }
+
+        Code op(int opcode) {
+            code.write(opcode);
+            return this;
+        }
+
+        private void u2(int value) {
+            code.write((value >> 8) & 0xFF);
+            code.write(value & 0xFF);
+        }
+
+        /** Push an int constant. */
+        Code push(int value) {
+            if (value >= -1 && value <= 5) {
+                code.write(ICONST_0 + value);
+            }
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                code.write(BIPUSH);
+                code.write(value);
+            }
+            else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                code.write(SIPUSH);
+                u2(value);
+            }
+            else {
+                code.write(LDC_W);
+                u2(integer(value));
+            }
+            return this;
+        }
+
+        /** Load a local variable of the given type. */
+        Code load(Class type, int index) {
+            return local(type, index, ILOAD, LLOAD, FLOAD, DLOAD, ALOAD);
+        }
+
+        /** Store a local variable of the given type. */
+        Code store(Class type, int index) {
+            return local(type, index, ISTORE, LSTORE, FSTORE, DSTORE, ASTORE);
+        }
+
+        private Code local(Class type, int index, int i, int l, int f, int d, int a) {
+            int opcode = a;
+            if (type.isPrimitive()) {
+                opcode = type == long.class ? l
+                    : type == float.class ? f
+                    : type == double.class ? d : i;
+            }
+            if (index <= 255) {
+                code.write(opcode);
+                code.write(index);
+            }
+            else {
+                code.write(0xc4); // wide
+                code.write(opcode);
+                u2(index);
+            }
+            return this;
+        }
+
+        /** Return a value of the given type (or void). */
+        Code returnValue(Class type) {
+            if (type == void.class) {
+                return op(RETURN);
+            }
+            if (type.isPrimitive()) {
+                return op(type == long.class ? LRETURN
+                          : type == float.class ? FRETURN
+                          : type == double.class ? DRETURN : IRETURN);
+            }
+            return op(ARETURN);
+        }
+
+        Code invoke(int opcode, String owner, String name, String desc) {
+            code.write(opcode);
+            u2(methodRef(owner, name, desc));
+            return this;
+        }
+
+        Code field(int opcode, String owner, String name, String desc) {
+            code.write(opcode);
+            u2(fieldRef(owner, name, desc));
+            return this;
+        }
+
+        /** Emit an instruction taking a class operand (e.g. CHECKCAST). */
+        Code type(int opcode, Class type) {
+            code.write(opcode);
+            u2(classRef(type.getName()));
+            return this;
+        }
+
+        /** Create an array of the given component type, with length
+         * taken from the stack.
+         */
+        Code newArray(Class componentType) {
+            if (!componentType.isPrimitive()) {
+                return type(ANEWARRAY, componentType);
+            }
+            int atype = componentType == boolean.class ? 4
+                : componentType == char.class ? 5
+                : componentType == float.class ? 6
+                : componentType == double.class ? 7
+                : componentType == byte.class ? 8
+                : componentType == short.class ? 9
+                : componentType == int.class ? 10 : 11;
+            code.write(NEWARRAY);
+            code.write(atype);
+            return this;
+        }
+
+        /** Finish the method. */
+        void end(int maxStack, int maxLocals) {
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        private void write(DataOutputStream out, int codeAttr) throws IOException {
+            if (maxStack < 0) {
+                throw new IllegalStateException("Method code not completed");
+            }
+            byte[] bytes = code.toByteArray();
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(desc);
+            out.writeShort(1);
+            out.writeShort(codeAttr);
+            out.writeInt(12 + bytes.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/** Releases native resources once the objects which own them become
+ * unreachable, without relying on finalization.  Each registered object is
+ * tracked by a phantom reference; a single daemon thread runs the
+ * associated cleanup task when the reference is enqueued.  The thread
+ * exits when nothing remains registered, so that it does not keep this
+ * class (and its class loader) alive.
+ * <p>
+ * Registrations are spread over several independently locked lists,
+ * chosen by the registering thread, so that threads allocating native
+ * resources concurrently do not contend on a single lock.
+ * <p>
+ * Cleanup tasks must not refer to the object being tracked, or it will
+ * never become unreachable.
+ */
+final class Cleaner {
+
+    /** An object's registration with the cleaner. */
+    interface Cleanable {
+        /** Run the cleanup task and unregister, if not already done. */
+        void clean();
+    }
+
+    /** How long the cleanup thread waits for work before exiting, if
+     * nothing is registered.
+     */
+    private static final long IDLE_TIMEOUT = 1000;
+
+    /** Number of registration lists; a power of two. */
+    private static final int STRIPES;
+    static {
+        int n = 1;
+        while (n < 64 && n < Runtime.getRuntime().availableProcessors() * 2) {
+            n <<= 1;
+        }
+        STRIPES = n;
+    }
+
+    private static final Cleaner INSTANCE = new Cleaner();
+
+    static Cleaner getCleaner() {
+        return INSTANCE;
+    }
+
+    /** A list of registered references, which must themselves stay
+     * reachable until enqueued.
+     */
+    private static final class Stripe {
+        private CleanerRef first;
+    }
+
+    private final ReferenceQueue queue = new ReferenceQueue();
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private volatile Thread cleanerThread;
+
+    private Cleaner() {
+        for (int i=0;i < stripes.length;i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /** Run the given task after the given object becomes phantom
+     * reachable, or when the returned {@link Cleanable} is cleaned,
+     * whichever comes first.
+     */
+    Cleanable register(Object obj, Runnable cleanupTask) {
+        Stripe stripe = stripes[(int)Thread.currentThread().getId() & (STRIPES - 1)];
+        CleanerRef ref = new CleanerRef(stripe, obj, queue, cleanupTask);
+        synchronized(stripe) {
+            ref.next = stripe.first;
+            if (stripe.first != null) {
+                stripe.first.prev = ref;
+            }
+            stripe.first = ref;
+        }
+        if (cleanerThread == null) {
+            startThread();
+        }
+        return ref;
+    }
+
+    /** Clean all registrations whose cleanup task is of the given type. */
+    void cleanAll(Class taskType) {
+        for (int i=0;i < stripes.length;i++) {
+            for (Iterator r=getRefs(stripes[i], taskType).iterator();r.hasNext();) {
+                ((CleanerRef)r.next()).clean();
+            }
+        }
+    }
+
+    /** Returns the cleanup tasks of the given type which are still
+     * registered.
+     */
+    List getTasks(Class taskType) {
+        List tasks = new ArrayList();
+        for (int i=0;i < stripes.length;i++) {
+            for (Iterator r=getRefs(stripes[i], taskType).iterator();r.hasNext();) {
+                tasks.add(((CleanerRef)r.next()).cleanupTask);
+            }
+        }
+        return tasks;
+    }
+
+    private static List getRefs(Stripe stripe, Class taskType) {
+        List refs = new ArrayList();
+        synchronized(stripe) {
+            for (CleanerRef ref=stripe.first;ref != null;ref=ref.next) {
+                if (taskType.isInstance(ref.cleanupTask)) {
+                    refs.add(ref);
+                }
+            }
+        }
+        return refs;
+    }
+
+    /** Returns whether the current thread is the one which runs cleanup
+     * tasks.
+     */
+    static boolean isCleanerThread() {
+        return Thread.currentThread() instanceof CleanerThread;
+    }
+
+    private synchronized void startThread() {
+        if (cleanerThread == null) {
+            cleanerThread = new CleanerThread();
+            cleanerThread.start();
+        }
+    }
+
+    /** Returns whether the reference was still registered. */
+    private static boolean remove(CleanerRef ref) {
+        Stripe stripe = ref.stripe;
+        synchronized(stripe) {
+            if (ref.prev == null && stripe.first != ref) {
+                return false;
+            }
+            if (ref.prev != null) {
+                ref.prev.next = ref.next;
+            }
+            else {
+                stripe.first = ref.next;
+            }
+            if (ref.next != null) {
+                ref.next.prev = ref.prev;
+            }
+            ref.prev = ref.next = null;
+            return true;
+        }
+    }
+
+    /** Clear the cleanup thread if there is nothing left to do.  The
+     * thread is cleared before checking for registrations, so that a
+     * concurrent registration either is seen here or starts a new thread.
+     */
+    private synchronized boolean idle() {
+        Thread current = cleanerThread;
+        cleanerThread = null;
+        for (int i=0;i < stripes.length;i++) {
+            synchronized(stripes[i]) {
+                if (stripes[i].first != null) {
+                    cleanerThread = current;
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static class CleanerRef extends PhantomReference implements Cleanable {
+        private final Stripe stripe;
+        private final Runnable cleanupTask;
+        private CleanerRef prev;
+        private CleanerRef next;
+
+        CleanerRef(Stripe stripe, Object referent, ReferenceQueue queue, Runnable cleanupTask) {
+            super(referent, queue);
+            this.stripe = stripe;
+            this.cleanupTask = cleanupTask;
+        }
+
+        public void clean() {
+            if (remove(this)) {
+                clear();
+                cleanupTask.run();
+            }
+        }
+    }
+
+    private class CleanerThread extends Thread {
+        CleanerThread() {
+            super("JNA Cleaner");
+            setDaemon(true);
+            setContextClassLoader(null);
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    Reference ref = queue.remove(IDLE_TIMEOUT);
+                    if (ref != null) {
+                        ((Cleanable)ref).clean();
+                    }
+                    else if (idle()) {
+                        break;
+                    }
+                }
+                catch(InterruptedException e) {
+                    // ignore
+                }
+                catch(Throwable t) {
+                    // Like finalizers, failed cleanup tasks are ignored
+                }
+            }
+        }
+    }
+}
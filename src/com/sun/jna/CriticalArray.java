@@ -0,0 +1,35 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Marks a primitive array parameter of a {@link Library} or direct-mapped
+ * method for critical access.  Rather than copying the array contents to
+ * native memory and back, the array is pinned for the duration of the call
+ * and native code accesses its elements directly (see the JNI function
+ * <code>GetPrimitiveArrayCritical</code>).
+ * <p>
+ * While the array is pinned the VM may be unable to collect garbage, so
+ * this should only be used for native functions which return promptly and
+ * never call back into Java.  Critical access is not used for methods with
+ * {@link Callback} parameters.  Use <code>&#64;CriticalArray(false)</code> to
+ * exclude a parameter when {@link Library#OPTION_CRITICAL_ARRAYS} is set.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface CriticalArray {
+    /** Whether the array is accessed critically. */
+    boolean value() default true;
+}
@@ -10,9 +10,14 @@
  */
 package com.sun.jna;
 
+import java.lang.reflect.Array;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * <p>An abstraction for a native function pointer.  An instance of 
@@ -174,6 +179,10 @@ public class Function extends Pointer {
     /** For checking if methods declare varargs */
     private static final VarArgsChecker IS_VARARGS = VarArgsChecker.create();
 
+    // Descriptors for vectorized calls, keyed by signature; created on
+    // first use
+    private volatile ConcurrentMap vectorCalls;
+
     /**
      * Create a new <code>Function</code> that is linked with a native 
      * function that follows the given calling convention.
@@ -281,145 +290,245 @@ public class Function extends Pointer {
      * the method has to be in the options under key {@link Function#OPTION_INVOKING_METHOD}.
      */
     Object invoke(Method invokingMethod, Class[] paramTypes, Class returnType, Object[] inArgs, Map options) {
-        // Clone the argument array to obtain a scratch space for modified
-        // types/values
-        Object[] args = { };
-        if (inArgs != null) {
-            if (inArgs.length > MAX_NARGS) {
-                throw new UnsupportedOperationException("Maximum argument count is " + MAX_NARGS);
-            }
-            args = new Object[inArgs.length];
-            System.arraycopy(inArgs, 0, args, 0, args.length);
-        }
-
-        TypeMapper mapper = 
-            (TypeMapper)options.get(Library.OPTION_TYPE_MAPPER);
-        boolean allowObjects = Boolean.TRUE.equals(options.get(Library.OPTION_ALLOW_OBJECTS));
-        boolean isVarArgs = args.length > 0 && invokingMethod != null ? isVarArgs(invokingMethod) : false;
-        for (int i=0; i < args.length; i++) {
-            Class paramType = invokingMethod != null
-                ? (isVarArgs && i >= paramTypes.length-1
-                   ? paramTypes[paramTypes.length-1].getComponentType()
-                   : paramTypes[i])
-                : null;
-            args[i] = convertArgument(args, i, invokingMethod,
-                                      mapper, allowObjects, paramType);
-        }
+        return invoke(invokingMethod, paramTypes, returnType, inArgs, options, null);
+    }
+
+    /** Invoke the native function with the given arguments, using the
+     * prepared call information if the converted arguments match it.
+     * @param call prepared call information, or <code>null</code> to
+     * determine argument types from the converted argument values
+     * @see #prepareCall
+     */
+    Object invoke(Method invokingMethod, Class[] paramTypes, Class returnType, Object[] inArgs, Map options, CallDescriptor call) {
+        // Temporary native copies of arguments are valid until the call returns
+        CallArena arena = CallArena.get();
+        long mark = arena != null ? arena.enter() : 0;
+        try {
+            // Clone the argument array to obtain a scratch space for modified
+            // types/values
+            Object[] args = { };
+            if (inArgs != null) {
+                if (inArgs.length > MAX_NARGS) {
+                    throw new UnsupportedOperationException("Maximum argument count is " + MAX_NARGS);
+                }
+                args = new Object[inArgs.length];
+                System.arraycopy(inArgs, 0, args, 0, args.length);
+            }
+
+            TypeMapper mapper = 
+                (TypeMapper)options.get(Library.OPTION_TYPE_MAPPER);
+            boolean allowObjects = Boolean.TRUE.equals(options.get(Library.OPTION_ALLOW_OBJECTS));
+            boolean isVarArgs = args.length > 0 && invokingMethod != null ? isVarArgs(invokingMethod) : false;
+            boolean[] retained = args.length > 0 && invokingMethod != null && arena != null
+                ? Native.getRetainedArguments(invokingMethod) : null;
+            for (int i=0; i < args.length; i++) {
+                Class paramType = invokingMethod != null
+                    ? (isVarArgs && i >= paramTypes.length-1
+                       ? paramTypes[paramTypes.length-1].getComponentType()
+                       : paramTypes[i])
+                    : null;
+                boolean retain = retained != null && retained[Math.min(i, retained.length-1)];
+                boolean wasSuspended = retain && arena.suspend();
+                try {
+                    args[i] = convertArgument(args, i, invokingMethod,
+                                              mapper, allowObjects, paramType);
+                }
+                finally {
+                    if (retain) {
+                        arena.resume(wasSuspended);
+                    }
+                }
+            }
         
-        Class nativeReturnType = returnType;
-        FromNativeConverter resultConverter = null;
-        if (NativeMapped.class.isAssignableFrom(returnType)) {
-            NativeMappedConverter tc = NativeMappedConverter.getInstance(returnType);
-            resultConverter = tc;
-            nativeReturnType = tc.nativeType();
-        }
-        else if (mapper != null) {
-            resultConverter = mapper.getFromNativeConverter(returnType);
+            Class nativeReturnType = returnType;
+            FromNativeConverter resultConverter = null;
+            if (NativeMapped.class.isAssignableFrom(returnType)) {
+                NativeMappedConverter tc = NativeMappedConverter.getInstance(returnType);
+                resultConverter = tc;
+                nativeReturnType = tc.nativeType();
+            }
+            else if (mapper != null) {
+                resultConverter = mapper.getFromNativeConverter(returnType);
+                if (resultConverter != null) {
+                    nativeReturnType = resultConverter.nativeType();
+                }
+            }
+
+            if (call != null && !call.accepts(args)) {
+                call = null;
+            }
+            Object result = invoke(args, nativeReturnType, allowObjects, call);
+
+            // Convert the result to a custom value/type if appropriate
             if (resultConverter != null) {
-                nativeReturnType = resultConverter.nativeType();
+                FromNativeContext context;
+                if (invokingMethod != null) {
+                    context = new MethodResultContext(returnType, this, inArgs, invokingMethod);
+                } else {
+                    context = new FunctionResultContext(returnType, this, inArgs);
+                }
+                result = resultConverter.fromNative(result, context);
             }
-        }
 
-        Object result = invoke(args, nativeReturnType, allowObjects);
+            // Sync all memory which might have been modified by the native call
+            if (inArgs != null) {
+                for (int i=0; i < inArgs.length; i++) {
+                    sync(inArgs[i], args[i]);
+                }
+            }
+                        
+            return result;
+        }
+        finally {
+            if (arena != null) {
+                arena.exit(mark);
+            }
+        }
+    }
 
-        // Convert the result to a custom value/type if appropriate
-        if (resultConverter != null) {
-            FromNativeContext context;
-            if (invokingMethod != null) {
-                context = new MethodResultContext(returnType, this, inArgs, invokingMethod);
-            } else {
-                context = new FunctionResultContext(returnType, this, inArgs);
-            }
-            result = resultConverter.fromNative(result, context);
-        }
-
-        // Sync all memory which might have been modified by the native call
-        if (inArgs != null) {
-            for (int i=0; i < inArgs.length; i++) {
-                Object inArg = inArgs[i];
-                if (inArg == null)
-                    continue;
-                if (inArg instanceof Structure) {
-                    if (!(inArg instanceof Structure.ByValue)) {
-                        ((Structure)inArg).autoRead();
+    /** Sync any memory used for the given argument which might have been
+     * modified by the native call.
+     * @param inArg original argument
+     * @param arg argument as converted for the native call
+     */
+    private static void sync(Object inArg, Object arg) {
+        if (inArg == null)
+            return;
+        if (inArg instanceof Structure) {
+            if (!(inArg instanceof Structure.ByValue)) {
+                ((Structure)inArg).autoRead();
+            }
+        }
+        else if (arg instanceof PostCallRead) {
+            ((PostCallRead)arg).read();
+            if (arg instanceof PointerArray) {
+                PointerArray array = (PointerArray)arg;
+                if (Structure.ByReference[].class.isAssignableFrom(inArg.getClass())) {
+                    Class type = inArg.getClass().getComponentType();
+                    Structure[] ss = (Structure[])inArg;
+                    for (int si=0;si < ss.length;si++) {
+                        Pointer p = array.getPointer(Pointer.SIZE * si);
+                        ss[si] = Structure.updateStructureByReference(type, ss[si], p);
                     }
                 }
-                else if (args[i] instanceof PostCallRead) {
-                    ((PostCallRead)args[i]).read();
-                    if (args[i] instanceof PointerArray) {
-                        PointerArray array = (PointerArray)args[i];
-                        if (Structure.ByReference[].class.isAssignableFrom(inArg.getClass())) {
-                            Class type = inArg.getClass().getComponentType();
-                            Structure[] ss = (Structure[])inArg;
-                            for (int si=0;si < ss.length;si++) {
-                                Pointer p = array.getPointer(Pointer.SIZE * si);
-                                ss[si] = Structure.updateStructureByReference(type, ss[si], p);
-                            }
-                        }
-                    }
+            }
+        }
+        else if (Structure[].class.isAssignableFrom(inArg.getClass())) {
+            Structure.autoRead((Structure[])inArg);
+        }
+    }
+
+    /** Invoke the native function on behalf of the given method, applying
+     * the argument and result conversions determined in advance for it.
+     * Equivalent to {@link #invoke(Method,Class[],Class,Object[],Map)} with
+     * the arguments used to create the plan.
+     * @see #createConversionPlan
+     */
+    Object invoke(Method invokingMethod, Object[] inArgs, ConversionPlan plan) {
+        // Temporary native copies of arguments are valid until the call returns
+        CallArena arena = CallArena.get();
+        long mark = arena != null ? arena.enter() : 0;
+        try {
+            Object[] args = { };
+            if (inArgs != null) {
+                if (inArgs.length > MAX_NARGS) {
+                    throw new UnsupportedOperationException("Maximum argument count is " + MAX_NARGS);
                 }
-                else if (Structure[].class.isAssignableFrom(inArg.getClass())) {
-                    Structure.autoRead((Structure[])inArg);
+                args = new Object[inArgs.length];
+                System.arraycopy(inArgs, 0, args, 0, args.length);
+            }
+            for (int i=0;i < args.length;i++) {
+                args[i] = plan.getConverter(i).convert(args, i);
+            }
+
+            CallDescriptor call = plan.call;
+            if (call != null && !call.accepts(args)) {
+                call = null;
+            }
+            Object result = invoke(args, plan.nativeReturnType, plan.allowObjects, call);
+
+            if (plan.resultConverter != null) {
+                FromNativeContext context =
+                    new MethodResultContext(plan.returnType, this, inArgs, invokingMethod);
+                result = plan.resultConverter.fromNative(result, context);
+            }
+
+            for (int i=0;i < args.length;i++) {
+                if (plan.needsSync(i)) {
+                    sync(inArgs[i], args[i]);
                 }
             }
+
+            return result;
+        }
+        finally {
+            if (arena != null) {
+                arena.exit(mark);
+            }
         }
-                        
-        return result;
     }
 
     /** @see NativeLibrary#NativeLibrary(String,String,long,Map) implementation */
     Object invoke(Object[] args, Class returnType, boolean allowObjects) {
+        return invoke(args, returnType, allowObjects, null);
+    }
+
+    private Object invoke(Object[] args, Class returnType, boolean allowObjects, CallDescriptor call) {
         Object result = null;
         if (returnType == null || returnType==void.class || returnType==Void.class) {
-            Native.invokeVoid(peer, callFlags, args);
+            invokeVoid(callFlags, call, args);
             result = null;
         }
         else if (returnType==boolean.class || returnType==Boolean.class) {
-            result = valueOf(Native.invokeInt(peer, callFlags, args) != 0);
+            result = valueOf(invokeInt(callFlags, call, args) != 0);
         }
         else if (returnType==byte.class || returnType==Byte.class) {
-            result = new Byte((byte)Native.invokeInt(peer, callFlags, args));
+            result = new Byte((byte)invokeInt(callFlags, call, args));
         }
         else if (returnType==short.class || returnType==Short.class) {
-            result = new Short((short)Native.invokeInt(peer, callFlags, args));
+            result = new Short((short)invokeInt(callFlags, call, args));
         }
         else if (returnType==char.class || returnType==Character.class) {
-            result = new Character((char)Native.invokeInt(peer, callFlags, args));
+            result = new Character((char)invokeInt(callFlags, call, args));
         }
         else if (returnType==int.class || returnType==Integer.class) {
-            result = new Integer(Native.invokeInt(peer, callFlags, args));
+            result = new Integer(invokeInt(callFlags, call, args));
         }
         else if (returnType==long.class || returnType==Long.class) {
-            result = new Long(Native.invokeLong(peer, callFlags, args));
+            result = new Long(invokeLong(callFlags, call, args));
         }
         else if (returnType==float.class || returnType==Float.class) {
-            result = new Float(Native.invokeFloat(peer, callFlags, args));
+            result = new Float(invokeFloat(callFlags, call, args));
         }
         else if (returnType==double.class || returnType==Double.class) {
-            result = new Double(Native.invokeDouble(peer, callFlags, args));
+            result = new Double(invokeDouble(callFlags, call, args));
         }
         else if (returnType==String.class) {
-            result = invokeString(callFlags, args, false);
+            result = invokeString(callFlags, call, args, false);
         }
         else if (returnType==WString.class) {
-            String s = invokeString(callFlags, args, true);
+            String s = invokeString(callFlags, call, args, true);
             if (s != null) {
                 result = new WString(s);
             }
         }
         else if (Pointer.class.isAssignableFrom(returnType)) {
-            return invokePointer(callFlags, args);
+            return invokePointer(callFlags, call, args);
         }
         else if (Structure.class.isAssignableFrom(returnType)) {
             if (Structure.ByValue.class.isAssignableFrom(returnType)) {
-                Structure s = 
-                    Native.invokeStructure(peer, callFlags, args,
-                                           Structure.newInstance(returnType));
+                Structure s = Structure.newInstance(returnType);
+                if (call != null) {
+                    Native.invokeStructure(peer, call, args, s);
+                }
+                else {
+                    Native.invokeStructure(peer, callFlags, args, s);
+                }
                 s.autoRead();
                 result = s;
             }
             else {
-                result = invokePointer(callFlags, args);
+                result = invokePointer(callFlags, call, args);
                 if (result != null) {
                     Structure s = Structure.newInstance(returnType, (Pointer)result);
                     s.conditionalAutoRead();
@@ -428,19 +537,19 @@ public class Function extends Pointer {
             }
         }
         else if (Callback.class.isAssignableFrom(returnType)) {
-            result = invokePointer(callFlags, args);
+            result = invokePointer(callFlags, call, args);
             if (result != null) {
                 result = CallbackReference.getCallback(returnType, (Pointer)result);
             }
         }
         else if (returnType==String[].class) {
-            Pointer p = invokePointer(callFlags, args);
+            Pointer p = invokePointer(callFlags, call, args);
             if (p != null) {
                 result = p.getStringArray(0, encoding);
             }
         }
         else if (returnType==WString[].class) {
-            Pointer p = invokePointer(callFlags, args);
+            Pointer p = invokePointer(callFlags, call, args);
             if (p != null) {
                 String[] arr = p.getWideStringArray(0);
                 WString[] warr = new WString[arr.length];
@@ -451,7 +560,7 @@ public class Function extends Pointer {
             }
         }
         else if (returnType==Pointer[].class) {
-            Pointer p = invokePointer(callFlags, args);
+            Pointer p = invokePointer(callFlags, call, args);
             if (p != null) {
                 result = p.getPointerArray(0);
             }
@@ -473,8 +582,88 @@ public class Function extends Pointer {
         return result;
     }
     
-    private Pointer invokePointer(int callFlags, Object[] args) {
-        long ptr = Native.invokePointer(peer, callFlags, args);
+    private void invokeVoid(int callFlags, CallDescriptor call, Object[] args) {
+        if (call != null) {
+            Native.invokeVoid(peer, call, args);
+        }
+        else {
+            Native.invokeVoid(peer, callFlags, args);
+        }
+    }
+
+    private int invokeInt(int callFlags, CallDescriptor call, Object[] args) {
+        return call != null
+            ? Native.invokeInt(peer, call, args)
+            : Native.invokeInt(peer, callFlags, args);
+    }
+
+    private long invokeLong(int callFlags, CallDescriptor call, Object[] args) {
+        return call != null
+            ? Native.invokeLong(peer, call, args)
+            : Native.invokeLong(peer, callFlags, args);
+    }
+
+    private float invokeFloat(int callFlags, CallDescriptor call, Object[] args) {
+        return call != null
+            ? Native.invokeFloat(peer, call, args)
+            : Native.invokeFloat(peer, callFlags, args);
+    }
+
+    private double invokeDouble(int callFlags, CallDescriptor call, Object[] args) {
+        return call != null
+            ? Native.invokeDouble(peer, call, args)
+            : Native.invokeDouble(peer, callFlags, args);
+    }
+
+    private Pointer invokePointer(int callFlags, CallDescriptor call, Object[] args) {
+        long ptr = call != null
+            ? Native.invokePointer(peer, call, args)
+            : Native.invokePointer(peer, callFlags, args);
+        return ptr == 0 ? null : new Pointer(ptr);
+    }
+
+    /** Invoke the native function with unconverted arguments, which are
+     * passed to native code packed by kind rather than as individual boxed
+     * values.  The call must be {@link CallDescriptor#isPackable packable},
+     * each argument must be a primitive wrapper or {@link Pointer} exactly
+     * matching its declared parameter type, and the return type must be
+     * primitive or {@link Pointer}.
+     */
+    Object invokePacked(CallDescriptor call, Class returnType, Object[] args) {
+        long[] prims = call.primCount > 0 ? new long[call.primCount] : null;
+        Object[] refs = call.refCount > 0 ? new Object[call.refCount] : null;
+        if (args != null) {
+            call.pack(args, prims, refs);
+        }
+        if (returnType == void.class) {
+            Native.invokeVoid(peer, call, prims, refs);
+            return null;
+        }
+        if (returnType == boolean.class) {
+            return valueOf(Native.invokeInt(peer, call, prims, refs) != 0);
+        }
+        if (returnType == byte.class) {
+            return new Byte((byte)Native.invokeInt(peer, call, prims, refs));
+        }
+        if (returnType == short.class) {
+            return new Short((short)Native.invokeInt(peer, call, prims, refs));
+        }
+        if (returnType == char.class) {
+            return new Character((char)Native.invokeInt(peer, call, prims, refs));
+        }
+        if (returnType == int.class) {
+            return new Integer(Native.invokeInt(peer, call, prims, refs));
+        }
+        if (returnType == long.class) {
+            return new Long(Native.invokeLong(peer, call, prims, refs));
+        }
+        if (returnType == float.class) {
+            return new Float(Native.invokeFloat(peer, call, prims, refs));
+        }
+        if (returnType == double.class) {
+            return new Double(Native.invokeDouble(peer, call, prims, refs));
+        }
+        long ptr = Native.invokePointer(peer, call, prims, refs);
         return ptr == 0 ? null : new Pointer(ptr);
     }
 
@@ -545,11 +734,11 @@ public class Function extends Pointer {
         // this method returns.  
         // Convert String to native pointer (const)
         else if (arg instanceof String) {
-            return new NativeString((String)arg, false).getPointer();
+            return toNativeString((String)arg, Native.getDefaultStringEncoding());
         }
         // Convert WString to native pointer (const)
         else if (arg instanceof WString) {
-            return new NativeString(arg.toString(), true).getPointer();
+            return toNativeString(arg.toString(), NativeString.WIDE_STRING);
         }
         // Default conversion of boolean to int; if you want something
         // different, use a ToNativeConverter
@@ -557,16 +746,20 @@ public class Function extends Pointer {
             return Boolean.TRUE.equals(arg) ? INTEGER_TRUE : INTEGER_FALSE;
         }
         else if (String[].class == argClass) {
-            return new StringArray((String[])arg, encoding);
+            Pointer p = ScratchArray.create((String[])arg, encoding);
+            return p != null ? p : new StringArray((String[])arg, encoding);
         }
         else if (WString[].class == argClass) {
-            return new StringArray((WString[])arg);
+            Pointer p = ScratchArray.create((WString[])arg, NativeString.WIDE_STRING);
+            return p != null ? p : new StringArray((WString[])arg);
         }
         else if (Pointer[].class == argClass) {
-            return new PointerArray((Pointer[])arg);
+            Pointer p = ScratchArray.create((Pointer[])arg, null);
+            return p != null ? p : new PointerArray((Pointer[])arg);
         }
         else if (NativeMapped[].class.isAssignableFrom(argClass)) {
-            return new NativeMappedArray((NativeMapped[])arg);
+            Pointer p = ScratchArray.create((NativeMapped[])arg, null);
+            return p != null ? p : new NativeMappedArray((NativeMapped[])arg);
         }
         else if (Structure[].class.isAssignableFrom(argClass)) {
             // If the signature is Structure[], disallow
@@ -648,14 +841,15 @@ public class Function extends Pointer {
      * Call the native function being represented by this object
      *
      * @param   callFlags calling convention to be used
+     * @param   call prepared call information, if any
      * @param	args
      *			Arguments to pass to the native function
      * @param   wide whether the native string uses <code>wchar_t</code>;
      * if false, <code>char</code> is assumed
      * @return	The value returned by the target native function, as a String
      */
-    private String invokeString(int callFlags, Object[] args, boolean wide) {
-        Pointer ptr = invokePointer(callFlags, args);
+    private String invokeString(int callFlags, CallDescriptor call, Object[] args, boolean wide) {
+        Pointer ptr = invokePointer(callFlags, call, args);
         String s = null;
         if (ptr != null) {
             if (wide) {
@@ -733,6 +927,256 @@ public class Function extends Pointer {
     public void invokeVoid(Object[] args) {
         invoke(Void.class, args);
     }
+
+    /** Invoke this function once for each element of the given argument
+     * arrays, with the loop running in native code.  Argument and result
+     * types are taken from the array component types.
+     * @param args a primitive array supplying one value per call, or a
+     * primitive wrapper supplying the same value to every call
+     * @param results a primitive array receiving the result of each call,
+     * or <code>null</code> if the function returns <code>void</code>
+     * @see #invokeVectorized(Class, Class[], Object[], Object, int)
+     */
+    public void invokeVectorized(Object[] args, Object results) {
+        Class[] paramTypes = new Class[args.length];
+        int count = -1;
+        for (int i=0;i < args.length;i++) {
+            Object arg = args[i];
+            if (arg != null && arg.getClass().isArray()) {
+                paramTypes[i] = arg.getClass().getComponentType();
+                int length = Array.getLength(arg);
+                count = count == -1 ? length : Math.min(count, length);
+            }
+            else if (arg != null && getPrimitiveType(arg.getClass()) != null) {
+                paramTypes[i] = getPrimitiveType(arg.getClass());
+            }
+            else {
+                throw new IllegalArgumentException("Argument " + i + " must be a primitive array or wrapper");
+            }
+        }
+        Class returnType = void.class;
+        if (results != null) {
+            if (!results.getClass().isArray()) {
+                throw new IllegalArgumentException("Results must be a primitive array");
+            }
+            returnType = results.getClass().getComponentType();
+            count = Array.getLength(results);
+        }
+        if (count == -1) {
+            throw new IllegalArgumentException("No argument or result arrays given");
+        }
+        invokeVectorized(returnType, paramTypes, args, results, count);
+    }
+
+    /** Invoke this function <code>count</code> times, with the loop
+     * running in native code over a single prepared call interface.  This
+     * avoids one transition into native code and any argument conversion
+     * per call.  Only non-<code>boolean</code>, non-<code>char</code>
+     * primitive argument and return types are supported; no
+     * {@link TypeMapper} is applied.
+     * @param returnType type of each result, or <code>void.class</code>
+     * @param paramTypes type of each argument
+     * @param args for each parameter, either a primitive array of the
+     * parameter type with at least <code>count</code> elements, a
+     * {@link Pointer} to <code>count</code> contiguous native values of the
+     * parameter type, or a primitive wrapper whose value is passed to every
+     * call
+     * @param results a primitive array of the return type with at least
+     * <code>count</code> elements or a {@link Pointer} to memory for
+     * <code>count</code> values, to receive the results; may be
+     * <code>null</code> to discard them
+     * @param count number of calls
+     * @throws IndexOutOfBoundsException if a {@link Memory} argument or
+     * result holds fewer than <code>count</code> values
+     */
+    public void invokeVectorized(Class returnType, Class[] paramTypes, Object[] args, Object results, int count) {
+        if (paramTypes.length != args.length) {
+            throw new IllegalArgumentException("Wrong number of arguments: expected "
+                                               + paramTypes.length + ", got " + args.length);
+        }
+        if (returnType != void.class) {
+            checkVectorType(returnType, "Unsupported return type " + returnType);
+        }
+        // Stage array and scalar values in a single block of native memory
+        long size = 0;
+        for (int i=0;i < args.length;i++) {
+            checkVectorType(paramTypes[i], "Unsupported type " + paramTypes[i] + " at parameter " + i);
+            if (args[i] instanceof Pointer) {
+                checkVectorBounds((Pointer)args[i], count, Native.getNativeSize(paramTypes[i]));
+            }
+            else {
+                size += getVectorLength(args[i], paramTypes[i], count, "Argument " + i) * Native.getNativeSize(paramTypes[i]);
+            }
+        }
+        int resultSize = returnType != void.class ? Native.getNativeSize(returnType) : 0;
+        if (results instanceof Pointer) {
+            checkVectorBounds((Pointer)results, count, resultSize);
+        }
+        else if (results != null) {
+            size += getVectorLength(results, returnType, count, "Results") * resultSize;
+        }
+        if (count <= 0) {
+            return;
+        }
+        Memory buffer = size > 0 ? new Memory(size) : null;
+        long[] addresses = new long[args.length];
+        int[] strides = new int[args.length];
+        long offset = 0;
+        for (int i=0;i < args.length;i++) {
+            Object arg = args[i];
+            int elementSize = Native.getNativeSize(paramTypes[i]);
+            if (arg instanceof Pointer) {
+                addresses[i] = Pointer.nativeValue((Pointer)arg);
+                strides[i] = elementSize;
+            }
+            else if (arg.getClass().isArray()) {
+                writeVector(buffer, offset, arg, count);
+                addresses[i] = buffer.peer + offset;
+                strides[i] = elementSize;
+                offset += (long)count * elementSize;
+            }
+            else {
+                buffer.setValue(offset, arg, paramTypes[i]);
+                addresses[i] = buffer.peer + offset;
+                offset += elementSize;
+            }
+        }
+        long resultAddress = 0;
+        if (results instanceof Pointer) {
+            resultAddress = Pointer.nativeValue((Pointer)results);
+        }
+        else if (results != null) {
+            resultAddress = buffer.peer + offset;
+        }
+        CallDescriptor call = getVectorCall(returnType, paramTypes);
+        try {
+            Native.invokeVectorized(peer, call, addresses, strides, resultAddress, resultSize, count);
+            if (results != null && !(results instanceof Pointer)) {
+                readVector(buffer, offset, results, count);
+            }
+        }
+        finally {
+            // Native code only sees raw addresses, so the buffer must stay
+            // reachable until the call returns
+            if (buffer != null) {
+                buffer.close();
+            }
+        }
+    }
+
+    /** Returns the call descriptor for vectorized calls with the given
+     * signature, preparing it only on the first call with that signature.
+     */
+    CallDescriptor getVectorCall(Class returnType, Class[] paramTypes) {
+        ConcurrentMap calls = vectorCalls;
+        if (calls == null) {
+            synchronized(this) {
+                calls = vectorCalls;
+                if (calls == null) {
+                    vectorCalls = calls = new ConcurrentHashMap();
+                }
+            }
+        }
+        VectorSignature key = new VectorSignature(returnType, paramTypes);
+        CallDescriptor call = (CallDescriptor)calls.get(key);
+        if (call == null) {
+            call = prepareCall(null, paramTypes, returnType, Collections.EMPTY_MAP);
+            if (call == null) {
+                throw new IllegalArgumentException("Vectorized call to " + getName() + " can not be prepared");
+            }
+            key = new VectorSignature(returnType, (Class[])paramTypes.clone());
+            CallDescriptor existing = (CallDescriptor)calls.putIfAbsent(key, call);
+            if (existing != null) {
+                call.dispose();
+                call = existing;
+            }
+        }
+        return call;
+    }
+
+    /** Return and parameter types of a vectorized call. */
+    private static final class VectorSignature {
+        final Class returnType;
+        final Class[] paramTypes;
+        VectorSignature(Class returnType, Class[] paramTypes) {
+            this.returnType = returnType;
+            this.paramTypes = paramTypes;
+        }
+        public boolean equals(Object o) {
+            if (!(o instanceof VectorSignature)) {
+                return false;
+            }
+            VectorSignature other = (VectorSignature)o;
+            return returnType == other.returnType
+                && Arrays.equals(paramTypes, other.paramTypes);
+        }
+        public int hashCode() {
+            return returnType.hashCode() * 31 + Arrays.hashCode(paramTypes);
+        }
+    }
+
+    /** Ensure a {@link Memory} supplying or receiving vector values holds
+     * <code>count</code> elements, since native code sees only its address.
+     */
+    private static void checkVectorBounds(Pointer p, int count, int elementSize) {
+        if (p instanceof Memory) {
+            ((Memory)p).boundsCheck(0, (long)count * elementSize);
+        }
+    }
+
+    private static void checkVectorType(Class type, String msg) {
+        if (!type.isPrimitive() || type == boolean.class
+            || type == char.class || type == void.class) {
+            throw new IllegalArgumentException(msg);
+        }
+    }
+
+    /** Returns the number of values to be staged for the given vector
+     * argument or results.
+     */
+    private static int getVectorLength(Object arg, Class type, int count, String name) {
+        if (arg != null && arg.getClass().isArray()) {
+            if (arg.getClass().getComponentType() != type) {
+                throw new IllegalArgumentException(name + " must be an array of " + type);
+            }
+            if (Array.getLength(arg) < count) {
+                throw new IllegalArgumentException(name + " has fewer than " + count + " elements");
+            }
+            return count;
+        }
+        if (arg == null || getPrimitiveType(arg.getClass()) != type) {
+            throw new IllegalArgumentException(name + " must be an array or value of " + type);
+        }
+        return 1;
+    }
+
+    private static Class getPrimitiveType(Class cls) {
+        if (cls == Byte.class) return byte.class;
+        if (cls == Short.class) return short.class;
+        if (cls == Integer.class) return int.class;
+        if (cls == Long.class) return long.class;
+        if (cls == Float.class) return float.class;
+        if (cls == Double.class) return double.class;
+        return null;
+    }
+
+    private static void writeVector(Pointer p, long offset, Object array, int count) {
+        if (array instanceof byte[]) p.write(offset, (byte[])array, 0, count);
+        else if (array instanceof short[]) p.write(offset, (short[])array, 0, count);
+        else if (array instanceof int[]) p.write(offset, (int[])array, 0, count);
+        else if (array instanceof long[]) p.write(offset, (long[])array, 0, count);
+        else if (array instanceof float[]) p.write(offset, (float[])array, 0, count);
+        else p.write(offset, (double[])array, 0, count);
+    }
+
+    private static void readVector(Pointer p, long offset, Object array, int count) {
+        if (array instanceof byte[]) p.read(offset, (byte[])array, 0, count);
+        else if (array instanceof short[]) p.read(offset, (short[])array, 0, count);
+        else if (array instanceof int[]) p.read(offset, (int[])array, 0, count);
+        else if (array instanceof long[]) p.read(offset, (long[])array, 0, count);
+        else if (array instanceof float[]) p.read(offset, (float[])array, 0, count);
+        else p.read(offset, (double[])array, 0, count);
+    }
     
     /** Two function pointers are equal if they share the same peer address
      * and calling convention.
@@ -788,6 +1232,643 @@ public class Function extends Pointer {
         return IS_VARARGS.isVarArgs(m);
     }
     
+    /** Prepare the native call interface for repeated invocation of this
+     * function via the given method.  Returns <code>null</code> if the
+     * native argument and return types can't all be determined from the
+     * method signature (e.g. varargs or <code>Object</code> parameters),
+     * in which case each invocation must classify its arguments.
+     */
+    CallDescriptor prepareCall(Method invokingMethod, Class[] paramTypes, Class returnType, Map options) {
+        if (invokingMethod != null && isVarArgs(invokingMethod)) {
+            return null;
+        }
+        if (paramTypes.length > MAX_NARGS) {
+            return null;
+        }
+        try {
+            boolean[] critical = null;
+            int[] directions = null;
+            if (invokingMethod != null) {
+                critical = Native.getCriticalArrays(invokingMethod, options);
+                directions = Native.getDirections(invokingMethod);
+            }
+            return createCallDescriptor(paramTypes, returnType, options, critical, directions);
+        }
+        catch(IllegalArgumentException e) {
+            // Let the regular invocation report any problems with the types
+            return null;
+        }
+    }
+
+    private CallDescriptor createCallDescriptor(Class[] paramTypes, Class returnType, Map options, boolean[] critical, int[] directions) {
+        TypeMapper mapper = (TypeMapper)options.get(Library.OPTION_TYPE_MAPPER);
+        Class nativeReturnType = CallDescriptor.getNativeType(returnType, mapper, true);
+        Pointer rtype = nativeReturnType != null
+            ? CallDescriptor.getReturnTypeInfo(nativeReturnType) : null;
+        if (rtype == null) {
+            return null;
+        }
+        Class[] types = new Class[paramTypes.length];
+        int[] cvt = new int[paramTypes.length];
+        long[] atypes = new long[paramTypes.length];
+        for (int i=0;i < paramTypes.length;i++) {
+            Class type = CallDescriptor.getNativeType(paramTypes[i], mapper, false);
+            if (type == null) {
+                return null;
+            }
+            switch(Native.getConversion(type, null)) {
+            case Native.CVT_BOOLEAN:
+                // booleans are passed as int
+                types[i] = Integer.class;
+                cvt[i] = Native.CVT_DEFAULT;
+                atypes[i] = Structure.FFIType.get(int.class).peer;
+                break;
+            case Native.CVT_DEFAULT:
+                types[i] = CallDescriptor.box(type);
+                if (types[i] == Void.class) {
+                    return null;
+                }
+                cvt[i] = Native.CVT_DEFAULT;
+                atypes[i] = Structure.FFIType.get(type).peer;
+                break;
+            case Native.CVT_STRUCTURE_BYVAL:
+                if (Structure.ByValue.class.isAssignableFrom(paramTypes[i])) {
+                    types[i] = type;
+                    cvt[i] = Native.CVT_STRUCTURE_BYVAL;
+                    atypes[i] = Structure.FFIType.get(type).peer;
+                    break;
+                }
+                // fall through
+            case Native.CVT_POINTER:
+            case Native.CVT_STRING:
+            case Native.CVT_WSTRING:
+            case Native.CVT_STRUCTURE:
+            case Native.CVT_CALLBACK:
+                types[i] = Pointer.class;
+                cvt[i] = Native.CVT_POINTER;
+                atypes[i] = Structure.FFIType.get(Pointer.class).peer;
+                break;
+            case Native.CVT_BUFFER:
+            case Native.CVT_ARRAY_BYTE:
+            case Native.CVT_ARRAY_SHORT:
+            case Native.CVT_ARRAY_CHAR:
+            case Native.CVT_ARRAY_INT:
+            case Native.CVT_ARRAY_LONG:
+            case Native.CVT_ARRAY_FLOAT:
+            case Native.CVT_ARRAY_DOUBLE:
+            case Native.CVT_ARRAY_BOOLEAN:
+                types[i] = type;
+                cvt[i] = critical != null && critical[i]
+                    ? Native.CVT_ARRAY_CRITICAL : Native.getConversion(type, null);
+                if (directions != null && Native.isDirectional(cvt[i])) {
+                    cvt[i] |= directions[i];
+                }
+                atypes[i] = Structure.FFIType.get(Pointer.class).peer;
+                break;
+            default:
+                // Arrays which convertArgument turns into native memory
+                if (type == String[].class || type == WString[].class
+                    || type == Pointer[].class
+                    || NativeMapped[].class.isAssignableFrom(type)
+                    || Structure[].class.isAssignableFrom(type)) {
+                    types[i] = Pointer.class;
+                    cvt[i] = Native.CVT_POINTER;
+                    atypes[i] = Structure.FFIType.get(Pointer.class).peer;
+                    break;
+                }
+                return null;
+            }
+        }
+        long peer = Native.prepareCall(callFlags, rtype.peer, atypes, cvt);
+        return new CallDescriptor(peer, types, cvt);
+    }
+
+    /** Determine the argument and result conversions for repeated
+     * invocation of this function via the given method.
+     * @param call prepared call information, if any, to be used when the
+     * converted arguments match it
+     */
+    ConversionPlan createConversionPlan(Method invokingMethod, Class[] paramTypes, Class returnType, Map options, CallDescriptor call) {
+        return new ConversionPlan(invokingMethod, paramTypes, returnType, options, call);
+    }
+
+    /** Converts a single argument for native use. */
+    interface ArgumentConverter {
+        Object convert(Object[] args, int index);
+    }
+
+    /** Converts an argument whose native copy may outlive the call, so
+     * that it is not placed in {@link CallArena} memory.
+     * @see Retained
+     */
+    private static final class RetainedConverter implements ArgumentConverter {
+        private final ArgumentConverter converter;
+        RetainedConverter(ArgumentConverter converter) {
+            this.converter = converter;
+        }
+        public Object convert(Object[] args, int index) {
+            CallArena arena = CallArena.get();
+            if (arena == null) {
+                return converter.convert(args, index);
+            }
+            boolean wasSuspended = arena.suspend();
+            try {
+                return converter.convert(args, index);
+            }
+            finally {
+                arena.resume(wasSuspended);
+            }
+        }
+    }
+
+    /** Arguments which are passed unchanged. */
+    private static final ArgumentConverter IDENTITY = new ArgumentConverter() {
+        public Object convert(Object[] args, int index) {
+            return args[index];
+        }
+    };
+
+    private static final ArgumentConverter BOOLEAN = new ArgumentConverter() {
+        public Object convert(Object[] args, int index) {
+            Object arg = args[index];
+            if (arg == null) {
+                return null;
+            }
+            return Boolean.TRUE.equals(arg) ? INTEGER_TRUE : INTEGER_FALSE;
+        }
+    };
+
+    /** Structures only written by native code, which need not be written
+     * to native memory before the call.
+     */
+    private static final ArgumentConverter OUTPUT_STRUCTURE = new ArgumentConverter() {
+        public Object convert(Object[] args, int index) {
+            Object arg = args[index];
+            return arg != null ? ((Structure)arg).getPointer() : null;
+        }
+    };
+
+    private static final ArgumentConverter WSTRING = new ArgumentConverter() {
+        public Object convert(Object[] args, int index) {
+            Object arg = args[index];
+            return arg != null ? toNativeString(arg.toString(), NativeString.WIDE_STRING) : null;
+        }
+    };
+
+    /** Argument and result conversions for a given invoking method,
+     * determined once from its signature and options.  Arguments whose
+     * declared type fully determines their conversion get a dedicated
+     * converter; all others use the general conversion based on the
+     * runtime argument type.  Arguments which can never refer to memory
+     * modified by the native call are skipped after the call.
+     */
+    final class ConversionPlan {
+        final Class returnType;
+        final Class nativeReturnType;
+        final FromNativeConverter resultConverter;
+        final boolean allowObjects;
+        final CallDescriptor call;
+        private final ArgumentConverter[] converters;
+        private final boolean[] sync;
+        /** Converter for trailing variable arguments, if any. */
+        private final ArgumentConverter varArgsConverter;
+
+        ConversionPlan(final Method invokingMethod, Class[] paramTypes, Class returnType, Map options, CallDescriptor call) {
+            final TypeMapper mapper = (TypeMapper)options.get(Library.OPTION_TYPE_MAPPER);
+            this.allowObjects = Boolean.TRUE.equals(options.get(Library.OPTION_ALLOW_OBJECTS));
+            this.returnType = returnType;
+            this.call = call;
+
+            Class nativeType = returnType;
+            FromNativeConverter converter = null;
+            if (NativeMapped.class.isAssignableFrom(returnType)) {
+                NativeMappedConverter tc = NativeMappedConverter.getInstance(returnType);
+                converter = tc;
+                nativeType = tc.nativeType();
+            }
+            else if (mapper != null) {
+                converter = mapper.getFromNativeConverter(returnType);
+                if (converter != null) {
+                    nativeType = converter.nativeType();
+                }
+            }
+            this.resultConverter = converter;
+            this.nativeReturnType = nativeType;
+
+            boolean[] retained = invokingMethod != null ? Native.getRetainedArguments(invokingMethod) : null;
+            int fixed = paramTypes.length;
+            if (isVarArgs(invokingMethod)) {
+                final Class componentType = paramTypes[--fixed].getComponentType();
+                ArgumentConverter varArgs = new ArgumentConverter() {
+                    public Object convert(Object[] args, int index) {
+                        return convertArgument(args, index, invokingMethod, mapper, allowObjects, componentType);
+                    }
+                };
+                varArgsConverter = retained != null && retained[fixed]
+                    ? new RetainedConverter(varArgs) : varArgs;
+            }
+            else {
+                varArgsConverter = null;
+            }
+            converters = new ArgumentConverter[fixed];
+            sync = new boolean[fixed];
+            int[] directions = invokingMethod != null ? Native.getDirections(invokingMethod) : null;
+            for (int i=0;i < fixed;i++) {
+                final Class type = paramTypes[i];
+                converters[i] = getConverter(type, mapper);
+                // Only arguments with a dedicated converter are known not
+                // to refer to memory the native call may modify
+                sync[i] = converters[i] == null;
+                if (directions != null && isStructureType(type, mapper)) {
+                    if (directions[i] == Native.CVT_FLAG_IN) {
+                        sync[i] = false;
+                    }
+                    else if (directions[i] == Native.CVT_FLAG_OUT
+                             && Structure.class.isAssignableFrom(type)
+                             && !Structure.ByValue.class.isAssignableFrom(type)) {
+                        converters[i] = OUTPUT_STRUCTURE;
+                    }
+                }
+                if (converters[i] == null) {
+                    converters[i] = new ArgumentConverter() {
+                        public Object convert(Object[] args, int index) {
+                            return convertArgument(args, index, invokingMethod, mapper, allowObjects, type);
+                        }
+                    };
+                }
+                if (retained != null && retained[i]) {
+                    converters[i] = new RetainedConverter(converters[i]);
+                }
+            }
+        }
+
+        /** Returns whether arguments of the given declared type are always
+         * structures or structure arrays passed by reference.
+         */
+        private boolean isStructureType(Class type, TypeMapper mapper) {
+            if (mapper != null && mapper.getToNativeConverter(type) != null) {
+                return false;
+            }
+            return Structure.class.isAssignableFrom(type)
+                || Structure[].class.isAssignableFrom(type);
+        }
+
+        /** Returns a dedicated converter for arguments of the given declared
+         * type, or <code>null</code> if the conversion depends on the
+         * runtime argument type.
+         */
+        private ArgumentConverter getConverter(Class type, TypeMapper mapper) {
+            boolean isFinal = type.isPrimitive() || Modifier.isFinal(type.getModifiers());
+            if (mapper != null
+                && (!isFinal || mapper.getToNativeConverter(CallDescriptor.box(type)) != null)) {
+                return null;
+            }
+            Class boxed = CallDescriptor.box(type);
+            if (boxed == Boolean.class) {
+                return BOOLEAN;
+            }
+            if (isValueType(type) && boxed != String.class && boxed != WString.class) {
+                return IDENTITY;
+            }
+            if (type == String.class) {
+                return new ArgumentConverter() {
+                    public Object convert(Object[] args, int index) {
+                        Object arg = args[index];
+                        return arg != null ? toNativeString((String)arg, Native.getDefaultStringEncoding()) : null;
+                    }
+                };
+            }
+            if (type == WString.class) {
+                return WSTRING;
+            }
+            return null;
+        }
+
+        /** Returns whether arguments of the given declared type need no
+         * conversion beyond their representation, and no memory to be synced
+         * after the call.
+         */
+        private boolean isValueType(Class type) {
+            Class boxed = CallDescriptor.box(type);
+            return boxed == Byte.class || boxed == Short.class
+                || boxed == Character.class || boxed == Integer.class
+                || boxed == Long.class || boxed == Float.class
+                || boxed == Double.class || boxed == Boolean.class
+                || type == String.class || type == WString.class
+                || isPrimitiveArray(type);
+        }
+
+        ArgumentConverter getConverter(int index) {
+            return index < converters.length ? converters[index] : varArgsConverter;
+        }
+
+        boolean needsSync(int index) {
+            return index >= sync.length || sync[index];
+        }
+    }
+
+    /** Native call information prepared once for a given method signature,
+     * so that invocations need neither per-argument type classification
+     * nor <code>ffi_prep_cif</code>.  Arguments must already have been
+     * converted to their native representation; if the converted values
+     * don't have the expected types, the descriptor is not used.
+     */
+    static final class CallDescriptor {
+        /** Native <code>call_info</code>; read directly by native code. */
+        private long peer;
+        private final Class[] types;
+        private final int[] conversions;
+        /** Number of primitive arguments, when packed. */
+        final int primCount;
+        /** Number of pointer arguments, when packed. */
+        final int refCount;
+
+        private final Cleaner.Cleanable cleanable;
+
+        CallDescriptor(long peer, Class[] types, int[] conversions) {
+            this.peer = peer;
+            this.cleanable = Cleaner.getCleaner().register(this, new CallDisposer(peer));
+            this.types = types;
+            this.conversions = conversions;
+            int prims = 0;
+            int refs = 0;
+            for (int i=0;i < conversions.length;i++) {
+                if (conversions[i] == Native.CVT_DEFAULT) {
+                    ++prims;
+                }
+                else if (conversions[i] == Native.CVT_POINTER) {
+                    ++refs;
+                }
+            }
+            this.primCount = prims;
+            this.refCount = refs;
+        }
+
+        /** Returns whether all arguments are primitives or pointers, so
+         * that they may be passed packed into a primitive array and a
+         * pointer array.
+         * @see #pack
+         */
+        boolean isPackable() {
+            return primCount + refCount == conversions.length;
+        }
+
+        /** Pack the given arguments in order, primitive values into
+         * <code>prims</code> and pointers into <code>refs</code>.  Booleans
+         * are packed as their <code>int</code> representation, and floating
+         * point values as their raw bits.
+         */
+        void pack(Object[] args, long[] prims, Object[] refs) {
+            int p = 0;
+            int r = 0;
+            for (int i=0;i < args.length;i++) {
+                if (conversions[i] == Native.CVT_POINTER) {
+                    refs[r++] = args[i];
+                }
+                else {
+                    prims[p++] = packValue(args[i]);
+                }
+            }
+        }
+
+        /** Returns the packed representation of a primitive wrapper. */
+        static long packValue(Object arg) {
+            if (arg instanceof Boolean) {
+                return (Boolean.TRUE.equals(arg) ? INTEGER_TRUE : INTEGER_FALSE).intValue();
+            }
+            if (arg instanceof Character) {
+                return ((Character)arg).charValue();
+            }
+            if (arg instanceof Float) {
+                return Float.floatToRawIntBits(((Float)arg).floatValue());
+            }
+            if (arg instanceof Double) {
+                return Double.doubleToRawLongBits(((Double)arg).doubleValue());
+            }
+            return ((Number)arg).longValue();
+        }
+
+        /** Returns whether the given converted arguments have the types
+         * this call was prepared with.
+         */
+        boolean accepts(Object[] args) {
+            if (args.length != types.length) {
+                return false;
+            }
+            for (int i=0;i < args.length;i++) {
+                Object arg = args[i];
+                switch(conversions[i]) {
+                case Native.CVT_POINTER:
+                case Native.CVT_BUFFER:
+                    if (arg != null && !types[i].isInstance(arg)) {
+                        return false;
+                    }
+                    break;
+                case Native.CVT_DEFAULT:
+                case Native.CVT_STRUCTURE_BYVAL:
+                    if (arg == null || arg.getClass() != types[i]) {
+                        return false;
+                    }
+                    break;
+                default:
+                    if (arg != null && arg.getClass() != types[i]) {
+                        return false;
+                    }
+                    break;
+                }
+            }
+            return true;
+        }
+
+        /** Returns the native call information; only valid while this
+         * descriptor is reachable.
+         */
+        synchronized long getPeer() {
+            return peer;
+        }
+
+        /** Free the native call information. */
+        synchronized void dispose() {
+            if (peer != 0) {
+                cleanable.clean();
+                peer = 0;
+            }
+        }
+
+        /** Frees native call information once its descriptor is
+         * unreachable.
+         */
+        private static class CallDisposer implements Runnable {
+            private final long peer;
+            CallDisposer(long peer) {
+                this.peer = peer;
+            }
+            public void run() {
+                Native.freeCall(peer);
+            }
+        }
+
+        /** Returns the type a value of the given Java type has once
+         * converted for native use, or <code>null</code> if it can't be
+         * determined from the type alone.
+         */
+        static Class getNativeType(Class type, TypeMapper mapper, boolean isReturn) {
+            if (NativeMapped.class.isAssignableFrom(type)) {
+                try {
+                    return NativeMappedConverter.getInstance(type).nativeType();
+                }
+                catch(IllegalArgumentException e) {
+                    return null;
+                }
+            }
+            if (mapper != null) {
+                if (isReturn) {
+                    FromNativeConverter fromNative = mapper.getFromNativeConverter(type);
+                    if (fromNative != null) {
+                        return fromNative.nativeType();
+                    }
+                }
+                else {
+                    // Arguments are looked up by their runtime (boxed) type
+                    ToNativeConverter toNative = mapper.getToNativeConverter(box(type));
+                    if (toNative != null) {
+                        return toNative.nativeType();
+                    }
+                }
+            }
+            return type;
+        }
+
+        /** Returns the native type information used to call a function
+         * returning the given native type, or <code>null</code> if that
+         * return type can't be prepared.
+         */
+        static Pointer getReturnTypeInfo(Class type) {
+            switch(Native.getConversion(type, null)) {
+            case Native.CVT_BOOLEAN:
+                return Structure.FFIType.get(int.class);
+            case Native.CVT_DEFAULT:
+                type = box(type);
+                // Small integer types are returned as int
+                if (type == Byte.class || type == Short.class
+                    || type == Character.class) {
+                    return Structure.FFIType.get(int.class);
+                }
+                return Structure.FFIType.get(type);
+            case Native.CVT_STRUCTURE_BYVAL:
+                return Structure.FFIType.get(type);
+            case Native.CVT_POINTER:
+            case Native.CVT_STRING:
+            case Native.CVT_WSTRING:
+            case Native.CVT_STRUCTURE:
+            case Native.CVT_CALLBACK:
+                return Structure.FFIType.get(Pointer.class);
+            default:
+                if (type == String[].class || type == WString[].class
+                    || type == Pointer[].class) {
+                    return Structure.FFIType.get(Pointer.class);
+                }
+                return null;
+            }
+        }
+
+        static Class box(Class type) {
+            if (type == boolean.class) return Boolean.class;
+            if (type == byte.class) return Byte.class;
+            if (type == short.class) return Short.class;
+            if (type == char.class) return Character.class;
+            if (type == int.class) return Integer.class;
+            if (type == long.class) return Long.class;
+            if (type == float.class) return Float.class;
+            if (type == double.class) return Double.class;
+            if (type == void.class) return Void.class;
+            return type;
+        }
+    }
+
+    /** Returns a native copy of the given string which is valid until the
+     * current call returns.
+     */
+    private static Pointer toNativeString(String s, String encoding) {
+        CallArena arena = CallArena.get();
+        Pointer p = arena != null ? arena.allocateString(s, encoding) : null;
+        return p != null ? p : new NativeString(s, encoding).getPointer();
+    }
+
+    /** Native copy of a String, WString, Pointer or NativeMapped array
+     * argument in {@link CallArena} memory, read back after the call.
+     */
+    private static class ScratchArray extends Pointer implements PostCallRead {
+        private final Object[] original;
+        private final String encoding;
+        private ScratchArray(long peer, Object[] original, String encoding) {
+            super(peer);
+            this.original = original;
+            this.encoding = encoding;
+        }
+        /** Returns a copy of the given array in the current call's arena,
+         * or <code>null</code> if it does not fit.
+         * @param encoding string encoding, for string arrays
+         */
+        static Pointer create(Object[] arg, String encoding) {
+            CallArena arena = CallArena.get();
+            if (arena == null) {
+                return null;
+            }
+            long mark = arena.mark();
+            if (arg instanceof NativeMapped[]) {
+                Pointer p = arena.allocate(Native.getNativeSize(arg.getClass(), arg));
+                if (p == null) {
+                    return null;
+                }
+                p.setValue(0, arg, arg.getClass());
+                return new ScratchArray(p.peer, arg, encoding);
+            }
+            // NULL-terminated array of pointers
+            Pointer p = arena.allocate((long)Pointer.SIZE * (arg.length + 1));
+            if (p == null) {
+                return null;
+            }
+            for (int i=0;i < arg.length;i++) {
+                Pointer element = null;
+                if (arg[i] instanceof Pointer) {
+                    element = (Pointer)arg[i];
+                }
+                else if (arg[i] != null) {
+                    element = arena.allocateString(arg[i].toString(), encoding);
+                    if (element == null) {
+                        arena.reset(mark);
+                        return null;
+                    }
+                }
+                p.setPointer((long)Pointer.SIZE * i, element);
+            }
+            p.setPointer((long)Pointer.SIZE * arg.length, null);
+            return new ScratchArray(p.peer, arg, encoding);
+        }
+        public void read() {
+            if (original instanceof NativeMapped[]) {
+                getValue(0, original.getClass(), original);
+            }
+            else if (original instanceof Pointer[]) {
+                read(0, (Pointer[])original, 0, original.length);
+            }
+            else {
+                // Same as StringArray
+                boolean wide = encoding == NativeString.WIDE_STRING;
+                for (int si=0;si < original.length;si++) {
+                    Pointer p = getPointer((long)si * Pointer.SIZE);
+                    Object s = null;
+                    if (p != null) {
+                        s = wide ? p.getWideString(0) : p.getString(0, encoding);
+                        if (original instanceof WString[]) s = new WString((String)s);
+                    }
+                    original[si] = s;
+                }
+            }
+        }
+    }
+
     private static class NativeMappedArray extends Memory implements PostCallRead {
         private final NativeMapped[] original;
         public NativeMappedArray(NativeMapped[] arg) {
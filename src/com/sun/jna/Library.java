@@ -12,10 +12,24 @@ package com.sun.jna;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /** Derive from this interface for all native library definitions.
  *
@@ -100,6 +114,49 @@ public interface Library {
      * conflict.
      */
     String OPTION_CLASSLOADER = "classloader";
+    /** <p>Option key for a boolean flag to implement the library interface
+     * with a class generated at load time instead of a
+     * {@link java.lang.reflect.Proxy}.  Each generated method calls into the
+     * native function directly, avoiding reflective dispatch.</p>
+     * The generated implementation is only used if the interface and all
+     * types in its method signatures are public, and no
+     * {@link #OPTION_INVOCATION_MAPPER} is provided; otherwise a
+     * {@link java.lang.reflect.Proxy} is used as usual.
+     */
+    String OPTION_GENERATED_STUBS = "generated-stubs";
+    /** <p>Option key for the maximum number of concurrent native calls made
+     * by the library's asynchronous methods ({@link Integer}).  A method is
+     * asynchronous if it is declared to return
+     * {@link java.util.concurrent.Future}, parameterized with the type of the
+     * native result, e.g. <code>Future&lt;Integer&gt;</code> or
+     * <code>Future&lt;Void&gt;</code>.  Such methods return immediately; the
+     * native call, along with all argument and result conversion and
+     * {@link Structure} synchronization, runs on a pool of daemon threads
+     * owned by the library instance.</p>
+     * Defaults to the number of available processors.
+     */
+    String OPTION_ASYNC_CONCURRENCY = "async-concurrency";
+    /** Option key for a {@link java.util.concurrent.Executor} on which to run
+     * the library's asynchronous methods, instead of the library's own pool.
+     * @see #OPTION_ASYNC_CONCURRENCY
+     */
+    String OPTION_ASYNC_EXECUTOR = "async-executor";
+    /** <p>Option key for a boolean flag to move native calls made from
+     * virtual threads onto platform threads.  A virtual thread pins its
+     * carrier thread for the duration of a native call; with this option
+     * the call is instead made on the library's asynchronous executor (see
+     * {@link #OPTION_ASYNC_CONCURRENCY}) while the virtual thread waits,
+     * releasing its carrier.  Calls from platform threads are made inline as
+     * usual.</p>
+     * Individual methods may override this setting with
+     * {@link OffloadVirtualThreads}.
+     */
+    String OPTION_OFFLOAD_VIRTUAL_THREADS = "offload-virtual-threads";
+    /** Option key for a boolean flag to pass all primitive array arguments
+     * by critical access instead of copying them.
+     * @see CriticalArray
+     */
+    String OPTION_CRITICAL_ARRAYS = "critical-arrays";
 
     static class Handler implements InvocationHandler {
         
@@ -123,7 +180,18 @@ public interface Library {
         // Library invocation options
         private final Map options;
         private final InvocationMapper invocationMapper;
-        private final Map functions = new WeakHashMap();
+        /** Maps each interface method to its slot in {@link #functions};
+         * never modified after construction.
+         */
+        private final Map slots;
+        /** Lazily-created {@link FunctionInfo} for each method slot. */
+        private final AtomicReferenceArray functions;
+        /** Lazily-created {@link FunctionInfo} for methods without a slot,
+         * keyed by method.
+         */
+        private final ConcurrentMap otherFunctions = new ConcurrentHashMap();
+        /** Executor for asynchronous methods, created on first use. */
+        private volatile Executor asyncExecutor;
         public Handler(String libname, Class interfaceClass, Map options) {
 
             if (libname != null && "".equals(libname.trim())) {
@@ -146,6 +214,13 @@ public interface Library {
             this.options = options;
             this.nativeLibrary = NativeLibrary.getInstance(libname, options);
             invocationMapper = (InvocationMapper)options.get(OPTION_INVOCATION_MAPPER);
+            Method[] methods = interfaceClass.getMethods();
+            Map slots = new HashMap();
+            for (int i=0;i < methods.length;i++) {
+                slots.put(methods[i], new Integer(i));
+            }
+            this.slots = slots;
+            this.functions = new AtomicReferenceArray(methods.length);
         }
 
         public NativeLibrary getNativeLibrary() {
@@ -163,17 +238,23 @@ public interface Library {
         /**
          * FunctionInfo has to be immutable to to make the object visible 
          * to other threads fully initialized. This is a prerequisite for
-         * using the class in the double checked locking scenario of {@link Handler#invoke(Object, Method, Object[])}
+         * publishing it lock-free in {@link Handler#getFunctionInfo(int, Method)}.
          */
-        private static final class FunctionInfo {
+        static final class FunctionInfo {
             
-            FunctionInfo(InvocationHandler handler, Function function, Class[] parameterTypes, boolean isVarArgs, Map options) {
+            FunctionInfo(InvocationHandler handler, Function function, Class[] parameterTypes, Class returnType, boolean isVarArgs, boolean async, boolean offload, Map options, Function.CallDescriptor call, Function.ConversionPlan plan, boolean direct) {
                 super();
+                this.returnType = returnType;
+                this.async = async;
+                this.offload = offload;
                 this.handler = handler;
                 this.function = function;
                 this.isVarArgs = isVarArgs;
                 this.options = options;
                 this.parameterTypes = parameterTypes;
+                this.call = call;
+                this.plan = plan;
+                this.direct = direct;
             }
             
             final InvocationHandler handler;
@@ -181,6 +262,47 @@ public interface Library {
             final boolean isVarArgs;
             final Map options;
             final Class[] parameterTypes;
+            /** Type of the native result, which for asynchronous methods
+             * is the type parameter of the declared {@link Future}.
+             */
+            final Class returnType;
+            /** Whether the call is made on the asynchronous executor. */
+            final boolean async;
+            /** Whether calls from virtual threads are made on the
+             * asynchronous executor.
+             */
+            final boolean offload;
+            final Function.CallDescriptor call;
+            final Function.ConversionPlan plan;
+            /** Whether arguments may be passed packed to the prepared call,
+             * with no conversion or post-call processing.
+             */
+            final boolean direct;
+        }
+
+        /** Returns whether arguments of the given types may be passed
+         * unconverted and packed to a prepared call, and the native result
+         * used without conversion.
+         */
+        private static boolean isDirect(Class[] parameterTypes, Class returnType, Map options) {
+            TypeMapper mapper = (TypeMapper)options.get(OPTION_TYPE_MAPPER);
+            for (int i=0;i < parameterTypes.length;i++) {
+                Class type = parameterTypes[i];
+                if (type.isPrimitive()) {
+                    if (mapper != null
+                        && mapper.getToNativeConverter(Function.CallDescriptor.box(type)) != null) {
+                        return false;
+                    }
+                }
+                else if (mapper != null || !Pointer.class.isAssignableFrom(type)
+                         || NativeMapped.class.isAssignableFrom(type)) {
+                    return false;
+                }
+            }
+            if (returnType.isPrimitive()) {
+                return mapper == null || mapper.getFromNativeConverter(returnType) == null;
+            }
+            return returnType == Pointer.class && mapper == null;
         }
 
         public Object invoke(Object proxy, Method method, Object[] inArgs)
@@ -201,39 +323,311 @@ public interface Library {
                 return Boolean.FALSE;
             }
             
-            // Using the double-checked locking pattern to speed up function calls
-            FunctionInfo f = (FunctionInfo)functions.get(method);
-            if(f == null) {
-                synchronized(functions) {
-                    f = (FunctionInfo)functions.get(method);
-                    if (f == null) {
-                        boolean isVarArgs = Function.isVarArgs(method);
-                        InvocationHandler handler = null;
-                        if (invocationMapper != null) {
-                            handler = invocationMapper.getInvocationHandler(nativeLibrary, method);
+            return invoke(proxy, getFunctionInfo(method), method, inArgs);
+        }
+
+        /** Returns the function table slot for the given method, or -1 if
+         * the method is not declared by the library interface.
+         */
+        int getSlot(Method method) {
+            Integer slot = (Integer)slots.get(method);
+            return slot != null ? slot.intValue() : -1;
+        }
+
+        /** Returns the cached invocation information for the given method. */
+        FunctionInfo getFunctionInfo(Method method) {
+            return getFunctionInfo(getSlot(method), method);
+        }
+
+        /** Returns the cached invocation information for the method in the
+         * given slot.  Threads racing to create the information never block
+         * each other; one result is kept and the others are discarded.
+         */
+        FunctionInfo getFunctionInfo(int slot, Method method) {
+            if (slot < 0) {
+                FunctionInfo f = (FunctionInfo)otherFunctions.get(method);
+                if (f == null) {
+                    f = createFunctionInfo(method);
+                    FunctionInfo existing = (FunctionInfo)otherFunctions.putIfAbsent(method, f);
+                    if (existing != null) {
+                        if (f.call != null) {
+                            f.call.dispose();
+                        }
+                        f = existing;
+                    }
+                }
+                return f;
+            }
+            FunctionInfo f = (FunctionInfo)functions.get(slot);
+            if (f == null) {
+                f = createFunctionInfo(method);
+                if (!functions.compareAndSet(slot, null, f)) {
+                    if (f.call != null) {
+                        f.call.dispose();
+                    }
+                    f = (FunctionInfo)functions.get(slot);
+                }
+            }
+            return f;
+        }
+
+        private FunctionInfo createFunctionInfo(Method method) {
+            boolean isVarArgs = Function.isVarArgs(method);
+            InvocationHandler handler = null;
+            if (invocationMapper != null) {
+                handler = invocationMapper.getInvocationHandler(nativeLibrary, method);
+            }
+            if (handler == null && method.getAnnotation(Vectorized.class) != null) {
+                handler = createVectorizedHandler(method);
+            }
+            Function function = null;
+            Class[] parameterTypes = null;
+            Class returnType = method.getReturnType();
+            boolean async = false;
+            boolean offload = false;
+            Map options = null;
+            Function.CallDescriptor call = null;
+            Function.ConversionPlan plan = null;
+            boolean direct = false;
+            if (handler == null) {
+                // Find the function to invoke
+                function = nativeLibrary.getFunction(method.getName(), method);
+                parameterTypes = method.getParameterTypes();
+                if (returnType == Future.class) {
+                    returnType = getAsyncResultType(method);
+                    async = true;
+                }
+                OffloadVirtualThreads annotation = method.getAnnotation(OffloadVirtualThreads.class);
+                offload = !async && VIRTUAL_THREADS
+                    && (annotation != null ? annotation.value()
+                        : Boolean.TRUE.equals(this.options.get(OPTION_OFFLOAD_VIRTUAL_THREADS)));
+                options = new HashMap(this.options);
+                options.put(Function.OPTION_INVOKING_METHOD, method);
+                call = function.prepareCall(method, parameterTypes, returnType, options);
+                plan = function.createConversionPlan(method, parameterTypes, returnType, options, call);
+                // Offloaded methods keep the direct path for calls made
+                // from platform threads
+                direct = call != null && call.isPackable() && !isVarArgs && !async
+                    && isDirect(parameterTypes, returnType, options);
+            }
+            return new FunctionInfo(handler, function, parameterTypes, returnType, isVarArgs, async, offload, options, call, plan, direct);
+        }
+
+        /** <code>Thread.isVirtual()</code>, if supported by the VM. */
+        private static final Method IS_VIRTUAL;
+        static {
+            Method isVirtual = null;
+            try {
+                isVirtual = Thread.class.getMethod("isVirtual", new Class[0]);
+            }
+            catch(NoSuchMethodException e) {
+            }
+            IS_VIRTUAL = isVirtual;
+        }
+        /** Whether the VM supports virtual threads. */
+        private static final boolean VIRTUAL_THREADS = IS_VIRTUAL != null;
+
+        /** Whether each thread class seen so far is that of virtual
+         * threads, which is determined by class alone.
+         */
+        private static final WeakIdentityCache VIRTUAL_THREAD_CLASSES = new WeakIdentityCache();
+
+        static boolean isVirtualThread(Thread thread) {
+            if (IS_VIRTUAL == null) {
+                return false;
+            }
+            Class cls = thread.getClass();
+            Boolean virtual = (Boolean)VIRTUAL_THREAD_CLASSES.get(cls);
+            if (virtual == null) {
+                try {
+                    virtual = Boolean.valueOf(Boolean.TRUE.equals(IS_VIRTUAL.invoke(thread, new Object[0])));
+                }
+                catch(Exception e) {
+                    virtual = Boolean.FALSE;
+                }
+                VIRTUAL_THREAD_CLASSES.put(cls, virtual);
+            }
+            return virtual.booleanValue();
+        }
+
+        /** Whether the given method's call from the current thread must
+         * be made on a platform thread instead.
+         */
+        static boolean isOffloaded(FunctionInfo f) {
+            return f.offload && isVirtualThread(Thread.currentThread());
+        }
+
+        /** Make the call on the asynchronous executor and wait for its
+         * result.  Interrupts are deferred until the call completes, since
+         * a native call can not be abandoned part way.
+         */
+        private Object invokeOffloaded(final FunctionInfo f, final Method method, final Object[] args) {
+            FutureTask task = new FutureTask(new Callable() {
+                public Object call() {
+                    return f.function.invoke(method, args, f.plan);
+                }
+            });
+            getAsyncExecutor().execute(task);
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return task.get();
+                    }
+                    catch(InterruptedException e) {
+                        interrupted = true;
+                    }
+                    catch(ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof RuntimeException) {
+                            throw (RuntimeException)cause;
                         }
-                        Function function = null;
-                        Class[] parameterTypes = null;
-                        Map options = null;
-                        if (handler == null) {
-                            // Find the function to invoke
-                            function = nativeLibrary.getFunction(method.getName(), method);
-                            parameterTypes = method.getParameterTypes();
-                            options = new HashMap(this.options);
-                            options.put(Function.OPTION_INVOKING_METHOD, method);
+                        if (cause instanceof Error) {
+                            throw (Error)cause;
                         }
-                        f = new FunctionInfo(handler, function, parameterTypes, isVarArgs, options);
-                        functions.put(method, f);
+                        throw new RuntimeException(cause);
                     }
                 }
             }
+            finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private static final Class[] PRIMITIVES = {
+            boolean.class, byte.class, short.class, char.class,
+            int.class, long.class, float.class, double.class,
+        };
+
+        /** Returns the native result type of an asynchronous method, taken
+         * from the type parameter of its declared {@link Future}.
+         */
+        private static Class getAsyncResultType(Method method) {
+            Type type = method.getGenericReturnType();
+            if (type instanceof ParameterizedType) {
+                Type arg = ((ParameterizedType)type).getActualTypeArguments()[0];
+                if (arg instanceof Class) {
+                    Class cls = (Class)arg;
+                    if (cls == Void.class) {
+                        return void.class;
+                    }
+                    for (int i=0;i < PRIMITIVES.length;i++) {
+                        if (Function.CallDescriptor.box(PRIMITIVES[i]) == cls) {
+                            return PRIMITIVES[i];
+                        }
+                    }
+                    return cls;
+                }
+            }
+            throw new IllegalArgumentException("Asynchronous method " + method.getName()
+                                               + " must declare its result type, e.g. Future<Integer>");
+        }
+
+        /** Returns the executor for asynchronous methods, creating the
+         * library's own pool on first use.
+         */
+        private Executor getAsyncExecutor() {
+            Executor executor = asyncExecutor;
+            if (executor != null) {
+                return executor;
+            }
+            synchronized(this) {
+                executor = asyncExecutor;
+                if (executor == null) {
+                    executor = (Executor)options.get(OPTION_ASYNC_EXECUTOR);
+                    if (executor == null) {
+                        Integer concurrency = (Integer)options.get(OPTION_ASYNC_CONCURRENCY);
+                        int nthreads = concurrency != null
+                            ? concurrency.intValue() : Runtime.getRuntime().availableProcessors();
+                        if (nthreads < 1) {
+                            throw new IllegalArgumentException("Invalid asynchronous concurrency " + nthreads);
+                        }
+                        final String prefix = "JNA async " + nativeLibrary.getName() + "-";
+                        ThreadPoolExecutor pool =
+                            new ThreadPoolExecutor(nthreads, nthreads, 60, TimeUnit.SECONDS,
+                                                   new LinkedBlockingQueue(),
+                                                   new ThreadFactory() {
+                                                       private final AtomicInteger count = new AtomicInteger();
+                                                       public Thread newThread(Runnable r) {
+                                                           Thread t = new Thread(r, prefix + count.incrementAndGet());
+                                                           t.setDaemon(true);
+                                                           return t;
+                                                       }
+                                                   });
+                        // Idle libraries hold no threads
+                        pool.allowCoreThreadTimeOut(true);
+                        executor = pool;
+                    }
+                    asyncExecutor = executor;
+                }
+                return executor;
+            }
+        }
+
+        /** Returns a handler which invokes the native function once per
+         * element of the method's array arguments.
+         */
+        private InvocationHandler createVectorizedHandler(Method method) {
+            final Vectorized vectorized = method.getAnnotation(Vectorized.class);
+            Class[] parameterTypes = method.getParameterTypes();
+            if (method.getReturnType() != void.class) {
+                throw new IllegalArgumentException("Vectorized method " + method.getName() + " must return void");
+            }
+            if (vectorized.hasResult()
+                && (parameterTypes.length == 0
+                    || !parameterTypes[parameterTypes.length-1].isArray())) {
+                throw new IllegalArgumentException("Vectorized method " + method.getName()
+                                                   + " must take a result array as its last parameter");
+            }
+            final Function function = vectorized.value().length() > 0
+                ? nativeLibrary.getFunction(vectorized.value())
+                : nativeLibrary.getFunction(method.getName(), method);
+            return new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] inArgs) {
+                    Object[] args = inArgs != null ? inArgs : new Object[0];
+                    Object results = null;
+                    if (vectorized.hasResult()) {
+                        results = args[args.length-1];
+                        Object[] tmp = new Object[args.length-1];
+                        System.arraycopy(args, 0, tmp, 0, tmp.length);
+                        args = tmp;
+                    }
+                    function.invokeVectorized(args, results);
+                    return null;
+                }
+            };
+        }
+
+        /** Invoke the given method using its cached invocation information. */
+        Object invoke(Object proxy, FunctionInfo f, Method method, Object[] inArgs)
+            throws Throwable {
             if (f.isVarArgs) {
                 inArgs = Function.concatenateVarArgs(inArgs);
             }
             if (f.handler != null) {
                 return f.handler.invoke(proxy, method, inArgs);
             }
-            return f.function.invoke(method, f.parameterTypes, method.getReturnType(), inArgs, f.options);
+            if (f.async) {
+                final FunctionInfo info = f;
+                final Method m = method;
+                final Object[] args = inArgs;
+                FutureTask task = new FutureTask(new Callable() {
+                    public Object call() {
+                        return info.function.invoke(m, args, info.plan);
+                    }
+                });
+                getAsyncExecutor().execute(task);
+                return task;
+            }
+            if (isOffloaded(f)) {
+                return invokeOffloaded(f, method, inArgs);
+            }
+            if (f.direct) {
+                return f.function.invokePacked(f.call, f.returnType, inArgs);
+            }
+            return f.function.invoke(method, inArgs, f.plan);
         }
     }
 }
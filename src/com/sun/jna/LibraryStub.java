@@ -0,0 +1,536 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/** Base class for library interface implementations generated at runtime
+ * when {@link Library#OPTION_GENERATED_STUBS} is set.  For internal use only.
+ * <p>
+ * Each generated method calls the typed <code>invokeXXX</code> method for
+ * its return type, identifying the interface method by its slot index.
+ * Methods whose parameters are all primitives or {@link Pointer} pass their
+ * arguments unboxed, packed into a <code>long[]</code> for primitives and an
+ * <code>Object[]</code> for pointers; all others pass a boxed argument array.
+ * Functions whose arguments and result need no conversion are called
+ * directly through their prepared call information; all others are handled
+ * exactly as by the {@link java.lang.reflect.Proxy}-based implementation.
+ */
+public abstract class LibraryStub {
+
+    private static final String STUB_SUFFIX = "$JNAStub";
+
+    /** Generated classes, keyed by interface. */
+    private static final Map stubClasses = new WeakHashMap();
+
+    private final Library.Handler handler;
+    private final Method[] methods;
+    /** Handler function table slot for each method. */
+    private final int[] slots;
+
+    protected LibraryStub(Library.Handler handler, Method[] methods) {
+        this.handler = handler;
+        this.methods = methods;
+        this.slots = new int[methods.length];
+        for (int i=0;i < methods.length;i++) {
+            slots[i] = handler.getSlot(methods[i]);
+        }
+    }
+
+    /** Returns the handler which provides function lookup and invocation. */
+    Library.Handler getHandler() {
+        return handler;
+    }
+
+    private Library.Handler.FunctionInfo getFunctionInfo(int slot) {
+        return handler.getFunctionInfo(slots[slot], methods[slot]);
+    }
+
+    private Object invoke(Library.Handler.FunctionInfo f, int slot, Object[] args) {
+        try {
+            return handler.invoke(this, f, methods[slot], args);
+        }
+        catch(RuntimeException e) {
+            throw e;
+        }
+        catch(Error e) {
+            throw e;
+        }
+        catch(Throwable e) {
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    protected final void invokeVoid(int slot, Object[] args) {
+        invoke(getFunctionInfo(slot), slot, args);
+    }
+
+    protected final boolean invokeBoolean(int slot, Object[] args) {
+        return ((Boolean)invoke(getFunctionInfo(slot), slot, args)).booleanValue();
+    }
+
+    protected final byte invokeByte(int slot, Object[] args) {
+        return ((Byte)invoke(getFunctionInfo(slot), slot, args)).byteValue();
+    }
+
+    protected final short invokeShort(int slot, Object[] args) {
+        return ((Short)invoke(getFunctionInfo(slot), slot, args)).shortValue();
+    }
+
+    protected final char invokeChar(int slot, Object[] args) {
+        return ((Character)invoke(getFunctionInfo(slot), slot, args)).charValue();
+    }
+
+    protected final int invokeInt(int slot, Object[] args) {
+        return ((Integer)invoke(getFunctionInfo(slot), slot, args)).intValue();
+    }
+
+    protected final long invokeLong(int slot, Object[] args) {
+        return ((Long)invoke(getFunctionInfo(slot), slot, args)).longValue();
+    }
+
+    protected final float invokeFloat(int slot, Object[] args) {
+        return ((Float)invoke(getFunctionInfo(slot), slot, args)).floatValue();
+    }
+
+    protected final double invokeDouble(int slot, Object[] args) {
+        return ((Double)invoke(getFunctionInfo(slot), slot, args)).doubleValue();
+    }
+
+    protected final Object invokeObject(int slot, Object[] args) {
+        return invoke(getFunctionInfo(slot), slot, args);
+    }
+
+    protected final void invokeVoid(int slot, long[] prims, Object[] refs) {
+        Library.Handler.FunctionInfo f = getFunctionInfo(slot);
+        if (f.direct && !Library.Handler.isOffloaded(f)) {
+            Native.invokeVoid(f.function.peer, f.call, prims, refs);
+        }
+        else {
+            invoke(f, slot, unpack(slot, prims, refs));
+        }
+    }
+
+    protected final boolean invokeBoolean(int slot, long[] prims, Object[] refs) {
+        Library.Handler.FunctionInfo f = getFunctionInfo(slot);
+        if (f.direct && !Library.Handler.isOffloaded(f)) {
+            return Native.invokeInt(f.function.peer, f.call, prims, refs) != 0;
+        }
+        return ((Boolean)invoke(f, slot, unpack(slot, prims, refs))).booleanValue();
+    }
+
+    protected final byte invokeByte(int slot, long[] prims, Object[] refs) {
+        Library.Handler.FunctionInfo f = getFunctionInfo(slot);
+        if (f.direct && !Library.Handler.isOffloaded(f)) {
+            return (byte)Native.invokeInt(f.function.peer, f.call, prims, refs);
+        }
+        return ((Byte)invoke(f, slot, unpack(slot, prims, refs))).byteValue();
+    }
+
+    protected final short invokeShort(int slot, long[] prims, Object[] refs) {
+        Library.Handler.FunctionInfo f = getFunctionInfo(slot);
+        if (f.direct && !Library.Handler.isOffloaded(f)) {
+            return (short)Native.invokeInt(f.function.peer, f.call, prims, refs);
+        }
+        return ((Short)invoke(f, slot, unpack(slot, prims, refs))).shortValue();
+    }
+
+    protected final char invokeChar(int slot, long[] prims, Object[] refs) {
+        Library.Handler.FunctionInfo f = getFunctionInfo(slot);
+        if (f.direct && !Library.Handler.isOffloaded(f)) {
+            return (char)Native.invokeInt(f.function.peer, f.call, prims, refs);
+        }
+        return ((Character)invoke(f, slot, unpack(slot, prims, refs))).charValue();
+    }
+
+    protected final int invokeInt(int slot, long[] prims, Object[] refs) {
+        Library.Handler.FunctionInfo f = getFunctionInfo(slot);
+        if (f.direct && !Library.Handler.isOffloaded(f)) {
+            return Native.invokeInt(f.function.peer, f.call, prims, refs);
+        }
+        return ((Integer)invoke(f, slot, unpack(slot, prims, refs))).intValue();
+    }
+
+    protected final long invokeLong(int slot, long[] prims, Object[] refs) {
+        Library.Handler.FunctionInfo f = getFunctionInfo(slot);
+        if (f.direct && !Library.Handler.isOffloaded(f)) {
+            return Native.invokeLong(f.function.peer, f.call, prims, refs);
+        }
+        return ((Long)invoke(f, slot, unpack(slot, prims, refs))).longValue();
+    }
+
+    protected final float invokeFloat(int slot, long[] prims, Object[] refs) {
+        Library.Handler.FunctionInfo f = getFunctionInfo(slot);
+        if (f.direct && !Library.Handler.isOffloaded(f)) {
+            return Native.invokeFloat(f.function.peer, f.call, prims, refs);
+        }
+        return ((Float)invoke(f, slot, unpack(slot, prims, refs))).floatValue();
+    }
+
+    protected final double invokeDouble(int slot, long[] prims, Object[] refs) {
+        Library.Handler.FunctionInfo f = getFunctionInfo(slot);
+        if (f.direct && !Library.Handler.isOffloaded(f)) {
+            return Native.invokeDouble(f.function.peer, f.call, prims, refs);
+        }
+        return ((Double)invoke(f, slot, unpack(slot, prims, refs))).doubleValue();
+    }
+
+    protected final Object invokeObject(int slot, long[] prims, Object[] refs) {
+        Library.Handler.FunctionInfo f = getFunctionInfo(slot);
+        if (f.direct && !Library.Handler.isOffloaded(f)) {
+            long p = Native.invokePointer(f.function.peer, f.call, prims, refs);
+            return p == 0 ? null : new Pointer(p);
+        }
+        return invoke(f, slot, unpack(slot, prims, refs));
+    }
+
+    /** Restore the boxed arguments from their packed form. */
+    private Object[] unpack(int slot, long[] prims, Object[] refs) {
+        Class[] types = methods[slot].getParameterTypes();
+        Object[] args = new Object[types.length];
+        int p = 0;
+        int r = 0;
+        for (int i=0;i < types.length;i++) {
+            Class type = types[i];
+            if (!type.isPrimitive()) {
+                args[i] = refs[r++];
+                continue;
+            }
+            long value = prims[p++];
+            if (type == boolean.class) {
+                args[i] = Function.valueOf(value != 0);
+            }
+            else if (type == byte.class) {
+                args[i] = new Byte((byte)value);
+            }
+            else if (type == short.class) {
+                args[i] = new Short((short)value);
+            }
+            else if (type == char.class) {
+                args[i] = new Character((char)value);
+            }
+            else if (type == int.class) {
+                args[i] = new Integer((int)value);
+            }
+            else if (type == long.class) {
+                args[i] = new Long(value);
+            }
+            else if (type == float.class) {
+                args[i] = new Float(Float.intBitsToFloat((int)value));
+            }
+            else {
+                args[i] = new Double(Double.longBitsToDouble(value));
+            }
+        }
+        return args;
+    }
+
+    public String toString() {
+        return "Proxy interface to " + handler.getNativeLibrary();
+    }
+
+    public int hashCode() {
+        return handler.hashCode();
+    }
+
+    public boolean equals(Object o) {
+        return o instanceof LibraryStub
+            && ((LibraryStub)o).handler == handler;
+    }
+
+    /** Returns a generated implementation of the handler's interface, or
+     * <code>null</code> if one can not be generated.
+     */
+    static Library newInstance(Class interfaceClass, Library.Handler handler) {
+        Method[] methods = getStubMethods(interfaceClass);
+        if (methods == null) {
+            return null;
+        }
+        try {
+            Class cls = getStubClass(interfaceClass, methods);
+            if (cls == null) {
+                return null;
+            }
+            Constructor ctor = cls.getConstructor(new Class[] {
+                Library.Handler.class, Method[].class
+            });
+            return (Library)ctor.newInstance(new Object[] { handler, methods });
+        }
+        catch(LinkageError e) {
+            return null;
+        }
+        catch(Exception e) {
+            return null;
+        }
+    }
+
+    /** Returns the interface methods to be implemented, in slot order, or
+     * <code>null</code> if the interface is not suitable for a generated
+     * implementation.
+     */
+    private static Method[] getStubMethods(Class interfaceClass) {
+        if (!isPublic(interfaceClass)) {
+            return null;
+        }
+        Map byDescriptor = new HashMap();
+        Method[] all = interfaceClass.getMethods();
+        for (int i=0;i < all.length;i++) {
+            Method m = all[i];
+            if (!Modifier.isAbstract(m.getModifiers())) {
+                continue;
+            }
+            Class[] params = m.getParameterTypes();
+            try {
+                // Object methods are implemented by LibraryStub
+                Object.class.getMethod(m.getName(), params);
+                continue;
+            }
+            catch(NoSuchMethodException e) {
+            }
+            if (!isPublic(m.getReturnType())) {
+                return null;
+            }
+            for (int p=0;p < params.length;p++) {
+                if (!isPublic(params[p])) {
+                    return null;
+                }
+            }
+            String key = m.getName() + ClassFileWriter.methodDescriptor(params, void.class);
+            Method existing = (Method)byDescriptor.get(key);
+            if (existing != null) {
+                if (existing.getReturnType() != m.getReturnType()) {
+                    // Would require a bridge method
+                    return null;
+                }
+                continue;
+            }
+            byDescriptor.put(key, m);
+        }
+        Method[] methods = (Method[])byDescriptor.values().toArray(new Method[byDescriptor.size()]);
+        Arrays.sort(methods, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                return key((Method)o1).compareTo(key((Method)o2));
+            }
+            private String key(Method m) {
+                return m.getName() + ClassFileWriter.methodDescriptor(m.getParameterTypes(), void.class);
+            }
+        });
+        return methods;
+    }
+
+    static boolean isPublic(Class cls) {
+        while (cls.isArray()) {
+            cls = cls.getComponentType();
+        }
+        if (cls.isPrimitive()) {
+            return true;
+        }
+        for (Class c=cls;c != null;c = c.getDeclaringClass()) {
+            if (!Modifier.isPublic(c.getModifiers())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Class getStubClass(Class interfaceClass, Method[] methods) {
+        synchronized(stubClasses) {
+            Reference ref = (Reference)stubClasses.get(interfaceClass);
+            Class cls = ref != null ? (Class)ref.get() : null;
+            if (cls == null) {
+                ClassLoader parent = interfaceClass.getClassLoader();
+                try {
+                    // The generated class must resolve the same base class
+                    if (parent == null
+                        || Class.forName(LibraryStub.class.getName(), false, parent) != LibraryStub.class) {
+                        return null;
+                    }
+                }
+                catch(ClassNotFoundException e) {
+                    return null;
+                }
+                String name = interfaceClass.getName() + STUB_SUFFIX;
+                byte[] bytes = generate(name, interfaceClass, methods);
+                cls = new StubLoader(parent).define(name, bytes);
+                stubClasses.put(interfaceClass, new WeakReference(cls));
+            }
+            return cls;
+        }
+    }
+
+    /** Generate the implementation class for the given interface. */
+    static byte[] generate(String name, Class interfaceClass, Method[] methods) {
+        final String base = ClassFileWriter.internalName(LibraryStub.class);
+        ClassFileWriter cw = new ClassFileWriter(name, base, new String[] {
+            interfaceClass.getName()
+        });
+        String ctorDesc = ClassFileWriter.methodDescriptor(new Class[] {
+            Library.Handler.class, Method[].class
+        }, void.class);
+        cw.method(ClassFileWriter.ACC_PUBLIC, "<init>", ctorDesc)
+            .load(Object.class, 0)
+            .load(Object.class, 1)
+            .load(Object.class, 2)
+            .invoke(ClassFileWriter.INVOKESPECIAL, base, "<init>", ctorDesc)
+            .op(ClassFileWriter.RETURN)
+            .end(3, 3);
+
+        for (int slot=0;slot < methods.length;slot++) {
+            Method m = methods[slot];
+            Class[] params = m.getParameterTypes();
+            Class returnType = m.getReturnType();
+            ClassFileWriter.Code code =
+                cw.method(ClassFileWriter.ACC_PUBLIC, m.getName(),
+                          ClassFileWriter.methodDescriptor(params, returnType));
+            code.load(Object.class, 0).push(slot);
+            Class helperType = returnType.isPrimitive() ? returnType : Object.class;
+            String helper = "invoke" + (returnType.isPrimitive()
+                                        ? capitalize(returnType.getName())
+                                        : "Object");
+            int local;
+            if (isPackable(params)) {
+                local = packArguments(code, params);
+                code.invoke(ClassFileWriter.INVOKEVIRTUAL, base, helper,
+                            ClassFileWriter.methodDescriptor(new Class[] {
+                                int.class, long[].class, Object[].class
+                            }, helperType));
+            }
+            else {
+                local = boxArguments(code, params);
+                code.invoke(ClassFileWriter.INVOKEVIRTUAL, base, helper,
+                            ClassFileWriter.methodDescriptor(new Class[] {
+                                int.class, Object[].class
+                            }, helperType));
+            }
+            if (!returnType.isPrimitive() && returnType != Object.class) {
+                code.type(ClassFileWriter.CHECKCAST, returnType);
+            }
+            code.returnValue(returnType).end(8, local);
+        }
+        return cw.toByteArray();
+    }
+
+    private static boolean isPackable(Class[] params) {
+        for (int i=0;i < params.length;i++) {
+            if (!params[i].isPrimitive()
+                && !Pointer.class.isAssignableFrom(params[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Emit code to pass all arguments in a boxed <code>Object[]</code>.
+     * Returns the number of local variable slots used by the arguments.
+     */
+    private static int boxArguments(ClassFileWriter.Code code, Class[] params) {
+        code.push(params.length).newArray(Object.class);
+        int local = 1;
+        for (int i=0;i < params.length;i++) {
+            Class type = params[i];
+            code.op(ClassFileWriter.DUP).push(i).load(type, local);
+            if (type.isPrimitive()) {
+                Class boxed = Function.CallDescriptor.box(type);
+                code.invoke(ClassFileWriter.INVOKESTATIC,
+                            ClassFileWriter.internalName(boxed), "valueOf",
+                            ClassFileWriter.methodDescriptor(new Class[] { type }, boxed));
+            }
+            code.op(ClassFileWriter.AASTORE);
+            local += size(type);
+        }
+        return local;
+    }
+
+    /** Emit code to pass primitive arguments packed in a <code>long[]</code>
+     * and pointer arguments in an <code>Object[]</code>, either of which is
+     * <code>null</code> if empty.  Returns the number of local variable
+     * slots used by the arguments.
+     */
+    private static int packArguments(ClassFileWriter.Code code, Class[] params) {
+        int prims = 0;
+        int locals = 1;
+        for (int i=0;i < params.length;i++) {
+            if (params[i].isPrimitive()) {
+                ++prims;
+            }
+            locals += size(params[i]);
+        }
+        int refs = params.length - prims;
+        for (int pass=0;pass < 2;pass++) {
+            boolean primitive = pass == 0;
+            int count = primitive ? prims : refs;
+            if (count == 0) {
+                code.op(ClassFileWriter.ACONST_NULL);
+                continue;
+            }
+            code.push(count).newArray(primitive ? long.class : Object.class);
+            int index = 0;
+            int local = 1;
+            for (int i=0;i < params.length;i++) {
+                Class type = params[i];
+                if (type.isPrimitive() == primitive) {
+                    code.op(ClassFileWriter.DUP).push(index++).load(type, local);
+                    if (!primitive) {
+                        code.op(ClassFileWriter.AASTORE);
+                    }
+                    else {
+                        if (type == boolean.class) {
+                            // Same int representation as Function uses
+                            code.op(ClassFileWriter.INEG);
+                        }
+                        else if (type == float.class) {
+                            code.invoke(ClassFileWriter.INVOKESTATIC, "java/lang/Float",
+                                        "floatToRawIntBits", "(F)I");
+                        }
+                        else if (type == double.class) {
+                            code.invoke(ClassFileWriter.INVOKESTATIC, "java/lang/Double",
+                                        "doubleToRawLongBits", "(D)J");
+                        }
+                        if (type != long.class && type != double.class) {
+                            code.op(ClassFileWriter.I2L);
+                        }
+                        code.op(ClassFileWriter.LASTORE);
+                    }
+                }
+                local += size(type);
+            }
+        }
+        return locals;
+    }
+
+    private static int size(Class type) {
+        return type == long.class || type == double.class ? 2 : 1;
+    }
+
+    private static String capitalize(String s) {
+        return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+    }
+
+    /** Defines a single generated class. */
+    static class StubLoader extends ClassLoader {
+        StubLoader(ClassLoader parent) {
+            super(parent);
+        }
+        Class define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+/** A region of memory mapped with <code>mmap</code>, either from a file or
+ * anonymously.  Mapped memory may be used wherever {@link Memory} may,
+ * including as the backing memory of a {@link Structure}; all accesses are
+ * bounds-checked against the size of the mapping, using <code>long</code>
+ * offsets so that regions larger than 2GB are fully addressable.
+ * <p>
+ * The region is unmapped by {@link #close}, or once this object is no
+ * longer referenced.  Mapping is currently supported on POSIX systems
+ * only.
+ */
+public class MappedMemory extends Memory {
+
+    /** Pages may not be accessed. */
+    public static final int PROT_NONE = 0;
+    /** Pages may be read. */
+    public static final int PROT_READ = 1;
+    /** Pages may be written. */
+    public static final int PROT_WRITE = 2;
+    /** Pages may be executed. */
+    public static final int PROT_EXEC = 4;
+
+    /** Updates are visible to other mappings and carried through to the
+     * underlying file.
+     */
+    public static final int MAP_SHARED = 1;
+    /** Updates are private to this mapping (copy-on-write). */
+    public static final int MAP_PRIVATE = 2;
+
+    /** No special treatment. */
+    public static final int ADVICE_NORMAL = 0;
+    /** Expect page references in random order. */
+    public static final int ADVICE_RANDOM = 1;
+    /** Expect page references in sequential order. */
+    public static final int ADVICE_SEQUENTIAL = 2;
+    /** Expect access in the near future. */
+    public static final int ADVICE_WILLNEED = 3;
+    /** Do not expect access in the near future. */
+    public static final int ADVICE_DONTNEED = 4;
+
+    private static final int MAP_ANONYMOUS;
+    private static final int MS_ASYNC = 1;
+    private static final int MS_SYNC;
+    private static final int O_RDONLY = 0;
+    private static final int O_RDWR = 2;
+    static {
+        if (Platform.isMac() || Platform.isFreeBSD() || Platform.isOpenBSD()
+            || Platform.isNetBSD() || Platform.iskFreeBSD()) {
+            MAP_ANONYMOUS = 0x1000;
+        }
+        else if (Platform.isSolaris()) {
+            MAP_ANONYMOUS = 0x100;
+        }
+        else {
+            MAP_ANONYMOUS = 0x20;
+        }
+        if (Platform.isMac()) {
+            MS_SYNC = 0x10;
+        }
+        else if (Platform.isFreeBSD() || Platform.iskFreeBSD()) {
+            MS_SYNC = 0;
+        }
+        else if (Platform.isOpenBSD()) {
+            MS_SYNC = 2;
+        }
+        else {
+            MS_SYNC = 4;
+        }
+    }
+
+    /** C library functions, looked up on first use. */
+    private static class LibC {
+        static final NativeLibrary LIB = NativeLibrary.getInstance(Platform.C_LIBRARY_NAME);
+        // 32-bit Linux needs mmap64 for a 64-bit file offset
+        static final boolean LARGE_OFFSET = Pointer.SIZE == 8 || Platform.isMac() || Platform.isLinux();
+        static final Function MMAP = LIB.getFunction(Pointer.SIZE == 4 && Platform.isLinux() ? "mmap64" : "mmap");
+        static final Function MUNMAP = LIB.getFunction("munmap");
+        static final Function MADVISE = LIB.getFunction("madvise");
+        static final Function MSYNC = LIB.getFunction("msync");
+        static final Function OPEN = LIB.getFunction("open");
+        static final Function CLOSE = LIB.getFunction("close");
+        static final long PAGE_SIZE = LIB.getFunction("getpagesize").invokeInt(new Object[0]);
+    }
+
+    /** Start of the mapping, which may precede this object's address to
+     * satisfy page alignment.
+     */
+    private final long base;
+    private Cleaner.Cleanable unmapper;
+
+    private MappedMemory(long base, long offset, long size) {
+        this.base = base;
+        this.peer = base + offset;
+        this.size = size;
+        this.unmapper = Cleaner.getCleaner().register(this, new Unmapper(base, offset + size));
+    }
+
+    /** Map an entire file, shared, for reading or for reading and
+     * writing.
+     * @throws FileNotFoundException if the file can not be opened
+     * @throws LastErrorException if the file can not be mapped
+     */
+    public static MappedMemory map(File file, boolean writable) throws FileNotFoundException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.toString());
+        }
+        return map(file, 0, file.length(),
+                   writable ? PROT_READ|PROT_WRITE : PROT_READ, MAP_SHARED);
+    }
+
+    /** Map a region of a file.
+     * @param file file to map
+     * @param offset offset of the region within the file; need not be
+     * page-aligned
+     * @param length size of the region, in bytes
+     * @param prot bitwise OR of <code>PROT_</code> values
+     * @param flags {@link #MAP_SHARED} or {@link #MAP_PRIVATE}, optionally
+     * combined with platform-specific <code>mmap</code> flags
+     * @throws FileNotFoundException if the file can not be opened
+     * @throws LastErrorException if the file can not be mapped
+     */
+    public static MappedMemory map(File file, long offset, long length, int prot, int flags) throws FileNotFoundException {
+        checkSupported();
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset must not be negative: " + offset);
+        }
+        if (length <= 0) {
+            throw new IllegalArgumentException("Mapping size must be greater than zero");
+        }
+        boolean write = (prot & PROT_WRITE) != 0 && (flags & MAP_PRIVATE) == 0;
+        int fd = LibC.OPEN.invokeInt(new Object[] { file.getAbsolutePath(), new Integer(write ? O_RDWR : O_RDONLY) });
+        if (fd == -1) {
+            throw new FileNotFoundException(file + ": " + new LastErrorException(Native.getLastError()).getMessage());
+        }
+        try {
+            long delta = offset % LibC.PAGE_SIZE;
+            long base = mmap(length + delta, prot, flags, fd, offset - delta);
+            return new MappedMemory(base, delta, length);
+        }
+        finally {
+            LibC.CLOSE.invokeInt(new Object[] { new Integer(fd) });
+        }
+    }
+
+    /** Map an anonymous region, initialized to zero.
+     * @param size size of the region, in bytes
+     * @param prot bitwise OR of <code>PROT_</code> values
+     * @param flags {@link #MAP_SHARED} or {@link #MAP_PRIVATE}, optionally
+     * combined with platform-specific <code>mmap</code> flags
+     * @throws LastErrorException if the region can not be mapped
+     */
+    public static MappedMemory allocate(long size, int prot, int flags) {
+        checkSupported();
+        if (size <= 0) {
+            throw new IllegalArgumentException("Mapping size must be greater than zero");
+        }
+        return new MappedMemory(mmap(size, prot, flags | MAP_ANONYMOUS, -1, 0), 0, size);
+    }
+
+    private static void checkSupported() {
+        if (Platform.isWindows() || Platform.isWindowsCE()) {
+            throw new UnsupportedOperationException("Memory mapping is not supported on this platform");
+        }
+    }
+
+    private static long mmap(long length, int prot, int flags, int fd, long offset) {
+        Pointer p = LibC.MMAP.invokePointer(new Object[] {
+                null, sizeArg(length), new Integer(prot), new Integer(flags),
+                new Integer(fd),
+                LibC.LARGE_OFFSET ? (Object)new Long(offset) : new Integer((int)offset),
+            });
+        long addr = Pointer.nativeValue(p);
+        if (addr == -1) {
+            throw new LastErrorException(Native.getLastError());
+        }
+        return addr;
+    }
+
+    private static Object sizeArg(long size) {
+        return Pointer.SIZE == 8 ? (Object)new Long(size) : new Integer((int)size);
+    }
+
+    /** Advise the system of the expected use of a range of this region.
+     * @param offset offset of the range; need not be page-aligned
+     * @param length size of the range, in bytes
+     * @param advice one of the <code>ADVICE_</code> values
+     * @throws LastErrorException if the advice is rejected
+     */
+    public void advise(long offset, long length, int advice) {
+        boundsCheck(offset, length);
+        long start = peer + offset;
+        long delta = (start - base) % LibC.PAGE_SIZE;
+        int result = LibC.MADVISE.invokeInt(new Object[] {
+                new Pointer(start - delta), sizeArg(length + delta), new Integer(advice),
+            });
+        if (result != 0) {
+            throw new LastErrorException(Native.getLastError());
+        }
+    }
+
+    /** Advise the system of the expected use of this region. */
+    public void advise(int advice) {
+        advise(0, size, advice);
+    }
+
+    /** Write changes to a range of a shared file mapping back to the file.
+     * @param offset offset of the range; need not be page-aligned
+     * @param length size of the range, in bytes
+     * @param async whether to return before the write is complete
+     * @throws LastErrorException if the range can not be synchronized
+     */
+    public void sync(long offset, long length, boolean async) {
+        boundsCheck(offset, length);
+        long start = peer + offset;
+        long delta = (start - base) % LibC.PAGE_SIZE;
+        int result = LibC.MSYNC.invokeInt(new Object[] {
+                new Pointer(start - delta), sizeArg(length + delta),
+                new Integer(async ? MS_ASYNC : MS_SYNC),
+            });
+        if (result != 0) {
+            throw new LastErrorException(Native.getLastError());
+        }
+    }
+
+    /** Write all changes to a shared file mapping back to the file,
+     * returning once the write is complete.
+     */
+    public void sync() {
+        sync(0, size, false);
+    }
+
+    /** Unmap the region and set peer to zero. */
+    protected synchronized void dispose() {
+        if (unmapper != null) {
+            unmapper.clean();
+            unmapper = null;
+        }
+        peer = 0;
+    }
+
+    public String toString() {
+        return "mapped " + super.toString();
+    }
+
+    /** Unmaps a region once its {@link MappedMemory} is unreachable. */
+    private static class Unmapper implements Runnable {
+        private final long base;
+        private final long length;
+        Unmapper(long base, long length) {
+            this.base = base;
+            this.length = length;
+        }
+        public void run() {
+            LibC.MUNMAP.invokeInt(new Object[] { new Pointer(base), sizeArg(length) });
+        }
+    }
+}
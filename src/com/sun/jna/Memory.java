@@ -10,6 +10,7 @@
  */
 package com.sun.jna;
 
+import java.io.Closeable;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.util.Collections;
@@ -18,7 +19,6 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
-import java.util.WeakHashMap;
 
 /**
  * A <code>Pointer</code> to memory obtained from the native heap via a 
@@ -33,25 +33,31 @@ import java.util.WeakHashMap;
  *		free(buf);
  * </pre>
  *
- * <p>The {@link #finalize} method will free allocated memory when
- * this object is no longer referenced.
+ * <p>Allocated memory is freed when this object is no longer referenced,
+ * or explicitly by {@link #close}, which also permits use in a
+ * try-with-resources statement.
  *
  * @author Sheng Liang, originator
  * @author Todd Fast, suitability modifications
  * @author Timothy Wall
  * @see Pointer
  */
-public class Memory extends Pointer {
+public class Memory extends Pointer implements Closeable {
 
     private static final Map buffers;
-    /** Keep track of all allocated memory so we can dispose of it before unloading. */
-    private static final Map allocatedMemory;
+
+    /** Whether allocated memory is tracked, so that it is freed by
+     * {@link #disposeAll}.  Set the system property
+     * <code>jna.memory.tracking</code> to <code>false</code> to disable
+     * tracking; memory is still freed when no longer referenced or by
+     * {@link #close}.
+     */
+    static final boolean TRACKING = !"false".equals(System.getProperty("jna.memory.tracking"));
 
     static {
         buffers = Collections.synchronizedMap(Platform.HAS_BUFFERS
                                               ? (Map)new WeakIdentityHashMap()
                                               : (Map)new HashMap());
-        allocatedMemory = Collections.synchronizedMap(new WeakHashMap());
     }
 
     /** Force cleanup of memory that has associated NIO Buffers which have
@@ -61,14 +67,38 @@ public class Memory extends Pointer {
         buffers.size();
     }
 
-    /** Dispose of all allocated memory. */
+    /** Dispose of all allocated memory which is tracked and not yet
+     * freed, along with any blocks held by the {@link MemoryPool}.
+     */
     public static void disposeAll() {
-        for (Iterator i=allocatedMemory.keySet().iterator();i.hasNext();) {
-            ((Memory)i.next()).dispose();
+        MemoryPool pool = MemoryPool.getInstance();
+        if (pool != null) {
+            pool.beginDispose();
+        }
+        try {
+            // Dispose of live owners so that their peers are cleared before
+            // their memory can be reused
+            for (Iterator i=Cleaner.getCleaner().getTasks(TrackedMemoryDisposer.class).iterator();i.hasNext();) {
+                Memory memory = (Memory)((TrackedMemoryDisposer)i.next()).owner.get();
+                if (memory != null) {
+                    memory.dispose();
+                }
+            }
+            // Free any memory whose owner is already unreachable
+            Cleaner.getCleaner().cleanAll(TrackedMemoryDisposer.class);
+        }
+        finally {
+            if (pool != null) {
+                pool.endDispose();
+            }
         }
     }
 
     protected long size; // Size of the malloc'ed space
+    /** Frees the allocated memory; <code>null</code> if not allocated by
+     * this object or already freed.
+     */
+    private Cleaner.Cleanable cleanable;
 
     /** Provide a view into the original memory.  Keeps an implicit reference
      * to the original to prevent GC.
@@ -101,11 +131,14 @@ public class Memory extends Pointer {
         if (size <= 0) {
             throw new IllegalArgumentException("Allocation size must be greater than zero");
         } 
-        peer = malloc(size);
+        peer = MemoryPool.allocate(size);
         if (peer == 0) 
             throw new OutOfMemoryError("Cannot allocate " + size + " bytes");
 
-        allocatedMemory.put(this, new WeakReference(this));
+        MemoryDisposer disposer = TRACKING
+            ? new TrackedMemoryDisposer(this, peer, size)
+            : new MemoryDisposer(peer, size);
+        cleanable = Cleaner.getCleaner().register(this, disposer);
     }
 
     protected Memory() { }
@@ -162,16 +195,62 @@ public class Memory extends Pointer {
         throw new IllegalArgumentException("Byte boundary must be a power of two");
     }
 
-    /** Properly dispose of native memory when this object is GC'd. */
+    /** Native memory is no longer freed by finalization, but when this
+     * object becomes unreachable or by {@link #close}.  This method is
+     * empty so that <code>Memory</code> objects are not finalized unless a
+     * subclass overrides it; in particular, {@link #dispose} is no longer
+     * called on unreachable memory.
+     */
     protected void finalize() {
+    }
+
+    /** Free the native memory and set peer to zero.  Subsequent calls have
+     * no effect.
+     */
+    public void close() {
         dispose();
     }
 
-    /** Free the native memory and set peer to zero */
+    /** Free the native memory and set peer to zero.  Called by
+     * {@link #close} and {@link #disposeAll}, but not when the memory is
+     * freed after this object becomes unreachable; subclasses which must
+     * release other resources in that case should do so from their own
+     * <code>finalize()</code>.
+     */
     protected synchronized void dispose() {
-        free(peer);
+        if (cleanable != null) {
+            cleanable.clean();
+            cleanable = null;
+        }
+        else {
+            free(peer);
+        }
         peer = 0;
-        allocatedMemory.remove(this);
+    }
+
+    /** Frees native memory once its {@link Memory} is unreachable.  Must
+     * not strongly refer to the <code>Memory</code> itself.
+     */
+    private static class MemoryDisposer implements Runnable {
+        private final long peer;
+        private final long size;
+        MemoryDisposer(long peer, long size) {
+            this.peer = peer;
+            this.size = size;
+        }
+        public void run() {
+            MemoryPool.release(peer, size);
+        }
+    }
+
+    /** Disposer of tracked memory, which {@link #disposeAll} finds. */
+    private static final class TrackedMemoryDisposer extends MemoryDisposer {
+        /** Used by {@link #disposeAll} to find the owner. */
+        final WeakReference owner;
+        TrackedMemoryDisposer(Memory owner, long peer, long size) {
+            super(peer, size);
+            this.owner = new WeakReference(owner);
+        }
     }
 
     /** Zero the full extent of this memory region. */
@@ -691,6 +770,54 @@ public class Memory extends Pointer {
             + size + " bytes)";
     }
 
+    /**
+     * Fill this memory with a pattern, as {@link Pointer#fill}, after
+     * checking the region is within the allocated space.
+     */
+    public void fill(long offset, long length, byte[] pattern) {
+        checkLength(length);
+        boundsCheck(offset, length);
+        super.fill(offset, length, pattern);
+    }
+
+    /**
+     * Copy from this memory, as {@link Pointer#copyTo}, after checking the
+     * source region is within the allocated space.
+     */
+    public void copyTo(long offset, Pointer dst, long dstOffset, long length) {
+        checkLength(length);
+        boundsCheck(offset, length);
+        super.copyTo(offset, dst, dstOffset, length);
+    }
+
+    /**
+     * Copy from this memory, as {@link Pointer#moveTo}, after checking the
+     * source region is within the allocated space.
+     */
+    public void moveTo(long offset, Pointer dst, long dstOffset, long length) {
+        checkLength(length);
+        boundsCheck(offset, length);
+        super.moveTo(offset, dst, dstOffset, length);
+    }
+
+    /**
+     * Compare this memory, as {@link Pointer#compare}, after checking the
+     * region is within the allocated space.
+     */
+    public int compare(long offset, Pointer other, long otherOffset, long length) {
+        checkLength(length);
+        boundsCheck(offset, length);
+        return super.compare(offset, other, otherOffset, length);
+    }
+
+    /** Check that an atomically accessed value is within the allocated
+     * space, as well as aligned.
+     */
+    long atomicAddress(long offset, int size) {
+        boundsCheck(offset, size);
+        return super.atomicAddress(offset, size);
+    }
+
     protected static void free(long p) {
         // free(0) is a no-op, so avoid the overhead of the call 
         if (p != 0) {
@@ -0,0 +1,141 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/** Allocates native memory for objects which share a lifetime, such as
+ * the buffers and {@link Structure}s used while handling a single request.
+ * Memory is carved out of large native slabs and all of it is freed at
+ * once by {@link #close}, rather than tracked and freed per object.
+ * <p>
+ * Allocated blocks are bounds-checked {@link Memory} views onto a slab.
+ * They must not be used after the arena is closed.  If an arena is never
+ * closed, its slabs are freed once the arena and all blocks allocated from
+ * it are no longer referenced.
+ * <pre>
+ * MemoryArena arena = new MemoryArena();
+ * try {
+ *     Pointer buf = arena.allocate(256);
+ *     MyStructure s = new MyStructure(arena);
+ *     ...
+ * }
+ * finally {
+ *     arena.close();
+ * }
+ * </pre>
+ * @see Structure#Structure(MemoryArena)
+ */
+public class MemoryArena implements Closeable {
+
+    /** Default slab size, in bytes. */
+    public static final int DEFAULT_SLAB_SIZE = 64 * 1024;
+    /** Alignment of allocated blocks, suitable for any primitive type. */
+    private static final int ALIGNMENT = 8;
+
+    private final long slabSize;
+    private final List slabs = new ArrayList();
+    private Memory slab;
+    private long offset;
+    private long allocated;
+    private boolean closed;
+
+    /** Create an arena using slabs of {@link #DEFAULT_SLAB_SIZE} bytes. */
+    public MemoryArena() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    /** Create an arena using slabs of the given size.  Requests larger than
+     * half a slab get a slab of their own.
+     */
+    public MemoryArena(long slabSize) {
+        if (slabSize <= 0) {
+            throw new IllegalArgumentException("Slab size must be greater than zero");
+        }
+        this.slabSize = slabSize;
+    }
+
+    /** Allocate a block of the given size from this arena, aligned for any
+     * primitive type.  The contents are not initialized.
+     * @throws IllegalStateException if the arena has been closed
+     */
+    public synchronized Memory allocate(long size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Allocation size must be greater than zero");
+        }
+        if (closed) {
+            throw new IllegalStateException("Memory arena has been closed");
+        }
+        long aligned = (size + ALIGNMENT - 1) & ~(long)(ALIGNMENT - 1);
+        allocated += size;
+        if (aligned > slabSize / 2) {
+            Memory m = new Memory(size);
+            slabs.add(m);
+            return new Block(m, 0, size);
+        }
+        if (slab == null || offset + aligned > slab.size()) {
+            slab = new Memory(slabSize);
+            slabs.add(slab);
+            offset = 0;
+        }
+        Memory m = new Block(slab, offset, size);
+        offset += aligned;
+        return m;
+    }
+
+    /** A bounds-checked block within a slab, which keeps the slab
+     * reachable.
+     */
+    private static class Block extends Memory {
+        private final Memory slab;
+        Block(Memory slab, long offset, long size) {
+            this.slab = slab;
+            this.peer = slab.peer + offset;
+            this.size = size;
+        }
+        /** Arena memory is freed only with its arena. */
+        protected void dispose() {
+            this.peer = 0;
+        }
+        public String toString() {
+            return "arena " + super.toString();
+        }
+    }
+
+    /** Returns the number of bytes requested from this arena since it was
+     * created.
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocated;
+    }
+
+    /** Returns whether this arena has been closed. */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /** Free all memory allocated from this arena.  Subsequent calls have
+     * no effect.
+     */
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            for (Iterator i=slabs.iterator();i.hasNext();) {
+                ((Memory)i.next()).dispose();
+            }
+            slabs.clear();
+            slab = null;
+        }
+    }
+}
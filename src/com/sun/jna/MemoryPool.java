@@ -0,0 +1,440 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/** Caches small native blocks freed by {@link Memory}, so that short-lived
+ * buffers can be reused without a native <code>malloc</code> and
+ * <code>free</code> for each one.
+ * <p>
+ * Requests are rounded up to a power-of-two size class, from
+ * {@value #MIN_SIZE} to {@value #MAX_SIZE} bytes; larger requests always go
+ * directly to <code>malloc</code>.  Each thread caches a limited number of
+ * blocks of each class, exchanging them in batches with a shared pool when
+ * its cache runs empty or full.  Blocks cached by a thread which has
+ * exited are freed when another thread first uses the pool or when the
+ * pool is purged.  Blocks released by the cleanup thread, when their
+ * {@link Memory} is no longer referenced, go directly to the shared pool.
+ * <p>
+ * The pool holds each thread's cache; the thread itself refers to its
+ * cache only weakly, so that the pool does not keep JNA's class loader
+ * reachable from application threads.
+ * <p>
+ * The pool is disabled by default; set the system property
+ * <code>jna.memory.pool</code> to <code>true</code> to enable it.
+ */
+public final class MemoryPool {
+
+    /** Smallest size class, in bytes. */
+    public static final int MIN_SIZE = 16;
+    /** Largest size class, in bytes. */
+    public static final int MAX_SIZE = 4096;
+    /** Number of size classes. */
+    private static final int CLASSES = 9;
+    /** Number of blocks of each class cached per thread. */
+    private static final int THREAD_CAPACITY = 32;
+    /** Number of blocks of each class held in the shared pool. */
+    private static final int SHARED_CAPACITY = 1024;
+
+    private static final MemoryPool INSTANCE =
+        Boolean.getBoolean("jna.memory.pool") ? new MemoryPool() : null;
+
+    /** Returns the pool used by {@link Memory}, or <code>null</code> if
+     * pooling is disabled.
+     */
+    public static MemoryPool getInstance() {
+        return INSTANCE;
+    }
+
+    /** Allocate native memory of the given size, from the pool if it is
+     * enabled.
+     */
+    static long allocate(long size) {
+        return INSTANCE != null ? INSTANCE.malloc(size) : Memory.malloc(size);
+    }
+
+    /** Free native memory obtained from {@link #allocate(long)} with the
+     * given size.
+     */
+    static void release(long peer, long size) {
+        if (INSTANCE != null) {
+            INSTANCE.free(peer, size);
+        }
+        else {
+            Memory.free(peer);
+        }
+    }
+
+    /** Blocks of a single size class. */
+    private static final class Blocks {
+        final long[] blocks;
+        int count;
+        Blocks(int capacity) {
+            blocks = new long[capacity];
+        }
+    }
+
+    /** Per-thread cache, used by its thread and locked so that it can be
+     * drained by others.
+     */
+    private static final class ThreadCache {
+        final Blocks[] classes = new Blocks[CLASSES];
+        private final Reference thread;
+        long allocations;
+        long hits;
+        long releases;
+        long returns;
+
+        ThreadCache(Thread thread) {
+            this.thread = new WeakReference(thread);
+            for (int i=0;i < CLASSES;i++) {
+                classes[i] = new Blocks(THREAD_CAPACITY);
+            }
+        }
+
+        boolean isLive() {
+            Thread t = (Thread)thread.get();
+            return t != null && t.isAlive();
+        }
+
+        /** Free all cached blocks. */
+        void drain() {
+            for (int i=0;i < CLASSES;i++) {
+                Blocks local = classes[i];
+                for (int j=0;j < local.count;j++) {
+                    Memory.free(local.blocks[j]);
+                }
+                local.count = 0;
+            }
+        }
+
+        long retainedBytes() {
+            long bytes = 0;
+            for (int i=0;i < CLASSES;i++) {
+                bytes += (long)classes[i].count * classSize(i);
+            }
+            return bytes;
+        }
+    }
+
+    private final Blocks[] shared = new Blocks[CLASSES];
+    /** Caches of threads which have used this pool. */
+    private final Set caches = new HashSet();
+    /** Number of {@link Memory#disposeAll} calls in progress, during which
+     * released blocks are freed rather than kept.
+     */
+    private volatile int disposing;
+    /** Statistics from caches of threads which no longer exist, and from
+     * the cleanup thread, which does not have a cache.
+     */
+    private long retiredAllocations;
+    private long retiredHits;
+    private long retiredReleases;
+    private long retiredReturns;
+
+    /** Weak reference to the current thread's cache. */
+    private final ThreadLocal cache = new ThreadLocal();
+
+    MemoryPool() {
+        for (int i=0;i < CLASSES;i++) {
+            shared[i] = new Blocks(SHARED_CAPACITY);
+        }
+    }
+
+    /** Returns the index of the smallest size class holding the given
+     * number of bytes.
+     */
+    static int sizeClass(long size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        return 64 - Long.numberOfLeadingZeros(size - 1) - 4;
+    }
+
+    static int classSize(int index) {
+        return MIN_SIZE << index;
+    }
+
+    /** Returns the current thread's cache, creating it on first use. */
+    private ThreadCache getCache() {
+        Reference ref = (Reference)cache.get();
+        ThreadCache tc = ref != null ? (ThreadCache)ref.get() : null;
+        if (tc == null) {
+            tc = new ThreadCache(Thread.currentThread());
+            synchronized(caches) {
+                retireExited();
+                caches.add(tc);
+            }
+            cache.set(new WeakReference(tc));
+        }
+        return tc;
+    }
+
+    long malloc(long size) {
+        if (size > MAX_SIZE) {
+            return Memory.malloc(size);
+        }
+        int index = sizeClass(size);
+        if (Cleaner.isCleanerThread()) {
+            return mallocShared(index);
+        }
+        ThreadCache tc = getCache();
+        synchronized(tc) {
+            Blocks local = tc.classes[index];
+            ++tc.allocations;
+            if (local.count == 0) {
+                // Refill half the cache from the shared pool
+                Blocks from = shared[index];
+                synchronized(from) {
+                    int n = Math.min(from.count, THREAD_CAPACITY / 2);
+                    from.count -= n;
+                    System.arraycopy(from.blocks, from.count, local.blocks, 0, n);
+                    local.count = n;
+                }
+                if (local.count == 0) {
+                    return Memory.malloc(classSize(index));
+                }
+            }
+            ++tc.hits;
+            return local.blocks[--local.count];
+        }
+    }
+
+    void free(long peer, long size) {
+        if (peer == 0) {
+            return;
+        }
+        if (size > MAX_SIZE) {
+            Memory.free(peer);
+            return;
+        }
+        if (disposing > 0) {
+            Memory.free(peer);
+            synchronized(caches) {
+                ++retiredReleases;
+            }
+            return;
+        }
+        int index = sizeClass(size);
+        // The cleanup thread exits when idle, so it keeps no cache
+        if (Cleaner.isCleanerThread()) {
+            freeShared(index, peer);
+            return;
+        }
+        ThreadCache tc = getCache();
+        synchronized(tc) {
+            Blocks local = tc.classes[index];
+            ++tc.releases;
+            ++tc.returns;
+            if (local.count == THREAD_CAPACITY) {
+                // Move half the cache to the shared pool, freeing any excess
+                int n = THREAD_CAPACITY / 2;
+                local.count -= n;
+                Blocks to = shared[index];
+                int moved;
+                synchronized(to) {
+                    moved = Math.min(n, SHARED_CAPACITY - to.count);
+                    System.arraycopy(local.blocks, local.count, to.blocks, to.count, moved);
+                    to.count += moved;
+                }
+                for (int i=moved;i < n;i++) {
+                    Memory.free(local.blocks[local.count + i]);
+                }
+                tc.returns -= n - moved;
+            }
+            local.blocks[local.count++] = peer;
+        }
+    }
+
+    /** Allocate a block of the given class from the shared pool, without
+     * using a per-thread cache.
+     */
+    private long mallocShared(int index) {
+        Blocks from = shared[index];
+        long peer = 0;
+        synchronized(from) {
+            if (from.count > 0) {
+                peer = from.blocks[--from.count];
+            }
+        }
+        synchronized(caches) {
+            ++retiredAllocations;
+            if (peer != 0) {
+                ++retiredHits;
+            }
+        }
+        return peer != 0 ? peer : Memory.malloc(classSize(index));
+    }
+
+    /** Release a block of the given class to the shared pool, without
+     * using a per-thread cache.
+     */
+    private void freeShared(int index, long peer) {
+        Blocks to = shared[index];
+        boolean kept = false;
+        synchronized(to) {
+            if (to.count < SHARED_CAPACITY) {
+                to.blocks[to.count++] = peer;
+                kept = true;
+            }
+        }
+        if (!kept) {
+            Memory.free(peer);
+        }
+        synchronized(caches) {
+            ++retiredReleases;
+            if (kept) {
+                ++retiredReturns;
+            }
+        }
+    }
+
+    /** Returns the number of threads with a cache. */
+    int getThreadCacheCount() {
+        synchronized(caches) {
+            return caches.size();
+        }
+    }
+
+    /** Free the blocks of threads which have exited and drop their caches,
+     * keeping their counts.  Must be called with the registry locked.
+     */
+    private void retireExited() {
+        for (Iterator i=caches.iterator();i.hasNext();) {
+            ThreadCache tc = (ThreadCache)i.next();
+            if (!tc.isLive()) {
+                i.remove();
+                synchronized(tc) {
+                    tc.drain();
+                    retiredAllocations += tc.allocations;
+                    retiredHits += tc.hits;
+                    retiredReleases += tc.releases;
+                    retiredReturns += tc.returns;
+                }
+            }
+        }
+    }
+
+    /** Start freeing released blocks instead of keeping them, until a
+     * matching call to {@link #endDispose}.
+     */
+    void beginDispose() {
+        synchronized(caches) {
+            ++disposing;
+        }
+    }
+
+    /** Resume keeping released blocks and free all blocks kept so far. */
+    void endDispose() {
+        synchronized(caches) {
+            --disposing;
+        }
+        purge();
+    }
+
+    /** Free all blocks held in the shared pool and in the caches of all
+     * threads.
+     */
+    public void purge() {
+        synchronized(caches) {
+            retireExited();
+            for (Iterator i=caches.iterator();i.hasNext();) {
+                ThreadCache tc = (ThreadCache)i.next();
+                synchronized(tc) {
+                    tc.drain();
+                }
+            }
+        }
+        for (int i=0;i < CLASSES;i++) {
+            Blocks from = shared[i];
+            synchronized(from) {
+                for (int j=0;j < from.count;j++) {
+                    Memory.free(from.blocks[j]);
+                }
+                from.count = 0;
+            }
+        }
+    }
+
+    /** Returns a snapshot of this pool's usage.  Each thread's counts are
+     * read consistently, but the result is approximate while other threads
+     * are using the pool.
+     */
+    public Statistics getStatistics() {
+        Statistics stats = new Statistics();
+        synchronized(caches) {
+            stats.allocations = retiredAllocations;
+            stats.hits = retiredHits;
+            stats.releases = retiredReleases;
+            stats.returns = retiredReturns;
+            for (Iterator i=caches.iterator();i.hasNext();) {
+                ThreadCache tc = (ThreadCache)i.next();
+                synchronized(tc) {
+                    stats.allocations += tc.allocations;
+                    stats.hits += tc.hits;
+                    stats.releases += tc.releases;
+                    stats.returns += tc.returns;
+                    stats.retainedBytes += tc.retainedBytes();
+                }
+            }
+        }
+        for (int i=0;i < CLASSES;i++) {
+            synchronized(shared[i]) {
+                stats.retainedBytes += (long)shared[i].count * classSize(i);
+            }
+        }
+        return stats;
+    }
+
+    /** Usage counts for a {@link MemoryPool}. */
+    public static final class Statistics {
+        private long allocations;
+        private long hits;
+        private long releases;
+        private long returns;
+        private long retainedBytes;
+
+        Statistics() { }
+
+        /** Number of allocations small enough to be pooled. */
+        public long getAllocations() {
+            return allocations;
+        }
+        /** Number of allocations served without calling <code>malloc</code>. */
+        public long getHits() {
+            return hits;
+        }
+        /** Number of pooled-size blocks released. */
+        public long getReleases() {
+            return releases;
+        }
+        /** Number of released blocks kept for reuse rather than freed.
+         * Blocks freed to make room in a full cache are deducted.
+         */
+        public long getReturns() {
+            return returns;
+        }
+        /** Bytes of native memory held by the pool for reuse. */
+        public long getRetainedBytes() {
+            return retainedBytes;
+        }
+        public String toString() {
+            return "allocations=" + allocations + ", hits=" + hits
+                + ", releases=" + releases + ", returns=" + returns
+                + ", retained=" + retainedBytes;
+        }
+    }
+}
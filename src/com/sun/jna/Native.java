@@ -22,6 +22,7 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.annotation.Annotation;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
@@ -237,7 +238,12 @@ public final class Native implements Version {
      * (usually ${java.home}/lib/${os.arch}/libjsig.so) before launching your
      * Java application.
      */
-    public static synchronized native void setProtected(boolean enable);
+    public static synchronized void setProtected(boolean enable) {
+        _setProtected(enable);
+        UnsafeAccess.setProtected(isProtected());
+    }
+
+    private static native void _setProtected(boolean enable);
 
     /** Returns whether protection is enabled.  Check the result of this method
      * after calling {@link #setProtected setProtected(true)} to determine
@@ -501,10 +507,17 @@ public final class Native implements Version {
                                      Map options) {
         Library.Handler handler =
             new Library.Handler(name, interfaceClass, options);
-        ClassLoader loader = interfaceClass.getClassLoader();
-        Library proxy = (Library)
-            Proxy.newProxyInstance(loader, new Class[] {interfaceClass},
-                                   handler);
+        Library proxy = null;
+        if (Boolean.TRUE.equals(options.get(Library.OPTION_GENERATED_STUBS))
+            && options.get(Library.OPTION_INVOCATION_MAPPER) == null) {
+            proxy = LibraryStub.newInstance(interfaceClass, handler);
+        }
+        if (proxy == null) {
+            ClassLoader loader = interfaceClass.getClassLoader();
+            proxy = (Library)
+                Proxy.newProxyInstance(loader, new Class[] {interfaceClass},
+                                       handler);
+        }
         cacheOptions(interfaceClass, options, proxy);
         return proxy;
     }
@@ -1025,10 +1038,16 @@ public final class Native implements Version {
      */
     public static Library synchronizedLibrary(final Library library) {
         Class cls = library.getClass();
-        if (!Proxy.isProxyClass(cls)) {
+        InvocationHandler ih;
+        if (library instanceof LibraryStub) {
+            ih = ((LibraryStub)library).getHandler();
+        }
+        else if (!Proxy.isProxyClass(cls)) {
             throw new IllegalArgumentException("Library must be a proxy class");
         }
-        InvocationHandler ih = Proxy.getInvocationHandler(library);
+        else {
+            ih = Proxy.getInvocationHandler(library);
+        }
         if (!(ih instanceof Library.Handler)) {
             throw new IllegalArgumentException("Unrecognized proxy handler: " + ih);
         }
@@ -1355,7 +1374,7 @@ public final class Native implements Version {
     /** Unregister the native methods for the given class. */
     private static native void unregister(Class cls, long[] handles);
 
-    private static String getSignature(Class cls) {
+    static String getSignature(Class cls) {
         if (cls.isArray()) {
             return "[" + getSignature(cls.getComponentType());
         }
@@ -1394,35 +1413,44 @@ public final class Native implements Version {
     /** Indicates whether the callback has an initializer. */
     static final int CB_HAS_INITIALIZER = 1;
 
-    private static final int CVT_UNSUPPORTED = -1;
-    private static final int CVT_DEFAULT = 0;
-    private static final int CVT_POINTER = 1;
-    private static final int CVT_STRING = 2;
-    private static final int CVT_STRUCTURE = 3;
-    private static final int CVT_STRUCTURE_BYVAL = 4;
-    private static final int CVT_BUFFER = 5;
-    private static final int CVT_ARRAY_BYTE = 6;
-    private static final int CVT_ARRAY_SHORT = 7;
-    private static final int CVT_ARRAY_CHAR = 8;
-    private static final int CVT_ARRAY_INT = 9;
-    private static final int CVT_ARRAY_LONG = 10;
-    private static final int CVT_ARRAY_FLOAT = 11;
-    private static final int CVT_ARRAY_DOUBLE = 12;
-    private static final int CVT_ARRAY_BOOLEAN = 13;
-    private static final int CVT_BOOLEAN = 14;
-    private static final int CVT_CALLBACK = 15;
-    private static final int CVT_FLOAT = 16;
-    private static final int CVT_NATIVE_MAPPED = 17;
-    private static final int CVT_NATIVE_MAPPED_STRING = 18;
-    private static final int CVT_NATIVE_MAPPED_WSTRING = 19;
-    private static final int CVT_WSTRING = 20;
-    private static final int CVT_INTEGER_TYPE = 21;
-    private static final int CVT_POINTER_TYPE = 22;
-    private static final int CVT_TYPE_MAPPER = 23;
-    private static final int CVT_TYPE_MAPPER_STRING = 24;
-    private static final int CVT_TYPE_MAPPER_WSTRING = 25;
-
-    private static int getConversion(Class type, TypeMapper mapper) {
+    static final int CVT_UNSUPPORTED = -1;
+    static final int CVT_DEFAULT = 0;
+    static final int CVT_POINTER = 1;
+    static final int CVT_STRING = 2;
+    static final int CVT_STRUCTURE = 3;
+    static final int CVT_STRUCTURE_BYVAL = 4;
+    static final int CVT_BUFFER = 5;
+    static final int CVT_ARRAY_BYTE = 6;
+    static final int CVT_ARRAY_SHORT = 7;
+    static final int CVT_ARRAY_CHAR = 8;
+    static final int CVT_ARRAY_INT = 9;
+    static final int CVT_ARRAY_LONG = 10;
+    static final int CVT_ARRAY_FLOAT = 11;
+    static final int CVT_ARRAY_DOUBLE = 12;
+    static final int CVT_ARRAY_BOOLEAN = 13;
+    static final int CVT_BOOLEAN = 14;
+    static final int CVT_CALLBACK = 15;
+    static final int CVT_FLOAT = 16;
+    static final int CVT_NATIVE_MAPPED = 17;
+    static final int CVT_NATIVE_MAPPED_STRING = 18;
+    static final int CVT_NATIVE_MAPPED_WSTRING = 19;
+    static final int CVT_WSTRING = 20;
+    static final int CVT_INTEGER_TYPE = 21;
+    static final int CVT_POINTER_TYPE = 22;
+    static final int CVT_TYPE_MAPPER = 23;
+    static final int CVT_TYPE_MAPPER_STRING = 24;
+    static final int CVT_TYPE_MAPPER_WSTRING = 25;
+    static final int CVT_ARRAY_CRITICAL = 26;
+    /** Added to an array or structure conversion if the argument is
+     * only read by native code.
+     */
+    static final int CVT_FLAG_IN = 0x100;
+    /** Added to an array or structure conversion if the argument is
+     * only written by native code.
+     */
+    static final int CVT_FLAG_OUT = 0x200;
+
+    static int getConversion(Class type, TypeMapper mapper) {
         if (type == Boolean.class) type = boolean.class;
         else if (type == Byte.class) type = byte.class;
         else if (type == Short.class) type = short.class;
@@ -1529,6 +1557,111 @@ public final class Native implements Version {
         register(cls, NativeLibrary.getInstance(libName, options));
     }
 
+    /** Returns which parameters of the given method are primitive arrays to
+     * be accessed critically, or <code>null</code> if there are none.
+     * @see CriticalArray
+     */
+    static boolean[] getCriticalArrays(Method method, Map options) {
+        Class[] ptypes = method.getParameterTypes();
+        for (int i=0;i < ptypes.length;i++) {
+            // Native code which calls back into Java can not be given
+            // critical access
+            if (Callback.class.isAssignableFrom(ptypes[i])) {
+                return null;
+            }
+        }
+        boolean byDefault = Boolean.TRUE.equals(options.get(Library.OPTION_CRITICAL_ARRAYS));
+        Annotation[][] annotations = method.getParameterAnnotations();
+        boolean[] critical = null;
+        for (int i=0;i < ptypes.length;i++) {
+            if (!ptypes[i].isArray() || !ptypes[i].getComponentType().isPrimitive()) {
+                continue;
+            }
+            boolean flag = byDefault;
+            for (int a=0;a < annotations[i].length;a++) {
+                if (annotations[i][a] instanceof CriticalArray) {
+                    flag = ((CriticalArray)annotations[i][a]).value();
+                }
+            }
+            if (flag) {
+                if (critical == null) {
+                    critical = new boolean[ptypes.length];
+                }
+                critical[i] = true;
+            }
+        }
+        return critical;
+    }
+
+    /** Returns {@link #CVT_FLAG_IN}, {@link #CVT_FLAG_OUT} or zero for each
+     * parameter of the given method, or <code>null</code> if no parameter
+     * has a direction.
+     * @see In
+     * @see Out
+     */
+    static int[] getDirections(Method method) {
+        Annotation[][] annotations = method.getParameterAnnotations();
+        int[] directions = null;
+        for (int i=0;i < annotations.length;i++) {
+            boolean in = false, out = false;
+            for (int a=0;a < annotations[i].length;a++) {
+                in |= annotations[i][a] instanceof In;
+                out |= annotations[i][a] instanceof Out;
+            }
+            // Both directions is the same as neither
+            if (in != out) {
+                if (directions == null) {
+                    directions = new int[annotations.length];
+                }
+                directions[i] = in ? CVT_FLAG_IN : CVT_FLAG_OUT;
+            }
+        }
+        return directions;
+    }
+
+    /** Returns which parameters of the given method are {@link Retained},
+     * or <code>null</code> if there are none.
+     */
+    static boolean[] getRetainedArguments(Method method) {
+        Annotation[][] annotations = method.getParameterAnnotations();
+        boolean all = method.getAnnotation(Retained.class) != null;
+        boolean[] retained = null;
+        for (int i=0;i < annotations.length;i++) {
+            boolean flag = all;
+            for (int a=0;a < annotations[i].length;a++) {
+                flag |= annotations[i][a] instanceof Retained;
+            }
+            if (flag) {
+                if (retained == null) {
+                    retained = new boolean[annotations.length];
+                }
+                retained[i] = true;
+            }
+        }
+        return retained;
+    }
+
+    /** Returns whether the given conversion may be qualified with
+     * {@link #CVT_FLAG_IN} or {@link #CVT_FLAG_OUT}.
+     */
+    static boolean isDirectional(int cvt) {
+        switch(cvt) {
+        case CVT_STRUCTURE:
+        case CVT_ARRAY_BYTE:
+        case CVT_ARRAY_SHORT:
+        case CVT_ARRAY_CHAR:
+        case CVT_ARRAY_INT:
+        case CVT_ARRAY_LONG:
+        case CVT_ARRAY_FLOAT:
+        case CVT_ARRAY_DOUBLE:
+        case CVT_ARRAY_BOOLEAN:
+        case CVT_ARRAY_CRITICAL:
+            return true;
+        default:
+            return false;
+        }
+    }
+
     /** When called from a class static initializer, maps all native methods
      * found within that class to native libraries via the JNA raw calling
      * interface.
@@ -1563,6 +1696,8 @@ public final class Native implements Version {
             ToNativeConverter[] toNative = new ToNativeConverter[ptypes.length];
             FromNativeConverter fromNative = null;
             int rcvt = getConversion(rclass, mapper);
+            boolean[] critical = getCriticalArrays(method, lib.getOptions());
+            int[] directions = getDirections(method);
             boolean throwLastError = false;
             switch (rcvt) {
             case CVT_UNSUPPORTED:
@@ -1603,6 +1738,9 @@ public final class Native implements Version {
                 if (cvt[t] == CVT_UNSUPPORTED) {
                     throw new IllegalArgumentException(type + " is not a supported argument type (in method " + method.getName() + " in " + cls + ")");
                 }
+                if (critical != null && critical[t]) {
+                    cvt[t] = CVT_ARRAY_CRITICAL;
+                }
                 if (cvt[t] == CVT_NATIVE_MAPPED
                     || cvt[t] == CVT_NATIVE_MAPPED_STRING
                     || cvt[t] == CVT_NATIVE_MAPPED_WSTRING
@@ -1641,6 +1779,13 @@ public final class Native implements Version {
                     break;
                 }
             }
+            if (directions != null) {
+                for (int t=0;t < ptypes.length;t++) {
+                    if (isDirectional(cvt[t])) {
+                        cvt[t] |= directions[t];
+                    }
+                }
+            }
             sig += ")";
             sig += getSignature(rclass);
 
@@ -1888,6 +2033,215 @@ public final class Native implements Version {
         return s;
     }
 
+    /**
+     * Prepare a native call interface for repeated invocation with the
+     * {@link Function.CallDescriptor} variants of the <code>invoke</code>
+     * methods.
+     * @param callFlags calling convention and call flags
+     * @param rtype native return type information
+     * @param atypes native type information for each argument
+     * @param conversions conversion flag for each argument
+     * @return native handle for the prepared call
+     */
+    static native long prepareCall(int callFlags, long rtype, long[] atypes,
+                                   int[] conversions);
+
+    /** Free the native call information obtained from
+     * {@link #prepareCall}.
+     */
+    static native void freeCall(long call);
+
+    /**
+     * Call the native function using a prepared call interface.
+     * @param fp function pointer
+     * @param call prepared call information
+     * @param args Arguments to pass to the native function, already
+     * converted to the types expected by <code>call</code>
+     *
+     * @return  The value returned by the target native function
+     */
+    static native int invokeInt(long fp, Function.CallDescriptor call, Object[] args);
+
+    /**
+     * Call the native function using a prepared call interface.
+     * @param fp function pointer
+     * @param call prepared call information
+     * @param args Arguments to pass to the native function, already
+     * converted to the types expected by <code>call</code>
+     *
+     * @return  The value returned by the target native function
+     */
+    static native long invokeLong(long fp, Function.CallDescriptor call, Object[] args);
+
+    /**
+     * Call the native function using a prepared call interface.
+     * @param fp function pointer
+     * @param call prepared call information
+     * @param args Arguments to pass to the native function, already
+     * converted to the types expected by <code>call</code>
+     */
+    static native void invokeVoid(long fp, Function.CallDescriptor call, Object[] args);
+
+    /**
+     * Call the native function using a prepared call interface.
+     * @param fp function pointer
+     * @param call prepared call information
+     * @param args Arguments to pass to the native function, already
+     * converted to the types expected by <code>call</code>
+     *
+     * @return  The value returned by the target native function
+     */
+    static native float invokeFloat(long fp, Function.CallDescriptor call, Object[] args);
+
+    /**
+     * Call the native function using a prepared call interface.
+     * @param fp function pointer
+     * @param call prepared call information
+     * @param args Arguments to pass to the native function, already
+     * converted to the types expected by <code>call</code>
+     *
+     * @return  The value returned by the target native function
+     */
+    static native double invokeDouble(long fp, Function.CallDescriptor call, Object[] args);
+
+    /**
+     * Call the native function using a prepared call interface.
+     * @param fp function pointer
+     * @param call prepared call information
+     * @param args Arguments to pass to the native function, already
+     * converted to the types expected by <code>call</code>
+     *
+     * @return  The native pointer returned by the target native function
+     */
+    static native long invokePointer(long fp, Function.CallDescriptor call, Object[] args);
+
+    /**
+     * Call the native function using a prepared call interface, with
+     * arguments packed by kind (see {@link Function.CallDescriptor#pack}).
+     * @param fp function pointer
+     * @param call prepared call information
+     * @param prims primitive arguments, in order
+     * @param refs pointer arguments, in order
+     *
+     * @return  The value returned by the target native function
+     */
+    static native int invokeInt(long fp, Function.CallDescriptor call, long[] prims, Object[] refs);
+
+    /**
+     * Call the native function using a prepared call interface, with
+     * arguments packed by kind (see {@link Function.CallDescriptor#pack}).
+     * @param fp function pointer
+     * @param call prepared call information
+     * @param prims primitive arguments, in order
+     * @param refs pointer arguments, in order
+     *
+     * @return  The value returned by the target native function
+     */
+    static native long invokeLong(long fp, Function.CallDescriptor call, long[] prims, Object[] refs);
+
+    /**
+     * Call the native function using a prepared call interface, with
+     * arguments packed by kind (see {@link Function.CallDescriptor#pack}).
+     * @param fp function pointer
+     * @param call prepared call information
+     * @param prims primitive arguments, in order
+     * @param refs pointer arguments, in order
+     */
+    static native void invokeVoid(long fp, Function.CallDescriptor call, long[] prims, Object[] refs);
+
+    /**
+     * Call the native function using a prepared call interface, with
+     * arguments packed by kind (see {@link Function.CallDescriptor#pack}).
+     * @param fp function pointer
+     * @param call prepared call information
+     * @param prims primitive arguments, in order
+     * @param refs pointer arguments, in order
+     *
+     * @return  The value returned by the target native function
+     */
+    static native float invokeFloat(long fp, Function.CallDescriptor call, long[] prims, Object[] refs);
+
+    /**
+     * Call the native function using a prepared call interface, with
+     * arguments packed by kind (see {@link Function.CallDescriptor#pack}).
+     * @param fp function pointer
+     * @param call prepared call information
+     * @param prims primitive arguments, in order
+     * @param refs pointer arguments, in order
+     *
+     * @return  The value returned by the target native function
+     */
+    static native double invokeDouble(long fp, Function.CallDescriptor call, long[] prims, Object[] refs);
+
+    /**
+     * Call the native function using a prepared call interface, with
+     * arguments packed by kind (see {@link Function.CallDescriptor#pack}).
+     * @param fp function pointer
+     * @param call prepared call information
+     * @param prims primitive arguments, in order
+     * @param refs pointer arguments, in order
+     *
+     * @return  The native pointer returned by the target native function
+     */
+    static native long invokePointer(long fp, Function.CallDescriptor call, long[] prims, Object[] refs);
+
+    /**
+     * Call a sequence of native functions using prepared call interfaces.
+     * Arguments for all calls are packed in order (see
+     * {@link Function.CallDescriptor#pack}), with pointers given by their
+     * native address.  Each result is stored in its packed form, and the
+     * last error after each call in <code>errors</code>.
+     * @param fps function pointers
+     * @param calls prepared call information (native peer) for each call
+     * @param args packed arguments for all calls
+     * @param results receives the packed result of each call
+     * @param errors receives the last error value after each call
+     */
+    static native void invokeBatch(long[] fps, long[] calls, long[] args,
+                                   long[] results, int[] errors);
+
+    /**
+     * Call the native function repeatedly using a prepared call interface,
+     * reading the arguments for each call directly from native memory.
+     * @param fp function pointer
+     * @param call prepared call information
+     * @param args address of the first value of each argument
+     * @param strides distance in bytes between successive values of each
+     * argument, or zero to pass the same value to every call
+     * @param result address at which to store successive results, or zero
+     * to discard them
+     * @param resultSize size in bytes of each result
+     * @param count number of calls
+     */
+    static native void invokeVectorized(long fp, Function.CallDescriptor call,
+                                        long[] args, int[] strides,
+                                        long result, int resultSize, int count);
+
+    /**
+     * Call the native function using a prepared call interface, returning
+     * a struct by value.
+     * @param fp function pointer
+     * @param call prepared call information
+     * @param args Arguments to pass to the native function
+     * @param memory Memory for pre-allocated structure to hold the result
+     */
+    private static native void invokeStructure(long fp, Function.CallDescriptor call,
+                                               Object[] args, long memory);
+
+    /**
+     * Call the native function using a prepared call interface, returning
+     * a struct by value.
+     * @param fp function pointer
+     * @param call prepared call information
+     * @param args Arguments to pass to the native function
+     * @return the passed-in Structure
+     */
+    static Structure invokeStructure(long fp, Function.CallDescriptor call,
+                                     Object[] args, Structure s) {
+        invokeStructure(fp, call, args, s.getPointer().peer);
+        return s;
+    }
+
     /**
      * Call the native function being represented by this object, returning
      * a Java <code>Object</code>.
@@ -1987,6 +2341,65 @@ public final class Native implements Version {
 
     static native void setMemory(long addr, long length, byte value);
 
+    /** Fill memory with repeated copies of the given pattern. */
+    static native void fillMemory(long addr, long length, byte[] pattern);
+
+    /** Copy between non-overlapping regions of memory. */
+    static native void copyMemory(long src, long dst, long length);
+
+    /** Copy between possibly overlapping regions of memory. */
+    static native void moveMemory(long src, long dst, long length);
+
+    /** Compare regions of memory as with <code>memcmp</code>. */
+    static native int compareMemory(long addr1, long addr2, long length);
+
+    static native boolean compareAndSetInt(long addr, int expect, int value);
+
+    static native boolean compareAndSetLong(long addr, long expect, long value);
+
+    static native int getAndAddInt(long addr, int delta);
+
+    static native long getAndAddLong(long addr, long delta);
+
+    static native int getAndSetInt(long addr, int value);
+
+    static native long getAndSetLong(long addr, long value);
+
+    static native int getIntAcquire(long addr);
+
+    static native long getLongAcquire(long addr);
+
+    static native void setIntRelease(long addr, int value);
+
+    static native void setLongRelease(long addr, long value);
+
+    static final int FENCE_ACQUIRE = 0;
+    static final int FENCE_RELEASE = 1;
+    static final int FENCE_FULL = 2;
+
+    private static native void fence(int kind);
+
+    /** Ensures that no native loads before the fence are reordered with
+     * loads or stores after it.
+     */
+    public static void acquireFence() {
+        fence(FENCE_ACQUIRE);
+    }
+
+    /** Ensures that no native loads or stores before the fence are
+     * reordered with stores after it.
+     */
+    public static void releaseFence() {
+        fence(FENCE_RELEASE);
+    }
+
+    /** Ensures that no native loads or stores before the fence are
+     * reordered with loads or stores after it.
+     */
+    public static void fullFence() {
+        fence(FENCE_FULL);
+    }
+
     static native void setByte(long addr, byte value);
 
     static native void setShort(long addr, short value);
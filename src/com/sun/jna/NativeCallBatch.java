@@ -0,0 +1,233 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A sequence of native function calls executed with a single transition
+ * into native code.  Use this for issuing many small calls in a row,
+ * where the cost of each individual invocation would otherwise dominate
+ * the native work.
+ * <p>
+ * Calls are limited to arguments and results which need no conversion:
+ * primitive wrappers (<code>boolean</code> is passed as <code>int</code>)
+ * and {@link Pointer}, with <code>null</code> passed as a NULL pointer.
+ * No {@link TypeMapper} is applied.  Arguments are marshalled when the
+ * batch is executed, so any {@link Memory} passed remains valid until
+ * then.
+ * <p>
+ * Example:
+ * <pre><code>
+ * NativeCallBatch batch = new NativeCallBatch();
+ * int first = batch.add(setsockopt, int.class, new Object[] { ... });
+ * int second = batch.add(setsockopt, int.class, new Object[] { ... });
+ * batch.execute();
+ * int result = ((Integer)batch.getResult(first)).intValue();
+ * int errno = batch.getLastError(first);
+ * </code></pre>
+ * A batch may be executed any number of times; results and errors reflect
+ * the most recent execution.  This class is not thread-safe.
+ */
+public class NativeCallBatch {
+
+    private static class Entry {
+        final Function function;
+        final Class returnType;
+        final Function.CallDescriptor call;
+        final Object[] args;
+        Entry(Function function, Class returnType, Function.CallDescriptor call, Object[] args) {
+            this.function = function;
+            this.returnType = returnType;
+            this.call = call;
+            this.args = args;
+        }
+    }
+
+    private final List entries = new ArrayList();
+    /** Prepared calls, keyed by calling convention and signature. */
+    private final Map calls = new HashMap();
+    private int argCount;
+    private long[] results;
+    private int[] errors;
+
+    /** Add a call to the batch.
+     * @param function function to call
+     * @param returnType type of the result: <code>void</code>, a primitive
+     * type or {@link Pointer}
+     * @param args arguments to the function, which will be copied
+     * @return the index of the call within this batch
+     * @throws IllegalArgumentException if the return type or any of the
+     * arguments is not supported
+     */
+    public int add(Function function, Class returnType, Object[] args) {
+        if (args == null) {
+            args = new Object[0];
+        }
+        if (args.length > Function.MAX_NARGS) {
+            throw new UnsupportedOperationException("Maximum argument count is " + Function.MAX_NARGS);
+        }
+        if (returnType != void.class && !returnType.isPrimitive()
+            && returnType != Pointer.class) {
+            throw new IllegalArgumentException("Unsupported return type " + returnType
+                                               + " in batched call to " + function.getName());
+        }
+        Class[] paramTypes = new Class[args.length];
+        StringBuilder key = new StringBuilder();
+        key.append(function.callFlags).append('(');
+        for (int i=0;i < args.length;i++) {
+            paramTypes[i] = getParameterType(args[i]);
+            if (paramTypes[i] == null) {
+                throw new IllegalArgumentException("Unsupported argument type "
+                                                   + args[i].getClass().getName()
+                                                   + " at parameter " + i
+                                                   + " of batched call to " + function.getName());
+            }
+            key.append(Native.getSignature(paramTypes[i]));
+        }
+        key.append(')').append(Native.getSignature(returnType));
+
+        Function.CallDescriptor call = (Function.CallDescriptor)calls.get(key.toString());
+        if (call == null) {
+            call = function.prepareCall(null, paramTypes, returnType, Collections.EMPTY_MAP);
+            if (call == null || !call.isPackable()) {
+                throw new IllegalArgumentException("Batched call to " + function.getName()
+                                                   + " can not be prepared");
+            }
+            calls.put(key.toString(), call);
+        }
+        Object[] copy = new Object[args.length];
+        System.arraycopy(args, 0, copy, 0, args.length);
+        entries.add(new Entry(function, returnType, call, copy));
+        argCount += args.length;
+        results = null;
+        errors = null;
+        return entries.size() - 1;
+    }
+
+    private static Class getParameterType(Object arg) {
+        if (arg == null || arg instanceof Pointer) {
+            return Pointer.class;
+        }
+        Class type = arg.getClass();
+        if (type == Boolean.class) return boolean.class;
+        if (type == Byte.class) return byte.class;
+        if (type == Short.class) return short.class;
+        if (type == Character.class) return char.class;
+        if (type == Integer.class) return int.class;
+        if (type == Long.class) return long.class;
+        if (type == Float.class) return float.class;
+        if (type == Double.class) return double.class;
+        return null;
+    }
+
+    /** Returns the number of calls in this batch. */
+    public int size() {
+        return entries.size();
+    }
+
+    /** Remove all calls from this batch. */
+    public void clear() {
+        entries.clear();
+        argCount = 0;
+        results = null;
+        errors = null;
+    }
+
+    /** Execute all calls in this batch, in the order added.
+     * @throws Error if a call causes an invalid memory access and memory
+     * protection is enabled; subsequent calls are not executed
+     */
+    public void execute() {
+        int count = entries.size();
+        long[] fps = new long[count];
+        long[] peers = new long[count];
+        long[] args = new long[argCount];
+        int pos = 0;
+        for (int i=0;i < count;i++) {
+            Entry entry = (Entry)entries.get(i);
+            fps[i] = entry.function.peer;
+            peers[i] = entry.call.getPeer();
+            for (int a=0;a < entry.args.length;a++) {
+                Object arg = entry.args[a];
+                args[pos++] = arg == null || arg instanceof Pointer
+                    ? Pointer.nativeValue((Pointer)arg)
+                    : Function.CallDescriptor.packValue(arg);
+            }
+        }
+        long[] results = new long[count];
+        int[] errors = new int[count];
+        if (count > 0) {
+            Native.invokeBatch(fps, peers, args, results, errors);
+        }
+        this.results = results;
+        this.errors = errors;
+    }
+
+    private void checkExecuted(int index) {
+        if (results == null) {
+            throw new IllegalStateException("Batch has not been executed");
+        }
+        if (index < 0 || index >= results.length) {
+            throw new IndexOutOfBoundsException("No batched call at index " + index);
+        }
+    }
+
+    /** Returns the result of the call at the given index, as a primitive
+     * wrapper, a {@link Pointer}, or <code>null</code> for <code>void</code>
+     * functions and NULL pointers.
+     */
+    public Object getResult(int index) {
+        checkExecuted(index);
+        Class returnType = ((Entry)entries.get(index)).returnType;
+        long value = results[index];
+        if (returnType == void.class) {
+            return null;
+        }
+        if (returnType == boolean.class) {
+            return Function.valueOf(value != 0);
+        }
+        if (returnType == byte.class) {
+            return new Byte((byte)value);
+        }
+        if (returnType == short.class) {
+            return new Short((short)value);
+        }
+        if (returnType == char.class) {
+            return new Character((char)value);
+        }
+        if (returnType == int.class) {
+            return new Integer((int)value);
+        }
+        if (returnType == long.class) {
+            return new Long(value);
+        }
+        if (returnType == float.class) {
+            return new Float(Float.intBitsToFloat((int)value));
+        }
+        if (returnType == double.class) {
+            return new Double(Double.longBitsToDouble(value));
+        }
+        return value == 0 ? null : new Pointer(value);
+    }
+
+    /** Returns the value of <code>errno</code> (or
+     * <code>GetLastError()</code> on Windows) immediately after the call at
+     * the given index.
+     */
+    public int getLastError(int index) {
+        checkExecuted(index);
+        return errors[index];
+    }
+}
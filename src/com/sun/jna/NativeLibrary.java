@@ -68,6 +68,7 @@ import java.util.StringTokenizer;
 public class NativeLibrary {
 
     private long handle;
+    private Cleaner.Cleanable cleanable;
     private final String libraryName;
     private final String libraryPath;
     private final Map functions = new HashMap();
@@ -93,6 +94,9 @@ public class NativeLibrary {
         this.libraryName = getLibraryName(libraryName);
         this.libraryPath = libraryPath;
         this.handle = handle;
+        if (handle != 0) {
+            cleanable = Cleaner.getCleaner().register(this, new NativeLibraryDisposer(handle));
+        }
         Object option = options.get(Library.OPTION_CALLING_CONVENTION);
         int callingConvention = option instanceof Number
             ? ((Number)option).intValue() : Function.C_CONVENTION;
@@ -592,11 +596,6 @@ public class NativeLibrary {
             return null;
         return new File(libraryPath);
     }
-    /** Close the library when it is no longer referenced. */
-    protected void finalize() {
-        dispose();
-    }
-
     /** Close all open native libraries. */
     static void disposeAll() {
         Set values;
@@ -624,12 +623,32 @@ public class NativeLibrary {
         }
         synchronized(this) {
             if (handle != 0) {
-                Native.close(handle);
+                cleanable.clean();
                 handle = 0;
             }
         }
     }
 
+    /** Closes a native library once its {@link NativeLibrary} is
+     * unreachable.
+     */
+    private static class NativeLibraryDisposer implements Runnable {
+        private final long handle;
+        NativeLibraryDisposer(long handle) {
+            this.handle = handle;
+        }
+        public void run() {
+            synchronized(libraries) {
+                for (Iterator i=libraries.values().iterator();i.hasNext();) {
+                    if (((Reference)i.next()).get() == null) {
+                        i.remove();
+                    }
+                }
+            }
+            Native.close(handle);
+        }
+    }
+
     private static List initPaths(String key) {
         String value = System.getProperty(key, "");
         if ("".equals(value)) {
@@ -0,0 +1,29 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Overrides {@link Library#OPTION_OFFLOAD_VIRTUAL_THREADS} for a single
+ * {@link Library} method.  Annotate slow or blocking native calls with
+ * <code>&#64;OffloadVirtualThreads</code> so that virtual threads calling
+ * them do not pin their carrier threads, or quick calls with
+ * <code>&#64;OffloadVirtualThreads(false)</code> to always make them inline.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface OffloadVirtualThreads {
+    /** Whether calls from virtual threads are moved to platform threads. */
+    boolean value() default true;
+}
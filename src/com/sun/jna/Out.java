@@ -0,0 +1,32 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Marks a parameter of a {@link Library} or direct-mapped method as output
+ * only: the native function writes it without reading its prior contents.
+ * The argument is read back after the call as usual, but its contents are
+ * not written to native memory beforehand.  Applies to {@link Structure}
+ * and primitive array parameters; it is ignored for other types.
+ * <p>
+ * The native function is given zeroed memory for an output-only array, and
+ * the whole array is overwritten after the call: any element the function
+ * does not write becomes zero.
+ * @see In
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface Out {
+}
@@ -562,6 +562,9 @@ public class Pointer {
      * @return the <code>byte</code> value being pointed to
      */
     public byte getByte(long offset) {
+        if (UnsafeAccess.isEnabled()) {
+            return UnsafeAccess.getByte(peer + offset);
+        }
         return Native.getByte(peer + offset);
     }
 
@@ -574,6 +577,9 @@ public class Pointer {
      * @return the <code>wchar_t</code> value being pointed to
      */
     public char getChar(long offset) {
+        if (UnsafeAccess.isEnabled()) {
+            return UnsafeAccess.getChar(peer + offset);
+        }
         return Native.getChar(peer + offset);
     }
 
@@ -586,6 +592,9 @@ public class Pointer {
      * @return the <code>short</code> value being pointed to
      */
     public short getShort(long offset) {
+        if (UnsafeAccess.isEnabled()) {
+            return UnsafeAccess.getShort(peer + offset);
+        }
         return Native.getShort(peer + offset);
     }
 
@@ -598,6 +607,9 @@ public class Pointer {
      * @return the <code>int</code> value being pointed to
      */
     public int getInt(long offset) {
+        if (UnsafeAccess.isEnabled()) {
+            return UnsafeAccess.getInt(peer + offset);
+        }
         return Native.getInt(peer + offset);
     }
 
@@ -610,6 +622,9 @@ public class Pointer {
      * @return the <code>long</code> value being pointed to
      */
     public long getLong(long offset) {
+        if (UnsafeAccess.isEnabled()) {
+            return UnsafeAccess.getLong(peer + offset);
+        }
         return Native.getLong(peer + offset);
     }
 
@@ -634,6 +649,9 @@ public class Pointer {
      * @return the <code>float</code> value being pointed to
      */
     public float getFloat(long offset) {
+        if (UnsafeAccess.isEnabled()) {
+            return UnsafeAccess.getFloat(peer + offset);
+        }
         return Native.getFloat(peer + offset);
     }
 
@@ -646,6 +664,9 @@ public class Pointer {
      * @return the <code>double</code> value being pointed to
      */
     public double getDouble(long offset) {
+        if (UnsafeAccess.isEnabled()) {
+            return UnsafeAccess.getDouble(peer + offset);
+        }
         return Native.getDouble(peer + offset);
     }
 
@@ -660,6 +681,9 @@ public class Pointer {
      * <code>NULL</code>;
      */
     public Pointer getPointer(long offset) {
+        if (UnsafeAccess.isEnabled()) {
+            return UnsafeAccess.getPointer(peer + offset);
+        }
         return Native.getPointer(peer + offset);
     }
 
@@ -1071,6 +1095,236 @@ v     * @param wide whether to convert from a wide or standard C string
     public void setMemory(long offset, long length, byte value) {
         Native.setMemory(peer + offset, length, value);
     }
+
+    /** Fill the requested bank of memory with repeated copies of the given
+     * pattern.  The last copy is truncated if <code>length</code> is not a
+     * multiple of the pattern length.
+     * @param offset byte offset from pointer to start
+     * @param length number of bytes to write
+     * @param pattern bytes to be repeated
+     * @throws IllegalArgumentException if <code>length</code> is negative
+     * or the pattern is empty
+     */
+    public void fill(long offset, long length, byte[] pattern) {
+        checkLength(length);
+        if (pattern.length == 0) {
+            throw new IllegalArgumentException("Fill pattern must not be empty");
+        }
+        Native.fillMemory(peer + offset, length, pattern);
+    }
+
+    /** Copy native memory to another location, without an intermediate
+     * Java array.  The source and destination must not overlap; use
+     * {@link #moveTo} if they might.
+     * @param offset byte offset from this pointer of the source
+     * @param dst destination
+     * @param dstOffset byte offset from <code>dst</code> of the destination
+     * @param length number of bytes to copy
+     * @throws IndexOutOfBoundsException if either region exceeds the bounds
+     * of its {@link Memory}
+     * @throws IllegalArgumentException if <code>length</code> is negative
+     */
+    public void copyTo(long offset, Pointer dst, long dstOffset, long length) {
+        checkLength(length);
+        checkBounds(dst, dstOffset, length);
+        Native.copyMemory(peer + offset, dst.peer + dstOffset, length);
+    }
+
+    /** Copy native memory to another location which may overlap the
+     * source.
+     * @param offset byte offset from this pointer of the source
+     * @param dst destination
+     * @param dstOffset byte offset from <code>dst</code> of the destination
+     * @param length number of bytes to copy
+     * @throws IndexOutOfBoundsException if either region exceeds the bounds
+     * of its {@link Memory}
+     * @throws IllegalArgumentException if <code>length</code> is negative
+     */
+    public void moveTo(long offset, Pointer dst, long dstOffset, long length) {
+        checkLength(length);
+        checkBounds(dst, dstOffset, length);
+        Native.moveMemory(peer + offset, dst.peer + dstOffset, length);
+    }
+
+    /** Compare native memory with another location, byte by byte as
+     * unsigned values, like <code>memcmp</code>.
+     * @param offset byte offset from this pointer
+     * @param other memory to compare against
+     * @param otherOffset byte offset from <code>other</code>
+     * @param length number of bytes to compare
+     * @return a negative value, zero, or a positive value if this memory
+     * compares less than, equal to, or greater than the other
+     * @throws IndexOutOfBoundsException if either region exceeds the bounds
+     * of its {@link Memory}
+     * @throws IllegalArgumentException if <code>length</code> is negative
+     */
+    public int compare(long offset, Pointer other, long otherOffset, long length) {
+        checkLength(length);
+        checkBounds(other, otherOffset, length);
+        return Native.compareMemory(peer + offset, other.peer + otherOffset, length);
+    }
+
+    /** Returns the address of a value used in an atomic operation, which
+     * must be naturally aligned.
+     * @param offset byte offset from pointer
+     * @param size size of the value, in bytes
+     */
+    long atomicAddress(long offset, int size) {
+        long addr = peer + offset;
+        if ((addr & (size - 1)) != 0) {
+            throw new IllegalArgumentException("Atomic access to " + size + "-byte value at 0x"
+                                               + Long.toHexString(addr) + " is not aligned");
+        }
+        return addr;
+    }
+
+    /** Atomically set the <code>int</code> at the given offset to
+     * <code>value</code> if it currently equals <code>expect</code>.
+     * The value must be aligned to four bytes.
+     * @return whether the value was updated
+     */
+    public boolean compareAndSetInt(long offset, int expect, int value) {
+        return Native.compareAndSetInt(atomicAddress(offset, 4), expect, value);
+    }
+
+    /** Atomically set the <code>long</code> at the given offset to
+     * <code>value</code> if it currently equals <code>expect</code>.
+     * The value must be aligned to eight bytes.
+     * @return whether the value was updated
+     */
+    public boolean compareAndSetLong(long offset, long expect, long value) {
+        return Native.compareAndSetLong(atomicAddress(offset, 8), expect, value);
+    }
+
+    /** Atomically set the pointer at the given offset to
+     * <code>value</code> if it currently equals <code>expect</code>.
+     * The value must be aligned to {@link #SIZE} bytes.
+     * @return whether the value was updated
+     */
+    public boolean compareAndSetPointer(long offset, Pointer expect, Pointer value) {
+        long addr = atomicAddress(offset, SIZE);
+        long e = nativeValue(expect);
+        long v = nativeValue(value);
+        return SIZE == 8
+            ? Native.compareAndSetLong(addr, e, v)
+            : Native.compareAndSetInt(addr, (int)e, (int)v);
+    }
+
+    /** Atomically add <code>delta</code> to the <code>int</code> at the
+     * given offset, which must be aligned to four bytes.
+     * @return the previous value
+     */
+    public int getAndAddInt(long offset, int delta) {
+        return Native.getAndAddInt(atomicAddress(offset, 4), delta);
+    }
+
+    /** Atomically add <code>delta</code> to the <code>long</code> at the
+     * given offset, which must be aligned to eight bytes.
+     * @return the previous value
+     */
+    public long getAndAddLong(long offset, long delta) {
+        return Native.getAndAddLong(atomicAddress(offset, 8), delta);
+    }
+
+    /** Atomically replace the <code>int</code> at the given offset, which
+     * must be aligned to four bytes.
+     * @return the previous value
+     */
+    public int getAndSetInt(long offset, int value) {
+        return Native.getAndSetInt(atomicAddress(offset, 4), value);
+    }
+
+    /** Atomically replace the <code>long</code> at the given offset, which
+     * must be aligned to eight bytes.
+     * @return the previous value
+     */
+    public long getAndSetLong(long offset, long value) {
+        return Native.getAndSetLong(atomicAddress(offset, 8), value);
+    }
+
+    /** Atomically replace the pointer at the given offset, which must be
+     * aligned to {@link #SIZE} bytes.
+     * @return the previous value
+     */
+    public Pointer getAndSetPointer(long offset, Pointer value) {
+        long addr = atomicAddress(offset, SIZE);
+        long v = nativeValue(value);
+        long old = SIZE == 8
+            ? Native.getAndSetLong(addr, v)
+            : Native.getAndSetInt(addr, (int)v) & 0xFFFFFFFFL;
+        return old == 0 ? null : new Pointer(old);
+    }
+
+    /** Read the <code>int</code> at the given offset with acquire
+     * semantics: no subsequent native loads or stores are reordered before
+     * it.  The value must be aligned to four bytes.
+     */
+    public int getIntAcquire(long offset) {
+        return Native.getIntAcquire(atomicAddress(offset, 4));
+    }
+
+    /** Read the <code>long</code> at the given offset with acquire
+     * semantics.  The value must be aligned to eight bytes.
+     */
+    public long getLongAcquire(long offset) {
+        return Native.getLongAcquire(atomicAddress(offset, 8));
+    }
+
+    /** Read the pointer at the given offset with acquire semantics.  The
+     * value must be aligned to {@link #SIZE} bytes.
+     */
+    public Pointer getPointerAcquire(long offset) {
+        long addr = atomicAddress(offset, SIZE);
+        long p = SIZE == 8
+            ? Native.getLongAcquire(addr)
+            : Native.getIntAcquire(addr) & 0xFFFFFFFFL;
+        return p == 0 ? null : new Pointer(p);
+    }
+
+    /** Write the <code>int</code> at the given offset with release
+     * semantics: no preceding native loads or stores are reordered after
+     * it.  The value must be aligned to four bytes.
+     */
+    public void setIntRelease(long offset, int value) {
+        Native.setIntRelease(atomicAddress(offset, 4), value);
+    }
+
+    /** Write the <code>long</code> at the given offset with release
+     * semantics.  The value must be aligned to eight bytes.
+     */
+    public void setLongRelease(long offset, long value) {
+        Native.setLongRelease(atomicAddress(offset, 8), value);
+    }
+
+    /** Write the pointer at the given offset with release semantics.  The
+     * value must be aligned to {@link #SIZE} bytes.
+     */
+    public void setPointerRelease(long offset, Pointer value) {
+        long addr = atomicAddress(offset, SIZE);
+        long v = nativeValue(value);
+        if (SIZE == 8) {
+            Native.setLongRelease(addr, v);
+        }
+        else {
+            Native.setIntRelease(addr, (int)v);
+        }
+    }
+
+    /** Reject negative lengths, which native code would treat as huge
+     * unsigned sizes.
+     */
+    static void checkLength(long length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Length must not be negative: " + length);
+        }
+    }
+
+    /** Check the bounds of the other end of a copy or comparison. */
+    static void checkBounds(Pointer p, long offset, long length) {
+        if (p instanceof Memory) {
+            ((Memory)p).boundsCheck(offset, length);
+        }
+    }
     
     /**
      * Set <code>value</code> at location being pointed to. This is equivalent
@@ -1082,7 +1336,12 @@ v     * @param wide whether to convert from a wide or standard C string
      * @param value <code>byte</code> value to set
      */
     public void setByte(long offset, byte value) {
-        Native.setByte(peer + offset, value);
+        if (UnsafeAccess.isEnabled()) {
+            UnsafeAccess.setByte(peer + offset, value);
+        }
+        else {
+            Native.setByte(peer + offset, value);
+        }
     }
 
     /**
@@ -1095,7 +1354,12 @@ v     * @param wide whether to convert from a wide or standard C string
      * @param value <code>short</code> value to set
      */
     public void setShort(long offset, short value) {
-        Native.setShort(peer + offset, value);
+        if (UnsafeAccess.isEnabled()) {
+            UnsafeAccess.setShort(peer + offset, value);
+        }
+        else {
+            Native.setShort(peer + offset, value);
+        }
     }
     
     /**
@@ -1108,7 +1372,12 @@ v     * @param wide whether to convert from a wide or standard C string
      * @param value <code>char</code> value to set
      */
     public void setChar(long offset, char value) {
-        Native.setChar(peer + offset, value);
+        if (UnsafeAccess.isEnabled()) {
+            UnsafeAccess.setChar(peer + offset, value);
+        }
+        else {
+            Native.setChar(peer + offset, value);
+        }
     }
     
     /**
@@ -1121,7 +1390,12 @@ v     * @param wide whether to convert from a wide or standard C string
      * @param value <code>int</code> value to set
      */
     public void setInt(long offset, int value) {
-        Native.setInt(peer + offset, value);
+        if (UnsafeAccess.isEnabled()) {
+            UnsafeAccess.setInt(peer + offset, value);
+        }
+        else {
+            Native.setInt(peer + offset, value);
+        }
     }
 
     /**
@@ -1134,7 +1408,12 @@ v     * @param wide whether to convert from a wide or standard C string
      * @param value <code>long</code> value to set
      */
     public void setLong(long offset, long value) {
-        Native.setLong(peer + offset, value);
+        if (UnsafeAccess.isEnabled()) {
+            UnsafeAccess.setLong(peer + offset, value);
+        }
+        else {
+            Native.setLong(peer + offset, value);
+        }
     }
     
     /**
@@ -1164,7 +1443,12 @@ v     * @param wide whether to convert from a wide or standard C string
      * @param value <code>float</code> value to set
      */
     public void setFloat(long offset, float value) {
-        Native.setFloat(peer + offset, value);
+        if (UnsafeAccess.isEnabled()) {
+            UnsafeAccess.setFloat(peer + offset, value);
+        }
+        else {
+            Native.setFloat(peer + offset, value);
+        }
     }
     
     /**
@@ -1177,7 +1461,12 @@ v     * @param wide whether to convert from a wide or standard C string
      * @param value <code>double</code> value to set
      */
     public void setDouble(long offset, double value) {
-        Native.setDouble(peer + offset, value);
+        if (UnsafeAccess.isEnabled()) {
+            UnsafeAccess.setDouble(peer + offset, value);
+        }
+        else {
+            Native.setDouble(peer + offset, value);
+        }
     }
 
     /**
@@ -1192,7 +1481,13 @@ v     * @param wide whether to convert from a wide or standard C string
      * pointer.
      */
     public void setPointer(long offset, Pointer value) {
-        Native.setPointer(peer + offset, value != null ? value.peer : 0);
+        long v = value != null ? value.peer : 0;
+        if (UnsafeAccess.isEnabled()) {
+            UnsafeAccess.setPointer(peer + offset, v);
+        }
+        else {
+            Native.setPointer(peer + offset, v);
+        }
     }
 
     /**
@@ -1427,6 +1722,21 @@ v     * @param wide whether to convert from a wide or standard C string
         public void setWideString(long offset, String value) {
             throw new UnsupportedOperationException(MSG); 
         }
+        long atomicAddress(long offset, int size) {
+            throw new UnsupportedOperationException(MSG); 
+        }
+        public void fill(long offset, long length, byte[] pattern) {
+            throw new UnsupportedOperationException(MSG); 
+        }
+        public void copyTo(long offset, Pointer dst, long dstOffset, long length) {
+            throw new UnsupportedOperationException(MSG); 
+        }
+        public void moveTo(long offset, Pointer dst, long dstOffset, long length) {
+            throw new UnsupportedOperationException(MSG); 
+        }
+        public int compare(long offset, Pointer other, long otherOffset, long length) {
+            throw new UnsupportedOperationException(MSG); 
+        }
         public void setMemory(long offset, long size, byte value) {
             throw new UnsupportedOperationException(MSG); 
         }
@@ -0,0 +1,33 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Marks a parameter of a {@link Library} method, or every parameter of
+ * the method, as one whose native copy the function may keep after it
+ * returns, as <code>putenv</code> does with its argument.
+ * <p>
+ * The native copies of <code>String</code>, {@link WString} and array
+ * arguments are normally taken from per-thread scratch memory which is
+ * reused as soon as the call returns.  A retained argument is instead
+ * copied into its own {@link Memory}, which is freed only once it is
+ * garbage collected.  If native code keeps the pointer indefinitely, pass
+ * a {@link Memory} or {@link NativeString} which you keep reachable
+ * instead.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.METHOD, ElementType.PARAMETER })
+public @interface Retained {
+}
@@ -30,7 +30,6 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.WeakHashMap;
 import java.util.zip.Adler32;
 
 /**
@@ -123,8 +122,9 @@ public abstract class Structure {
     //public static final int ALIGN_8 = 6;
 
     protected static final int CALCULATE_SIZE = -1;
-    static final Map layoutInfo = new WeakHashMap();
-    static final Map fieldOrder = new WeakHashMap();
+    // Per-class layout and field order, read without locking
+    static final WeakIdentityCache layoutInfo = new WeakIdentityCache();
+    static final WeakIdentityCache fieldOrder = new WeakIdentityCache();
 
     // This field is accessed by native code
     private Pointer memory;
@@ -134,10 +134,14 @@ public abstract class Structure {
     private int actualAlignType;
     private int structAlignment;
     private Map structFields;
+    private LayoutInfo layout;
     // Keep track of native C strings which have been allocated,
-    // corresponding to String fields of this Structure
-    private final Map nativeStrings = new HashMap();
+    // corresponding to String fields of this Structure; allocated on first
+    // use, with STRING_SLOTS entries per field
+    private Object[] nativeStrings;
     private TypeMapper typeMapper;
+    // Source of auto-allocated memory, if not allocated individually
+    private MemoryArena arena;
     // This field is accessed by native code
     private long typeInfo;
 
@@ -146,6 +150,12 @@ public abstract class Structure {
     // Keep a reference when this structure is mapped to an array
     private Structure[] array;
     private boolean readCalled;
+    private boolean dirtyTracking;
+    // Java value of each field as of its last synch with native memory,
+    // indexed by StructField.index; null where unknown or not tracked
+    private Object[] syncedValues;
+    // Memory last passed to useMemory
+    private Pointer memorySource;
 
     protected Structure() {
         this(ALIGN_DEFAULT);
@@ -173,6 +183,18 @@ public abstract class Structure {
     }
 
     protected Structure(Pointer p, int alignType, TypeMapper mapper) {
+        this(p, alignType, mapper, null);
+    }
+
+    /** Create a structure whose memory is allocated from the given arena,
+     * and freed when the arena is closed.
+     */
+    protected Structure(MemoryArena arena) {
+        this(null, ALIGN_DEFAULT, null, arena);
+    }
+
+    private Structure(Pointer p, int alignType, TypeMapper mapper, MemoryArena arena) {
+        this.arena = arena;
         setAlignType(alignType);
         setStringEncoding(Native.getStringEncoding(getClass()));
         initializeTypeMapper(mapper);
@@ -224,6 +246,7 @@ public abstract class Structure {
     private void layoutChanged() {
         if (this.size != CALCULATE_SIZE) {
             this.size = CALCULATE_SIZE;
+            clearSyncedValues();
             if (this.memory instanceof AutoAllocated) {
                 this.memory = null;
             }
@@ -274,7 +297,7 @@ public abstract class Structure {
      * @return newly-allocated memory
      */
     protected Memory autoAllocate(int size) {
-        return new AutoAllocated(size);
+        return arena != null ? new AutoAllocated(arena, size) : new AutoAllocated(size);
     }
 
     /** Set the memory used by this structure.  This method is used to
@@ -312,7 +335,9 @@ public abstract class Structure {
     void useMemory(Pointer m, int offset, boolean force) {
         try {
             // Clear any local cache
-            nativeStrings.clear();
+            if (nativeStrings != null) {
+                Arrays.fill(nativeStrings, null);
+            }
 
             if (this instanceof ByValue && !force) {
                 // ByValue parameters always use dedicated memory, so only
@@ -320,8 +345,17 @@ public abstract class Structure {
                 byte[] buf = new byte[size()];
                 m.read(0, buf, 0, buf.length);
                 this.memory.write(0, buf, 0, buf.length);
+                clearSyncedValues();
             }
             else {
+                // Values last synched remain valid only if the structure
+                // stays at the same place in the same memory, e.g. when
+                // nested by value; new memory may reuse a freed address
+                if (this.memory == null || m != this.memorySource
+                    || Pointer.nativeValue(this.memory) != Pointer.nativeValue(m) + offset) {
+                    clearSyncedValues();
+                }
+                this.memorySource = m;
                 // Ensure our memory pointer is initialized, even if we can't
                 // yet figure out a proper size/layout
                 this.memory = m.share(offset);
@@ -401,6 +435,7 @@ public abstract class Structure {
             if (this.memory == null
                 || this.memory instanceof AutoAllocated) {
                 this.memory = autoAllocate(size);
+                clearSyncedValues();
             }
             this.size = size;
         }
@@ -418,6 +453,7 @@ public abstract class Structure {
     public void clear() {
         ensureAllocated();
         memory.clear(size());
+        clearSyncedValues();
     }
 
     /** Return a {@link Pointer} object to this structure.  Note that if you
@@ -551,6 +587,13 @@ public abstract class Structure {
         // allocateMemory in a ctor
         ensureAllocated();
 
+        // Only structures which may link to other structures need to guard
+        // against redundant reads
+        if (!isLinked()) {
+            readFields();
+            return;
+        }
+
         // Avoid redundant reads
         if (busy().contains(this)) {
             return;
@@ -560,10 +603,7 @@ public abstract class Structure {
             reading().put(getPointer(), this);
         }
         try {
-            for (Iterator i=fields().values().iterator();i.hasNext();) {
-                StructField structField = (StructField)i.next();
-                readField(structField);
-            }
+            readFields();
         }
         finally {
             busy().remove(this);
@@ -573,6 +613,35 @@ public abstract class Structure {
         }
     }
 
+    private void readFields() {
+        StructureAccessor accessor = getAccessor();
+        if (accessor != null) {
+            accessor.readFields(this, memory);
+            StructField[] others = accessor.otherReads;
+            for (int i=0;i < others.length;i++) {
+                readField(others[i]);
+            }
+        }
+        else {
+            for (Iterator i=fields().values().iterator();i.hasNext();) {
+                StructField structField = (StructField)i.next();
+                readField(structField);
+            }
+        }
+        if (dirtyTracking) {
+            for (Iterator i=fields().values().iterator();i.hasNext();) {
+                synched((StructField)i.next());
+            }
+        }
+    }
+
+    /** Whether this structure's layout includes fields which refer to
+     * other structures, and hence possibly to this one.
+     */
+    private boolean isLinked() {
+        return layout == null || layout.linked;
+    }
+
     /** Returns the calculated offset of the given field.
      * @param name field to examine
      * @return return offset of the given field
@@ -596,7 +665,9 @@ public abstract class Structure {
         StructField f = (StructField)fields().get(name);
         if (f == null)
             throw new IllegalArgumentException("No such field: " + name);
-        return readField(f);
+        Object value = readField(f);
+        synched(f);
+        return value;
     }
 
     /** Obtain the value currently in the Java field.  Does not read from
@@ -713,8 +784,10 @@ public abstract class Structure {
 
         if (fieldType.equals(String.class)
             || fieldType.equals(WString.class)) {
-            nativeStrings.put(structField.name + ".ptr", memory.getPointer(offset));
-            nativeStrings.put(structField.name + ".val", result);
+            Object[] slots = stringSlots(structField);
+            int slot = structField.index * STRING_SLOTS;
+            slots[slot + STRING_POINTER] = memory.getPointer(offset);
+            slots[slot + STRING_VALUE] = result;
         }
 
         // Update the value on the Java field
@@ -722,6 +795,26 @@ public abstract class Structure {
         return result;
     }
 
+    // Per-field entries in nativeStrings: the allocated native string, and
+    // the native pointer and value last read
+    private static final int STRING_SLOTS = 3;
+    private static final int STRING_MEMORY = 0;
+    private static final int STRING_POINTER = 1;
+    private static final int STRING_VALUE = 2;
+
+    /** Returns the native string slots, allocating them if needed. */
+    private Object[] stringSlots(StructField structField) {
+        int size = Math.max(fields().size(), structField.index + 1) * STRING_SLOTS;
+        if (nativeStrings == null || nativeStrings.length < size) {
+            Object[] slots = new Object[size];
+            if (nativeStrings != null) {
+                System.arraycopy(nativeStrings, 0, slots, 0, nativeStrings.length);
+            }
+            nativeStrings = slots;
+        }
+        return nativeStrings;
+    }
+
     /**
      * Writes the fields of the struct to native memory
      */
@@ -741,12 +834,38 @@ public abstract class Structure {
             getTypeInfo();
         }
 
+        if (!isLinked()) {
+            writeFields();
+            return;
+        }
+
         // Avoid redundant writes
         if (busy().contains(this)) {
             return;
         }
         busy().add(this);
         try {
+            writeFields();
+        }
+        finally {
+            busy().remove(this);
+        }
+    }
+
+    private void writeFields() {
+        if (dirtyTracking) {
+            writeChangedFields();
+            return;
+        }
+        StructureAccessor accessor = getAccessor();
+        if (accessor != null) {
+            accessor.writeFields(this, memory);
+            StructField[] others = accessor.otherWrites;
+            for (int i=0;i < others.length;i++) {
+                writeField(others[i]);
+            }
+        }
+        else {
             // Write all fields, except those marked 'volatile'
             for (Iterator i=fields().values().iterator();i.hasNext();) {
                 StructField sf = (StructField)i.next();
@@ -755,11 +874,143 @@ public abstract class Structure {
                 }
             }
         }
-        finally {
-            busy().remove(this);
+    }
+
+    /** Write only those fields whose Java values differ from the values
+     * last synched with native memory.
+     */
+    private void writeChangedFields() {
+        for (Iterator i=fields().values().iterator();i.hasNext();) {
+            StructField sf = (StructField)i.next();
+            if (sf.isVolatile) {
+                continue;
+            }
+            Object value = getFieldValue(sf.field);
+            Object last = syncedValues != null && sf.index < syncedValues.length
+                ? syncedValues[sf.index] : null;
+            if (last != null && isUnchanged(value, last)) {
+                continue;
+            }
+            // Nested structures written in place skip their own
+            // unchanged fields
+            if (value instanceof Structure && !(value instanceof ByReference)) {
+                ((Structure)value).setDirtyTracking(true);
+            }
+            else if (value instanceof Structure[]
+                     && !ByReference.class.isAssignableFrom(value.getClass().getComponentType())) {
+                Structure[] array = (Structure[])value;
+                for (int j=0;j < array.length;j++) {
+                    if (array[j] != null) {
+                        array[j].setDirtyTracking(true);
+                    }
+                }
+            }
+            writeField(sf);
+            synched(sf);
         }
     }
 
+    /** Record the current Java value of the given field as being in synch
+     * with native memory.
+     */
+    private void synched(StructField structField) {
+        if (!dirtyTracking) {
+            return;
+        }
+        int size = Math.max(fields().size(), structField.index + 1);
+        if (syncedValues == null || syncedValues.length < size) {
+            Object[] values = new Object[size];
+            if (syncedValues != null) {
+                System.arraycopy(syncedValues, 0, values, 0, syncedValues.length);
+            }
+            syncedValues = values;
+        }
+        syncedValues[structField.index] = snapshot(getFieldValue(structField.field));
+    }
+
+    private void clearSyncedValues() {
+        if (syncedValues != null) {
+            Arrays.fill(syncedValues, null);
+        }
+    }
+
+    // Stands in for a null field value in syncedValues
+    private static final Object NULL_VALUE = new Object();
+
+    /** Returns an immutable copy of the given field value suitable for
+     * later comparison, or <code>null</code> if changes to the value can't
+     * be detected, in which case the field is always written.
+     */
+    private static Object snapshot(Object value) {
+        if (value == null) {
+            return NULL_VALUE;
+        }
+        Class cls = value.getClass();
+        if (cls == Integer.class || cls == Long.class || cls == Short.class
+            || cls == Byte.class || cls == Character.class || cls == Boolean.class
+            || cls == Float.class || cls == Double.class
+            || cls == String.class || cls == WString.class) {
+            return value;
+        }
+        if (value instanceof IntegerType) {
+            return new Long(((IntegerType)value).longValue());
+        }
+        if (value instanceof Pointer) {
+            return new Long(Pointer.nativeValue((Pointer)value));
+        }
+        if (cls.isArray() && cls.getComponentType().isPrimitive()) {
+            int length = Array.getLength(value);
+            Object copy = Array.newInstance(cls.getComponentType(), length);
+            System.arraycopy(value, 0, copy, 0, length);
+            return copy;
+        }
+        return null;
+    }
+
+    /** Whether the given field value matches its earlier snapshot. */
+    private static boolean isUnchanged(Object value, Object last) {
+        if (last == NULL_VALUE || value == null) {
+            return last == NULL_VALUE && value == null;
+        }
+        if (value instanceof IntegerType) {
+            return last.equals(new Long(((IntegerType)value).longValue()));
+        }
+        if (value instanceof Pointer) {
+            return last.equals(new Long(Pointer.nativeValue((Pointer)value)));
+        }
+        if (value.getClass().isArray()) {
+            if (value.getClass() != last.getClass()) {
+                return false;
+            }
+            if (value instanceof byte[]) {
+                return Arrays.equals((byte[])value, (byte[])last);
+            }
+            if (value instanceof short[]) {
+                return Arrays.equals((short[])value, (short[])last);
+            }
+            if (value instanceof char[]) {
+                return Arrays.equals((char[])value, (char[])last);
+            }
+            if (value instanceof int[]) {
+                return Arrays.equals((int[])value, (int[])last);
+            }
+            if (value instanceof long[]) {
+                return Arrays.equals((long[])value, (long[])last);
+            }
+            if (value instanceof float[]) {
+                return Arrays.equals((float[])value, (float[])last);
+            }
+            if (value instanceof double[]) {
+                return Arrays.equals((double[])value, (double[])last);
+            }
+            if (value instanceof boolean[]) {
+                return Arrays.equals((boolean[])value, (boolean[])last);
+            }
+            return false;
+        }
+        return value.getClass() == last.getClass() && value.equals(last);
+    }
+
     /** Write the given field to native memory.  The current value in the Java
      * field will be translated into native memory.
      * @param name which field to synch
@@ -771,6 +1022,7 @@ public abstract class Structure {
         if (f == null)
             throw new IllegalArgumentException("No such field: " + name);
         writeField(f);
+        synched(f);
     }
 
     /** Write the given field value to the field and native memory.   The
@@ -787,6 +1039,7 @@ public abstract class Structure {
             throw new IllegalArgumentException("No such field: " + name);
         setFieldValue(structField.field, value);
         writeField(structField);
+        synched(structField);
     }
 
     /**
@@ -816,11 +1069,12 @@ public abstract class Structure {
             || WString.class == fieldType) {
             // Allocate a new string in memory
             boolean wide = fieldType == WString.class;
+            Object[] slots = stringSlots(structField);
+            int slot = structField.index * STRING_SLOTS;
             if (value != null) {
                 // If we've already allocated a native string here, and the
                 // string value is unchanged, leave it alone
-                if (nativeStrings.containsKey(structField.name + ".ptr")
-                    && value.equals(nativeStrings.get(structField.name + ".val"))) {
+                if (value.equals(slots[slot + STRING_VALUE])) {
                     return;
                 }
                 NativeString nativeString = wide
@@ -828,14 +1082,14 @@ public abstract class Structure {
                     : new NativeString(value.toString(), encoding);
                 // Keep track of allocated C strings to avoid
                 // premature garbage collection of the memory.
-                nativeStrings.put(structField.name, nativeString);
+                slots[slot + STRING_MEMORY] = nativeString;
                 value = nativeString.getPointer();
             }
             else {
-                nativeStrings.remove(structField.name);
+                slots[slot + STRING_MEMORY] = null;
             }
-            nativeStrings.remove(structField.name + ".ptr");
-            nativeStrings.remove(structField.name + ".val");
+            slots[slot + STRING_POINTER] = null;
+            slots[slot + STRING_VALUE] = null;
         }
 
         try {
@@ -930,14 +1184,11 @@ public abstract class Structure {
      * @return (cached) ordered list of fields
      */
     private List fieldOrder() {
-        synchronized(fieldOrder) {
-            List list = (List)fieldOrder.get(getClass());
-            if (list == null) {
-                list = getFieldOrder();
-                fieldOrder.put(getClass(), list);
-            }
-            return list;
+        List list = (List)fieldOrder.get(getClass());
+        if (list == null) {
+            list = (List)fieldOrder.putIfAbsent(getClass(), getFieldOrder());
         }
+        return list;
     }
 
     private List sort(Collection c) {
@@ -1020,10 +1271,7 @@ public abstract class Structure {
      * @return native size of the Structure subclass
      */
     static int size(Class type, Structure value) {
-        LayoutInfo info;
-        synchronized(layoutInfo) {
-            info = (LayoutInfo)layoutInfo.get(type);
-        }
+        LayoutInfo info = (LayoutInfo)layoutInfo.get(type);
         int sz = (info != null && !info.variable) ? info.size : CALCULATE_SIZE;
         if (sz == CALCULATE_SIZE) {
             if (value == null) {
@@ -1043,10 +1291,7 @@ public abstract class Structure {
      */
     int calculateSize(boolean force, boolean avoidFFIType) {
         int size = CALCULATE_SIZE;
-        LayoutInfo info;
-        synchronized(layoutInfo) {
-            info = (LayoutInfo)layoutInfo.get(getClass());
-        }
+        LayoutInfo info = (LayoutInfo)layoutInfo.get(getClass());
         if (info == null
             || this.alignType != info.alignType
             || this.typeMapper != info.typeMapper) {
@@ -1055,19 +1300,20 @@ public abstract class Structure {
         if (info != null) {
             this.structAlignment = info.alignment;
             this.structFields = info.fields;
+            this.layout = info;
 
             if (!info.variable) {
-                synchronized(layoutInfo) {
-                    // If we've already cached it, only override layout if
-                    // we're using non-default values for alignment and/or
-                    // type mapper; this way we don't override the cache
-                    // prematurely when processing subclasses that call
-                    // setAlignType() or setTypeMapper() in the constructor
-                    if (!layoutInfo.containsKey(getClass())
-                        || this.alignType != ALIGN_DEFAULT
-                        || this.typeMapper != null) {
-                        layoutInfo.put(getClass(), info);
-                    }
+                // If we've already cached it, only override layout if
+                // we're using non-default values for alignment and/or
+                // type mapper; this way we don't override the cache
+                // prematurely when processing subclasses that call
+                // setAlignType() or setTypeMapper() in the constructor
+                Object cached = layoutInfo.get(getClass());
+                if (cached == null
+                    || (cached != info
+                        && (this.alignType != ALIGN_DEFAULT
+                            || this.typeMapper != null))) {
+                    layoutInfo.put(getClass(), info);
                 }
             }
             size = info.size;
@@ -1081,12 +1327,38 @@ public abstract class Structure {
     private static class LayoutInfo {
         private int size = CALCULATE_SIZE;
         private int alignment = 1;
-        private final Map fields = Collections.synchronizedMap(new LinkedHashMap());
+        // Made unmodifiable once the layout is complete
+        private Map fields = new LinkedHashMap();
         private int alignType = ALIGN_DEFAULT;
         private TypeMapper typeMapper;
         private boolean variable;
         // For unions only, field on which the union FFI type info is based
         private StructField typeInfoField;
+        // Whether any field refers to another structure
+        private boolean linked;
+        // Generated field accessor, if any, once looked up
+        private volatile boolean accessorResolved;
+        private StructureAccessor accessor;
+    }
+
+    /** Returns the generated accessor for this structure's layout, or
+     * <code>null</code> if fields must be read and written individually.
+     * Accessors are only used for fixed layouts.
+     */
+    private StructureAccessor getAccessor() {
+        LayoutInfo info = layout;
+        if (info == null || info.variable || !StructureAccessor.ENABLED) {
+            return null;
+        }
+        if (!info.accessorResolved) {
+            synchronized(info) {
+                if (!info.accessorResolved) {
+                    info.accessor = StructureAccessor.getInstance(getClass(), info.fields);
+                    info.accessorResolved = true;
+                }
+            }
+        }
+        return info.accessor;
     }
 
     private void validateField(String name, Class type) {
@@ -1247,7 +1519,11 @@ public abstract class Structure {
             }
 
             // Save the field in our list
+            structField.index = info.fields.size();
             info.fields.put(structField.name, structField);
+            if (isStructureType(type) || isStructureType(nativeType)) {
+                info.linked = true;
+            }
 
             if (info.typeInfoField == null
                 || info.typeInfoField.size < structField.size
@@ -1257,6 +1533,8 @@ public abstract class Structure {
             }
         }
 
+        info.fields = Collections.unmodifiableMap(info.fields);
+
         if (calculatedSize > 0) {
             int size = addPadding(calculatedSize, info.alignment);
             // Update native FFI type information, if needed
@@ -1699,6 +1977,37 @@ public abstract class Structure {
         return this.autoWrite;
     }
 
+    /** Set whether {@link #write()} transfers only those fields whose Java
+     * values have changed since they were last read from or written to
+     * native memory.  This applies equally to automatic writes before a
+     * native function call, and may save considerable time when passing
+     * large structures of which only a few fields change between calls.
+     * <p>
+     * Changes are detected by comparing the current Java values with
+     * copies taken at the last synch; fields of primitive, primitive array,
+     * {@link String}, {@link WString}, {@link Pointer} and {@link IntegerType}
+     * types are tracked, while fields of other types are always written.
+     * Nested structures written in place inherit this setting.  Since
+     * changes made to native memory by other means are not seen, call
+     * {@link #read()} after any such change before writing the structure
+     * again.
+     * @param track whether to write only changed fields
+     */
+    public void setDirtyTracking(boolean track) {
+        if (track != this.dirtyTracking) {
+            this.dirtyTracking = track;
+            this.syncedValues = null;
+        }
+    }
+
+    /** Returns whether {@link #write()} transfers only changed fields.
+     * @return whether dirty field tracking is enabled
+     * @see #setDirtyTracking(boolean)
+     */
+    public boolean getDirtyTracking() {
+        return this.dirtyTracking;
+    }
+
     /** Exposed for testing purposes only.
      * @param obj object to query
      * @return native pointer to type information
@@ -1787,15 +2096,19 @@ public abstract class Structure {
         }
     }
 
+    private static boolean isStructureType(Class type) {
+        while (type.isArray()) {
+            type = type.getComponentType();
+        }
+        return Structure.class.isAssignableFrom(type);
+    }
+
     /** Keep track of the largest aggregate field of the union to use for
      * FFI type information.
      * @return which field to use to obtain FFI type information
      */
     StructField typeInfoField() {
-        LayoutInfo info;
-        synchronized(layoutInfo) {
-            info = (LayoutInfo)layoutInfo.get(getClass());
-        }
+        LayoutInfo info = (LayoutInfo)layoutInfo.get(getClass());
         if (info != null) {
             return info.typeInfoField;
         }
@@ -1813,6 +2126,8 @@ public abstract class Structure {
         public FromNativeConverter readConverter;
         public ToNativeConverter writeConverter;
         public FromNativeContext context;
+        /** Position of the field within its layout. */
+        int index;
         public String toString() {
             return name + "@" + offset + "[" + size + "] (" + type + ")";
         }
@@ -1826,7 +2141,7 @@ public abstract class Structure {
             public size_t() { this(0); }
             public size_t(long value) { super(Native.SIZE_T_SIZE, value); }
         }
-        private static Map typeInfoMap = new WeakHashMap();
+        private static final WeakIdentityCache typeInfoMap = new WeakIdentityCache();
         // Native.initIDs initializes these fields to their appropriate
         // pointer values.  These are in a separate class from FFIType so that
         // they may be initialized prior to loading the FFIType class
@@ -1939,13 +2254,14 @@ public abstract class Structure {
                     cls = nc.nativeType();
                 }
             }
+            Object o = typeInfoMap.get(cls);
+            if (o != null) {
+                return pointerTo(o);
+            }
             synchronized(typeInfoMap) {
-                Object o = typeInfoMap.get(cls);
-                if (o instanceof Pointer) {
-                    return (Pointer)o;
-                }
-                if (o instanceof FFIType) {
-                    return ((FFIType)o).getPointer();
+                o = typeInfoMap.get(cls);
+                if (o != null) {
+                    return pointerTo(o);
                 }
                 if ((Platform.HAS_BUFFERS && Buffer.class.isAssignableFrom(cls))
                     || Callback.class.isAssignableFrom(cls)) {
@@ -1975,14 +2291,37 @@ public abstract class Structure {
                 throw new IllegalArgumentException("Unsupported type " + cls);
             }
         }
+
+        private static Pointer pointerTo(Object typeInfo) {
+            return typeInfo instanceof FFIType
+                ? ((FFIType)typeInfo).getPointer() : (Pointer)typeInfo;
+        }
     }
 
     private static class AutoAllocated extends Memory {
+        /** Arena memory backing this object, if any. */
+        private final Memory base;
         public AutoAllocated(int size) {
             super(size);
+            this.base = null;
             // Always clear new structure memory
             super.clear();
         }
+        AutoAllocated(MemoryArena arena, int size) {
+            this.base = arena.allocate(size);
+            this.peer = base.peer;
+            this.size = size;
+            super.clear();
+        }
+        /** Arena memory is freed only with its arena. */
+        protected void dispose() {
+            if (base != null) {
+                peer = 0;
+            }
+            else {
+                super.dispose();
+            }
+        }
         public String toString() {
             return "auto-" + super.toString();
         }
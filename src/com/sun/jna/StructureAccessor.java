@@ -0,0 +1,406 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/** Base class for {@link Structure} field accessors generated at runtime.
+ * For internal use only.
+ * <p>
+ * A generated accessor copies primitive fields which need no conversion
+ * directly between native memory and the Java fields, using the typed
+ * {@link Pointer} accessors, instead of reflection and boxing through
+ * {@link Structure#readField(Structure.StructField)} and
+ * {@link Structure#writeField(Structure.StructField)}.  All other fields
+ * are left to those methods.  One accessor class is generated for each
+ * distinct layout of a structure class.
+ * <p>
+ * When primitive accesses to native memory each require a JNI call, the
+ * handled fields are instead staged: read with a single bulk transfer into
+ * a per-thread buffer and decoded from it, or encoded into the buffer and
+ * written back with one transfer per contiguous run of writable fields.
+ * Staging is used by default when direct memory access is unavailable;
+ * set the system property <code>jna.structure.staging</code> to
+ * <code>true</code> or <code>false</code> to override this.
+ * <p>
+ * Accessors are only generated for public structure classes which do not
+ * override <code>readField</code> or <code>writeField</code>.  Set the
+ * system property <code>jna.structure.accessors</code> to
+ * <code>false</code> to disable them.
+ */
+public abstract class StructureAccessor {
+
+    static final boolean ENABLED = !Platform.isAndroid()
+        && !"false".equals(System.getProperty("jna.structure.accessors"));
+
+    /** Whether handled fields are transferred through a staging buffer. */
+    static final boolean STAGING;
+    static {
+        String staging = System.getProperty("jna.structure.staging");
+        STAGING = Platform.HAS_BUFFERS
+            && (staging != null ? Boolean.valueOf(staging).booleanValue() : !UnsafeAccess.isEnabled());
+    }
+    /** Largest span of native memory staged in a single transfer. */
+    private static final int STAGING_LIMIT = 64 * 1024;
+
+    private static final String ACCESSOR_SUFFIX = "$JNAAccessor";
+
+    /** Per-thread staging buffer, in native byte order. */
+    private static final ThreadLocal stagingBuffer = new ThreadLocal();
+
+    /** Generated classes, keyed by structure class and then by layout. */
+    private static final Map accessorClasses = new WeakHashMap();
+
+    /** Fields not handled by {@link #read}, in layout order. */
+    Structure.StructField[] otherReads;
+    /** Writable fields not handled by {@link #write}, in layout order. */
+    Structure.StructField[] otherWrites;
+    /** Number of bytes spanned by the handled fields. */
+    int stagedLength;
+    /** Offsets and ends of contiguous runs of fields written by
+     * {@link #encode}, excluding any padding between them.
+     */
+    int[] runStarts;
+    int[] runEnds;
+
+    protected StructureAccessor() { }
+
+    /** Read the handled fields of the given structure from native memory. */
+    public abstract void read(Structure s, Pointer memory);
+
+    /** Write the handled fields of the given structure to native memory. */
+    public abstract void write(Structure s, Pointer memory);
+
+    /** Set the handled fields of the given structure from a buffer holding
+     * a copy of its native memory.
+     */
+    public abstract void decode(Structure s, ByteBuffer buffer);
+
+    /** Store the writable handled fields of the given structure into a
+     * buffer laid out as its native memory.
+     */
+    public abstract void encode(Structure s, ByteBuffer buffer);
+
+    /** Read the handled fields, staged if enabled. */
+    void readFields(Structure s, Pointer memory) {
+        if (STAGING && stagedLength <= STAGING_LIMIT) {
+            readStaged(s, memory);
+        }
+        else {
+            read(s, memory);
+        }
+    }
+
+    /** Write the handled fields, staged if enabled. */
+    void writeFields(Structure s, Pointer memory) {
+        if (STAGING && stagedLength <= STAGING_LIMIT) {
+            writeStaged(s, memory);
+        }
+        else {
+            write(s, memory);
+        }
+    }
+
+    /** Read the handled fields with a single transfer from native memory. */
+    void readStaged(Structure s, Pointer memory) {
+        ByteBuffer buffer = getStagingBuffer(stagedLength);
+        memory.read(0, buffer.array(), 0, stagedLength);
+        decode(s, buffer);
+    }
+
+    /** Write the handled fields with one transfer to native memory for each
+     * contiguous run of fields.
+     */
+    void writeStaged(Structure s, Pointer memory) {
+        ByteBuffer buffer = getStagingBuffer(stagedLength);
+        encode(s, buffer);
+        byte[] bytes = buffer.array();
+        for (int i=0;i < runStarts.length;i++) {
+            memory.write(runStarts[i], bytes, runStarts[i], runEnds[i] - runStarts[i]);
+        }
+    }
+
+    private static ByteBuffer getStagingBuffer(int size) {
+        ByteBuffer buffer = (ByteBuffer)stagingBuffer.get();
+        if (buffer == null || buffer.capacity() < size) {
+            int capacity = buffer == null ? 256 : buffer.capacity();
+            while (capacity < size) {
+                capacity *= 2;
+            }
+            buffer = ByteBuffer.allocate(capacity).order(ByteOrder.nativeOrder());
+            stagingBuffer.set(buffer);
+        }
+        return buffer;
+    }
+
+    /** Returns an accessor for the given structure class and field layout,
+     * or <code>null</code> if the class is not eligible or no field would
+     * benefit.
+     */
+    static StructureAccessor getInstance(Class structClass, Map fields) {
+        if (!ENABLED
+            || !LibraryStub.isPublic(structClass)
+            || overrides(structClass, "readField")
+            || overrides(structClass, "writeField")) {
+            return null;
+        }
+        List reads = new ArrayList();
+        List otherReads = new ArrayList();
+        List otherWrites = new ArrayList();
+        List runStarts = new ArrayList();
+        List runEnds = new ArrayList();
+        int stagedLength = 0;
+        boolean inRun = false;
+        StringBuilder key = new StringBuilder();
+        for (Iterator i=fields.values().iterator();i.hasNext();) {
+            Structure.StructField sf = (Structure.StructField)i.next();
+            if (isDirect(sf)) {
+                reads.add(sf);
+                key.append(sf.name).append('@').append(sf.offset);
+                key.append(sf.isVolatile ? ';' : ',');
+                int end = sf.offset + sf.size;
+                stagedLength = Math.max(stagedLength, end);
+                if (!sf.isVolatile) {
+                    // Padding is never encoded, so a gap ends the run
+                    int last = runEnds.size() - 1;
+                    int runEnd = inRun ? ((Integer)runEnds.get(last)).intValue() : -1;
+                    if (inRun && sf.offset <= runEnd) {
+                        runEnds.set(last, new Integer(Math.max(runEnd, end)));
+                    }
+                    else {
+                        runStarts.add(new Integer(sf.offset));
+                        runEnds.add(new Integer(end));
+                    }
+                }
+                inRun = !sf.isVolatile;
+            }
+            else {
+                otherReads.add(sf);
+                if (!sf.isVolatile && !sf.isReadOnly) {
+                    otherWrites.add(sf);
+                }
+                inRun = false;
+            }
+        }
+        if (reads.isEmpty()) {
+            return null;
+        }
+        Class cls = getAccessorClass(structClass, key.toString(), reads);
+        if (cls == null) {
+            return null;
+        }
+        try {
+            StructureAccessor accessor = (StructureAccessor)cls.newInstance();
+            accessor.otherReads = (Structure.StructField[])
+                otherReads.toArray(new Structure.StructField[otherReads.size()]);
+            accessor.otherWrites = (Structure.StructField[])
+                otherWrites.toArray(new Structure.StructField[otherWrites.size()]);
+            accessor.stagedLength = stagedLength;
+            accessor.runStarts = toArray(runStarts);
+            accessor.runEnds = toArray(runEnds);
+            return accessor;
+        }
+        catch(Exception e) {
+            return null;
+        }
+    }
+
+    private static int[] toArray(List list) {
+        int[] array = new int[list.size()];
+        for (int i=0;i < array.length;i++) {
+            array[i] = ((Integer)list.get(i)).intValue();
+        }
+        return array;
+    }
+
+    /** Whether the given field may be copied directly. */
+    private static boolean isDirect(Structure.StructField sf) {
+        Class type = sf.type;
+        return sf.readConverter == null
+            && sf.writeConverter == null
+            && !sf.isReadOnly
+            && Modifier.isPublic(sf.field.getModifiers())
+            && LibraryStub.isPublic(sf.field.getDeclaringClass())
+            && (type == byte.class || type == short.class
+                || type == char.class || type == int.class
+                || type == long.class || type == float.class
+                || type == double.class);
+    }
+
+    /** Whether a subclass replaces the given per-field method. */
+    private static boolean overrides(Class structClass, String name) {
+        for (Class cls=structClass;cls != Structure.class;cls = cls.getSuperclass()) {
+            try {
+                cls.getDeclaredMethod(name, new Class[] { Structure.StructField.class });
+                return true;
+            }
+            catch(NoSuchMethodException e) {
+            }
+        }
+        return false;
+    }
+
+    private static Class getAccessorClass(Class structClass, String key, List fields) {
+        synchronized(accessorClasses) {
+            Map byLayout = (Map)accessorClasses.get(structClass);
+            if (byLayout == null) {
+                byLayout = new HashMap();
+                accessorClasses.put(structClass, byLayout);
+            }
+            Reference ref = (Reference)byLayout.get(key);
+            Class cls = ref != null ? (Class)ref.get() : null;
+            if (cls == null) {
+                ClassLoader parent = structClass.getClassLoader();
+                try {
+                    // The generated class must resolve the same base class
+                    if (parent == null
+                        || Class.forName(StructureAccessor.class.getName(), false, parent) != StructureAccessor.class) {
+                        return null;
+                    }
+                }
+                catch(ClassNotFoundException e) {
+                    return null;
+                }
+                String name = structClass.getName() + ACCESSOR_SUFFIX + byLayout.size();
+                try {
+                    byte[] bytes = generate(name, structClass, fields);
+                    cls = new LibraryStub.StubLoader(parent).define(name, bytes);
+                }
+                catch(LinkageError e) {
+                    return null;
+                }
+                byLayout.put(key, new WeakReference(cls));
+            }
+            return cls;
+        }
+    }
+
+    /** Generate an accessor class for the given directly copied fields. */
+    static byte[] generate(String name, Class structClass, List fields) {
+        final String base = ClassFileWriter.internalName(StructureAccessor.class);
+        ClassFileWriter cw = new ClassFileWriter(name, base, new String[0]);
+        cw.method(ClassFileWriter.ACC_PUBLIC, "<init>", "()V")
+            .load(Object.class, 0)
+            .invoke(ClassFileWriter.INVOKESPECIAL, base, "<init>", "()V")
+            .op(ClassFileWriter.RETURN)
+            .end(1, 1);
+
+        generateTransfer(cw, structClass, fields, true);
+        generateTransfer(cw, structClass, fields, false);
+        generateCoding(cw, structClass, fields, true);
+        generateCoding(cw, structClass, fields, false);
+        return cw.toByteArray();
+    }
+
+    /** Generate <code>read</code> or <code>write</code>, which copy each
+     * field with the typed {@link Pointer} accessors.
+     */
+    private static void generateTransfer(ClassFileWriter cw, Class structClass, List fields, boolean read) {
+        final String pointer = ClassFileWriter.internalName(Pointer.class);
+        String desc = ClassFileWriter.methodDescriptor(new Class[] {
+            Structure.class, Pointer.class
+        }, void.class);
+        ClassFileWriter.Code code =
+            cw.method(ClassFileWriter.ACC_PUBLIC, read ? "read" : "write", desc);
+        code.load(Object.class, 1)
+            .type(ClassFileWriter.CHECKCAST, structClass)
+            .store(Object.class, 3);
+        for (Iterator i=fields.iterator();i.hasNext();) {
+            Structure.StructField sf = (Structure.StructField)i.next();
+            if (!read && sf.isVolatile) {
+                continue;
+            }
+            String owner = ClassFileWriter.internalName(sf.field.getDeclaringClass());
+            String sig = Native.getSignature(sf.type);
+            String accessor = capitalize(sf.type.getName());
+            if (read) {
+                code.load(Object.class, 3)
+                    .load(Object.class, 2)
+                    .push(sf.offset)
+                    .op(ClassFileWriter.I2L)
+                    .invoke(ClassFileWriter.INVOKEVIRTUAL, pointer, "get" + accessor, "(J)" + sig)
+                    .field(ClassFileWriter.PUTFIELD, owner, sf.name, sig);
+            }
+            else {
+                code.load(Object.class, 2)
+                    .push(sf.offset)
+                    .op(ClassFileWriter.I2L)
+                    .load(Object.class, 3)
+                    .field(ClassFileWriter.GETFIELD, owner, sf.name, sig)
+                    .invoke(ClassFileWriter.INVOKEVIRTUAL, pointer, "set" + accessor, "(J" + sig + ")V");
+            }
+        }
+        code.op(ClassFileWriter.RETURN).end(5, 4);
+    }
+
+    /** Generate <code>decode</code> or <code>encode</code>, which copy each
+     * field with the absolute {@link ByteBuffer} accessors.  A
+     * <code>wchar_t</code> wider than a Java <code>char</code> is
+     * transferred as an <code>int</code>.
+     */
+    private static void generateCoding(ClassFileWriter cw, Class structClass, List fields, boolean decode) {
+        final String buffer = ClassFileWriter.internalName(ByteBuffer.class);
+        final String bufferSig = Native.getSignature(ByteBuffer.class);
+        String desc = ClassFileWriter.methodDescriptor(new Class[] {
+            Structure.class, ByteBuffer.class
+        }, void.class);
+        ClassFileWriter.Code code =
+            cw.method(ClassFileWriter.ACC_PUBLIC, decode ? "decode" : "encode", desc);
+        code.load(Object.class, 1)
+            .type(ClassFileWriter.CHECKCAST, structClass)
+            .store(Object.class, 3);
+        for (Iterator i=fields.iterator();i.hasNext();) {
+            Structure.StructField sf = (Structure.StructField)i.next();
+            if (!decode && sf.isVolatile) {
+                continue;
+            }
+            String owner = ClassFileWriter.internalName(sf.field.getDeclaringClass());
+            String sig = Native.getSignature(sf.type);
+            boolean wideChar = sf.type == char.class && Native.WCHAR_SIZE != 2;
+            Class codedType = wideChar ? int.class : sf.type;
+            String codedSig = Native.getSignature(codedType);
+            String accessor = codedType == byte.class ? "" : capitalize(codedType.getName());
+            if (decode) {
+                code.load(Object.class, 3)
+                    .load(Object.class, 2)
+                    .push(sf.offset)
+                    .invoke(ClassFileWriter.INVOKEVIRTUAL, buffer, "get" + accessor, "(I)" + codedSig);
+                if (wideChar) {
+                    code.op(ClassFileWriter.I2C);
+                }
+                code.field(ClassFileWriter.PUTFIELD, owner, sf.name, sig);
+            }
+            else {
+                code.load(Object.class, 2)
+                    .push(sf.offset)
+                    .load(Object.class, 3)
+                    .field(ClassFileWriter.GETFIELD, owner, sf.name, sig)
+                    .invoke(ClassFileWriter.INVOKEVIRTUAL, buffer, "put" + accessor, "(I" + codedSig + ")" + bufferSig)
+                    .op(ClassFileWriter.POP);
+            }
+        }
+        code.op(ClassFileWriter.RETURN).end(5, 4);
+    }
+
+    private static String capitalize(String s) {
+        return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+    }
+}
@@ -0,0 +1,150 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.reflect.Field;
+
+import sun.misc.Unsafe;
+
+/** Reads and writes primitive values in native memory directly, using
+ * <code>sun.misc.Unsafe</code> where the VM provides it, so that simple
+ * loads and stores compile to machine instructions instead of JNI calls.
+ * <p>
+ * Direct access is only {@link #ENABLED} on architectures which tolerate
+ * unaligned accesses, and is suspended while {@link Native#isProtected
+ * protected mode} is on, since invalid accesses crash the VM instead of
+ * throwing an {@link Error}.  Set the system property
+ * <code>jna.unsafe</code> to <code>false</code> to always use JNI.
+ */
+final class UnsafeAccess {
+
+    /** Whether <code>Unsafe</code> memory access is available in this VM. */
+    static final boolean AVAILABLE;
+    /** Whether {@link Pointer} accessors may use direct access, when not
+     * in protected mode.
+     */
+    static final boolean ENABLED;
+
+    /** Tracks {@link Native#setProtected}; read on every access so that
+     * protection takes effect immediately.
+     */
+    private static volatile boolean protectedMode = Boolean.getBoolean("jna.protected");
+
+    private static final Unsafe UNSAFE;
+
+    static {
+        Unsafe unsafe = null;
+        if (!Platform.isAndroid()
+            && (Platform.isIntel() || "aarch64".equals(Platform.ARCH))) {
+            try {
+                Field f = Unsafe.class.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                unsafe = (Unsafe)f.get(null);
+                // Ensure the address-based accessors are present
+                Unsafe.class.getMethod("getLong", new Class[] { long.class });
+                Unsafe.class.getMethod("putAddress", new Class[] { long.class, long.class });
+            }
+            catch(Throwable t) {
+                unsafe = null;
+            }
+        }
+        UNSAFE = unsafe;
+        AVAILABLE = unsafe != null;
+        ENABLED = AVAILABLE
+            && !"false".equals(System.getProperty("jna.unsafe"));
+    }
+
+    private UnsafeAccess() { }
+
+    /** Returns whether {@link Pointer} accessors should currently use
+     * direct access.
+     */
+    static boolean isEnabled() {
+        return ENABLED && !protectedMode;
+    }
+
+    /** Called when protected mode is changed. */
+    static void setProtected(boolean enable) {
+        protectedMode = enable;
+    }
+
+    static byte getByte(long addr) {
+        return UNSAFE.getByte(addr);
+    }
+
+    /** Reads a native <code>wchar_t</code>. */
+    static char getChar(long addr) {
+        return Native.WCHAR_SIZE == 2 ? UNSAFE.getChar(addr) : (char)UNSAFE.getInt(addr);
+    }
+
+    static short getShort(long addr) {
+        return UNSAFE.getShort(addr);
+    }
+
+    static int getInt(long addr) {
+        return UNSAFE.getInt(addr);
+    }
+
+    static long getLong(long addr) {
+        return UNSAFE.getLong(addr);
+    }
+
+    static float getFloat(long addr) {
+        return UNSAFE.getFloat(addr);
+    }
+
+    static double getDouble(long addr) {
+        return UNSAFE.getDouble(addr);
+    }
+
+    static Pointer getPointer(long addr) {
+        long p = UNSAFE.getAddress(addr);
+        return p == 0 ? null : new Pointer(p);
+    }
+
+    static void setByte(long addr, byte value) {
+        UNSAFE.putByte(addr, value);
+    }
+
+    /** Writes a native <code>wchar_t</code>. */
+    static void setChar(long addr, char value) {
+        if (Native.WCHAR_SIZE == 2) {
+            UNSAFE.putChar(addr, value);
+        }
+        else {
+            UNSAFE.putInt(addr, value);
+        }
+    }
+
+    static void setShort(long addr, short value) {
+        UNSAFE.putShort(addr, value);
+    }
+
+    static void setInt(long addr, int value) {
+        UNSAFE.putInt(addr, value);
+    }
+
+    static void setLong(long addr, long value) {
+        UNSAFE.putLong(addr, value);
+    }
+
+    static void setFloat(long addr, float value) {
+        UNSAFE.putFloat(addr, value);
+    }
+
+    static void setDouble(long addr, double value) {
+        UNSAFE.putDouble(addr, value);
+    }
+
+    static void setPointer(long addr, long value) {
+        UNSAFE.putAddress(addr, value);
+    }
+}
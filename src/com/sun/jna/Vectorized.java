@@ -0,0 +1,42 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Marks a {@link Library} method which invokes a scalar native function
+ * once for each element of its array arguments, with the loop running in
+ * native code.  Each parameter is either a primitive array, supplying one
+ * value per call, or a primitive value passed to every call.  If
+ * {@link #hasResult} is <code>true</code>, the last parameter is a
+ * primitive array receiving the result of each call.  The method itself
+ * must return <code>void</code>.
+ * <p>
+ * For example, to compute the cosine of every element of an array:
+ * <pre><code>
+ * public interface MathLibrary extends Library {
+ *     &#64;Vectorized("cos")
+ *     void cos(double[] x, double[] result);
+ * }
+ * </code></pre>
+ * @see Function#invokeVectorized(Class, Class[], Object[], Object, int)
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Vectorized {
+    /** Name of the native function; defaults to the method name. */
+    String value() default "";
+    /** Whether the last parameter receives the results. */
+    boolean hasResult() default true;
+}
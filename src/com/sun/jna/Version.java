@@ -13,5 +13,5 @@
 package com.sun.jna;
 interface Version {
     String VERSION = "4.2.0";
-    String VERSION_NATIVE = "4.0.1";
+    String VERSION_NATIVE = "4.1.0";
 }
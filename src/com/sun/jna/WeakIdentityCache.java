@@ -0,0 +1,130 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.ref.WeakReference;
+
+/** A cache keyed by object identity, typically a {@link Class}, which
+ * holds its keys weakly and whose lookups take no locks.
+ * <p>
+ * Entries are immutable and held in an open-addressed table which is
+ * replaced as a whole on each update, so readers always see a consistent,
+ * safely published table.  Updates are synchronized on the cache and cost
+ * time proportional to its size, which suits caches written once per key
+ * and read many times.  Entries whose keys have been collected are dropped
+ * on the next update.  As with {@link java.util.WeakHashMap}, a value which
+ * strongly refers to its key keeps the key reachable.
+ */
+final class WeakIdentityCache {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private static final class Entry extends WeakReference {
+        final int hash;
+        final Object value;
+        Entry(Object key, int hash, Object value) {
+            super(key);
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    private volatile Entry[] table = new Entry[MIN_CAPACITY];
+
+    private static int hash(Object key) {
+        int h = System.identityHashCode(key);
+        // Spread the bits, since identity hashes may cluster
+        return h ^ (h >>> 16);
+    }
+
+    /** Returns the value for the given key, or <code>null</code> if none. */
+    Object get(Object key) {
+        Entry[] tab = table;
+        int mask = tab.length - 1;
+        for (int i=hash(key) & mask;;i = (i + 1) & mask) {
+            Entry e = tab[i];
+            if (e == null) {
+                return null;
+            }
+            if (e.get() == key) {
+                return e.value;
+            }
+        }
+    }
+
+    /** Set the value for the given key, replacing any existing value. */
+    synchronized void put(Object key, Object value) {
+        rebuild(key, value);
+    }
+
+    /** Set the value for the given key unless one is already present.
+     * @return the value now associated with the key
+     */
+    synchronized Object putIfAbsent(Object key, Object value) {
+        Object existing = get(key);
+        if (existing != null) {
+            return existing;
+        }
+        rebuild(key, value);
+        return value;
+    }
+
+    /** Returns the number of entries, including any whose keys have been
+     * collected since the last update.
+     */
+    int size() {
+        Entry[] tab = table;
+        int count = 0;
+        for (int i=0;i < tab.length;i++) {
+            if (tab[i] != null) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /** Publish a new table holding all live entries except any for the
+     * given key, plus the given mapping.
+     */
+    private void rebuild(Object key, Object value) {
+        Entry[] old = table;
+        int live = 1;
+        for (int i=0;i < old.length;i++) {
+            Object k = old[i] != null ? old[i].get() : null;
+            if (k != null && k != key) {
+                ++live;
+            }
+        }
+        int capacity = MIN_CAPACITY;
+        while (capacity < live * 2) {
+            capacity <<= 1;
+        }
+        Entry[] tab = new Entry[capacity];
+        for (int i=0;i < old.length;i++) {
+            Entry e = old[i];
+            Object k = e != null ? e.get() : null;
+            if (k != null && k != key) {
+                insert(tab, e);
+            }
+        }
+        insert(tab, new Entry(key, hash(key), value));
+        table = tab;
+    }
+
+    private static void insert(Entry[] tab, Entry e) {
+        int mask = tab.length - 1;
+        int i = e.hash & mask;
+        while (tab[i] != null) {
+            i = (i + 1) & mask;
+        }
+        tab[i] = e;
+    }
+}
@@ -0,0 +1,214 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class AsyncLibraryTest extends TestCase {
+
+    public static class Int32 extends Structure {
+        public int value;
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "value" });
+        }
+    }
+
+    public interface AsyncLibrary extends Library {
+        interface Int32Callback extends Callback {
+            int callback(int arg, int arg2);
+        }
+        Future<Integer> returnInt32Argument(int arg);
+        Future<Long> returnInt64Argument(long arg);
+        Future<Integer> callInt32Callback(Int32Callback c, int arg, int arg2);
+        Future<Void> incrementInt32ByReference(Int32 arg);
+        double returnDoubleArgument(double arg);
+        Future returnFloatArgument(float arg);
+    }
+
+    public interface OffloadLibrary extends Library {
+        @OffloadVirtualThreads
+        int callInt32Callback(AsyncLibrary.Int32Callback c, int arg, int arg2);
+        @OffloadVirtualThreads(false)
+        int returnInt32Argument(int arg);
+        @OffloadVirtualThreads
+        long returnInt64Argument(long arg);
+    }
+
+    private static AsyncLibrary load(Map options) {
+        return (AsyncLibrary)Native.loadLibrary("testlib", AsyncLibrary.class, options);
+    }
+
+    public void testAsyncResult() throws Exception {
+        AsyncLibrary lib = load(new HashMap());
+        Future<Integer> i = lib.returnInt32Argument(42);
+        Future<Long> l = lib.returnInt64Argument(0x123456789ABCDEFL);
+        assertEquals("Wrong int result", new Integer(42), i.get());
+        assertEquals("Wrong long result", new Long(0x123456789ABCDEFL), l.get());
+    }
+
+    public void testCallRunsOnWorkerThread() throws Exception {
+        AsyncLibrary lib = load(new HashMap());
+        final Thread[] thread = { null };
+        AsyncLibrary.Int32Callback cb = new AsyncLibrary.Int32Callback() {
+            public int callback(int arg, int arg2) {
+                thread[0] = Thread.currentThread();
+                return arg + arg2;
+            }
+        };
+        assertEquals("Wrong callback result", new Integer(3), lib.callInt32Callback(cb, 1, 2).get());
+        assertNotSame("Native call should not run on the caller", Thread.currentThread(), thread[0]);
+        assertTrue("Worker should be a daemon thread", thread[0].isDaemon());
+        assertTrue("Wrong worker thread name: " + thread[0].getName(),
+                   thread[0].getName().startsWith("JNA async"));
+    }
+
+    public void testStructureReadOnWorker() throws Exception {
+        AsyncLibrary lib = load(new HashMap());
+        Int32 s = new Int32();
+        s.value = 41;
+        assertNull("Void result expected", lib.incrementInt32ByReference(s).get());
+        assertEquals("Structure should be read after the call", 42, s.value);
+    }
+
+    public void testConcurrencyLimit() throws Exception {
+        Map options = new HashMap();
+        options.put(Library.OPTION_ASYNC_CONCURRENCY, new Integer(1));
+        AsyncLibrary lib = load(options);
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger max = new AtomicInteger();
+        AsyncLibrary.Int32Callback cb = new AsyncLibrary.Int32Callback() {
+            public int callback(int arg, int arg2) {
+                int n = active.incrementAndGet();
+                if (n > max.get()) {
+                    max.set(n);
+                }
+                try { Thread.sleep(20); } catch(InterruptedException e) { }
+                active.decrementAndGet();
+                return arg;
+            }
+        };
+        Future[] results = new Future[4];
+        for (int i=0;i < results.length;i++) {
+            results[i] = lib.callInt32Callback(cb, i, 0);
+        }
+        for (int i=0;i < results.length;i++) {
+            assertEquals("Wrong result " + i, new Integer(i), results[i].get());
+        }
+        assertEquals("Calls should not overlap", 1, max.get());
+    }
+
+    public void testCustomExecutor() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        Map options = new HashMap();
+        options.put(Library.OPTION_ASYNC_EXECUTOR, new Executor() {
+            public void execute(Runnable r) {
+                count.incrementAndGet();
+                r.run();
+            }
+        });
+        AsyncLibrary lib = load(options);
+        Future<Integer> f = lib.returnInt32Argument(7);
+        assertTrue("Call should have completed on the executor", f.isDone());
+        assertEquals("Wrong result", new Integer(7), f.get());
+        assertEquals("Synchronous methods should not use the executor",
+                     1.5, lib.returnDoubleArgument(1.5), 0);
+        assertEquals("Wrong executor use count", 1, count.get());
+    }
+
+    public void testUndeclaredResultType() {
+        AsyncLibrary lib = load(new HashMap());
+        try {
+            lib.returnFloatArgument(0);
+            fail("Raw Future result should be rejected");
+        }
+        catch(IllegalArgumentException e) {
+        }
+    }
+
+    private static Thread callFrom(final OffloadLibrary lib, boolean virtual) throws Exception {
+        final Thread[] thread = { null };
+        final AsyncLibrary.Int32Callback cb = new AsyncLibrary.Int32Callback() {
+            public int callback(int arg, int arg2) {
+                thread[0] = Thread.currentThread();
+                return arg + arg2;
+            }
+        };
+        final int[] result = { 0 };
+        Runnable r = new Runnable() {
+            public void run() {
+                result[0] = lib.callInt32Callback(cb, 1, 2);
+            }
+        };
+        if (virtual) {
+            Thread t = (Thread)Thread.class.getMethod("startVirtualThread", new Class[] { Runnable.class })
+                .invoke(null, new Object[] { r });
+            t.join();
+        }
+        else {
+            r.run();
+        }
+        assertEquals("Wrong callback result", 3, result[0]);
+        return thread[0];
+    }
+
+    public void testPlatformThreadCallsInline() throws Exception {
+        OffloadLibrary lib = (OffloadLibrary)
+            Native.loadLibrary("testlib", OffloadLibrary.class);
+        assertFalse("Platform thread should not be detected as virtual",
+                    Library.Handler.isVirtualThread(Thread.currentThread()));
+        assertSame("Platform thread call should be made inline",
+                   Thread.currentThread(), callFrom(lib, false));
+        assertEquals("Wrong result", 42, lib.returnInt32Argument(42));
+    }
+
+    public void testOffloadedMethodKeepsDirectPath() throws Exception {
+        OffloadLibrary lib = (OffloadLibrary)
+            Native.loadLibrary("testlib", OffloadLibrary.class);
+        Library.Handler handler = (Library.Handler)Proxy.getInvocationHandler(lib);
+        Method m = OffloadLibrary.class.getMethod("returnInt64Argument", new Class[] { long.class });
+        Library.Handler.FunctionInfo f = handler.getFunctionInfo(m);
+        assertTrue("Offloaded method should keep the direct path", f.direct);
+        assertFalse("Platform thread call should not be offloaded",
+                    Library.Handler.isOffloaded(f));
+        assertEquals("Wrong result", 42L, lib.returnInt64Argument(42));
+    }
+
+    public void testVirtualThreadCallsOffloaded() throws Exception {
+        try {
+            Thread.class.getMethod("startVirtualThread", new Class[] { Runnable.class });
+        }
+        catch(NoSuchMethodException e) {
+            // Virtual threads not supported by this VM
+            return;
+        }
+        OffloadLibrary lib = (OffloadLibrary)
+            Native.loadLibrary("testlib", OffloadLibrary.class);
+        Thread thread = callFrom(lib, true);
+        assertFalse("Native call should be made on a platform thread",
+                    Library.Handler.isVirtualThread(thread));
+        assertTrue("Wrong worker thread name: " + thread.getName(),
+                   thread.getName().startsWith("JNA async"));
+    }
+
+    public static void main(java.lang.String[] argList) {
+        junit.textui.TestRunner.run(AsyncLibraryTest.class);
+    }
+}
@@ -0,0 +1,127 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import junit.framework.TestCase;
+
+public class CallArenaTest extends TestCase {
+
+    public interface TestLibrary extends Library {
+        Pointer returnStringArgument(String s);
+        WString returnWStringArgument(WString s);
+        Pointer returnPointerArgument(String[] s);
+    }
+
+    public interface RetainingLibrary extends Library {
+        Pointer returnStringArgument(@Retained String s);
+        @Retained
+        Pointer returnPointerArgument(String[] s);
+    }
+
+    public void testAllocateWithinCall() {
+        CallArena arena = new CallArena(64);
+        assertNull("No memory should be available outside a call", arena.allocate(8));
+        long mark = arena.enter();
+        Pointer p1 = arena.allocate(3);
+        Pointer p2 = arena.allocate(8);
+        assertNotNull("Memory should be available within a call", p1);
+        assertEquals("Allocations should be aligned", 8, Pointer.nativeValue(p2) - Pointer.nativeValue(p1));
+        assertTrue("Allocation should be within the arena", arena.contains(p2));
+        assertNull("Oversized request should fail", arena.allocate(64));
+        arena.exit(mark);
+        assertNull("No memory should be available after a call", arena.allocate(8));
+        mark = arena.enter();
+        assertEquals("Memory should be reclaimed after a call",
+                     Pointer.nativeValue(p1), Pointer.nativeValue(arena.allocate(8)));
+        arena.exit(mark);
+    }
+
+    public void testNestedCalls() {
+        CallArena arena = new CallArena(64);
+        long outer = arena.enter();
+        Pointer p1 = arena.allocate(8);
+        long inner = arena.enter();
+        Pointer p2 = arena.allocate(8);
+        assertFalse("Nested call should not reuse outer memory", p1.equals(p2));
+        arena.exit(inner);
+        assertEquals("Nested call memory should be reclaimed on return",
+                     Pointer.nativeValue(p2), Pointer.nativeValue(arena.allocate(8)));
+        arena.exit(outer);
+    }
+
+    public void testAllocateString() {
+        CallArena arena = new CallArena(32);
+        long mark = arena.enter();
+        Pointer p = arena.allocateString("hello", "UTF-8");
+        assertEquals("Wrong string", "hello", p.getString(0, "UTF-8"));
+        Pointer w = arena.allocateString("hi", NativeString.WIDE_STRING);
+        assertEquals("Wrong wide string", "hi", w.getWideString(0));
+        assertNull("Oversized string should not be allocated",
+                   arena.allocateString("a string much too long for the scratch arena", "UTF-8"));
+        arena.exit(mark);
+    }
+
+    public void testStringArgumentsUseArena() {
+        if (CallArena.SIZE == 0) {
+            return;
+        }
+        TestLibrary lib = (TestLibrary)Native.loadLibrary("testlib", TestLibrary.class);
+        Pointer p = lib.returnStringArgument("arena");
+        assertTrue("String argument should be copied to the arena",
+                   CallArena.get().contains(p));
+        assertEquals("Wrong wide string result", "wide",
+                     lib.returnWStringArgument(new WString("wide")).toString());
+        String[] array = { "a", null, "b" };
+        p = lib.returnPointerArgument(array);
+        assertTrue("String array should be copied to the arena",
+                   CallArena.get().contains(p));
+        assertEquals("String array should be read back", "b", array[2]);
+    }
+
+    public void testSuspendedAllocation() {
+        CallArena arena = new CallArena(64);
+        long mark = arena.enter();
+        boolean wasSuspended = arena.suspend();
+        assertFalse("Arena should not start suspended", wasSuspended);
+        assertNull("No memory should be available while suspended", arena.allocate(8));
+        arena.resume(wasSuspended);
+        assertNotNull("Memory should be available after resuming", arena.allocate(8));
+        arena.exit(mark);
+    }
+
+    public void testRetainedArgumentsUseMemory() {
+        RetainingLibrary lib = (RetainingLibrary)Native.loadLibrary("testlib", RetainingLibrary.class);
+        Pointer p = lib.returnStringArgument("retained");
+        assertFalse("Retained string should not use the arena",
+                    CallArena.SIZE > 0 && CallArena.get().contains(p));
+        assertEquals("Wrong string", "retained", p.getString(0));
+        String[] array = { "a", "b" };
+        p = lib.returnPointerArgument(array);
+        assertFalse("Retained string array should not use the arena",
+                    CallArena.SIZE > 0 && CallArena.get().contains(p));
+        assertEquals("Wrong string array element", "b", p.getPointer(Pointer.SIZE).getString(0));
+    }
+
+    public void testOversizedArgumentsUseMemory() {
+        TestLibrary lib = (TestLibrary)Native.loadLibrary("testlib", TestLibrary.class);
+        char[] chars = new char[CallArena.SIZE + 1];
+        java.util.Arrays.fill(chars, 'x');
+        String s = new String(chars);
+        Pointer p = lib.returnStringArgument(s);
+        assertFalse("Oversized string should not use the arena",
+                    CallArena.SIZE > 0 && CallArena.get().contains(p));
+        assertEquals("Wrong string length", s.length(), p.getString(0).length());
+    }
+
+    public static void main(java.lang.String[] argList) {
+        junit.textui.TestRunner.run(CallArenaTest.class);
+    }
+}
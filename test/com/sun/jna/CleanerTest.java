@@ -0,0 +1,106 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import junit.framework.TestCase;
+
+public class CleanerTest extends TestCase implements GCWaits {
+
+    private static class Counter implements Runnable {
+        volatile int count;
+        public void run() {
+            ++count;
+        }
+    }
+
+    public void testCleanRunsTaskOnce() {
+        Counter counter = new Counter();
+        Object obj = new Object();
+        Cleaner.Cleanable cleanable = Cleaner.getCleaner().register(obj, counter);
+        cleanable.clean();
+        cleanable.clean();
+        assertEquals("Cleanup task should run exactly once", 1, counter.count);
+    }
+
+    public void testCleanupOnGC() throws Exception {
+        Counter counter = new Counter();
+        Cleaner.getCleaner().register(new Object(), counter);
+        for (int i=0;i < GC_WAITS && counter.count == 0;i++) {
+            System.gc();
+            Thread.sleep(GC_WAIT_INTERVAL);
+        }
+        assertEquals("Cleanup task not run after GC", 1, counter.count);
+    }
+
+    public void testNoCleanupWhileReachable() throws Exception {
+        Counter counter = new Counter();
+        Object obj = new Object();
+        Cleaner.Cleanable cleanable = Cleaner.getCleaner().register(obj, counter);
+        System.gc();
+        Thread.sleep(GC_WAIT_INTERVAL * 10);
+        assertEquals("Cleanup task run while object reachable", 0, counter.count);
+        assertNotNull(obj);
+        cleanable.clean();
+    }
+
+    private static class OtherCounter extends Counter { }
+
+    public void testCleanAllByTaskType() {
+        Counter counter = new Counter();
+        OtherCounter other = new OtherCounter();
+        Object obj = new Object();
+        Cleaner.Cleanable c1 = Cleaner.getCleaner().register(obj, counter);
+        Cleaner.Cleanable c2 = Cleaner.getCleaner().register(obj, other);
+        Cleaner.getCleaner().cleanAll(OtherCounter.class);
+        assertEquals("Matching task should run", 1, other.count);
+        assertEquals("Non-matching task should not run", 0, counter.count);
+        c1.clean();
+        c2.clean();
+        assertEquals("Cleaned task should not run again", 1, other.count);
+    }
+
+    public void testConcurrentRegistration() throws Exception {
+        final Counter[] counters = new Counter[8];
+        Thread[] threads = new Thread[counters.length];
+        for (int i=0;i < threads.length;i++) {
+            final Counter counter = counters[i] = new Counter();
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j=0;j < 1000;j++) {
+                        Cleaner.getCleaner().register(new Object(), counter);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i=0;i < threads.length;i++) {
+            threads[i].join();
+        }
+        for (int i=0;i < GC_WAITS;i++) {
+            int total = 0;
+            for (int j=0;j < counters.length;j++) {
+                total += counters[j].count;
+            }
+            if (total == counters.length * 1000) {
+                break;
+            }
+            System.gc();
+            Thread.sleep(GC_WAIT_INTERVAL);
+        }
+        for (int i=0;i < counters.length;i++) {
+            assertEquals("All registrations should be cleaned", 1000, counters[i].count);
+        }
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(CleanerTest.class);
+    }
+}
@@ -0,0 +1,121 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class CriticalArrayTest extends TestCase {
+
+    public interface TestLibrary extends Library {
+        int fillInt8Buffer(@CriticalArray byte[] buf, int len, byte value);
+        int fillInt32Buffer(@CriticalArray int[] buf, int len, int value);
+        int fillDoubleBuffer(double[] buf, int len, double value);
+        int fillInt64Buffer(@CriticalArray(false) long[] buf, int len, long value);
+    }
+
+    public interface CallbackLibrary extends Library {
+        interface Int32Callback extends Callback {
+            int callback(int arg, int arg2);
+        }
+        int callInt32Callback(Int32Callback c, @CriticalArray int[] unused, int arg);
+    }
+
+    public static class DirectLibrary {
+        public static native int fillInt32Buffer(@CriticalArray int[] buf, int len, int value);
+        public static native int fillDoubleBuffer(double[] buf, int len, double value);
+        static {
+            Map options = new HashMap();
+            options.put(Library.OPTION_CRITICAL_ARRAYS, Boolean.TRUE);
+            Native.register(DirectLibrary.class, NativeLibrary.getInstance("testlib", options));
+        }
+    }
+
+    private static Method getMethod(Class cls, String name) {
+        Method[] methods = cls.getMethods();
+        for (int i=0;i < methods.length;i++) {
+            if (methods[i].getName().equals(name)) {
+                return methods[i];
+            }
+        }
+        throw new IllegalArgumentException("No method " + name);
+    }
+
+    public void testCriticalParameters() {
+        Map options = Collections.EMPTY_MAP;
+        boolean[] critical = Native.getCriticalArrays(getMethod(TestLibrary.class, "fillInt32Buffer"), options);
+        assertNotNull("Annotated array should be critical", critical);
+        assertTrue("Annotated array should be critical", critical[0]);
+        assertFalse("Primitive argument should not be critical", critical[1]);
+        assertNull("Unannotated array should not be critical",
+                   Native.getCriticalArrays(getMethod(TestLibrary.class, "fillDoubleBuffer"), options));
+
+        options = new HashMap();
+        options.put(Library.OPTION_CRITICAL_ARRAYS, Boolean.TRUE);
+        assertNotNull("Library option should apply to all arrays",
+                      Native.getCriticalArrays(getMethod(TestLibrary.class, "fillDoubleBuffer"), options));
+        assertNull("Annotation should override library option",
+                   Native.getCriticalArrays(getMethod(TestLibrary.class, "fillInt64Buffer"), options));
+        assertNull("Methods with callbacks should never use critical arrays",
+                   Native.getCriticalArrays(getMethod(CallbackLibrary.class, "callInt32Callback"), options));
+    }
+
+    public void testCriticalArrayArguments() {
+        TestLibrary lib = (TestLibrary)Native.loadLibrary("testlib", TestLibrary.class);
+        byte[] b = new byte[1024];
+        assertEquals("Wrong length", b.length, lib.fillInt8Buffer(b, b.length, (byte)0x7F));
+        int[] i = new int[1024];
+        assertEquals("Wrong length", i.length, lib.fillInt32Buffer(i, i.length, 42));
+        long[] l = new long[16];
+        assertEquals("Wrong length", l.length, lib.fillInt64Buffer(l, l.length, -1L));
+        for (int n=0;n < b.length;n++) {
+            assertEquals("Wrong byte value at " + n, 0x7F, b[n]);
+            assertEquals("Wrong int value at " + n, 42, i[n]);
+        }
+        for (int n=0;n < l.length;n++) {
+            assertEquals("Wrong long value at " + n, -1L, l[n]);
+        }
+        assertEquals("NULL array should be passed", 0, lib.fillInt32Buffer(null, 0, 0));
+    }
+
+    public void testCriticalArrayArgumentsWithLibraryOption() {
+        Map options = new HashMap();
+        options.put(Library.OPTION_CRITICAL_ARRAYS, Boolean.TRUE);
+        TestLibrary lib = (TestLibrary)Native.loadLibrary("testlib", TestLibrary.class, options);
+        double[] d = new double[256];
+        assertEquals("Wrong length", d.length, lib.fillDoubleBuffer(d, d.length, 1.5));
+        for (int n=0;n < d.length;n++) {
+            assertEquals("Wrong value at " + n, 1.5, d[n], 0);
+        }
+    }
+
+    public void testDirectCriticalArrayArguments() {
+        int[] i = new int[1024];
+        assertEquals("Wrong length", i.length, DirectLibrary.fillInt32Buffer(i, i.length, -7));
+        double[] d = new double[64];
+        assertEquals("Wrong length", d.length, DirectLibrary.fillDoubleBuffer(d, d.length, 2.5));
+        for (int n=0;n < i.length;n++) {
+            assertEquals("Wrong int value at " + n, -7, i[n]);
+        }
+        for (int n=0;n < d.length;n++) {
+            assertEquals("Wrong double value at " + n, 2.5, d[n], 0);
+        }
+        assertEquals("NULL array should be passed", 0, DirectLibrary.fillInt32Buffer(null, 0, 0));
+    }
+
+    public static void main(java.lang.String[] argList) {
+        junit.textui.TestRunner.run(CriticalArrayTest.class);
+    }
+}
@@ -0,0 +1,169 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/** Verify that {@link In} and {@link Out} arguments are only synchronized
+ * in the declared direction.
+ */
+public class DirectionalArgumentsTest extends TestCase {
+
+    public static class Int32 extends Structure {
+        public int value;
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "value" });
+        }
+    }
+
+    public interface TestLibrary extends Library {
+        void incrementInt32ByReference(@In Int32 arg);
+        int fillInt32Buffer(@In int[] buf, int len, int value);
+        int fillInt64Buffer(@Out long[] buf, int len, long value);
+        int fillInt8Buffer(@In @Out byte[] buf, int len, byte value);
+    }
+
+    public interface OutputLibrary extends Library {
+        void incrementInt32ByReference(@Out Int32 arg);
+        int fillDoubleBuffer(@Out @CriticalArray double[] buf, int len, double value);
+        int fillInt32Buffer(@In @CriticalArray int[] buf, int len, int value);
+    }
+
+    public static class DirectLibrary {
+        public static native void incrementInt32ByReference(@In Int32 arg);
+        public static native int fillInt32Buffer(@In int[] buf, int len, int value);
+        public static native int fillInt64Buffer(@Out long[] buf, int len, long value);
+        static {
+            Native.register(DirectLibrary.class, "testlib");
+        }
+    }
+
+    public static class DirectOutputLibrary {
+        public static native void incrementInt32ByReference(@Out Int32 arg);
+        static {
+            Native.register(DirectOutputLibrary.class, "testlib");
+        }
+    }
+
+    public void testDirections() throws Exception {
+        int[] directions = Native.getDirections(TestLibrary.class.getMethod("fillInt32Buffer", new Class[] { int[].class, int.class, int.class }));
+        assertEquals("Wrong direction", Native.CVT_FLAG_IN, directions[0]);
+        assertEquals("Unannotated parameter should have no direction", 0, directions[1]);
+        assertEquals("Wrong direction", Native.CVT_FLAG_OUT,
+                     Native.getDirections(TestLibrary.class.getMethod("fillInt64Buffer", new Class[] { long[].class, int.class, long.class }))[0]);
+        assertNull("In and out should be the same as no direction",
+                   Native.getDirections(TestLibrary.class.getMethod("fillInt8Buffer", new Class[] { byte[].class, int.class, byte.class })));
+    }
+
+    private void checkInputStructure(Int32 s) {
+        assertEquals("Input structure should not be read back", 41, s.value);
+        assertEquals("Input structure should be written", 42, s.getPointer().getInt(0));
+    }
+
+    private void checkOutputStructure(Int32 s) {
+        assertEquals("Output structure should be read back", 6, s.value);
+    }
+
+    public void testInputStructure() {
+        TestLibrary lib = (TestLibrary)Native.loadLibrary("testlib", TestLibrary.class);
+        Int32 s = new Int32();
+        s.value = 41;
+        lib.incrementInt32ByReference(s);
+        checkInputStructure(s);
+    }
+
+    public void testOutputStructure() {
+        OutputLibrary lib = (OutputLibrary)Native.loadLibrary("testlib", OutputLibrary.class);
+        Int32 s = new Int32();
+        s.getPointer().setInt(0, 5);
+        s.value = 41;
+        lib.incrementInt32ByReference(s);
+        checkOutputStructure(s);
+    }
+
+    public void testDirectStructures() {
+        Int32 s = new Int32();
+        s.value = 41;
+        DirectLibrary.incrementInt32ByReference(s);
+        checkInputStructure(s);
+
+        s = new Int32();
+        s.getPointer().setInt(0, 5);
+        s.value = 41;
+        DirectOutputLibrary.incrementInt32ByReference(s);
+        checkOutputStructure(s);
+    }
+
+    public void testArrays() {
+        TestLibrary lib = (TestLibrary)Native.loadLibrary("testlib", TestLibrary.class);
+        int[] in = { 1, 2, 3 };
+        assertEquals("Wrong length", in.length, lib.fillInt32Buffer(in, in.length, 0));
+        long[] out = new long[64];
+        assertEquals("Wrong length", out.length, lib.fillInt64Buffer(out, out.length, -1L));
+        byte[] both = new byte[8];
+        assertEquals("Wrong length", both.length, lib.fillInt8Buffer(both, both.length, (byte)7));
+        // Assumes the VM copies array contents, as HotSpot does
+        assertTrue("Input array should not be copied back",
+                   Arrays.equals(new int[] { 1, 2, 3 }, in));
+        for (int i=0;i < out.length;i++) {
+            assertEquals("Output array should be copied back", -1L, out[i]);
+        }
+        for (int i=0;i < both.length;i++) {
+            assertEquals("Array should be copied back", 7, both[i]);
+        }
+        assertEquals("NULL output array should be passed", 0, lib.fillInt64Buffer(null, 0, 0));
+    }
+
+    public void testPartiallyWrittenOutputArray() {
+        TestLibrary lib = (TestLibrary)Native.loadLibrary("testlib", TestLibrary.class);
+        long[] out = new long[64];
+        // Leave non-zero values in the heap block likely to be reused
+        lib.fillInt64Buffer(out, out.length, -1L);
+        Arrays.fill(out, 9L);
+        lib.fillInt64Buffer(out, out.length / 2, 5L);
+        for (int i=0;i < out.length / 2;i++) {
+            assertEquals("Output array should be copied back", 5L, out[i]);
+        }
+        for (int i=out.length / 2;i < out.length;i++) {
+            assertEquals("Unwritten output element should be zero", 0L, out[i]);
+        }
+    }
+
+    public void testCriticalArrays() {
+        OutputLibrary lib = (OutputLibrary)Native.loadLibrary("testlib", OutputLibrary.class);
+        double[] out = new double[16];
+        assertEquals("Wrong length", out.length, lib.fillDoubleBuffer(out, out.length, 0.5));
+        for (int i=0;i < out.length;i++) {
+            assertEquals("Output array should be written", 0.5, out[i], 0);
+        }
+        int[] in = new int[16];
+        assertEquals("Wrong length", in.length, lib.fillInt32Buffer(in, in.length, 1));
+    }
+
+    public void testDirectArrays() {
+        int[] in = { 1, 2, 3 };
+        assertEquals("Wrong length", in.length, DirectLibrary.fillInt32Buffer(in, in.length, 0));
+        assertTrue("Input array should not be copied back",
+                   Arrays.equals(new int[] { 1, 2, 3 }, in));
+        long[] out = new long[64];
+        assertEquals("Wrong length", out.length, DirectLibrary.fillInt64Buffer(out, out.length, 3L));
+        for (int i=0;i < out.length;i++) {
+            assertEquals("Output array should be copied back", 3L, out[i]);
+        }
+    }
+
+    public static void main(java.lang.String[] argList) {
+        junit.textui.TestRunner.run(DirectionalArgumentsTest.class);
+    }
+}
@@ -12,6 +12,7 @@
  */
 package com.sun.jna;
 
+import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.List;
 
@@ -50,6 +51,140 @@ public class FunctionTest extends TestCase {
         }
     }
 
+    public interface CLibrary extends Library {
+        int strlen(String s);
+        int abs(int i);
+        int printf(String fmt, Object... args);
+        Object bogus(Object o);
+    }
+
+    private Method getMethod(String name) {
+        Method[] methods = CLibrary.class.getMethods();
+        for (int i=0;i < methods.length;i++) {
+            if (methods[i].getName().equals(name)) {
+                return methods[i];
+            }
+        }
+        throw new IllegalArgumentException("No method " + name);
+    }
+
+    public void testPrepareCall() {
+        NativeLibrary lib = NativeLibrary.getInstance(Platform.C_LIBRARY_NAME);
+        Method m = getMethod("strlen");
+        Function f = lib.getFunction("strlen");
+        Function.CallDescriptor call =
+            f.prepareCall(m, m.getParameterTypes(), m.getReturnType(), f.options);
+        assertNotNull("Fixed signature should be prepared", call);
+        Object result = f.invoke(m, m.getParameterTypes(), m.getReturnType(),
+                                 new Object[] { getName() }, f.options, call);
+        assertEquals("Wrong result from prepared call",
+                     new Integer(getName().length()), result);
+
+        m = getMethod("abs");
+        f = lib.getFunction("abs");
+        call = f.prepareCall(m, m.getParameterTypes(), m.getReturnType(), f.options);
+        assertNotNull("Primitive signature should be prepared", call);
+        result = f.invoke(m, m.getParameterTypes(), m.getReturnType(),
+                          new Object[] { new Integer(-42) }, f.options, call);
+        assertEquals("Wrong result from prepared call", new Integer(42), result);
+    }
+
+    public void testPrepareCallUnsupportedSignatures() {
+        NativeLibrary lib = NativeLibrary.getInstance(Platform.C_LIBRARY_NAME);
+        Function f = lib.getFunction("printf");
+        Method m = getMethod("printf");
+        assertNull("Varargs should not be prepared",
+                   f.prepareCall(m, m.getParameterTypes(), m.getReturnType(), f.options));
+        m = getMethod("bogus");
+        assertNull("Object arguments should not be prepared",
+                   f.prepareCall(m, m.getParameterTypes(), m.getReturnType(), f.options));
+    }
+
+    public void testPreparedCallRejectsMismatchedArguments() {
+        NativeLibrary lib = NativeLibrary.getInstance(Platform.C_LIBRARY_NAME);
+        Method m = getMethod("abs");
+        Function f = lib.getFunction("abs");
+        Function.CallDescriptor call =
+            f.prepareCall(m, m.getParameterTypes(), m.getReturnType(), f.options);
+        assertTrue("Converted argument should match",
+                   call.accepts(new Object[] { new Integer(1) }));
+        assertFalse("Wrong argument type should not match",
+                    call.accepts(new Object[] { new Long(1) }));
+        assertFalse("Null primitive should not match",
+                    call.accepts(new Object[] { null }));
+        assertFalse("Wrong argument count should not match",
+                    call.accepts(new Object[0]));
+    }
+
+    public void testConversionPlan() {
+        NativeLibrary lib = NativeLibrary.getInstance(Platform.C_LIBRARY_NAME);
+        Method m = getMethod("strlen");
+        Function f = lib.getFunction("strlen");
+        Function.ConversionPlan plan =
+            f.createConversionPlan(m, m.getParameterTypes(), m.getReturnType(), f.options, null);
+        assertFalse("String argument needs no post-call sync", plan.needsSync(0));
+        assertEquals("Wrong result using conversion plan",
+                     new Integer(getName().length()),
+                     f.invoke(m, new Object[] { getName() }, plan));
+
+        m = getMethod("abs");
+        f = lib.getFunction("abs");
+        plan = f.createConversionPlan(m, m.getParameterTypes(), m.getReturnType(), f.options, null);
+        assertFalse("Primitive argument needs no post-call sync", plan.needsSync(0));
+        Object[] args = { new Integer(-1) };
+        assertSame("Primitive argument should not be converted",
+                   args[0], plan.getConverter(0).convert(args, 0));
+
+        m = getMethod("bogus");
+        plan = f.createConversionPlan(m, m.getParameterTypes(), m.getReturnType(), f.options, null);
+        assertTrue("Object argument may need post-call sync", plan.needsSync(0));
+
+        m = getMethod("printf");
+        f = lib.getFunction("printf");
+        plan = f.createConversionPlan(m, m.getParameterTypes(), m.getReturnType(), f.options, null);
+        assertFalse("Fixed String argument needs no post-call sync", plan.needsSync(0));
+        assertTrue("Variable arguments may need post-call sync", plan.needsSync(1));
+    }
+
+    public void testInvokePacked() {
+        NativeLibrary lib = NativeLibrary.getInstance(Platform.C_LIBRARY_NAME);
+        Method m = getMethod("abs");
+        Function f = lib.getFunction("abs");
+        Function.CallDescriptor call =
+            f.prepareCall(m, m.getParameterTypes(), m.getReturnType(), f.options);
+        assertTrue("Primitive signature should be packable", call.isPackable());
+        assertEquals("Wrong result from packed call", new Integer(42),
+                     f.invokePacked(call, int.class, new Object[] { new Integer(-42) }));
+    }
+
+    public void testPackArguments() {
+        NativeLibrary lib = NativeLibrary.getInstance(Platform.C_LIBRARY_NAME);
+        Method m = getMethod("strlen");
+        Function f = lib.getFunction("strlen");
+        Function.CallDescriptor call =
+            f.prepareCall(m, m.getParameterTypes(), m.getReturnType(), f.options);
+        assertEquals("Wrong primitive count", 0, call.primCount);
+        assertEquals("Wrong pointer count", 1, call.refCount);
+
+        Function.CallDescriptor mixed = new Function.CallDescriptor(0, new Class[] {
+            Integer.class, Pointer.class, Float.class, Boolean.class, Double.class,
+        }, new int[] {
+            Native.CVT_DEFAULT, Native.CVT_POINTER, Native.CVT_DEFAULT,
+            Native.CVT_DEFAULT, Native.CVT_DEFAULT,
+        });
+        long[] prims = new long[mixed.primCount];
+        Object[] refs = new Object[mixed.refCount];
+        Pointer p = new Pointer(0x1234);
+        mixed.pack(new Object[] {
+            new Integer(-1), p, new Float(1.5f), Boolean.TRUE, new Double(2.5),
+        }, prims, refs);
+        assertEquals("Wrong packed int", -1, prims[0]);
+        assertEquals("Wrong packed float", Float.floatToRawIntBits(1.5f), (int)prims[1]);
+        assertEquals("Wrong packed boolean", Function.INTEGER_TRUE.intValue(), prims[2]);
+        assertEquals("Wrong packed double", Double.doubleToRawLongBits(2.5), prims[3]);
+        assertSame("Wrong packed pointer", p, refs[0]);
+    }
+
     public static void main(java.lang.String[] argList) {
         junit.textui.TestRunner.run(FunctionTest.class);
     }
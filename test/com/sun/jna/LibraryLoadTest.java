@@ -19,10 +19,13 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.Collections;
+import java.util.concurrent.CyclicBarrier;
 
 import junit.framework.TestCase;
 
@@ -247,6 +250,56 @@ public class LibraryLoadTest extends TestCase implements Paths {
         }
     }
 
+    public void testConcurrentFirstCalls() throws Exception {
+        final CLibrary lib = (CLibrary)load();
+        final int COUNT = 16;
+        final CyclicBarrier barrier = new CyclicBarrier(COUNT);
+        final Throwable[] errors = new Throwable[COUNT];
+        final int[] results = new int[COUNT];
+        Thread[] threads = new Thread[COUNT];
+        for (int i=0;i < COUNT;i++) {
+            final int index = i;
+            threads[i] = new Thread("concurrent-call-" + i) {
+                public void run() {
+                    try {
+                        barrier.await();
+                        results[index] = lib.strlen(getName());
+                    }
+                    catch(Throwable e) {
+                        errors[index] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i=0;i < COUNT;i++) {
+            threads[i].join(10000);
+            assertFalse("Call did not complete", threads[i].isAlive());
+            assertNull("Call failed: " + errors[i], errors[i]);
+            assertEquals("Wrong result", threads[i].getName().length(), results[i]);
+        }
+
+        Library.Handler handler = (Library.Handler)Proxy.getInvocationHandler(lib);
+        Method m = CLibrary.class.getMethod("strlen", new Class[] { String.class });
+        assertSame("Function information should be shared",
+                   handler.getFunctionInfo(m), handler.getFunctionInfo(m));
+    }
+
+    public interface StrlenLibrary extends Library {
+        int strlen(String str);
+    }
+
+    public void testUndeclaredMethodInfoCached() throws Throwable {
+        CLibrary lib = (CLibrary)load();
+        Library.Handler handler = (Library.Handler)Proxy.getInvocationHandler(lib);
+        Method m = StrlenLibrary.class.getMethod("strlen", new Class[] { String.class });
+        assertEquals("Method should have no slot", -1, handler.getSlot(m));
+        assertEquals("Wrong result", new Integer(4),
+                     handler.invoke(lib, m, new Object[] { "test" }));
+        assertSame("Function information should be cached",
+                   handler.getFunctionInfo(m), handler.getFunctionInfo(m));
+    }
+
     public interface TestLib2 extends Library {
         int dependentReturnFalse();
     }
@@ -0,0 +1,90 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Exercise the range of native methods through a generated library
+ * implementation.
+ */
+public class LibraryStubTest extends ArgumentsMarshalTest {
+
+    interface HiddenLibrary extends Library {
+        int returnInt32Argument(int i);
+    }
+
+    private static Map stubOptions() {
+        Map options = new HashMap();
+        options.put(Library.OPTION_GENERATED_STUBS, Boolean.TRUE);
+        return options;
+    }
+
+    protected void setUp() {
+        lib = (TestLibrary)Native.loadLibrary("testlib", TestLibrary.class, stubOptions());
+    }
+
+    public void testGeneratedImplementation() {
+        assertTrue("Library should use a generated implementation",
+                   lib instanceof LibraryStub);
+        assertFalse("Library should not be a proxy",
+                    Proxy.isProxyClass(lib.getClass()));
+        TestLibrary lib2 = (TestLibrary)
+            Native.loadLibrary("testlib", TestLibrary.class, stubOptions());
+        assertSame("Generated class should be reused",
+                   lib.getClass(), lib2.getClass());
+    }
+
+    public void testObjectMethods() {
+        assertEquals("Library should equal itself", lib, lib);
+        assertEquals("Hash code should be consistent", lib.hashCode(), lib.hashCode());
+        assertTrue("Wrong string representation: " + lib,
+                   lib.toString().startsWith("Proxy interface to "));
+        TestLibrary lib2 = (TestLibrary)
+            Native.loadLibrary("testlib", TestLibrary.class, stubOptions());
+        assertFalse("Distinct library instances should not be equal",
+                    lib.equals(lib2));
+    }
+
+    public void testSynchronizedLibrary() {
+        TestLibrary synced = (TestLibrary)Native.synchronizedLibrary(lib);
+        assertEquals("Wrong result from synchronized library",
+                     42, synced.returnInt32Argument(42));
+    }
+
+    public void testFallBackToProxyForNonPublicInterface() {
+        HiddenLibrary hidden = (HiddenLibrary)
+            Native.loadLibrary("testlib", HiddenLibrary.class, stubOptions());
+        assertTrue("Non-public interface should use a proxy",
+                   Proxy.isProxyClass(hidden.getClass()));
+        assertEquals("Wrong result from proxy", 42, hidden.returnInt32Argument(42));
+    }
+
+    public void testFallBackToProxyWithInvocationMapper() {
+        Map options = stubOptions();
+        options.put(Library.OPTION_INVOCATION_MAPPER, new InvocationMapper() {
+            public InvocationHandler getInvocationHandler(NativeLibrary lib, Method m) {
+                return null;
+            }
+        });
+        TestLibrary mapped = (TestLibrary)
+            Native.loadLibrary("testlib", TestLibrary.class, options);
+        assertTrue("Library with invocation mapper should use a proxy",
+                   Proxy.isProxyClass(mapped.getClass()));
+    }
+
+    public static void main(java.lang.String[] argList) {
+        junit.textui.TestRunner.run(LibraryStubTest.class);
+    }
+}
@@ -0,0 +1,129 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class MappedMemoryTest extends TestCase {
+
+    public static class TestStructure extends Structure {
+        public int magic;
+        public long value;
+        public TestStructure(Pointer p) {
+            super(p);
+        }
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "magic", "value" });
+        }
+    }
+
+    private File file;
+
+    protected void setUp() throws Exception {
+        file = File.createTempFile("mapped", ".dat");
+        file.deleteOnExit();
+        FileOutputStream os = new FileOutputStream(file);
+        byte[] data = new byte[10000];
+        for (int i=0;i < data.length;i++) {
+            data[i] = (byte)i;
+        }
+        os.write(data);
+        os.close();
+    }
+
+    protected void tearDown() {
+        file.delete();
+    }
+
+    private boolean isSupported() {
+        return !Platform.isWindows() && !Platform.isWindowsCE();
+    }
+
+    public void testMapFileReadOnly() throws Exception {
+        if (!isSupported()) return;
+        MappedMemory m = MappedMemory.map(file, false);
+        assertEquals("Wrong mapping size", file.length(), m.size());
+        assertEquals("Wrong first byte", 0, m.getByte(0));
+        assertEquals("Wrong byte", (byte)9999, m.getByte(9999));
+        byte[] buf = new byte[4];
+        m.read(5000, buf, 0, buf.length);
+        assertEquals("Wrong bulk read", (byte)5003, buf[3]);
+        try {
+            m.getByte(10000);
+            fail("Access beyond mapping should fail");
+        }
+        catch(IndexOutOfBoundsException e) {
+        }
+        m.advise(MappedMemory.ADVICE_SEQUENTIAL);
+        m.close();
+        assertFalse("Mapping should be released on close", m.valid());
+    }
+
+    public void testMapUnalignedOffset() throws Exception {
+        if (!isSupported()) return;
+        MappedMemory m = MappedMemory.map(file, 5001, 100, MappedMemory.PROT_READ, MappedMemory.MAP_PRIVATE);
+        assertEquals("Wrong mapping size", 100, m.size());
+        assertEquals("Mapping should start at the requested offset", (byte)5001, m.getByte(0));
+        m.advise(10, 50, MappedMemory.ADVICE_WILLNEED);
+        m.close();
+    }
+
+    public void testWriteSharedMapping() throws Exception {
+        if (!isSupported()) return;
+        MappedMemory m = MappedMemory.map(file, true);
+        m.setInt(4096 + 12, 0x12345678);
+        m.sync(4096, 16, false);
+        m.sync();
+        m.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        raf.seek(4096 + 12);
+        int value = raf.readInt();
+        raf.close();
+        int expected = java.nio.ByteOrder.nativeOrder() == java.nio.ByteOrder.BIG_ENDIAN
+            ? 0x12345678 : 0x78563412;
+        assertEquals("Change not written to file", expected, value);
+    }
+
+    public void testAnonymousMapping() {
+        if (!isSupported()) return;
+        MappedMemory m = MappedMemory.allocate(1 << 20, MappedMemory.PROT_READ|MappedMemory.PROT_WRITE,
+                                               MappedMemory.MAP_PRIVATE);
+        assertEquals("Anonymous mapping should be zeroed", 0, m.getLong((1 << 20) - 8));
+        m.setLong((1 << 20) - 8, 42);
+        assertEquals("Wrong value", 42, m.getLong((1 << 20) - 8));
+        TestStructure s = new TestStructure(m.share(64));
+        s.magic = 7;
+        s.value = 11;
+        s.write();
+        assertEquals("Structure not written to mapping", 11, m.getLong(64 + 8));
+        m.close();
+    }
+
+    public void testMissingFile() throws Exception {
+        if (!isSupported()) return;
+        try {
+            MappedMemory.map(new File(file.getPath() + ".missing"), false);
+            fail("Mapping a missing file should fail");
+        }
+        catch(java.io.FileNotFoundException e) {
+        }
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(MappedMemoryTest.class);
+    }
+}
@@ -0,0 +1,105 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class MemoryArenaTest extends TestCase {
+
+    public static class TestStructure extends Structure {
+        public int field1;
+        public long field2;
+        public TestStructure() { }
+        public TestStructure(MemoryArena arena) {
+            super(arena);
+        }
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "field1", "field2" });
+        }
+        public static class ByReference extends TestStructure implements Structure.ByReference {
+            public ByReference(MemoryArena arena) {
+                super(arena);
+            }
+        }
+    }
+
+    public void testAllocateFromSlab() {
+        MemoryArena arena = new MemoryArena(256);
+        Memory m1 = arena.allocate(3);
+        Memory m2 = arena.allocate(16);
+        assertEquals("Wrong block size", 3, m1.size());
+        assertEquals("Blocks should be aligned and adjacent",
+                     8, Pointer.nativeValue(m2) - Pointer.nativeValue(m1));
+        m2.setLong(8, 42);
+        assertEquals("Wrong value", 42, m2.getLong(8));
+        assertEquals("Wrong allocated byte count", 19, arena.getAllocatedBytes());
+        arena.close();
+    }
+
+    public void testBoundsChecked() {
+        MemoryArena arena = new MemoryArena();
+        Memory m = arena.allocate(8);
+        try {
+            m.getLong(4);
+            fail("Access beyond allocated block should fail");
+        }
+        catch(IndexOutOfBoundsException e) {
+        }
+        arena.close();
+    }
+
+    public void testLargeAndOverflowingRequests() {
+        MemoryArena arena = new MemoryArena(64);
+        Memory big = arena.allocate(1024);
+        big.setByte(1023, (byte)1);
+        for (int i=0;i < 10;i++) {
+            arena.allocate(24).setLong(16, i);
+        }
+        arena.close();
+    }
+
+    public void testAllocateAfterClose() {
+        MemoryArena arena = new MemoryArena();
+        arena.allocate(8);
+        arena.close();
+        assertTrue("Arena should be closed", arena.isClosed());
+        arena.close();
+        try {
+            arena.allocate(8);
+            fail("Allocation from a closed arena should fail");
+        }
+        catch(IllegalStateException e) {
+        }
+    }
+
+    public void testStructureFromArena() {
+        MemoryArena arena = new MemoryArena();
+        Memory block = arena.allocate(8);
+        TestStructure s = new TestStructure(arena);
+        assertEquals("Structure should be allocated from the arena",
+                     Pointer.nativeValue(block) + 8, Pointer.nativeValue(s.getPointer()));
+        s.field1 = 1;
+        s.field2 = 2;
+        s.write();
+        assertEquals("Wrong field value", 2, s.getPointer().getLong(8));
+        TestStructure.ByReference ref = new TestStructure.ByReference(arena);
+        assertEquals("Wrong ByReference size", s.size(), ref.size());
+        assertEquals("New structure memory should be cleared", 0, ref.getPointer().getLong(8));
+        arena.close();
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(MemoryArenaTest.class);
+    }
+}
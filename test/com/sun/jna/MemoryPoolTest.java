@@ -0,0 +1,215 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import junit.framework.TestCase;
+
+public class MemoryPoolTest extends TestCase {
+
+    public void testSizeClasses() {
+        assertEquals("Wrong class for 1 byte", 0, MemoryPool.sizeClass(1));
+        assertEquals("Wrong class for 16 bytes", 0, MemoryPool.sizeClass(16));
+        assertEquals("Wrong class for 17 bytes", 1, MemoryPool.sizeClass(17));
+        assertEquals("Wrong class for 256 bytes", 4, MemoryPool.sizeClass(256));
+        assertEquals("Wrong class for largest size",
+                     MemoryPool.MAX_SIZE, MemoryPool.classSize(MemoryPool.sizeClass(MemoryPool.MAX_SIZE)));
+    }
+
+    public void testReuseReleasedBlocks() {
+        MemoryPool pool = new MemoryPool();
+        long p1 = pool.malloc(100);
+        pool.free(p1, 100);
+        long p2 = pool.malloc(120);
+        assertEquals("Released block should be reused within its size class", p1, p2);
+        long p3 = pool.malloc(100);
+        assertTrue("Block should not be handed out twice", p3 != p2);
+        pool.free(p2, 120);
+        pool.free(p3, 100);
+
+        MemoryPool.Statistics stats = pool.getStatistics();
+        assertEquals("Wrong allocation count", 3, stats.getAllocations());
+        assertEquals("Wrong hit count", 1, stats.getHits());
+        assertEquals("Wrong release count", 3, stats.getReleases());
+        assertEquals("Wrong retained bytes", 2 * 128, stats.getRetainedBytes());
+
+        pool.purge();
+        assertEquals("Purge should free retained blocks", 0, pool.getStatistics().getRetainedBytes());
+    }
+
+    public void testLargeBlocksNotPooled() {
+        MemoryPool pool = new MemoryPool();
+        long p = pool.malloc(MemoryPool.MAX_SIZE + 1);
+        pool.free(p, MemoryPool.MAX_SIZE + 1);
+        MemoryPool.Statistics stats = pool.getStatistics();
+        assertEquals("Large allocation should not be counted", 0, stats.getAllocations());
+        assertEquals("Large block should not be retained", 0, stats.getRetainedBytes());
+    }
+
+    public void testSharedPoolOverflow() throws Exception {
+        final MemoryPool pool = new MemoryPool();
+        final long[] blocks = new long[100];
+        for (int i=0;i < blocks.length;i++) {
+            blocks[i] = pool.malloc(32);
+        }
+        // Release from another thread, as the cleanup thread would
+        Thread t = new Thread() {
+            public void run() {
+                for (int i=0;i < blocks.length;i++) {
+                    pool.free(blocks[i], 32);
+                }
+            }
+        };
+        t.start();
+        t.join();
+        long p = pool.malloc(32);
+        assertEquals("Blocks released by another thread should be reused",
+                     1, pool.getStatistics().getHits());
+        pool.free(p, 32);
+        pool.purge();
+    }
+
+    public void testReturnsExcludeFreedBlocks() {
+        MemoryPool pool = new MemoryPool();
+        long[] blocks = new long[1100];
+        for (int i=0;i < blocks.length;i++) {
+            blocks[i] = pool.malloc(32);
+        }
+        for (int i=0;i < blocks.length;i++) {
+            pool.free(blocks[i], 32);
+        }
+        MemoryPool.Statistics stats = pool.getStatistics();
+        assertEquals("Wrong release count", blocks.length, stats.getReleases());
+        assertTrue("Some blocks should have been freed: " + stats,
+                   stats.getReturns() < stats.getReleases());
+        assertEquals("Returns should count only retained blocks: " + stats,
+                     stats.getRetainedBytes() / 32, stats.getReturns());
+        pool.purge();
+    }
+
+    public void testCleanerThreadHasNoCache() throws Exception {
+        final MemoryPool pool = new MemoryPool();
+        final long p = pool.malloc(32);
+        assertEquals("Wrong initial cache count", 1, pool.getThreadCacheCount());
+        final boolean[] released = { false };
+        Object owner = new Object();
+        Cleaner.getCleaner().register(owner, new Runnable() {
+            public void run() {
+                pool.free(p, 32);
+                released[0] = true;
+            }
+        });
+        owner = null;
+        for (int i=0;i < GCWaits.GC_WAITS && !released[0];i++) {
+            System.gc();
+            Thread.sleep(GCWaits.GC_WAIT_INTERVAL);
+        }
+        assertTrue("Block not released", released[0]);
+        assertEquals("Cleanup thread should not get a cache",
+                     1, pool.getThreadCacheCount());
+        MemoryPool.Statistics stats = pool.getStatistics();
+        assertEquals("Wrong release count", 1, stats.getReleases());
+        assertEquals("Block should be kept in the shared pool", 32, stats.getRetainedBytes());
+        assertEquals("Block released by the cleanup thread should be reused",
+                     p, pool.malloc(32));
+        pool.free(p, 32);
+        pool.purge();
+    }
+
+    public void testPurgeFreesOtherThreadCaches() throws Exception {
+        final MemoryPool pool = new MemoryPool();
+        final Object lock = new Object();
+        final boolean[] state = { false, false };
+        Thread t = new Thread() {
+            public void run() {
+                pool.free(pool.malloc(32), 32);
+                synchronized(lock) {
+                    state[0] = true;
+                    lock.notifyAll();
+                    while (!state[1]) {
+                        try { lock.wait(); } catch(InterruptedException e) { return; }
+                    }
+                }
+            }
+        };
+        t.start();
+        try {
+            synchronized(lock) {
+                while (!state[0]) {
+                    lock.wait();
+                }
+            }
+            assertEquals("Block should be kept in the other thread's cache",
+                         32, pool.getStatistics().getRetainedBytes());
+            pool.purge();
+            assertEquals("Purge should free blocks cached by live threads",
+                         0, pool.getStatistics().getRetainedBytes());
+        }
+        finally {
+            synchronized(lock) {
+                state[1] = true;
+                lock.notifyAll();
+            }
+            t.join();
+        }
+    }
+
+    public void testExitedThreadCacheRetired() throws Exception {
+        final MemoryPool pool = new MemoryPool();
+        Thread t1 = new Thread() {
+            public void run() {
+                pool.free(pool.malloc(32), 32);
+            }
+        };
+        t1.start();
+        t1.join();
+        assertEquals("Wrong cache count", 1, pool.getThreadCacheCount());
+        Thread t2 = new Thread() {
+            public void run() {
+                pool.free(pool.malloc(64), 64);
+            }
+        };
+        t2.start();
+        t2.join();
+        assertEquals("Exited thread's cache should be retired",
+                     1, pool.getThreadCacheCount());
+        MemoryPool.Statistics stats = pool.getStatistics();
+        assertEquals("Retired counts should be kept", 2, stats.getReleases());
+        assertEquals("Exited thread's blocks should be freed",
+                     64, stats.getRetainedBytes());
+        pool.purge();
+        assertEquals("Purge should retire the remaining cache",
+                     0, pool.getThreadCacheCount());
+    }
+
+    public void testDisposeFreesReleasedBlocks() {
+        MemoryPool pool = new MemoryPool();
+        long p1 = pool.malloc(32);
+        long p2 = pool.malloc(32);
+        pool.free(p1, 32);
+        pool.beginDispose();
+        try {
+            pool.free(p2, 32);
+            assertEquals("Block released while disposing should not be kept",
+                         32, pool.getStatistics().getRetainedBytes());
+        }
+        finally {
+            pool.endDispose();
+        }
+        MemoryPool.Statistics stats = pool.getStatistics();
+        assertEquals("Wrong release count", 2, stats.getReleases());
+        assertEquals("Blocks kept before disposing should be freed",
+                     0, stats.getRetainedBytes());
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(MemoryPoolTest.class);
+    }
+}
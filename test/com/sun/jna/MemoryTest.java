@@ -50,6 +50,43 @@ public class MemoryTest extends TestCase implements GCWaits {
         assertNull("Memory not GC'd", ref.get());
     }
 
+    public void testCloseMemory() {
+        Memory m = new Memory(8);
+        assertTrue("Memory should be valid", m.valid());
+        m.close();
+        assertFalse("Memory should be freed on close", m.valid());
+        m.close();
+        assertFalse("Repeated close should have no effect", m.valid());
+    }
+
+    public void testDisposeAllInvalidatesMemory() {
+        if (!Memory.TRACKING) {
+            return;
+        }
+        final boolean[] disposed = { false };
+        Memory m1 = new Memory(8);
+        Memory m2 = new Memory(8) {
+            protected void dispose() {
+                super.dispose();
+                disposed[0] = true;
+            }
+        };
+        Memory.disposeAll();
+        assertFalse("Memory should be invalid after disposeAll", m1.valid());
+        assertFalse("Memory should be invalid after disposeAll", m2.valid());
+        assertTrue("Overridden dispose should be called", disposed[0]);
+        m1.close();
+        assertFalse("Close after disposeAll should have no effect", m1.valid());
+
+        // Scratch memory for call arguments must be reallocated
+        Function f = NativeLibrary.getInstance("testlib").getFunction("returnStringArgument");
+        assertEquals("Wrong string result", getName(),
+                     f.invokeString(new Object[] { getName() }, false));
+        Memory.disposeAll();
+        assertEquals("Wrong string result after disposeAll", getName(),
+                     f.invokeString(new Object[] { getName() }, false));
+    }
+
     public void testShareMemory() {
         Memory base = new Memory(8);
         Pointer shared = base.share(0);
@@ -0,0 +1,109 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import junit.framework.TestCase;
+
+public class NativeCallBatchTest extends TestCase {
+
+    private NativeLibrary lib;
+
+    protected void setUp() {
+        lib = NativeLibrary.getInstance("testlib");
+    }
+
+    protected void tearDown() {
+        lib = null;
+    }
+
+    public void testExecuteBatch() {
+        NativeCallBatch batch = new NativeCallBatch();
+        Pointer p = new Pointer(0x12345678);
+        int i32 = batch.add(lib.getFunction("returnInt32Argument"), int.class,
+                            new Object[] { new Integer(-42) });
+        int i64 = batch.add(lib.getFunction("returnInt64Argument"), long.class,
+                            new Object[] { new Long(0x123456789ABCDEFL) });
+        int f = batch.add(lib.getFunction("returnFloatArgument"), float.class,
+                          new Object[] { new Float(1.5f) });
+        int d = batch.add(lib.getFunction("returnDoubleArgument"), double.class,
+                          new Object[] { new Double(-2.25) });
+        int ptr = batch.add(lib.getFunction("returnPointerArgument"), Pointer.class,
+                            new Object[] { p });
+        int nil = batch.add(lib.getFunction("returnPointerArgument"), Pointer.class,
+                            new Object[] { null });
+        int b = batch.add(lib.getFunction("returnBooleanArgument"), boolean.class,
+                          new Object[] { Boolean.TRUE });
+        assertEquals("Wrong batch size", 7, batch.size());
+
+        batch.execute();
+        assertEquals("Wrong int result", new Integer(-42), batch.getResult(i32));
+        assertEquals("Wrong long result", new Long(0x123456789ABCDEFL), batch.getResult(i64));
+        assertEquals("Wrong float result", new Float(1.5f), batch.getResult(f));
+        assertEquals("Wrong double result", new Double(-2.25), batch.getResult(d));
+        assertEquals("Wrong pointer result", p, batch.getResult(ptr));
+        assertNull("Expected NULL pointer result", batch.getResult(nil));
+        assertEquals("Wrong boolean result", Boolean.TRUE, batch.getResult(b));
+    }
+
+    public void testLastErrorPerCall() {
+        NativeCallBatch batch = new NativeCallBatch();
+        Function f = lib.getFunction("setLastError");
+        for (int i=0;i < 10;i++) {
+            batch.add(f, void.class, new Object[] { new Integer(i + 1) });
+        }
+        batch.execute();
+        for (int i=0;i < 10;i++) {
+            assertNull("Void function should have no result", batch.getResult(i));
+            assertEquals("Wrong last error for call " + i, i + 1, batch.getLastError(i));
+        }
+        assertEquals("Last error should reflect the final call", 10, Native.getLastError());
+    }
+
+    public void testResultsRequireExecution() {
+        NativeCallBatch batch = new NativeCallBatch();
+        int index = batch.add(lib.getFunction("returnInt32Argument"), int.class,
+                              new Object[] { new Integer(1) });
+        try {
+            batch.getResult(index);
+            fail("Results should not be available before execution");
+        }
+        catch(IllegalStateException e) {
+        }
+        batch.execute();
+        batch.execute();
+        assertEquals("Batch should be re-executable", new Integer(1), batch.getResult(index));
+        batch.clear();
+        assertEquals("Batch should be empty", 0, batch.size());
+        batch.execute();
+    }
+
+    public void testUnsupportedArguments() {
+        NativeCallBatch batch = new NativeCallBatch();
+        Function f = lib.getFunction("returnInt32Argument");
+        try {
+            batch.add(f, int.class, new Object[] { "string" });
+            fail("String arguments should be rejected");
+        }
+        catch(IllegalArgumentException e) {
+        }
+        try {
+            batch.add(f, String.class, new Object[] { new Integer(0) });
+            fail("String results should be rejected");
+        }
+        catch(IllegalArgumentException e) {
+        }
+        assertEquals("Rejected calls should not be added", 0, batch.size());
+    }
+
+    public static void main(java.lang.String[] argList) {
+        junit.textui.TestRunner.run(NativeCallBatchTest.class);
+    }
+}
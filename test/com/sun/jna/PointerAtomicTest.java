@@ -0,0 +1,130 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import junit.framework.TestCase;
+
+/** Exercise atomic access to native memory. */
+public class PointerAtomicTest extends TestCase {
+
+    public void testCompareAndSet() {
+        Memory m = new Memory(16);
+        m.clear();
+        assertTrue("Int should be set", m.compareAndSetInt(0, 0, 42));
+        assertFalse("Int should not be set", m.compareAndSetInt(0, 0, 43));
+        assertEquals("Wrong int value", 42, m.getInt(0));
+        assertTrue("Long should be set", m.compareAndSetLong(8, 0, 0x123456789abcdefL));
+        assertFalse("Long should not be set", m.compareAndSetLong(8, 0, 1));
+        assertEquals("Wrong long value", 0x123456789abcdefL, m.getLong(8));
+    }
+
+    public void testCompareAndSetPointer() {
+        Memory m = new Memory(Pointer.SIZE);
+        Memory target = new Memory(1);
+        m.setPointer(0, null);
+        assertTrue("Pointer should be set", m.compareAndSetPointer(0, null, target));
+        assertFalse("Pointer should not be set", m.compareAndSetPointer(0, null, m));
+        assertEquals("Wrong pointer value", target, m.getPointer(0));
+        assertEquals("Wrong previous pointer", target, m.getAndSetPointer(0, null));
+        assertNull("Pointer should be cleared", m.getPointer(0));
+    }
+
+    public void testGetAndAdd() {
+        Memory m = new Memory(16);
+        m.clear();
+        assertEquals("Wrong previous int", 0, m.getAndAddInt(0, 5));
+        assertEquals("Wrong previous int", 5, m.getAndAddInt(0, -7));
+        assertEquals("Wrong int value", -2, m.getInt(0));
+        assertEquals("Wrong previous long", 0, m.getAndAddLong(8, 1L << 40));
+        assertEquals("Wrong long value", 1L << 40, m.getLong(8));
+    }
+
+    public void testGetAndSet() {
+        Memory m = new Memory(16);
+        m.setInt(0, 1);
+        m.setLong(8, 2);
+        assertEquals("Wrong previous int", 1, m.getAndSetInt(0, 3));
+        assertEquals("Wrong int value", 3, m.getInt(0));
+        assertEquals("Wrong previous long", 2, m.getAndSetLong(8, 4));
+        assertEquals("Wrong long value", 4, m.getLong(8));
+    }
+
+    public void testAcquireRelease() {
+        Memory m = new Memory(16 + Pointer.SIZE);
+        m.setIntRelease(0, 7);
+        assertEquals("Wrong int value", 7, m.getIntAcquire(0));
+        m.setLongRelease(8, -1L);
+        assertEquals("Wrong long value", -1L, m.getLongAcquire(8));
+        m.setPointerRelease(16, m);
+        assertEquals("Wrong pointer value", m, m.getPointerAcquire(16));
+        m.setPointerRelease(16, null);
+        assertNull("Null pointer expected", m.getPointerAcquire(16));
+        Native.acquireFence();
+        Native.releaseFence();
+        Native.fullFence();
+    }
+
+    public void testMisalignedAccessRejected() {
+        Memory m = new Memory(16);
+        try {
+            m.getAndAddInt(2, 1);
+            fail("Misaligned int access should fail");
+        }
+        catch(IllegalArgumentException e) {
+        }
+        try {
+            m.compareAndSetLong(4, 0, 1);
+            fail("Misaligned long access should fail");
+        }
+        catch(IllegalArgumentException e) {
+        }
+    }
+
+    public void testBoundsChecked() {
+        Memory m = new Memory(8);
+        try {
+            m.getAndSetLong(8, 0);
+            fail("Access beyond bounds should fail");
+        }
+        catch(IndexOutOfBoundsException e) {
+        }
+    }
+
+    public void testConcurrentIncrement() throws Exception {
+        final Memory m = new Memory(16);
+        m.clear();
+        final int COUNT = 10000;
+        Thread[] threads = new Thread[4];
+        for (int i=0;i < threads.length;i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j=0;j < COUNT;j++) {
+                        m.getAndAddInt(0, 1);
+                        long v;
+                        do {
+                            v = m.getLongAcquire(8);
+                        } while (!m.compareAndSetLong(8, v, v + 2));
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i=0;i < threads.length;i++) {
+            threads[i].join();
+        }
+        assertEquals("Lost int increments", threads.length * COUNT, m.getInt(0));
+        assertEquals("Lost long increments", 2L * threads.length * COUNT, m.getLong(8));
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(PointerAtomicTest.class);
+    }
+}
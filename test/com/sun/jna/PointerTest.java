@@ -229,6 +229,139 @@ public class PointerTest extends TestCase {
         }
     }
 
+    public void testCopyTo() {
+        Memory src = new Memory(16);
+        Memory dst = new Memory(16);
+        for (int i=0;i < 16;i++) {
+            src.setByte(i, (byte)i);
+        }
+        dst.clear();
+        src.copyTo(4, dst, 2, 8);
+        assertEquals("Byte before copy modified", 0, dst.getByte(1));
+        for (int i=0;i < 8;i++) {
+            assertEquals("Wrong value at " + (i+2), i+4, dst.getByte(i+2));
+        }
+        assertEquals("Byte after copy modified", 0, dst.getByte(10));
+    }
+
+    public void testMoveToOverlapping() {
+        Memory m = new Memory(16);
+        for (int i=0;i < 16;i++) {
+            m.setByte(i, (byte)i);
+        }
+        m.moveTo(0, m, 4, 8);
+        for (int i=0;i < 8;i++) {
+            assertEquals("Wrong value at " + (i+4), i, m.getByte(i+4));
+        }
+        m.moveTo(4, m, 2, 8);
+        for (int i=0;i < 8;i++) {
+            assertEquals("Wrong value at " + (i+2), i, m.getByte(i+2));
+        }
+    }
+
+    public void testCompare() {
+        Memory m1 = new Memory(8);
+        Memory m2 = new Memory(8);
+        m1.clear();
+        m2.clear();
+        assertEquals("Equal memory should compare equal", 0, m1.compare(0, m2, 0, 8));
+        m2.setByte(5, (byte)0x80);
+        assertTrue("Bytes should compare as unsigned", m1.compare(0, m2, 0, 8) < 0);
+        assertTrue("Comparison should be antisymmetric", m2.compare(0, m1, 0, 8) > 0);
+        assertEquals("Comparison should be limited to length", 0, m1.compare(0, m2, 0, 5));
+    }
+
+    public void testFill() {
+        Memory m = new Memory(16);
+        m.clear();
+        m.fill(1, 13, new byte[] { 1, 2, 3 });
+        assertEquals("Byte before fill modified", 0, m.getByte(0));
+        for (int i=0;i < 13;i++) {
+            assertEquals("Wrong value at " + (i+1), i % 3 + 1, m.getByte(i+1));
+        }
+        assertEquals("Byte after fill modified", 0, m.getByte(14));
+        m.fill(0, 2, new byte[] { 9, 9, 9, 9 });
+        assertEquals("Pattern should be truncated", 2, m.getByte(2));
+        try {
+            m.fill(0, 4, new byte[0]);
+            fail("Empty pattern should be rejected");
+        }
+        catch(IllegalArgumentException e) {
+        }
+    }
+
+    public void testBoundsChecked() {
+        Memory m1 = new Memory(8);
+        Memory m2 = new Memory(8);
+        try {
+            m1.copyTo(4, m2, 0, 8);
+            fail("Source bounds should be checked");
+        }
+        catch(IndexOutOfBoundsException e) {
+        }
+        try {
+            m1.copyTo(0, m2, 4, 8);
+            fail("Destination bounds should be checked");
+        }
+        catch(IndexOutOfBoundsException e) {
+        }
+        try {
+            m1.moveTo(0, m2, 1, 8);
+            fail("Destination bounds should be checked");
+        }
+        catch(IndexOutOfBoundsException e) {
+        }
+        try {
+            m1.compare(0, m2, 1, 8);
+            fail("Bounds of other memory should be checked");
+        }
+        catch(IndexOutOfBoundsException e) {
+        }
+        try {
+            m1.fill(1, 8, new byte[] { 0 });
+            fail("Fill bounds should be checked");
+        }
+        catch(IndexOutOfBoundsException e) {
+        }
+    }
+
+    public void testNegativeLengthRejected() {
+        Memory m1 = new Memory(8);
+        Memory m2 = new Memory(8);
+        Pointer p1 = new Pointer(Pointer.nativeValue(m1));
+        Pointer p2 = new Pointer(Pointer.nativeValue(m2));
+        Pointer[][] pairs = { { m1, m2 }, { p1, p2 } };
+        for (int i=0;i < pairs.length;i++) {
+            Pointer src = pairs[i][0];
+            Pointer dst = pairs[i][1];
+            String type = src.getClass().getName();
+            try {
+                src.copyTo(0, dst, 0, -1);
+                fail("Negative copy length should be rejected by " + type);
+            }
+            catch(IllegalArgumentException e) {
+            }
+            try {
+                src.moveTo(0, dst, 0, -1);
+                fail("Negative move length should be rejected by " + type);
+            }
+            catch(IllegalArgumentException e) {
+            }
+            try {
+                src.compare(0, dst, 0, -1);
+                fail("Negative compare length should be rejected by " + type);
+            }
+            catch(IllegalArgumentException e) {
+            }
+            try {
+                src.fill(0, -1, new byte[] { 0 });
+                fail("Negative fill length should be rejected by " + type);
+            }
+            catch(IllegalArgumentException e) {
+            }
+        }
+    }
+
     public static void main(String[] args) {
         junit.textui.TestRunner.run(PointerTest.class);
     }
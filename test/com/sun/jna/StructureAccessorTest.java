@@ -0,0 +1,274 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/** Verify generated structure field accessors. */
+public class StructureAccessorTest extends TestCase {
+
+    public static class PrimitiveStructure extends Structure {
+        public byte b;
+        public short s;
+        public char c;
+        public int i;
+        public long l;
+        public float f;
+        public double d;
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "b", "s", "c", "i", "l", "f", "d" });
+        }
+    }
+
+    public static class MixedStructure extends Structure {
+        public int count;
+        public Pointer ptr;
+        public String str;
+        public boolean flag;
+        public PrimitiveStructure inner;
+        public volatile int status;
+        public double value;
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "count", "ptr", "str", "flag", "inner", "status", "value" });
+        }
+    }
+
+    public static class RunStructure extends Structure {
+        public int a;
+        public volatile int v;
+        public int b;
+        public Pointer p;
+        public byte c;
+        public long d;
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "a", "v", "b", "p", "c", "d" });
+        }
+    }
+
+    public static class PaddedStructure extends Structure {
+        public byte x;
+        public int y;
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "x", "y" });
+        }
+    }
+
+    public static class FillStructure extends Structure {
+        public long a;
+        public long b;
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "a", "b" });
+        }
+    }
+
+    public static class OverridingStructure extends Structure {
+        public int value;
+        protected Object readField(StructField sf) {
+            return super.readField(sf);
+        }
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "value" });
+        }
+    }
+
+    static class PrivateStructure extends Structure {
+        public int value;
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "value" });
+        }
+    }
+
+    private static StructureAccessor accessorFor(Structure s) {
+        s.size();
+        return StructureAccessor.getInstance(s.getClass(), s.fields());
+    }
+
+    public void testPrimitiveFields() {
+        if (!StructureAccessor.ENABLED) return;
+        PrimitiveStructure s = new PrimitiveStructure();
+        StructureAccessor accessor = accessorFor(s);
+        assertNotNull("Accessor should be generated", accessor);
+        assertEquals("All fields should be handled", 0, accessor.otherReads.length);
+        assertEquals("All fields should be handled", 0, accessor.otherWrites.length);
+
+        s.b = (byte)-1;
+        s.s = (short)0x1234;
+        s.c = 'x';
+        s.i = 0x12345678;
+        s.l = 0x123456789abcdefL;
+        s.f = 1.5f;
+        s.d = -2.25;
+        s.write();
+        Pointer p = s.getPointer();
+        assertEquals("Wrong byte written", s.b, p.getByte(s.fieldOffset("b")));
+        assertEquals("Wrong short written", s.s, p.getShort(s.fieldOffset("s")));
+        assertEquals("Wrong char written", s.c, p.getChar(s.fieldOffset("c")));
+        assertEquals("Wrong int written", s.i, p.getInt(s.fieldOffset("i")));
+        assertEquals("Wrong long written", s.l, p.getLong(s.fieldOffset("l")));
+        assertEquals("Wrong float written", s.f, p.getFloat(s.fieldOffset("f")), 0);
+        assertEquals("Wrong double written", s.d, p.getDouble(s.fieldOffset("d")), 0);
+
+        PrimitiveStructure s2 = (PrimitiveStructure)Structure.newInstance(PrimitiveStructure.class, p);
+        s2.read();
+        assertEquals("Wrong byte read", s.b, s2.b);
+        assertEquals("Wrong short read", s.s, s2.s);
+        assertEquals("Wrong char read", s.c, s2.c);
+        assertEquals("Wrong int read", s.i, s2.i);
+        assertEquals("Wrong long read", s.l, s2.l);
+        assertEquals("Wrong float read", s.f, s2.f, 0);
+        assertEquals("Wrong double read", s.d, s2.d, 0);
+    }
+
+    public void testMixedFields() {
+        if (!StructureAccessor.ENABLED) return;
+        MixedStructure s = new MixedStructure();
+        StructureAccessor accessor = accessorFor(s);
+        assertNotNull("Accessor should be generated", accessor);
+        assertEquals("Wrong number of reflective reads", 4, accessor.otherReads.length);
+        assertEquals("Wrong number of reflective writes", 4, accessor.otherWrites.length);
+
+        Memory m = new Memory(4);
+        s.count = 3;
+        s.ptr = m;
+        s.str = "hello";
+        s.flag = true;
+        s.inner.i = 42;
+        s.status = 7;
+        s.value = 0.5;
+        s.write();
+        Pointer p = s.getPointer();
+        assertEquals("Volatile field should not be written", 0, p.getInt(s.fieldOffset("status")));
+        assertEquals("Wrong int written", 3, p.getInt(s.fieldOffset("count")));
+        assertEquals("Wrong double written", 0.5, p.getDouble(s.fieldOffset("value")), 0);
+
+        p.setInt(s.fieldOffset("status"), 9);
+        MixedStructure s2 = (MixedStructure)Structure.newInstance(MixedStructure.class, p);
+        s2.read();
+        assertEquals("Wrong int read", 3, s2.count);
+        assertEquals("Wrong pointer read", m, s2.ptr);
+        assertEquals("Wrong string read", "hello", s2.str);
+        assertTrue("Wrong boolean read", s2.flag);
+        assertEquals("Wrong nested field read", 42, s2.inner.i);
+        assertEquals("Volatile field should be read", 9, s2.status);
+        assertEquals("Wrong double read", 0.5, s2.value, 0);
+    }
+
+    public void testStagedTransfer() {
+        if (!StructureAccessor.ENABLED) return;
+        PrimitiveStructure s = new PrimitiveStructure();
+        StructureAccessor accessor = accessorFor(s);
+        assertEquals("Wrong staged length", s.fieldOffset("d") + 8, accessor.stagedLength);
+        int written = 0;
+        for (int i=0;i < accessor.runStarts.length;i++) {
+            written += accessor.runEnds[i] - accessor.runStarts[i];
+        }
+        assertEquals("Runs should cover only field bytes",
+                     1 + 2 + Native.WCHAR_SIZE + 4 + 8 + 4 + 8, written);
+
+        s.b = (byte)1;
+        s.s = (short)-2;
+        s.c = '\u4e2d';
+        s.i = 3;
+        s.l = -4L;
+        s.f = 5.5f;
+        s.d = 6.25;
+        accessor.writeStaged(s, s.getPointer());
+        Pointer p = s.getPointer();
+        assertEquals("Wrong byte written", s.b, p.getByte(s.fieldOffset("b")));
+        assertEquals("Wrong short written", s.s, p.getShort(s.fieldOffset("s")));
+        assertEquals("Wrong char written", s.c, p.getChar(s.fieldOffset("c")));
+        assertEquals("Wrong int written", s.i, p.getInt(s.fieldOffset("i")));
+        assertEquals("Wrong long written", s.l, p.getLong(s.fieldOffset("l")));
+        assertEquals("Wrong float written", s.f, p.getFloat(s.fieldOffset("f")), 0);
+        assertEquals("Wrong double written", s.d, p.getDouble(s.fieldOffset("d")), 0);
+
+        PrimitiveStructure s2 = (PrimitiveStructure)Structure.newInstance(PrimitiveStructure.class, p);
+        accessor.readStaged(s2, p);
+        assertEquals("Wrong byte read", s.b, s2.b);
+        assertEquals("Wrong short read", s.s, s2.s);
+        assertEquals("Wrong char read", s.c, s2.c);
+        assertEquals("Wrong int read", s.i, s2.i);
+        assertEquals("Wrong long read", s.l, s2.l);
+        assertEquals("Wrong float read", s.f, s2.f, 0);
+        assertEquals("Wrong double read", s.d, s2.d, 0);
+    }
+
+    public void testStagedWriteSkipsOtherFields() {
+        if (!StructureAccessor.ENABLED) return;
+        RunStructure s = new RunStructure();
+        StructureAccessor accessor = accessorFor(s);
+        assertEquals("Wrong number of write runs", 4, accessor.runStarts.length);
+
+        Pointer p = s.getPointer();
+        Memory m = new Memory(1);
+        p.setInt(s.fieldOffset("v"), 99);
+        p.setPointer(s.fieldOffset("p"), m);
+        s.a = 1;
+        s.v = 2;
+        s.b = 3;
+        s.c = 4;
+        s.d = 5;
+        accessor.writeStaged(s, p);
+        assertEquals("Wrong int written", 1, p.getInt(s.fieldOffset("a")));
+        assertEquals("Volatile field should not be written", 99, p.getInt(s.fieldOffset("v")));
+        assertEquals("Wrong int written", 3, p.getInt(s.fieldOffset("b")));
+        assertEquals("Pointer field should not be written", m, p.getPointer(s.fieldOffset("p")));
+        assertEquals("Wrong byte written", 4, p.getByte(s.fieldOffset("c")));
+        assertEquals("Wrong long written", 5, p.getLong(s.fieldOffset("d")));
+
+        accessor.readStaged(s, p);
+        assertEquals("Volatile field should be read", 99, s.v);
+    }
+
+    public void testStagedWritePreservesPadding() {
+        if (!StructureAccessor.ENABLED) return;
+        // Leave stale bytes in the per-thread staging buffer
+        FillStructure fill = new FillStructure();
+        fill.a = -1;
+        fill.b = -1;
+        accessorFor(fill).writeStaged(fill, fill.getPointer());
+
+        PaddedStructure s = new PaddedStructure();
+        StructureAccessor accessor = accessorFor(s);
+        Pointer p = s.getPointer();
+        p.clear(s.size());
+        s.x = 1;
+        s.y = 2;
+        accessor.writeStaged(s, p);
+        assertEquals("Wrong byte written", 1, p.getByte(s.fieldOffset("x")));
+        assertEquals("Wrong int written", 2, p.getInt(s.fieldOffset("y")));
+        for (int i=1;i < s.fieldOffset("y");i++) {
+            assertEquals("Padding byte " + i + " should not be written", 0, p.getByte(i));
+        }
+    }
+
+    public void testIneligibleStructures() {
+        assertNull("Structures overriding readField should not use accessors",
+                   accessorFor(new OverridingStructure()));
+        assertNull("Non-public structures should not use accessors",
+                   accessorFor(new PrivateStructure()));
+    }
+
+    public void testAccessorClassSharedByLayout() {
+        if (!StructureAccessor.ENABLED) return;
+        StructureAccessor a1 = accessorFor(new PrimitiveStructure());
+        StructureAccessor a2 = accessorFor(new PrimitiveStructure());
+        assertSame("Accessor class should be reused for the same layout",
+                   a1.getClass(), a2.getClass());
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(StructureAccessorTest.class);
+    }
+}
@@ -991,6 +991,183 @@ public class StructureTest extends TestCase {
         assertEquals("WString field should not be overwritten: " + s, m2, s.getPointer().getPointer(Pointer.SIZE));
     }
 
+    public void testReuseNativeStringIfUnchanged() {
+        class TestStructure extends Structure {
+            public int i;
+            public String s;
+            protected List getFieldOrder() {
+                return Arrays.asList(new String[] { "i", "s" });
+            }
+        }
+        TestStructure s = new TestStructure();
+        s.s = getName();
+        s.write();
+        Pointer p = s.getPointer().getPointer(Pointer.SIZE);
+        assertEquals("Wrong native string", getName(), p.getString(0));
+        s.read();
+        s.write();
+        assertEquals("Native string should be reused if unchanged",
+                     p, s.getPointer().getPointer(Pointer.SIZE));
+        s.s = getName() + "2";
+        s.write();
+        assertEquals("Wrong updated native string", s.s,
+                     s.getPointer().getPointer(Pointer.SIZE).getString(0));
+        s.s = null;
+        s.write();
+        assertNull("Null string should be written as NULL",
+                   s.getPointer().getPointer(Pointer.SIZE));
+    }
+
+    public static class DirtyTrackingStructure extends Structure {
+        public int count;
+        public int[] values = new int[16];
+        public Pointer p;
+        public NativeLong nl = new NativeLong(0);
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "count", "values", "p", "nl" });
+        }
+    }
+
+    public void testDirtyTrackingWritesOnlyChangedFields() {
+        DirtyTrackingStructure s = new DirtyTrackingStructure();
+        s.setDirtyTracking(true);
+        assertTrue("Dirty tracking should be enabled", s.getDirtyTracking());
+        s.count = 1;
+        s.values[0] = 2;
+        s.write();
+        Pointer m = s.getPointer();
+        int valuesOffset = s.fieldOffset("values");
+        assertEquals("Initial write should include all fields", 1, m.getInt(0));
+        assertEquals("Initial write should include all fields", 2, m.getInt(valuesOffset));
+
+        m.setInt(0, -1);
+        m.setInt(valuesOffset, -1);
+        m.setInt(valuesOffset + 4, -1);
+        s.values[1] = 3;
+        s.write();
+        assertEquals("Unchanged field should not be written", -1, m.getInt(0));
+        assertEquals("Changed array should be written", 2, m.getInt(valuesOffset));
+        assertEquals("Changed array should be written", 3, m.getInt(valuesOffset + 4));
+
+        m.setInt(valuesOffset, -1);
+        s.count = 4;
+        s.write();
+        assertEquals("Changed field should be written", 4, m.getInt(0));
+        assertEquals("Unchanged array should not be written", -1, m.getInt(valuesOffset));
+
+        s.read();
+        assertEquals("Wrong array value read", -1, s.values[0]);
+        m.setInt(0, 5);
+        s.write();
+        assertEquals("Field matching the value read should not be written", 5, m.getInt(0));
+
+        s.setDirtyTracking(false);
+        s.write();
+        assertEquals("All fields should be written without tracking", 4, m.getInt(0));
+    }
+
+    public void testDirtyTrackingComparesPointerAndIntegerTypeValues() {
+        DirtyTrackingStructure s = new DirtyTrackingStructure();
+        s.setDirtyTracking(true);
+        Memory mem = new Memory(4);
+        s.p = mem;
+        s.nl = new NativeLong(1);
+        s.write();
+        Pointer m = s.getPointer();
+        int pOffset = s.fieldOffset("p");
+        int nlOffset = s.fieldOffset("nl");
+        m.setPointer(pOffset, null);
+        m.setNativeLong(nlOffset, new NativeLong(-1));
+        s.p = mem.share(0);
+        s.nl = new NativeLong(1);
+        s.write();
+        assertNull("Equivalent pointer should not be written", m.getPointer(pOffset));
+        assertEquals("Equal NativeLong should not be written",
+                     -1, m.getNativeLong(nlOffset).longValue());
+        s.p = mem.share(1);
+        s.nl.setValue(2);
+        s.write();
+        assertEquals("Changed pointer should be written", mem.share(1), m.getPointer(pOffset));
+        assertEquals("Mutated NativeLong should be written",
+                     2, m.getNativeLong(nlOffset).longValue());
+    }
+
+    public void testDirtyTrackingResetOnMemoryChange() {
+        DirtyTrackingStructure s = new DirtyTrackingStructure();
+        s.setDirtyTracking(true);
+        s.count = 1;
+        s.write();
+        Memory m = new Memory(s.size());
+        m.clear();
+        s.useMemory(m);
+        s.write();
+        assertEquals("All fields should be written to new memory", 1, m.getInt(0));
+        s.clear();
+        s.write();
+        assertEquals("All fields should be written after clear", 1, m.getInt(0));
+    }
+
+    public static class DirtyTrackingOuter extends Structure {
+        public int before;
+        public DirtyTrackingStructure inner = new DirtyTrackingStructure();
+        protected List getFieldOrder() {
+            return Arrays.asList(new String[] { "before", "inner" });
+        }
+    }
+
+    public void testDirtyTrackingNestedStructure() {
+        DirtyTrackingOuter s = new DirtyTrackingOuter();
+        s.setDirtyTracking(true);
+        s.inner.count = 1;
+        s.write();
+        assertTrue("Nested structure should inherit dirty tracking",
+                   s.inner.getDirtyTracking());
+        Pointer m = s.getPointer();
+        int innerOffset = s.fieldOffset("inner");
+        m.setInt(innerOffset, -1);
+        m.setInt(innerOffset + s.inner.fieldOffset("values"), -1);
+        s.inner.values[0] = 2;
+        s.write();
+        assertEquals("Unchanged nested field should not be written",
+                     -1, m.getInt(innerOffset));
+        assertEquals("Changed nested field should be written",
+                     2, m.getInt(innerOffset + s.inner.fieldOffset("values")));
+    }
+
+    public void testDirtyTrackingSingleFieldSynch() {
+        DirtyTrackingStructure s = new DirtyTrackingStructure();
+        s.setDirtyTracking(true);
+        s.write();
+        Pointer m = s.getPointer();
+        s.writeField("count", new Integer(3));
+        m.setInt(0, -1);
+        s.write();
+        assertEquals("Field written individually should not be rewritten",
+                     -1, m.getInt(0));
+        m.setInt(0, 7);
+        s.readField("count");
+        m.setInt(0, -1);
+        s.write();
+        assertEquals("Field read individually should not be rewritten",
+                     -1, m.getInt(0));
+    }
+
+    public void testDirtyTrackingReallocatedAtSameAddress() {
+        DirtyTrackingStructure s = new DirtyTrackingStructure();
+        s.setDirtyTracking(true);
+        Memory m = new Memory(s.size());
+        s.useMemory(m);
+        s.count = 3;
+        s.write();
+        // Memory freed and allocated again at the same address
+        Pointer p = new Pointer(Pointer.nativeValue(m));
+        p.setInt(0, -1);
+        s.useMemory(p);
+        s.write();
+        assertEquals("Field should be written to newly used memory",
+                     3, p.getInt(0));
+    }
+
     // Ensure string cacheing doesn't interfere with wrapped structure writes.
     public static class StructureFromPointer extends Structure {
         public String s;
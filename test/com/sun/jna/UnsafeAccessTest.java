@@ -0,0 +1,98 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import junit.framework.TestCase;
+
+/** Verify direct memory access is consistent with JNI access. */
+public class UnsafeAccessTest extends TestCase {
+
+    public void testDisabledInProtectedMode() {
+        if (Boolean.getBoolean("jna.protected")) {
+            assertFalse("Direct access should be disabled in protected mode",
+                        UnsafeAccess.isEnabled());
+        }
+    }
+
+    public void testDisabledWhenProtectedAtRuntime() {
+        boolean saved = Native.isProtected();
+        try {
+            Native.setProtected(true);
+            if (!Native.isProtected()) {
+                return;
+            }
+            assertFalse("Direct access should be disabled in protected mode",
+                        UnsafeAccess.isEnabled());
+            try {
+                new Pointer(16).setInt(0, 0);
+                fail("Invalid access should throw in protected mode");
+            }
+            catch(Error e) {
+            }
+            Native.setProtected(false);
+            assertEquals("Direct access should resume when unprotected",
+                         UnsafeAccess.ENABLED, UnsafeAccess.isEnabled());
+        }
+        finally {
+            Native.setProtected(saved);
+        }
+    }
+
+    public void testReadMatchesNative() {
+        if (!UnsafeAccess.AVAILABLE) return;
+        Memory m = new Memory(64);
+        for (int i=0;i < m.size();i++) {
+            m.setByte(i, (byte)(i * 7 + 1));
+        }
+        // Include unaligned addresses
+        for (int off=0;off < 9;off++) {
+            long addr = Pointer.nativeValue(m) + off;
+            assertEquals("Wrong byte", Native.getByte(addr), UnsafeAccess.getByte(addr));
+            assertEquals("Wrong char", Native.getChar(addr), UnsafeAccess.getChar(addr));
+            assertEquals("Wrong short", Native.getShort(addr), UnsafeAccess.getShort(addr));
+            assertEquals("Wrong int", Native.getInt(addr), UnsafeAccess.getInt(addr));
+            assertEquals("Wrong long", Native.getLong(addr), UnsafeAccess.getLong(addr));
+            assertEquals("Wrong float", Float.floatToRawIntBits(Native.getFloat(addr)),
+                         Float.floatToRawIntBits(UnsafeAccess.getFloat(addr)));
+            assertEquals("Wrong double", Double.doubleToRawLongBits(Native.getDouble(addr)),
+                         Double.doubleToRawLongBits(UnsafeAccess.getDouble(addr)));
+            assertEquals("Wrong pointer", Native.getPointer(addr), UnsafeAccess.getPointer(addr));
+        }
+    }
+
+    public void testWriteMatchesNative() {
+        if (!UnsafeAccess.AVAILABLE) return;
+        Memory m = new Memory(32);
+        long addr = Pointer.nativeValue(m) + 3;
+        UnsafeAccess.setByte(addr, (byte)0x7f);
+        assertEquals("Wrong byte", (byte)0x7f, Native.getByte(addr));
+        UnsafeAccess.setChar(addr, '\u4e2d');
+        assertEquals("Wrong char", '\u4e2d', Native.getChar(addr));
+        UnsafeAccess.setShort(addr, (short)-2);
+        assertEquals("Wrong short", (short)-2, Native.getShort(addr));
+        UnsafeAccess.setInt(addr, 0x12345678);
+        assertEquals("Wrong int", 0x12345678, Native.getInt(addr));
+        UnsafeAccess.setLong(addr, 0x123456789abcdefL);
+        assertEquals("Wrong long", 0x123456789abcdefL, Native.getLong(addr));
+        UnsafeAccess.setFloat(addr, 1.5f);
+        assertEquals("Wrong float", 1.5f, Native.getFloat(addr), 0);
+        UnsafeAccess.setDouble(addr, -2.25);
+        assertEquals("Wrong double", -2.25, Native.getDouble(addr), 0);
+        UnsafeAccess.setPointer(addr, Pointer.nativeValue(m));
+        assertEquals("Wrong pointer", m, Native.getPointer(addr));
+        UnsafeAccess.setPointer(addr, 0);
+        assertNull("Null pointer expected", UnsafeAccess.getPointer(addr));
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(UnsafeAccessTest.class);
+    }
+}
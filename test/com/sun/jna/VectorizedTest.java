@@ -0,0 +1,178 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import junit.framework.TestCase;
+
+public class VectorizedTest extends TestCase {
+
+    public interface MathLibrary extends Library {
+        @Vectorized("cos")
+        void cos(double[] x, double[] result);
+        @Vectorized("pow")
+        void pow(double[] x, double y, double[] result);
+    }
+
+    public interface TestLibrary extends Library {
+        @Vectorized
+        void returnInt32Argument(int[] args, int[] results);
+        @Vectorized(value="setLastError", hasResult=false)
+        void setLastErrors(int[] errors);
+    }
+
+    private NativeLibrary lib;
+
+    protected void setUp() {
+        lib = NativeLibrary.getInstance("testlib");
+    }
+
+    protected void tearDown() {
+        lib = null;
+    }
+
+    public void testInvokeOverArrays() {
+        Function f = lib.getFunction("returnInt64Argument");
+        long[] args = { 1, -2, 0x123456789ABCDEFL, Long.MIN_VALUE };
+        long[] results = new long[args.length];
+        f.invokeVectorized(new Object[] { args }, results);
+        for (int i=0;i < args.length;i++) {
+            assertEquals("Wrong result " + i, args[i], results[i]);
+        }
+    }
+
+    public void testSmallIntegerResults() {
+        Function f = lib.getFunction("returnInt8Argument");
+        byte[] args = { 0, 1, -1, Byte.MAX_VALUE, Byte.MIN_VALUE };
+        byte[] results = new byte[args.length];
+        f.invokeVectorized(new Object[] { args }, results);
+        for (int i=0;i < args.length;i++) {
+            assertEquals("Wrong result " + i, args[i], results[i]);
+        }
+    }
+
+    public void testBroadcastScalarArgument() {
+        Function f = NativeLibrary.getInstance(Platform.MATH_LIBRARY_NAME).getFunction("pow");
+        double[] x = { 1, 2, 3, 4 };
+        double[] results = new double[x.length];
+        f.invokeVectorized(new Object[] { x, new Double(2) }, results);
+        for (int i=0;i < x.length;i++) {
+            assertEquals("Wrong result " + i, x[i] * x[i], results[i], 0);
+        }
+    }
+
+    public void testInvokeOverMemory() {
+        Function f = lib.getFunction("returnDoubleArgument");
+        int count = 16;
+        Memory args = new Memory(count * 8);
+        Memory results = new Memory(count * 8);
+        for (int i=0;i < count;i++) {
+            args.setDouble(i * 8, i * 0.5);
+        }
+        f.invokeVectorized(double.class, new Class[] { double.class },
+                           new Object[] { args }, results, count);
+        for (int i=0;i < count;i++) {
+            assertEquals("Wrong result " + i, i * 0.5, results.getDouble(i * 8), 0);
+        }
+    }
+
+    public void testReuseCallDescriptor() {
+        Function f = lib.getFunction("returnInt64Argument");
+        long[] results = new long[2];
+        f.invokeVectorized(new Object[] { new long[] { 1, 2 } }, results);
+        Function.CallDescriptor call = f.getVectorCall(long.class, new Class[] { long.class });
+        f.invokeVectorized(new Object[] { new long[] { 3, 4 } }, results);
+        assertSame("Descriptor should be reused for the same signature",
+                   call, f.getVectorCall(long.class, new Class[] { long.class }));
+        assertEquals("Wrong result", 4, results[1]);
+        Function.CallDescriptor other = f.getVectorCall(long.class, new Class[] { int.class });
+        assertNotSame("Descriptor should differ for a different signature", call, other);
+        assertSame("Descriptor should be kept across alternating signatures",
+                   call, f.getVectorCall(long.class, new Class[] { long.class }));
+        assertSame("Descriptor should be kept across alternating signatures",
+                   other, f.getVectorCall(long.class, new Class[] { int.class }));
+    }
+
+    public void testUndersizedMemoryRejected() {
+        Function f = lib.getFunction("returnDoubleArgument");
+        int count = 16;
+        Memory small = new Memory((count - 1) * 8);
+        Memory full = new Memory(count * 8);
+        full.clear();
+        try {
+            f.invokeVectorized(double.class, new Class[] { double.class },
+                               new Object[] { small }, full, count);
+            fail("Undersized argument memory should be rejected");
+        }
+        catch(IndexOutOfBoundsException e) {
+        }
+        try {
+            f.invokeVectorized(double.class, new Class[] { double.class },
+                               new Object[] { full }, small, count);
+            fail("Undersized result memory should be rejected");
+        }
+        catch(IndexOutOfBoundsException e) {
+        }
+    }
+
+    public void testInvalidArguments() {
+        Function f = lib.getFunction("returnInt32Argument");
+        try {
+            f.invokeVectorized(new Object[] { new int[2] }, new int[3]);
+            fail("Short argument array should be rejected");
+        }
+        catch(IllegalArgumentException e) {
+        }
+        try {
+            f.invokeVectorized(new Object[] { new boolean[2] }, new int[2]);
+            fail("Boolean arguments should be rejected");
+        }
+        catch(IllegalArgumentException e) {
+        }
+        try {
+            f.invokeVectorized(new Object[] { "string" }, new int[2]);
+            fail("Non-primitive arguments should be rejected");
+        }
+        catch(IllegalArgumentException e) {
+        }
+    }
+
+    public void testVectorizedLibraryMethod() {
+        MathLibrary math = (MathLibrary)
+            Native.loadLibrary(Platform.MATH_LIBRARY_NAME, MathLibrary.class);
+        double[] x = { 0, Math.PI / 3, Math.PI };
+        double[] results = new double[x.length];
+        math.cos(x, results);
+        for (int i=0;i < x.length;i++) {
+            assertEquals("Wrong cosine " + i, Math.cos(x[i]), results[i], 1e-12);
+        }
+        math.pow(x, 2, results);
+        for (int i=0;i < x.length;i++) {
+            assertEquals("Wrong power " + i, x[i] * x[i], results[i], 1e-12);
+        }
+    }
+
+    public void testVectorizedLibraryMethodWithoutResult() {
+        TestLibrary testlib = (TestLibrary)
+            Native.loadLibrary("testlib", TestLibrary.class);
+        int[] args = { 1, 2, 3 };
+        int[] results = new int[args.length];
+        testlib.returnInt32Argument(args, results);
+        for (int i=0;i < args.length;i++) {
+            assertEquals("Wrong result " + i, args[i], results[i]);
+        }
+        testlib.setLastErrors(new int[] { 5, 6, 7 });
+        assertEquals("Last error should reflect the final call", 7, Native.getLastError());
+    }
+
+    public static void main(java.lang.String[] argList) {
+        junit.textui.TestRunner.run(VectorizedTest.class);
+    }
+}
@@ -0,0 +1,117 @@
+/* This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * <p/>
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+package com.sun.jna;
+
+import java.lang.ref.WeakReference;
+
+import junit.framework.TestCase;
+
+public class WeakIdentityCacheTest extends TestCase implements GCWaits {
+
+    public void testPutAndGet() {
+        WeakIdentityCache cache = new WeakIdentityCache();
+        Object key = new Object();
+        assertNull("Unexpected value", cache.get(key));
+        cache.put(key, "one");
+        assertEquals("Wrong value", "one", cache.get(key));
+        cache.put(key, "two");
+        assertEquals("Value should be replaced", "two", cache.get(key));
+        assertEquals("Wrong existing value", "two", cache.putIfAbsent(key, "three"));
+        assertEquals("Value should not be replaced", "two", cache.get(key));
+        assertEquals("Replaced entries should be dropped", 1, cache.size());
+    }
+
+    public void testIdentityKeys() {
+        WeakIdentityCache cache = new WeakIdentityCache();
+        String k1 = new String("key");
+        String k2 = new String("key");
+        cache.put(k1, "one");
+        assertNull("Keys should be compared by identity", cache.get(k2));
+        cache.put(k2, "two");
+        assertEquals("Wrong value", "one", cache.get(k1));
+        assertEquals("Wrong value", "two", cache.get(k2));
+    }
+
+    public void testGrowth() {
+        WeakIdentityCache cache = new WeakIdentityCache();
+        Object[] keys = new Object[1000];
+        for (int i=0;i < keys.length;i++) {
+            keys[i] = new Object();
+            cache.put(keys[i], new Integer(i));
+        }
+        for (int i=0;i < keys.length;i++) {
+            assertEquals("Wrong value for key " + i, new Integer(i), cache.get(keys[i]));
+        }
+    }
+
+    public void testCollectedKeysDropped() throws Exception {
+        WeakIdentityCache cache = new WeakIdentityCache();
+        Object key = new Object();
+        WeakReference ref = new WeakReference(key);
+        cache.put(key, "value");
+        key = null;
+        for (int i=0;i < GC_WAITS && ref.get() != null;i++) {
+            System.gc();
+            Thread.sleep(GC_WAIT_INTERVAL);
+        }
+        assertNull("Key should be collectable", ref.get());
+        Object other = new Object();
+        cache.put(other, "other");
+        assertEquals("Collected entry should be dropped on update", 1, cache.size());
+        assertEquals("Wrong value", "other", cache.get(other));
+    }
+
+    public void testConcurrentReads() throws Exception {
+        final WeakIdentityCache cache = new WeakIdentityCache();
+        final Object[] keys = new Object[200];
+        for (int i=0;i < keys.length;i++) {
+            keys[i] = new Object();
+        }
+        final Throwable[] failure = { null };
+        Thread[] readers = new Thread[4];
+        for (int t=0;t < readers.length;t++) {
+            readers[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int pass=0;pass < 50;pass++) {
+                            for (int i=0;i < keys.length;i++) {
+                                Object value = cache.get(keys[i]);
+                                if (value != null && ((Integer)value).intValue() != i) {
+                                    throw new AssertionError("Wrong value for key " + i);
+                                }
+                            }
+                        }
+                    }
+                    catch(Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        for (int i=0;i < keys.length;i++) {
+            cache.putIfAbsent(keys[i], new Integer(i));
+        }
+        for (int t=0;t < readers.length;t++) {
+            readers[t].join();
+        }
+        if (failure[0] != null) {
+            fail("Reader failed: " + failure[0]);
+        }
+        for (int i=0;i < keys.length;i++) {
+            assertEquals("Wrong value for key " + i, new Integer(i), cache.get(keys[i]));
+        }
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(WeakIdentityCacheTest.class);
+    }
+}